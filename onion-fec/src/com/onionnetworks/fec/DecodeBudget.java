@@ -0,0 +1,337 @@
+package com.onionnetworks.fec;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import com.onionnetworks.util.Buffer;
+
+/**
+ * This class limits how much memory concurrent decodes may use between
+ * them.  Before a decode runs, its footprint is estimated from k, the
+ * packetLength and the number of missing packets, see estimate(), and it
+ * waits until that many bytes of the budget are free.  Once it is done
+ * they are released for the next one.  Jobs are admitted in the order
+ * they asked, so a large one isn't starved by a stream of small ones, and
+ * one larger than the whole budget is admitted when nothing else is
+ * running.
+ *
+ * decode() and decodeAsync() do all of this around FECCode.decode().
+ * Callers that decode some other way use acquire(), tryAcquire() or
+ * acquireAsync() and release() themselves.  getUsed() and getWaiting()
+ * tell how much of the budget is in use and how much is waiting for it.
+ *
+ * getDefault() returns a budget shared by the whole VM, of
+ * "com.onionnetworks.fec.decodebudget" bytes or DEFAULT_FRACTION of the
+ * maximum heap size.
+ */
+public class DecodeBudget {
+
+    public static final int DEFAULT_FRACTION = 4;
+
+    protected static DecodeBudget def;
+
+    protected final long maxBytes;
+    protected long used;
+    protected long waitingBytes;
+    protected final LinkedList waiters = new LinkedList();
+
+    /**
+     * @param maxBytes The number of bytes decodes may use at once.
+     */
+    public DecodeBudget(long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes < 1: "+maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    public static synchronized DecodeBudget getDefault() {
+        if (def == null) {
+            def = new DecodeBudget
+                (Long.getLong("com.onionnetworks.fec.decodebudget",
+                              Runtime.getRuntime().maxMemory()/
+                              DEFAULT_FRACTION).longValue());
+        }
+        return def;
+    }
+
+    /**
+     * Estimate the memory a decode needs besides the packets themselves:
+     * the rebuilt packets, a packet to shuffle with and the decode matrix
+     * with the working copy it is inverted in.  The codes that rebuild a
+     * stripe at a time need less, so this is an upper bound for them.
+     *
+     * @param missing The number of source packets that are rebuilt.
+     * @return The footprint in bytes.
+     */
+    public long estimate(int k, int packetLength, int missing) {
+        return (long) (missing+1)*packetLength + 4L*k*k;
+    }
+
+    /**
+     * @return estimate() for decoding the packets index with code.
+     */
+    public long estimate(FECCode code, int packetLength, int[] index) {
+        int k = code.getK();
+        int missing = 0;
+        for (int i=0;i<index.length;i++) {
+            if (index[i] >= k) {
+                missing++;
+            }
+        }
+        return estimate(k,packetLength,missing);
+    }
+
+    /**
+     * Decode pkts once there is room for it in the budget, blocking until
+     * then.
+     *
+     * @throws InterruptedException If interrupted while waiting, in which
+     * case nothing was decoded.
+     */
+    public void decode(FECCode code, Buffer[] pkts, int[] index)
+        throws InterruptedException {
+        long bytes = estimate(code,pkts.length == 0 ? 0 : pkts[0].len,index);
+        acquire(bytes);
+        try {
+            code.decode(pkts,index);
+        } finally {
+            release(bytes);
+        }
+    }
+
+    /**
+     * Decode pkts on executor once there is room for it in the budget.
+     *
+     * @return A future that completes with pkts once they are decoded.
+     * Cancelling it while the decode waits for the budget withdraws it.
+     */
+    public CompletableFuture decodeAsync(final FECCode code,
+                                         final Buffer[] pkts,
+                                         final int[] index,
+                                         final Executor executor) {
+        final long bytes = estimate(code,pkts.length == 0 ? 0 : pkts[0].len,
+                                    index);
+        final CompletableFuture result = new CompletableFuture();
+        final CompletableFuture admitted = acquireAsync(bytes);
+        admitted.whenComplete(new BiConsumer() {
+                public void accept(Object o, Object failure) {
+                    if (failure != null) {
+                        result.completeExceptionally((Throwable) failure);
+                        return;
+                    }
+                    try {
+                        executor.execute(new Runnable() {
+                                public void run() {
+                                    try {
+                                        if (!result.isDone()) {
+                                            code.decode(pkts,index);
+                                            result.complete(pkts);
+                                        }
+                                    } catch (Throwable t) {
+                                        result.completeExceptionally(t);
+                                    } finally {
+                                        release(bytes);
+                                    }
+                                }
+                            });
+                    } catch (Throwable t) {
+                        release(bytes);
+                        result.completeExceptionally(t);
+                    }
+                }
+            });
+        result.whenComplete(new BiConsumer() {
+                public void accept(Object o, Object failure) {
+                    if (result.isCancelled()) {
+                        admitted.cancel(false);
+                    }
+                }
+            });
+        return result;
+    }
+
+    /**
+     * Wait until bytes of the budget are free and take them.
+     *
+     * @throws InterruptedException If interrupted while waiting, in which
+     * case nothing is taken.
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        CompletableFuture admitted = acquireAsync(bytes);
+        try {
+            admitted.get();
+        } catch (InterruptedException e) {
+            if (!admitted.cancel(false)) {
+                // It was admitted as we were interrupted.
+                release(bytes);
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    /**
+     * Take bytes of the budget if they are free now and nobody is waiting.
+     *
+     * @return true if they were taken.
+     */
+    public synchronized boolean tryAcquire(long bytes) {
+        checkBytes(bytes);
+        if (!waiters.isEmpty() || !fits(bytes)) {
+            return false;
+        }
+        used += bytes;
+        return true;
+    }
+
+    /**
+     * Take bytes of the budget once they are free.
+     *
+     * @return A future that completes once they have been taken.
+     * Cancelling it before then withdraws the request.
+     */
+    public CompletableFuture acquireAsync(long bytes) {
+        checkBytes(bytes);
+        final Waiter waiter = new Waiter(bytes);
+        synchronized (this) {
+            if (waiters.isEmpty() && fits(bytes)) {
+                used += bytes;
+                waiter.future.complete(null);
+                return waiter.future;
+            }
+            waiters.add(waiter);
+            waitingBytes += bytes;
+        }
+        waiter.future.whenComplete(new BiConsumer() {
+                public void accept(Object o, Object failure) {
+                    if (waiter.future.isCancelled()) {
+                        withdraw(waiter);
+                    }
+                }
+            });
+        return waiter.future;
+    }
+
+    /**
+     * Give back bytes taken by one of the acquire methods.
+     */
+    public void release(long bytes) {
+        LinkedList admitted;
+        synchronized (this) {
+            used -= bytes;
+            if (used < 0) {
+                used = 0;
+                throw new IllegalStateException("Released more than acquired");
+            }
+            admitted = admit();
+        }
+        complete(admitted);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return The number of bytes taken.
+     */
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * @return The number of jobs waiting for the budget.
+     */
+    public synchronized int getWaiting() {
+        return waiters.size();
+    }
+
+    /**
+     * @return The number of bytes the waiting jobs asked for.
+     */
+    public synchronized long getWaitingBytes() {
+        return waitingBytes;
+    }
+
+    public String toString() {
+        synchronized (this) {
+            return "DecodeBudget[used="+used+",maxBytes="+maxBytes+
+                ",waiting="+waiters.size()+",waitingBytes="+waitingBytes+"]";
+        }
+    }
+
+    private static void checkBytes(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("bytes < 0: "+bytes);
+        }
+    }
+
+    private boolean fits(long bytes) {
+        return used == 0 || used + bytes <= maxBytes;
+    }
+
+    /**
+     * Take the budget for the waiters at the head of the queue that fit,
+     * their futures must be completed with complete() outside the lock.
+     */
+    private LinkedList admit() {
+        LinkedList admitted = null;
+        while (!waiters.isEmpty()) {
+            Waiter w = (Waiter) waiters.getFirst();
+            if (!fits(w.bytes)) {
+                break;
+            }
+            waiters.removeFirst();
+            waitingBytes -= w.bytes;
+            used += w.bytes;
+            if (admitted == null) {
+                admitted = new LinkedList();
+            }
+            admitted.add(w);
+        }
+        return admitted;
+    }
+
+    private void complete(LinkedList admitted) {
+        if (admitted == null) {
+            return;
+        }
+        for (Iterator it=admitted.iterator();it.hasNext();) {
+            Waiter w = (Waiter) it.next();
+            if (!w.future.complete(null)) {
+                // Cancelled just as it was admitted.
+                release(w.bytes);
+            }
+        }
+    }
+
+    /**
+     * Remove a cancelled waiter, which may let the ones behind it in.
+     */
+    private void withdraw(Waiter waiter) {
+        LinkedList admitted;
+        synchronized (this) {
+            if (!waiters.remove(waiter)) {
+                return;
+            }
+            waitingBytes -= waiter.bytes;
+            admitted = admit();
+        }
+        complete(admitted);
+    }
+
+    private static class Waiter {
+
+        final long bytes;
+        final CompletableFuture future = new CompletableFuture();
+
+        Waiter(long bytes) {
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package com.onionnetworks.fec;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import com.onionnetworks.util.Util;
+
+/**
+ * This class caches inverted decode matrices keyed by erasure pattern.
+ * Building a decode matrix means inverting a k*k matrix, which is O(k^3),
+ * but in practice most segments lose the same few packets, so the same
+ * matrices are built over and over again.
+ *
+ * The key is (gfBits, k, n, index[]) where index[] is the packet index
+ * array as it is after shuffling, i.e. every source packet sits at its
+ * own position and the repair packets fill the holes.  The order of the
+ * repair packets within the holes only permutes the columns of the
+ * inverse, so the cache stores a canonical form where they are sorted
+ * and permutes the columns on the way out.  That way packets arriving in
+ * a different order still hit the same entry.
+ *
+ * Since the inverse of a matrix is unique, the pure Java and the native
+ * codes produce identical decode matrices for the same field size, so a
+ * single cache is shared between them.  The pure Java codes only use the
+ * e*k reduced decode matrices (see FECMath.createReducedDecodeMatrix()),
+ * which are kept apart from the full k*k ones.
+ *
+ * Lookups with a DecodeScratch allocate nothing: the key is set in the
+ * scratch's Key rather than a new one, and a matrix whose columns have to
+ * be permuted is permuted into the scratch.  Such a matrix is only valid
+ * until the scratch is used again.
+ *
+ * The cache is bounded by the total size of the matrices it holds.  Hits
+ * take no locks, they only stamp the entry with the current generation,
+ * which puts advance.  When a put goes over the bound the entries with the
+ * oldest stamps are evicted until a quarter of the bound is free, so the
+ * eviction is least recently used only to within a generation, and its
+ * cost is spread over the puts that follow.  The size can be set in
+ * bytes with the property "com.onionnetworks.fec.decodematrixcache.size",
+ * 0 disables caching.  Matrices returned by get() are shared and MUST NOT
+ * be modified.
+ */
+public class DecodeMatrixCache {
+
+    public static final long DEFAULT_MAX_BYTES = 16*1024*1024;
+
+    protected static DecodeMatrixCache def;
+
+    protected final long maxBytes;
+    // bytes and the evictions are guarded by this, the hits aren't.
+    protected long bytes;
+    protected volatile long generation;
+    protected final LongAdder hits = new LongAdder();
+    protected final LongAdder misses = new LongAdder();
+    protected final ConcurrentHashMap cache = new ConcurrentHashMap();
+
+    public DecodeMatrixCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return The DecodeMatrixCache shared by all of the FECCodes.
+     */
+    public synchronized static DecodeMatrixCache getDefault() {
+        if (def == null) {
+            def = new DecodeMatrixCache
+                (Long.getLong("com.onionnetworks.fec.decodematrixcache.size",
+                              DEFAULT_MAX_BYTES).longValue());
+        }
+        return def;
+    }
+
+    /**
+     * @param index The shuffled packet indexes, source packets (index < k)
+     * must already be in their own position.
+     *
+     * @return The k*k decode matrix for this erasure pattern with its
+     * columns in the order of <code>index</code>, or null if it isn't
+     * cached.  The returned matrix must not be modified.
+     */
+    public char[] get(int gfBits, int k, int n, int[] index) {
+        return get(gfBits,k,n,index,false);
+    }
+
+    /**
+     * Add a decode matrix for the shuffled <code>index</code>.  The matrix
+     * is not copied if index is already in canonical order, so the caller
+     * must not modify it afterwards.
+     */
+    public void put(int gfBits, int k, int n, int[] index, char[] matrix) {
+        put(gfBits,k,n,index,false,matrix);
+    }
+
+    /**
+     * @param reduced true for the e*k reduced decode matrix, false for the
+     * full k*k one.
+     */
+    protected char[] get(int gfBits, int k, int n, int[] index,
+                         boolean reduced) {
+        return get(gfBits,k,n,index,reduced,null);
+    }
+
+    /**
+     * @param scratch Where to build the key and permute the matrix, or
+     * null to allocate them.
+     */
+    protected char[] get(int gfBits, int k, int n, int[] index,
+                         boolean reduced, DecodeScratch scratch) {
+        if (maxBytes <= 0) {
+            return null;
+        }
+        Key key;
+        if (scratch == null) {
+            key = new Key(gfBits,k,n,index,reduced);
+        } else {
+            key = scratch.key(k);
+            key.set(gfBits,n,index,reduced);
+        }
+        Entry e = (Entry) cache.get(key);
+        if (e == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        long gen = generation;
+        if (e.generation != gen) {
+            e.generation = gen;
+        }
+        return key.fromCanonical(e.matrix,index,scratch);
+    }
+
+    protected void put(int gfBits, int k, int n, int[] index,
+                       boolean reduced, char[] matrix) {
+        long size = 2L*matrix.length;
+        if (size > maxBytes) {
+            return;
+        }
+        Key key = new Key(gfBits,k,n,index,reduced);
+        Entry e = new Entry(key.toCanonical(matrix,index));
+        synchronized (this) {
+            e.generation = ++generation;
+            Entry old = (Entry) cache.put(key,e);
+            if (old != null) {
+                bytes -= 2L*old.matrix.length;
+            }
+            bytes += size;
+            if (bytes > maxBytes) {
+                evict(maxBytes - maxBytes/4);
+            }
+        }
+    }
+
+    /**
+     * Evict the entries that were hit the longest ago until at most
+     * <code>target</code> bytes are held.  Called with the lock held.
+     */
+    protected void evict(long target) {
+        Map.Entry[] entries = (Map.Entry[])
+            cache.entrySet().toArray(new Map.Entry[0]);
+        long[] gens = new long[entries.length];
+        for (int i=0;i<entries.length;i++) {
+            gens[i] = ((Entry) entries[i].getValue()).generation;
+        }
+        // Take the generations once, the hits keep moving them.
+        Integer[] order = new Integer[entries.length];
+        for (int i=0;i<order.length;i++) {
+            order[i] = Integer.valueOf(i);
+        }
+        Arrays.sort(order,new Comparator() {
+            public int compare(Object a, Object b) {
+                long ga = gens[((Integer) a).intValue()];
+                long gb = gens[((Integer) b).intValue()];
+                return ga < gb ? -1 : (ga == gb ? 0 : 1);
+            }
+        });
+        for (int i=0;i<order.length && bytes > target;i++) {
+            Map.Entry me = entries[order[i].intValue()];
+            if (cache.remove(me.getKey(),me.getValue())) {
+                bytes -= 2L*((Entry) me.getValue()).matrix.length;
+            }
+        }
+    }
+
+    /**
+     * Looks up the decode matrix and, if it isn't cached, builds it with
+     * <code>fecMath</code> and caches it.
+     */
+    public char[] getDecodeMatrix(FECMath fecMath, char[] encMatrix,
+                                  int[] index, int k, int n) {
+        char[] matrix = get(fecMath.gfBits,k,n,index);
+        if (matrix == null) {
+            matrix = fecMath.createDecodeMatrix(encMatrix,index,k,n);
+            put(fecMath.gfBits,k,n,index,matrix);
+        }
+        return matrix;
+    }
+
+    /**
+     * Like getDecodeMatrix(), but for the e*k reduced decode matrix: row r
+     * is the row of the decode matrix for the r-th missing source packet.
+     */
+    public char[] getReducedDecodeMatrix(FECMath fecMath,
+                                         EncodeMatrix encodeMatrix,
+                                         int[] index) {
+        return getReducedDecodeMatrix(fecMath,encodeMatrix,index,null);
+    }
+
+    /**
+     * getReducedDecodeMatrix() looking the matrix up with
+     * <code>scratch</code>.  The result may be longer than e*k and only
+     * stays valid until the scratch is used again.
+     */
+    public char[] getReducedDecodeMatrix(FECMath fecMath,
+                                         EncodeMatrix encodeMatrix,
+                                         int[] index, DecodeScratch scratch) {
+        int k = encodeMatrix.getK(), n = encodeMatrix.getN();
+        char[] matrix = get(fecMath.gfBits,k,n,index,true,scratch);
+        if (matrix == null) {
+            matrix = fecMath.createReducedDecodeMatrix(encodeMatrix,index);
+            put(fecMath.gfBits,k,n,index,true,matrix);
+        }
+        return matrix;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The number of bytes of matrices currently held.
+     */
+    public synchronized long getSize() {
+        return bytes;
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+        bytes = 0;
+    }
+
+    public synchronized String toString() {
+        return "DecodeMatrixCache[entries="+cache.size()+",bytes="+bytes+
+            ",maxBytes="+maxBytes+",hits="+hits.sum()+",misses="+
+            misses.sum()+"]";
+    }
+
+    /**
+     * A cached canonical matrix and the generation it was last hit in.
+     */
+    protected static class Entry {
+
+        protected final char[] matrix;
+        protected volatile long generation;
+
+        protected Entry(char[] matrix) {
+            this.matrix = matrix;
+        }
+    }
+
+    /**
+     * The canonical erasure pattern.  The repair indexes are sorted into
+     * the holes left by the missing source packets.  Keys in the cache are
+     * never changed, only the lookup keys of DecodeScratches are set()
+     * again.
+     */
+    protected static class Key {
+
+        protected int gfBits, n, hash;
+        protected boolean reduced;
+        protected final int k;
+        protected final int[] canonical;
+
+        protected Key(int gfBits, int k, int n, int[] index,
+                      boolean reduced) {
+            this(k);
+            set(gfBits,n,index,reduced);
+        }
+
+        /**
+         * A key for a code with k source packets, to be set().
+         */
+        protected Key(int k) {
+            this.k = k;
+            canonical = new int[k];
+        }
+
+        protected void set(int gfBits, int n, int[] index, boolean reduced) {
+            this.gfBits = gfBits;
+            this.n = n;
+            this.reduced = reduced;
+            System.arraycopy(index,0,canonical,0,k);
+            // insertion sort of the repair indexes in place, the source
+            // packets don't move.  There are few of them in the common
+            // case so this is cheap.
+            for (int i=0;i<k;i++) {
+                if (canonical[i] < k) {
+                    continue;
+                }
+                for (int j=i+1;j<k;j++) {
+                    if (canonical[j] >= k && canonical[j] < canonical[i]) {
+                        int tmp = canonical[i];
+                        canonical[i] = canonical[j];
+                        canonical[j] = tmp;
+                    }
+                }
+            }
+            hash = (((Arrays.hashCode(canonical)*31+gfBits)*31+k)*31+n)*2+
+                (reduced ? 1 : 0);
+        }
+
+        /**
+         * Permute the columns of a matrix for <code>index</code> into
+         * canonical order.
+         */
+        protected char[] toCanonical(char[] matrix, int[] index) {
+            int[] map = columnMap(index,null);
+            if (map == null) {
+                return matrix;
+            }
+            char[] result = new char[matrix.length];
+            for (int pos=0;pos<matrix.length;pos+=k) {
+                for (int col=0;col<k;col++) {
+                    result[pos+map[col]] = matrix[pos+col];
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Permute the columns of a canonical matrix into the order of
+         * <code>index</code>, into the scratch if there is one.
+         */
+        protected char[] fromCanonical(char[] matrix, int[] index,
+                                       DecodeScratch scratch) {
+            int[] map = columnMap(index,scratch);
+            if (map == null) {
+                return matrix;
+            }
+            char[] result = scratch == null ? new char[matrix.length] :
+                scratch.matrix(matrix.length);
+            for (int pos=0;pos<matrix.length;pos+=k) {
+                for (int col=0;col<k;col++) {
+                    result[pos+col] = matrix[pos+map[col]];
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return map[col] = the canonical position of index[col], or null
+         * if index is already canonical.
+         */
+        protected int[] columnMap(int[] index, DecodeScratch scratch) {
+            if (Util.arraysEqual(canonical,0,index,0,k)) {
+                return null;
+            }
+            int[] map = scratch == null ? new int[k] : scratch.columns(k);
+            for (int col=0;col<k;col++) {
+                if (index[col] < k) {
+                    map[col] = col;
+                } else {
+                    for (int i=0;i<k;i++) {
+                        if (canonical[i] == index[col]) {
+                            map[col] = i;
+                            break;
+                        }
+                    }
+                }
+            }
+            return map;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) obj;
+            return key.hash == hash && key.gfBits == gfBits && key.k == k &&
+                key.n == n && key.reduced == reduced &&
+                Arrays.equals(key.canonical,canonical);
+        }
+    }
+}
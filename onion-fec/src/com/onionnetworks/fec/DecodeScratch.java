@@ -0,0 +1,363 @@
+package com.onionnetworks.fec;
+
+/**
+ * This class holds the temporary arrays that decode() needs, so that a
+ * thread decoding block after block reuses them instead of allocating
+ * them for every call.  With a scratch the pure Java and the native codes
+ * decode with no allocation at all once the arrays have grown to the size
+ * of the blocks and the decode matrix is in the DecodeMatrixCache.  That
+ * holds for decode(Buffer[],int[]), decode(ByteBuffer[],int[]) on heap
+ * and direct buffers and decodeSegments(), but not for the stripes that
+ * ParallelCoder hands to other threads.  The pure Java codes and
+ * CauchyCode also take the arrays of their encode() from the calling
+ * thread's scratch.
+ *
+ * A scratch may be passed to FECCode.decode(Buffer[],int[],DecodeScratch)
+ * by the caller, who must not use it from two threads at once.  Otherwise
+ * decode() uses the one returned by get() for the calling thread.  That
+ * one keeps arrays of up to "com.onionnetworks.fec.decodescratch.size"
+ * bytes in all (DEFAULT_MAX_BYTES), larger ones are allocated for the
+ * call and dropped, so a thread that decoded one huge block doesn't keep
+ * its buffers forever.
+ */
+public class DecodeScratch {
+
+    public static final int DEFAULT_MAX_BYTES = 4*1024*1024;
+
+    protected static final int maxThreadBytes = Integer.getInteger
+        ("com.onionnetworks.fec.decodescratch.size",DEFAULT_MAX_BYTES).
+        intValue();
+
+    private static final ThreadLocal local = new ThreadLocal() {
+            protected Object initialValue() {
+                return new DecodeScratch(maxThreadBytes);
+            }
+        };
+
+    protected final int maxBytes;
+    protected int bytes;
+
+    protected byte[][] pkts, outs;
+    protected char[][] matrices;
+    protected int[] offs, rows, columns, copyOffs, copyRows, inPos, outPos;
+    protected byte[] packet, block, copy;
+    protected char[] stripe, stripes, table, matrix;
+    protected DecodeMatrixCache.Key key;
+
+    /**
+     * A scratch that keeps whatever it is asked for.
+     */
+    public DecodeScratch() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxBytes Arrays are only kept while the total size of the
+     * ones kept stays below this.
+     */
+    public DecodeScratch(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return The scratch of the calling thread.
+     */
+    public static DecodeScratch get() {
+        return (DecodeScratch) local.get();
+    }
+
+    /**
+     * Drop all of the arrays.
+     */
+    public void clear() {
+        pkts = outs = null;
+        matrices = null;
+        offs = rows = columns = copyOffs = copyRows = inPos = outPos = null;
+        packet = block = copy = null;
+        stripe = stripes = table = matrix = null;
+        key = null;
+        bytes = 0;
+    }
+
+    /**
+     * @return The number of bytes of arrays held.
+     */
+    public int getSize() {
+        return bytes;
+    }
+
+    /**
+     * The packet holder for decode(Buffer[],int[]), exactly len long
+     * since it is passed on as the byte[][] of the SPI.
+     */
+    byte[][] pkts(int len) {
+        if (pkts == null || pkts.length != len) {
+            byte[][] result = new byte[len][];
+            if (!keep(pkts == null ? 0 : 4*pkts.length,4*len)) {
+                return result;
+            }
+            pkts = result;
+        }
+        return pkts;
+    }
+
+    /**
+     * The offsets for pkts(), also exactly len long.
+     */
+    int[] offs(int len) {
+        if (offs == null || offs.length != len) {
+            int[] result = new int[len];
+            if (!keep(offs == null ? 0 : 4*offs.length,4*len)) {
+                return result;
+            }
+            offs = result;
+        }
+        return offs;
+    }
+
+    /**
+     * One packet, for copyShuffle(), or a stripe of one for PureCode.
+     */
+    byte[] packet(int len) {
+        if (packet == null || packet.length < len) {
+            byte[] result = new byte[len];
+            if (!keep(packet == null ? 0 : packet.length,len)) {
+                return result;
+            }
+            packet = result;
+        }
+        return packet;
+    }
+
+    /**
+     * The decoded packets of PureCode.
+     */
+    byte[] block(int len) {
+        if (block == null || block.length < len) {
+            byte[] result = new byte[len];
+            if (!keep(block == null ? 0 : block.length,len)) {
+                return result;
+            }
+            block = result;
+        }
+        return block;
+    }
+
+    /**
+     * The heap copy of the direct buffers of FECCode.decodeByCopy().
+     */
+    byte[] copy(int len) {
+        if (copy == null || copy.length < len) {
+            byte[] result = new byte[len];
+            if (!keep(copy == null ? 0 : copy.length,len)) {
+                return result;
+            }
+            copy = result;
+        }
+        return copy;
+    }
+
+    /**
+     * The offsets of the packets in copy().
+     */
+    int[] copyOffs(int len) {
+        if (copyOffs == null || copyOffs.length < len) {
+            int[] result = new int[len];
+            if (!keep(copyOffs == null ? 0 : 4*copyOffs.length,4*len)) {
+                return result;
+            }
+            copyOffs = result;
+        }
+        return copyOffs;
+    }
+
+    /**
+     * The positions of the packets to copy back out of copy().
+     */
+    int[] copyRows(int len) {
+        if (copyRows == null || copyRows.length < len) {
+            int[] result = new int[len];
+            if (!keep(copyRows == null ? 0 : 4*copyRows.length,4*len)) {
+                return result;
+            }
+            copyRows = result;
+        }
+        return copyRows;
+    }
+
+    /**
+     * The output packets of CauchyCode, which must set the ones it used
+     * back to null.
+     */
+    byte[][] outs(int len) {
+        if (outs == null || outs.length < len) {
+            byte[][] result = new byte[len][];
+            if (!keep(outs == null ? 0 : 4*outs.length,4*len)) {
+                return result;
+            }
+            outs = result;
+        }
+        return outs;
+    }
+
+    /**
+     * The positions in the input packets of a chunk of CauchyCode.
+     */
+    int[] inPos(int len) {
+        if (inPos == null || inPos.length < len) {
+            int[] result = new int[len];
+            if (!keep(inPos == null ? 0 : 4*inPos.length,4*len)) {
+                return result;
+            }
+            inPos = result;
+        }
+        return inPos;
+    }
+
+    /**
+     * The positions in the output packets of a chunk of CauchyCode.
+     */
+    int[] outPos(int len) {
+        if (outPos == null || outPos.length < len) {
+            int[] result = new int[len];
+            if (!keep(outPos == null ? 0 : 4*outPos.length,4*len)) {
+                return result;
+            }
+            outPos = result;
+        }
+        return outPos;
+    }
+
+    /**
+     * The positions of the missing packets, or of the repair packets being
+     * encoded.
+     */
+    int[] rows(int len) {
+        if (rows == null || rows.length < len) {
+            int[] result = new int[len];
+            if (!keep(rows == null ? 0 : 4*rows.length,4*len)) {
+                return result;
+            }
+            rows = result;
+        }
+        return rows;
+    }
+
+    /**
+     * The column map of DecodeMatrixCache.Key.fromCanonical(), or the row
+     * positions of PureCode.encodeRows().
+     */
+    int[] columns(int len) {
+        if (columns == null || columns.length < len) {
+            int[] result = new int[len];
+            if (!keep(columns == null ? 0 : 4*columns.length,4*len)) {
+                return result;
+            }
+            columns = result;
+        }
+        return columns;
+    }
+
+    /**
+     * A stripe of one packet as chars, for Pure16Code.
+     */
+    char[] stripe(int len) {
+        if (stripe == null || stripe.length < len) {
+            char[] result = new char[len];
+            if (!keep(stripe == null ? 0 : 2*stripe.length,2*len)) {
+                return result;
+            }
+            stripe = result;
+        }
+        return stripe;
+    }
+
+    /**
+     * The stripes of the decoded or encoded packets of Pure16Code.
+     */
+    char[] stripes(int len) {
+        if (stripes == null || stripes.length < len) {
+            char[] result = new char[len];
+            if (!keep(stripes == null ? 0 : 2*stripes.length,2*len)) {
+                return result;
+            }
+            stripes = result;
+        }
+        return stripes;
+    }
+
+    /**
+     * A FECMath.mulTable16() table.
+     */
+    char[] table() {
+        if (table == null) {
+            char[] result = new char[FECMath.MUL_TABLE16_SIZE];
+            if (!keep(0,2*result.length)) {
+                return result;
+            }
+            table = result;
+        }
+        return table;
+    }
+
+    /**
+     * A decode matrix with its columns permuted out of canonical order, or
+     * the encoding matrix rows generated by PureCode.encodeRows().
+     */
+    char[] matrix(int len) {
+        if (matrix == null || matrix.length < len) {
+            char[] result = new char[len];
+            if (!keep(matrix == null ? 0 : 2*matrix.length,2*len)) {
+                return result;
+            }
+            matrix = result;
+        }
+        return matrix;
+    }
+
+    /**
+     * The decode matrices of the segments of the native decodeSegments(),
+     * at least len long.
+     */
+    char[][] matrices(int len) {
+        if (matrices == null || matrices.length < len) {
+            char[][] result = new char[len][];
+            if (!keep(matrices == null ? 0 : 4*matrices.length,4*len)) {
+                return result;
+            }
+            matrices = result;
+        }
+        return matrices;
+    }
+
+    /**
+     * The key that DecodeMatrixCache looks matrices up with.
+     */
+    DecodeMatrixCache.Key key(int k) {
+        if (key == null || key.canonical.length != k) {
+            DecodeMatrixCache.Key result = new DecodeMatrixCache.Key(k);
+            if (!keep(key == null ? 0 : 4*key.canonical.length,4*k)) {
+                return result;
+            }
+            key = result;
+        }
+        return key;
+    }
+
+    /**
+     * Account for replacing an array of oldBytes with one of newBytes.
+     *
+     * @return false if the new one is too large to keep.
+     */
+    private boolean keep(int oldBytes, int newBytes) {
+        if ((long) bytes - oldBytes + newBytes > maxBytes) {
+            return false;
+        }
+        bytes += newBytes - oldBytes;
+        return true;
+    }
+
+    public String toString() {
+        return "DecodeScratch[bytes="+bytes+",maxBytes="+maxBytes+"]";
+    }
+}
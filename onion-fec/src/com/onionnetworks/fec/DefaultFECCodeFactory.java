@@ -1,10 +1,12 @@
 package com.onionnetworks.fec;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.io.File;
 import java.io.IOException;
+import java.lang.ref.SoftReference;
 import java.lang.reflect.*;
 import com.onionnetworks.util.Tuple;
-import com.onionnetworks.util.TimedSoftHashMap;
 
 /**
  * This is the default FECCodeFactory that wraps all of the FECCode 
@@ -20,6 +22,35 @@ import com.onionnetworks.util.TimedSoftHashMap;
  * let me know because I worked my ass of to provide this for you, so do me
  * a favor and at least let me know what you're using this for.
  *
+ * Codes are cached by (k,n), so building the encoding matrix is only paid
+ * once per code as long as it is in use.  An entry is dropped once it
+ * hasn't been asked for in DEFAULT_CACHE_TIME millis (configurable with
+ * the property "com.onionnetworks.fec.codecachetime", 0 disables the
+ * cache) or when the GC needs the memory, as codes are only softly
+ * referenced.  Cache hits take no locks, and concurrent requests for the
+ * same (k,n) build it only once.  The FECCodes handed out are shared
+ * between callers, which is fine because every FECCode is safe for
+ * concurrent use by multiple threads (see FECCode).
+ *
+ * If the property "com.onionnetworks.fec.matrixstore" names a directory,
+ * encoding matrices are kept there across restarts and shared with other
+ * processes, see MatrixStore, so the codes come up without computing them.
+ *
+ * Codes whose packets differ from those of the codes above, such as
+ * CauchyCode, are listed under "com.onionnetworks.fec.otherkeys" rather
+ * than "com.onionnetworks.fec.keys", so they are never picked on their
+ * own.  They, like any listed code, can be asked for by key with
+ * createFECCode(k,n,key).
+ *
+ * The codes listed under "com.onionnetworks.fec.paritykeys", the native,
+ * SWAR and plain versions of PQCode and ParityCode by default, are tried
+ * before all others when 0 < n-k <= their "maxrepair" property and k is
+ * at most their "maxk" property, if they have one.  For the n-k of 1 or 2
+ * that most callers use they are cheaper than the Reed-Solomon codes, but
+ * their repair packets differ, so if packets are exchanged with older
+ * versions of this library set the property to nothing to turn them off.
+ * Which code was picked is told by its toString().
+ *
  * (c) Copyright 2001 Onion Networks
  * (c) Copyright 2000 OpenCola
  *
@@ -29,9 +60,15 @@ public class DefaultFECCodeFactory extends FECCodeFactory {
 
     public static final int DEFAULT_CACHE_TIME = 2*60*1000;
 
-    //protected TimedSoftHashMap codeCache = new HashMap();
+    protected ConcurrentHashMap codeCache = new ConcurrentHashMap();
+    protected int cacheTime = DEFAULT_CACHE_TIME;
+    protected volatile long nextPurge;
     protected ArrayList eightBitCodes = new ArrayList();
     protected ArrayList sixteenBitCodes = new ArrayList();
+    protected HashMap namedCodes = new HashMap();
+    protected HashMap maxRepair = new HashMap();
+    protected HashMap maxK = new HashMap();
+    protected ArrayList parityCodes = new ArrayList();
     protected Properties fecProperties;
 
     public DefaultFECCodeFactory() {
@@ -50,9 +87,48 @@ public class DefaultFECCodeFactory extends FECCodeFactory {
                 ("Unable to load /lib/fec.properties");
         }
 
-        // Parse the keys
-        StringTokenizer st = new StringTokenizer
-            (getProperty("com.onionnetworks.fec.keys"),",");
+        loadCodes(getProperty("com.onionnetworks.fec.keys"),true);
+        loadCodes(getProperty("com.onionnetworks.fec.otherkeys"),false);
+        String parityKeys = getProperty("com.onionnetworks.fec.paritykeys");
+        loadCodes(parityKeys,false);
+        if (parityKeys != null) {
+            StringTokenizer st = new StringTokenizer(parityKeys,",");
+            while (st.hasMoreTokens()) {
+                String key = st.nextToken();
+                if (namedCodes.containsKey(key) &&
+                    maxRepair.containsKey(key)) {
+                    parityCodes.add(key);
+                }
+            }
+        }
+
+        String dir = getProperty("com.onionnetworks.fec.matrixstore");
+        if (dir != null && MatrixStore.getDefault() == null) {
+            String min = getProperty
+                ("com.onionnetworks.fec.matrixstore.minsize");
+            MatrixStore.setDefault
+                (new MatrixStore(new File(dir),min == null ?
+                                 MatrixStore.DEFAULT_MIN_SIZE :
+                                 Integer.parseInt(min)));
+        }
+
+        String time = getProperty("com.onionnetworks.fec.codecachetime");
+        if (time != null) {
+            cacheTime = Integer.parseInt(time);
+        }
+    }
+
+    /**
+     * Load the codes of a comma separated list of keys into namedCodes.
+     *
+     * @param pick Whether to also add them to the codes createFECCode(k,n)
+     * picks from.
+     */
+    protected void loadCodes(String keys, boolean pick) {
+        if (keys == null) {
+            return;
+        }
+        StringTokenizer st = new StringTokenizer(keys,",");
 
         // Load the codes into the HashMaps.
         while (st.hasMoreTokens()) {
@@ -62,16 +138,37 @@ public class DefaultFECCodeFactory extends FECCodeFactory {
                     (getProperty("com.onionnetworks.fec."+key+".class")).
                     getConstructor(new Class[] {int.class, int.class});
                 String numBits = getProperty("com.onionnetworks.fec."+key+".bits");
+                if (!"8".equals(numBits) && !"16".equals(numBits)) {
+                    throw new IllegalArgumentException
+                        ("Only 8 and 16 bit codes are currently supported");
+                }
+                namedCodes.put(key,new Tuple(con,numBits));
+                String max = getProperty("com.onionnetworks.fec."+key+
+                                         ".maxrepair");
+                if (max != null) {
+                    maxRepair.put(key,Integer.valueOf(max));
+                }
+                max = getProperty("com.onionnetworks.fec."+key+".maxk");
+                if (max != null) {
+                    maxK.put(key,Integer.valueOf(max));
+                }
+                if (!pick) {
+                    continue;
+                }
                 if ("8".equals(numBits)) {
                     eightBitCodes.add(con);
-                } else if ("16".equals(numBits)) {
-                    sixteenBitCodes.add(con);
                 } else {
-                    throw new IllegalArgumentException
-                        ("Only 8 and 16 bit codes are currently supported");
+                    sixteenBitCodes.add(con);
                 }
+            } catch (ClassNotFoundException e) {
+                // Not in this build, e.g. the codes of src9 and src16 when
+                // built on JDK 8.
+            } catch (NoClassDefFoundError e) {
+                // Needs classes this JVM doesn't have.
+            } catch (UnsupportedClassVersionError e) {
+                // Built for a newer JVM.
             } catch (Throwable t) {
-                System.out.println(t.getMessage());
+                System.err.println("Can't load FEC code "+key+": "+t);
             }
         }
     }
@@ -92,40 +189,205 @@ public class DefaultFECCodeFactory extends FECCodeFactory {
      * If you're only asking for an 8 bit code we will NOT give you a 16 bit
      * one.
      */
-    public synchronized FECCode createFECCode(int k, int n) {
-        Integer K = new Integer(k);
-        Integer N = new Integer(n);
-        Tuple t = new Tuple(K,N);
+    public FECCode createFECCode(int k, int n) {
+        return createFECCode(k,n,null);
+    }
 
-        // See if there is a cached code.
-        FECCode result = null; //(FECCode) codeCache.get(t);
-        if (result == null) {
-            if (k < 1 || k > 65536 || n < k || n > 65536) {
+    /**
+     * @param key The key of the code in the properties, e.g. "cauchy8",
+     * or null to pick the first of "com.onionnetworks.fec.keys" that
+     * works.
+     * @return The code, or null if it couldn't be constructed.
+     * @throws IllegalArgumentException If there is no code for the key,
+     * it is an 8 bit code and n > 256, or n-k is more than its maxrepair
+     * or k more than its maxk.
+     */
+    public FECCode createFECCode(int k, int n, String key) {
+        if (k < 1 || k > 65536 || n < k || n > 65536) {
+            throw new IllegalArgumentException
+                ("k and n must be between 1 and 65536 and n must not be "+
+                 "smaller than k: k="+k+",n="+n);
+        }
+        if (key != null) {
+            Tuple code = (Tuple) namedCodes.get(key);
+            if (code == null) {
+                throw new IllegalArgumentException("No code for key "+key);
+            }
+            if ("8".equals(code.getRight()) && n > 256) {
                 throw new IllegalArgumentException
-                    ("k and n must be between 1 and 65536 and n must not be "+
-                     "smaller than k: k="+k+",n="+n);
+                    (key+" is an 8 bit code and n > 256: n="+n);
             }
+            Integer max = (Integer) maxRepair.get(key);
+            if (max != null && n-k > max.intValue()) {
+                throw new IllegalArgumentException
+                    (key+" has at most "+max+" repair packets: k="+k+
+                     ",n="+n);
+            }
+            max = (Integer) maxK.get(key);
+            if (max != null && k > max.intValue()) {
+                throw new IllegalArgumentException
+                    (key+" has at most "+max+" source packets: k="+k);
+            }
+        }
+        if (cacheTime <= 0) {
+            return newFECCode(k,n,key);
+        }
 
-            Iterator it;
-            if (n <= 256 && !eightBitCodes.isEmpty()) {
-                it = eightBitCodes.iterator();
-            } else {
-                it = sixteenBitCodes.iterator();
+        Tuple t = new Tuple(Integer.valueOf(k),Integer.valueOf(n));
+        if (key != null) {
+            t = new Tuple(t,key);
+        }
+        long now = System.currentTimeMillis();
+
+        // See if there is a cached code.
+        CachedCode cached = (CachedCode) codeCache.get(t);
+        if (cached == null) {
+            purge(now);
+            CachedCode fresh = new CachedCode(key,now);
+            cached = (CachedCode) codeCache.putIfAbsent(t,fresh);
+            if (cached == null) {
+                cached = fresh;
             }
-            while (it.hasNext()) {
-                try {
-                    result = (FECCode) ((Constructor) it.next()).newInstance
-                        (new Object[] {K, N});
-                    break;
-                } catch (Throwable doh) {
-                    doh.printStackTrace();
+        }
+        return cached.get(k,n,now);
+    }
+
+    /**
+     * Remove the expired codes from the cache, at most once per cacheTime.
+     */
+    protected void purge(long now) {
+        if (now < nextPurge) {
+            return;
+        }
+        nextPurge = now + cacheTime;
+        for (Iterator it=codeCache.entrySet().iterator();it.hasNext();) {
+            Map.Entry e = (Map.Entry) it.next();
+            if (((CachedCode) e.getValue()).isExpired(now)) {
+                codeCache.remove(e.getKey(),e.getValue());
+            }
+        }
+    }
+
+    protected FECCode newFECCode(int k, int n) {
+        return newFECCode(k,n,null);
+    }
+
+    /**
+     * Construct a new code, the one for key or if it is null trying the
+     * configured codes in order.
+     */
+    protected FECCode newFECCode(int k, int n, String key) {
+        Integer K = new Integer(k);
+        Integer N = new Integer(n);
+        FECCode result = null;
+
+        if (key == null) {
+            result = newParityCode(k,n);
+            if (result != null) {
+                return result;
+            }
+        }
+
+        Iterator it;
+        if (key != null) {
+            it = Collections.singletonList
+                (((Tuple) namedCodes.get(key)).getLeft()).iterator();
+        } else if (n <= 256 && !eightBitCodes.isEmpty()) {
+            it = eightBitCodes.iterator();
+        } else {
+            it = sixteenBitCodes.iterator();
+        }
+        while (it.hasNext()) {
+            try {
+                result = (FECCode) ((Constructor) it.next()).newInstance
+                    (new Object[] {K, N});
+                break;
+            } catch (InvocationTargetException e) {
+                // A code that can't run on this JVM, such as VectorCode
+                // without the Vector API, says so quietly.
+                if (!(e.getCause() instanceof UnsupportedOperationException)) {
+                    e.printStackTrace();
                 }
+            } catch (Throwable doh) {
+                doh.printStackTrace();
             }
-                        
-            //if (result != null) {
-            //    codeCache.put(t,result,DEFAULT_CACHE_TIME);
-            // }
-        } 
+        }
         return result;
     }
+
+    /**
+     * @return The first of the parity codes that has n-k repair packets
+     * and takes k source packets, or null if none does or n == k, which
+     * is left to the usual codes.
+     */
+    protected FECCode newParityCode(int k, int n) {
+        if (n == k) {
+            return null;
+        }
+        for (Iterator it=parityCodes.iterator();it.hasNext();) {
+            String key = (String) it.next();
+            Tuple code = (Tuple) namedCodes.get(key);
+            Integer max = (Integer) maxK.get(key);
+            if (n-k > ((Integer) maxRepair.get(key)).intValue() ||
+                (max != null && k > max.intValue()) ||
+                ("8".equals(code.getRight()) && n > 256)) {
+                continue;
+            }
+            try {
+                return (FECCode) ((Constructor) code.getLeft()).newInstance
+                    (new Object[] {Integer.valueOf(k), Integer.valueOf(n)});
+            } catch (InvocationTargetException e) {
+                // e.g. NativePQCode with an old native library, which the
+                // next key covers.
+                if (!(e.getCause() instanceof UnsupportedOperationException)) {
+                    e.printStackTrace();
+                }
+            } catch (Throwable doh) {
+                doh.printStackTrace();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A cache slot for one (k,n).  The code is built at most once at a
+     * time, by the first thread to need it, while the others wait on this
+     * slot rather than the whole factory.
+     */
+    protected class CachedCode {
+
+        protected final String key;
+        protected volatile SoftReference ref;
+        protected volatile long deathTime;
+
+        protected CachedCode(String key, long now) {
+            this.key = key;
+            deathTime = now + cacheTime;
+        }
+
+        protected FECCode get(int k, int n, long now) {
+            deathTime = now + cacheTime;
+            SoftReference r = ref;
+            FECCode code = r == null ? null : (FECCode) r.get();
+            if (code != null) {
+                return code;
+            }
+            synchronized (this) {
+                r = ref;
+                code = r == null ? null : (FECCode) r.get();
+                if (code == null) {
+                    code = newFECCode(k,n,key);
+                    if (code != null) {
+                        ref = new SoftReference(code);
+                    }
+                }
+            }
+            return code;
+        }
+
+        protected boolean isExpired(long now) {
+            SoftReference r = ref;
+            return deathTime < now || (r != null && r.get() == null);
+        }
+    }
 }
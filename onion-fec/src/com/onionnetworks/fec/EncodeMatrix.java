@@ -0,0 +1,211 @@
+package com.onionnetworks.fec;
+
+import java.nio.CharBuffer;
+import com.onionnetworks.util.Util;
+
+/**
+ * This class generates the rows of the systematic encoding matrix of a
+ * (k,n) code one at a time, without building the n*k matrix.
+ *
+ * The matrix FECMath has always used is the bottom n-k rows of a
+ * Vandermonde matrix on the points x_0 = 0, x_i = alpha^(i-1), multiplied
+ * by the inverse of its top k rows.  Row r of that product is the k
+ * Lagrange basis polynomials of the first k points evaluated at x_r:
+ *
+ *   E[r][j] = P(x_r) / ((x_r + x_j) * D_j)
+ *
+ * with P(x) the product of (x + x_m) and D_j the product of (x_j + x_m)
+ * for m != j, all m < k.  Because the points are consecutive powers of
+ * alpha both reduce to products of (1 + alpha^d) for runs of d, so with a
+ * table of the logs of their prefix products, built in O(n), every entry
+ * is a few table lookups.  A row costs O(k) instead of the O(k^2) per row
+ * and O(k^2) memory of inverting the Vandermonde matrix, and the result is
+ * the same matrix.
+ *
+ * An EncodeMatrix can also wrap an existing n*k matrix, on the heap or in
+ * a buffer such as one mapped by the MatrixStore.  All kinds are
+ * immutable and thread safe.
+ */
+public class EncodeMatrix {
+
+    protected FECMath fecMath;
+    protected int k, n;
+    // The materialized matrix, or null if the rows are generated.
+    protected char[] matrix;
+    // Or the matrix in a buffer, usually a mapped file.
+    protected CharBuffer buffer;
+    // log(prod_{d=1..i} (1 + alpha^d)), for i < n-1.
+    protected int[] logQ;
+    // -log(D_j) mod gfSize.
+    protected int[] negLogD;
+
+    /**
+     * Generate the rows of the (k,n) encoding matrix on demand.  This
+     * takes O(n) time and memory.
+     */
+    public EncodeMatrix(FECMath fecMath, int k, int n) {
+        if (k < 1 || k > fecMath.gfSize + 1 || n > fecMath.gfSize + 1 ||
+            k > n) {
+            throw new IllegalArgumentException
+                ("Invalid parameters n="+n+",k="+k+",gfSize="+
+                 fecMath.gfSize);
+        }
+        this.fecMath = fecMath;
+        this.k = k;
+        this.n = n;
+
+        int gfSize = fecMath.gfSize;
+        logQ = new int[Math.max(1,n-1)];
+        for (int d=1;d<logQ.length;d++) {
+            logQ[d] = (logQ[d-1] + fecMath.gf_log[1 ^ fecMath.gf_exp[d]]) %
+                gfSize;
+        }
+
+        // D_0 = prod x_m = alpha^(0+1+...+(k-2)).  For j >= 1, with
+        // x_j = alpha^a, the terms below a give alpha^(a(a-1)/2)*Q[a], the
+        // ones above alpha^(a(k-2-a))*Q[k-2-a] and x_0 = 0 gives alpha^a.
+        negLogD = new int[k];
+        long tri = (long) (k-2)*(k-1)/2;
+        negLogD[0] = neg(tri);
+        for (int j=1;j<k;j++) {
+            long a = j-1;
+            negLogD[j] = neg(a + a*(a-1)/2 + a*(k-2-a) + logQ[(int) a] +
+                             logQ[(int) (k-2-a)]);
+        }
+    }
+
+    /**
+     * Wrap a materialized n*k encoding matrix.
+     */
+    public EncodeMatrix(int k, int n, char[] matrix) {
+        if (matrix.length != n*k) {
+            throw new IllegalArgumentException("matrix.length != n*k");
+        }
+        this.k = k;
+        this.n = n;
+        this.matrix = matrix;
+    }
+
+    /**
+     * Wrap an n*k encoding matrix held in a buffer, from its position on.
+     */
+    public EncodeMatrix(int k, int n, CharBuffer buffer) {
+        if (buffer.remaining() != n*k) {
+            throw new IllegalArgumentException("buffer.remaining() != n*k");
+        }
+        this.k = k;
+        this.n = n;
+        this.buffer = buffer.slice();
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    /**
+     * @return true if this wraps an n*k matrix, rather than generating
+     * the rows.
+     */
+    public boolean isMaterialized() {
+        return matrix != null || buffer != null;
+    }
+
+    /**
+     * Copy row <code>index</code> of the encoding matrix into
+     * <code>dst</code> at <code>pos</code>.
+     */
+    public void getRow(int index, char[] dst, int pos) {
+        if (index < 0 || index >= n) {
+            throw new IllegalArgumentException("index out of range: "+index);
+        }
+        if (matrix != null) {
+            System.arraycopy(matrix,index*k,dst,pos,k);
+            return;
+        }
+        if (buffer != null) {
+            CharBuffer b = buffer.duplicate();
+            b.position(index*k);
+            b.get(dst,pos,k);
+            return;
+        }
+        if (index < k) {
+            Util.bzero(dst,pos,k);
+            dst[pos+index] = 1;
+            return;
+        }
+
+        int gfSize = fecMath.gfSize;
+        char[] gf_exp = fecMath.gf_exp;
+        int[] gf_log = fecMath.gf_log;
+        // x_r = alpha^b, P(x_r) = alpha^(b+tri)*Q[b]/Q[b-k+1].
+        int b = index-1;
+        long tri = (long) (k-2)*(k-1)/2;
+        int logP = (int) ((b + tri + logQ[b] + gfSize - logQ[b-k+1]) %
+                          gfSize);
+        char x = gf_exp[b];
+        // j = 0 has x_0 = 0, the others x_j = alpha^(j-1).
+        int l = logP + negLogD[0];
+        if (l >= gfSize) {
+            l -= gfSize;
+        }
+        dst[pos] = gf_exp[l + gfSize - b];
+        for (int j=1;j<k;j++) {
+            l = logP + negLogD[j];
+            if (l >= gfSize) {
+                l -= gfSize;
+            }
+            dst[pos+j] = gf_exp[l + gfSize - gf_log[x ^ gf_exp[j-1]]];
+        }
+    }
+
+    /**
+     * @return A copy of rows <code>from</code> to <code>to</code>, as a
+     * (to-from)*k matrix.  Large ones are filled in parallel if parallel
+     * coding is on, see FECCode.setParallelism().
+     */
+    public char[] getRows(int from, int to) {
+        if (from < 0 || to > n || from > to) {
+            throw new IllegalArgumentException("Bad rows: "+from+"-"+to);
+        }
+        if ((long) (to-from)*k > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Matrix larger than 2G");
+        }
+        char[] result = new char[(to-from)*k];
+        if (!ParallelCoder.fillRows(this,result,from,to)) {
+            fillRows(result,from,from,to);
+        }
+        return result;
+    }
+
+    /**
+     * @return The whole n*k matrix, like FECMath.createEncodeMatrix().
+     */
+    public char[] toArray() {
+        return getRows(0,n);
+    }
+
+    /**
+     * Copy rows <code>from</code> to <code>to</code> into dst, which holds
+     * the rows starting at <code>start</code>.
+     */
+    void fillRows(char[] dst, int start, int from, int to) {
+        for (int r=from, pos=(from-start)*k;r<to;r++, pos+=k) {
+            getRow(r,dst,pos);
+        }
+    }
+
+    private int neg(long log) {
+        int l = (int) (log % fecMath.gfSize);
+        return l == 0 ? 0 : fecMath.gfSize - l;
+    }
+
+    public String toString() {
+        return "EncodeMatrix[k="+k+",n="+n+
+            (matrix != null ? ",materialized]" :
+             buffer != null ? ",buffer]" : "]");
+    }
+}
@@ -1,5 +1,6 @@
 package com.onionnetworks.fec;
 
+import java.nio.ByteBuffer;
 import com.onionnetworks.util.Util;
 import com.onionnetworks.util.Buffer;
 
@@ -21,6 +22,12 @@ import com.onionnetworks.util.Buffer;
  * systematic codes which means that the first k repair packets will be
  * the same as the original source packets.
  *
+ * FECCodes are not modified by encoding or decoding, so a single instance
+ * may be used by any number of threads at once.  Implementations must
+ * keep it that way: any scratch space has to be local to the call, or to
+ * the calling thread like DecodeScratch.get().  This is what allows
+ * FECCodeFactory implementations to cache and share codes.
+ *
  * (c) Copyright 2001 Onion Networks
  * (c) Copyright 2000 OpenCola
  *
@@ -42,6 +49,21 @@ public abstract class FECCode {
         this.n = n;
     }
 
+    /**
+     * @return The number of source packets, <code>k</code>.
+     */
+    public int getK() {
+        return k;
+    }
+
+    /**
+     * @return The number of packets the source packets are encoded to,
+     * <code>n</code>.
+     */
+    public int getN() {
+        return n;
+    }
+
     /**
      * This method takes an array of source packets and generates a number
      * of repair packets from them.  This method could have taken in only
@@ -110,6 +132,19 @@ public abstract class FECCode {
                                    int[] index, int packetLength, 
                                    boolean shuffled);
 
+    /**
+     * decode(byte[][],int[],int[],int,boolean) with a scratch to take its
+     * temporary arrays from.  The default ignores the scratch, codes that
+     * can decode without allocating override it.
+     *
+     * @param scratch The caller's scratch, or null for the thread's.
+     */
+    protected void decode(byte[][] pkts, int[] pktsOff, int[] index,
+                          int packetLength, boolean shuffled,
+                          DecodeScratch scratch) {
+        decode(pkts,pktsOff,index,packetLength,shuffled);
+    }
+
     /**
      * This method takes an array of source packets and generates a number
      * of repair packets from them.  This method could have taken in only
@@ -145,7 +180,41 @@ public abstract class FECCode {
             repairOffs[i] = repair[i].off;
         }
 
-        encode(srcBufs,srcOffs,repairBufs,repairOffs,index,src[0].len);
+        encodeArrays(srcBufs,srcOffs,repairBufs,repairOffs,index,src[0].len);
+    }
+
+    /**
+     * This is encode(Buffer[],Buffer[],int[]) for ByteBuffers, so that
+     * packets read from a FileChannel or DatagramChannel into direct
+     * buffers can be encoded without first copying them onto the heap.
+     * Each packet is the <code>remaining()</code> bytes of its buffer, the
+     * positions and limits of the buffers are not changed.
+     *
+     * Heap buffers are coded through their backing arrays.  Direct buffers
+     * are passed to encode(ByteBuffer[],int[],ByteBuffer[],int[],int[],int)
+     * which the native codes implement on the buffers' memory.
+     *
+     * @param src An array of <code>k</code> ByteBuffers that contain the
+     * source packets to be encoded.
+     *
+     * @param repair The buffers to which the repair packets will be
+     * written, each must have at least as many bytes remaining as src[0].
+     * This array should be the same length as index.
+     *
+     * @param index This int[] specifies the indexes of the packets to be
+     * encoded and written to <code>repair</code>.
+     */
+    public void encode(ByteBuffer[] src, ByteBuffer[] repair, int[] index) {
+        int packetLength = src[0].remaining();
+        checkBuffers(src,packetLength);
+        checkBuffers(repair,packetLength);
+        if (hasArrays(src) && hasArrays(repair)) {
+            encodeArrays(arrays(src),arrayOffsets(src),arrays(repair),
+                         arrayOffsets(repair),index,packetLength);
+        } else {
+            encode(src,positions(src),repair,positions(repair),index,
+                   packetLength);
+        }
     }
 
     /*
@@ -189,20 +258,426 @@ public abstract class FECCode {
      * 
      */
     public void decode(Buffer[] pkts, int[] index) {
+        decode(pkts,index,DecodeScratch.get());
+    }
+
+    /**
+     * decode(Buffer[],int[]) taking its temporary arrays from
+     * <code>scratch</code>.  The pure Java and native codes then don't
+     * allocate anything once the scratch has grown to the size of the
+     * blocks, see DecodeScratch.
+     *
+     * @param scratch A scratch that no other thread is using.
+     */
+    public void decode(Buffer[] pkts, int[] index, DecodeScratch scratch) {
         // Must pre-shuffle so that no future shuffles bring the byte[]'s
         // out of sync with the Buffer[]'s.  We use copyShuffle so that 
         // the Buffer[]'s don't have their references shuffled around and
         // therefore we can have the Buffer[]'s wrapping one large byte[]
         // that will be decoded with all of the data in order in that block.
-        copyShuffle(pkts,index,k);
+        copyShuffle(pkts,index,k,scratch);
 
-        byte[][] bufs = new byte[pkts.length][];
-        int[] offs = new int[pkts.length];
+        byte[][] bufs = scratch.pkts(pkts.length);
+        int[] offs = scratch.offs(pkts.length);
         for (int i=0;i<bufs.length;i++) {
             bufs[i] = pkts[i].b;
             offs[i] = pkts[i].off;
         }
-        decode(bufs,offs,index,pkts[0].len,true);
+        try {
+            decodeArrays(bufs,offs,index,pkts[0].len,scratch);
+        } finally {
+            // Don't keep the caller's packets reachable.
+            for (int i=0;i<bufs.length;i++) {
+                bufs[i] = null;
+            }
+        }
+    }
+
+    /**
+     * This is decode(Buffer[],int[]) for ByteBuffers.  Each packet is the
+     * <code>remaining()</code> bytes of its buffer and the packets are
+     * shuffled by copying their data, so the ByteBuffer[] is never
+     * reordered and the positions and limits of the buffers are not
+     * changed.  Once decoding is complete pkts[i] holds source packet i.
+     *
+     * @param pkts An array of <code>k</code> ByteBuffers that contain the
+     * packets to be decoded, all with the same number of bytes remaining.
+     *
+     * @param index This int[] specifies the indexes of the packets to be
+     * decoded.  These indexes must be between 0..n
+     */
+    public void decode(ByteBuffer[] pkts, int[] index) {
+        decode(pkts,index,DecodeScratch.get());
+    }
+
+    /**
+     * decode(ByteBuffer[],int[]) taking its temporary arrays from
+     * <code>scratch</code>, see decode(Buffer[],int[],DecodeScratch).
+     *
+     * @param scratch A scratch that no other thread is using.
+     */
+    public void decode(ByteBuffer[] pkts, int[] index,
+                       DecodeScratch scratch) {
+        int packetLength = pkts[0].remaining();
+        checkBuffers(pkts,packetLength);
+        copyShuffle(pkts,index,k,packetLength,scratch);
+        int[] offs = scratch.offs(pkts.length);
+        if (!hasArrays(pkts)) {
+            for (int i=0;i<pkts.length;i++) {
+                offs[i] = pkts[i].position();
+            }
+            decode(pkts,offs,index,packetLength,scratch);
+            return;
+        }
+        byte[][] bufs = scratch.pkts(pkts.length);
+        for (int i=0;i<bufs.length;i++) {
+            bufs[i] = pkts[i].array();
+            offs[i] = pkts[i].arrayOffset()+pkts[i].position();
+        }
+        try {
+            decodeArrays(bufs,offs,index,packetLength,scratch);
+        } finally {
+            for (int i=0;i<bufs.length;i++) {
+                bufs[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Encode many segments at once.  Segment s has its k source packets
+     * one after the other in src[s] from srcOff[s], and gets its repair
+     * packets, packets index[0], index[1], ... in that order, one after the
+     * other in repair[s] from repairOff[s].  The native codes encode the
+     * whole batch in one call into the native library, which for small
+     * segments costs far less than calling encode() for each.
+     *
+     * @param index The indexes of the packets to produce for every
+     * segment.
+     */
+    public void encodeSegments(byte[][] src, int[] srcOff, byte[][] repair,
+                               int[] repairOff, int[] index,
+                               int packetLength) {
+        checkSegments(src,srcOff,k,packetLength);
+        checkSegments(repair,repairOff,index.length,packetLength);
+        if (repair.length != src.length) {
+            throw new IllegalArgumentException
+                ("src and repair must have the same number of segments");
+        }
+        byte[][] srcBufs = new byte[k][];
+        int[] srcOffs = new int[k];
+        byte[][] repairBufs = new byte[index.length][];
+        int[] repairOffs = new int[index.length];
+        for (int s=0;s<src.length;s++) {
+            for (int i=0;i<k;i++) {
+                srcBufs[i] = src[s];
+                srcOffs[i] = srcOff[s]+i*packetLength;
+            }
+            for (int i=0;i<index.length;i++) {
+                repairBufs[i] = repair[s];
+                repairOffs[i] = repairOff[s]+i*packetLength;
+            }
+            encodeArrays(srcBufs,srcOffs,repairBufs,repairOffs,index,
+                         packetLength);
+        }
+    }
+
+    /**
+     * Decode many segments at once.  Segment s has the k packets received
+     * for it one after the other in data[s] from dataOff[s], and index[s]
+     * holds their indexes.  Like decode(Buffer[],int[]) the packets are
+     * decoded in place, afterwards each block holds the source packets of
+     * its segment in order.  The native codes decode the whole batch in
+     * one call into the native library.
+     */
+    public void decodeSegments(byte[][] data, int[] dataOff, int[][] index,
+                               int packetLength) {
+        checkSegments(data,dataOff,index,k,packetLength);
+        DecodeScratch scratch = DecodeScratch.get();
+        byte[][] bufs = scratch.pkts(k);
+        int[] offs = scratch.offs(k);
+        try {
+            for (int s=0;s<data.length;s++) {
+                copyShuffle(data[s],dataOff[s],index[s],k,packetLength,
+                            scratch);
+                for (int i=0;i<k;i++) {
+                    bufs[i] = data[s];
+                    offs[i] = dataOff[s]+i*packetLength;
+                }
+                decodeArrays(bufs,offs,index[s],packetLength,scratch);
+            }
+        } finally {
+            for (int i=0;i<k;i++) {
+                bufs[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Check that every segment of packets packets fits in its array, the
+     * native codes rely on it.
+     */
+    protected static final void checkSegments(byte[][] bufs, int[] offs,
+                                              int packets,
+                                              int packetLength) {
+        if (offs.length != bufs.length) {
+            throw new IllegalArgumentException
+                ("Must be one offset per segment");
+        }
+        long len = (long) packets*packetLength;
+        for (int s=0;s<bufs.length;s++) {
+            if (packetLength < 0 || offs[s] < 0 ||
+                offs[s]+len > bufs[s].length) {
+                throw new IllegalArgumentException
+                    ("Segment "+s+" doesn't fit in its array");
+            }
+        }
+    }
+
+    /**
+     * checkSegments() for decodeSegments(), also checking index.
+     */
+    protected static final void checkSegments(byte[][] data, int[] dataOff,
+                                              int[][] index, int k,
+                                              int packetLength) {
+        checkSegments(data,dataOff,k,packetLength);
+        if (index.length != data.length) {
+            throw new IllegalArgumentException
+                ("Must be one index[] per segment");
+        }
+        for (int s=0;s<index.length;s++) {
+            if (index[s].length < k) {
+                throw new IllegalArgumentException
+                    ("index["+s+"] has fewer than k entries");
+            }
+        }
+    }
+
+    /**
+     * The ByteBuffer analog of encode(byte[][],int[],byte[][],int[],int[],
+     * int).  The offsets are absolute positions within the buffers.  The
+     * default copies the packets onto the heap and back, codes that can
+     * work on the buffers directly should override it.
+     */
+    protected void encode(ByteBuffer[] src, int[] srcOff, ByteBuffer[] repair,
+                          int[] repairOff, int[] index, int packetLength) {
+        encodeByCopy(src,srcOff,repair,repairOff,index,packetLength);
+    }
+
+    /**
+     * The ByteBuffer analog of decode(byte[][],int[],int[],int,boolean),
+     * the packets are always already shuffled.  The default copies the
+     * packets onto the heap and back, codes that can work on the buffers
+     * directly should override it.
+     */
+    protected void decode(ByteBuffer[] pkts, int[] pktsOff, int[] index,
+                          int packetLength) {
+        decodeByCopy(pkts,pktsOff,index,packetLength);
+    }
+
+    /**
+     * decode(ByteBuffer[],int[],int[],int) with a scratch to take its
+     * temporary arrays from.  The default ignores the scratch, codes that
+     * can decode without allocating override it.
+     *
+     * @param scratch The caller's scratch, or null for the thread's.
+     */
+    protected void decode(ByteBuffer[] pkts, int[] pktsOff, int[] index,
+                          int packetLength, DecodeScratch scratch) {
+        decode(pkts,pktsOff,index,packetLength);
+    }
+
+    /**
+     * Encode ByteBuffers by copying the packets into a heap block and the
+     * repair packets back out.
+     */
+    protected final void encodeByCopy(ByteBuffer[] src, int[] srcOff,
+                                      ByteBuffer[] repair, int[] repairOff,
+                                      int[] index, int packetLength) {
+        byte[] srcBlock = new byte[src.length*packetLength];
+        byte[][] srcBufs = new byte[src.length][];
+        int[] srcOffs = new int[src.length];
+        for (int i=0;i<src.length;i++) {
+            srcBufs[i] = srcBlock;
+            srcOffs[i] = i*packetLength;
+            get(src[i],srcOff[i],srcBlock,srcOffs[i],packetLength);
+        }
+        byte[] repairBlock = new byte[repair.length*packetLength];
+        byte[][] repairBufs = new byte[repair.length][];
+        int[] repairOffs = new int[repair.length];
+        for (int i=0;i<repair.length;i++) {
+            repairBufs[i] = repairBlock;
+            repairOffs[i] = i*packetLength;
+        }
+        encodeArrays(srcBufs,srcOffs,repairBufs,repairOffs,index,
+                     packetLength);
+        for (int i=0;i<repair.length;i++) {
+            put(repairBlock,repairOffs[i],repair[i],repairOff[i],packetLength);
+        }
+    }
+
+    /**
+     * Decode shuffled ByteBuffers by copying the packets into a heap block
+     * and the decoded packets back out.
+     */
+    protected final void decodeByCopy(ByteBuffer[] pkts, int[] pktsOff,
+                                      int[] index, int packetLength) {
+        decodeByCopy(pkts,pktsOff,index,packetLength,null);
+    }
+
+    /**
+     * decodeByCopy() with the heap block and the decode's arrays taken
+     * from <code>scratch</code>.  pktsOff may be the scratch's offs(),
+     * which is why the block has offsets of its own.
+     *
+     * @param scratch The caller's scratch, or null to allocate.
+     */
+    protected final void decodeByCopy(ByteBuffer[] pkts, int[] pktsOff,
+                                      int[] index, int packetLength,
+                                      DecodeScratch scratch) {
+        if (!hasRepairPackets(index)) {
+            return;
+        }
+        byte[] block;
+        byte[][] bufs;
+        int[] offs, rows;
+        if (scratch == null) {
+            block = new byte[k*packetLength];
+            bufs = new byte[k][];
+            offs = new int[k];
+            rows = new int[k];
+        } else {
+            block = scratch.copy(k*packetLength);
+            bufs = scratch.pkts(k);
+            offs = scratch.copyOffs(k);
+            rows = scratch.copyRows(k);
+        }
+        int numRows = 0;
+        for (int i=0;i<k;i++) {
+            if (index[i] >= k) {
+                rows[numRows++] = i;
+            }
+            bufs[i] = block;
+            offs[i] = i*packetLength;
+            // Absolute gets and puts, get() and put() would allocate a
+            // duplicate of the buffer each time.
+            ByteBuffer b = pkts[i];
+            for (int j=offs[i], pos=pktsOff[i], lim=j+packetLength;j<lim;
+                 j++, pos++) {
+                block[j] = b.get(pos);
+            }
+        }
+        try {
+            decodeArrays(bufs,offs,index,packetLength,scratch);
+        } finally {
+            for (int i=0;i<k;i++) {
+                bufs[i] = null;
+            }
+        }
+        for (int r=0;r<numRows;r++) {
+            ByteBuffer b = pkts[rows[r]];
+            for (int j=offs[rows[r]], pos=pktsOff[rows[r]],
+                     lim=j+packetLength;j<lim;j++, pos++) {
+                b.put(pos,block[j]);
+            }
+        }
+    }
+
+    private void encodeArrays(byte[][] src, int[] srcOff, byte[][] repair,
+                              int[] repairOff, int[] index,
+                              int packetLength) {
+        if (!ParallelCoder.encode(this,src,srcOff,repair,repairOff,index,
+                                  packetLength)) {
+            encode(src,srcOff,repair,repairOff,index,packetLength);
+        }
+    }
+
+    /**
+     * The packets must already be shuffled.
+     */
+    private void decodeArrays(byte[][] pkts, int[] pktsOff, int[] index,
+                              int packetLength, DecodeScratch scratch) {
+        if (!ParallelCoder.decode(this,pkts,pktsOff,index,packetLength,
+                                  scratch)) {
+            decode(pkts,pktsOff,index,packetLength,true,scratch);
+        }
+    }
+
+    /**
+     * Turn on parallel encoding and decoding for all codes.  Large encode()
+     * and decode() calls will then be split across a pool of
+     * <code>threads</code> threads by repair packet and by byte stripe.
+     * This can also be done with the property
+     * "com.onionnetworks.fec.parallelism".
+     *
+     * @param threads The size of the pool, 0 turns parallel coding off
+     * (the default).
+     */
+    public static void setParallelism(int threads) {
+        ParallelCoder.setParallelism(threads);
+    }
+
+    /**
+     * @return The number of threads used for parallel coding, 0 if it is
+     * off.
+     */
+    public static int getParallelism() {
+        return ParallelCoder.getParallelism();
+    }
+
+    /**
+     * Calls with fewer than this many multiply-adds (k * packetLength per
+     * packet produced) are not worth splitting and stay on the calling
+     * thread.  Property: "com.onionnetworks.fec.parallelthreshold".
+     */
+    public static void setParallelThreshold(long multiplyAdds) {
+        ParallelCoder.setThreshold(multiplyAdds);
+    }
+
+    /**
+     * Set the size of the byte stripes that packets are split into for
+     * parallel coding.  The default is small enough to keep a stripe of
+     * every packet in the cache for typical k.  Property:
+     * "com.onionnetworks.fec.parallelstripe".
+     */
+    public static void setParallelStripeSize(int bytes) {
+        ParallelCoder.setStripeSize(bytes);
+    }
+
+    /**
+     * Create a decoder that decodes a block packet by packet as they
+     * arrive, see IncrementalDecoder.
+     *
+     * @throws UnsupportedOperationException if this code doesn't provide
+     * one.
+     */
+    public IncrementalDecoder createIncrementalDecoder(int packetLength) {
+        throw new UnsupportedOperationException
+            (this+" can't decode incrementally");
+    }
+
+    /**
+     * Codes that encode each byte position independently can be run on
+     * stripes of the packets.  Stripes must start and end on a multiple of
+     * the returned value, e.g. 2 for 16 bit codes.
+     *
+     * @return The stripe alignment in bytes, or 0 if the packets can't be
+     * split into stripes.
+     */
+    protected int getStripeAlignment() {
+        return 1;
+    }
+
+    /**
+     * @return true if any of the first k shuffled packets is a repair
+     * packet, if not there is nothing to decode.
+     */
+    protected final boolean hasRepairPackets(int[] index) {
+        for (int i=0;i<k;i++) {
+            if (index[i] >= k) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -211,7 +686,17 @@ public abstract class FECCode {
      * Buffer[].
      */
     protected static final void copyShuffle(Buffer[] pkts, int index[], int k){
+        copyShuffle(pkts,index,k,null);
+    }
+
+    /**
+     * copyShuffle() with the temporary packet from <code>scratch</code>
+     * if it isn't null.
+     */
+    protected static final void copyShuffle(Buffer[] pkts, int index[], int k,
+                                            DecodeScratch scratch) {
         byte[] b = null;
+        int len = pkts[0].len;
         for (int i = 0;i < k ;) {
             if (index[i] >= k || index[i] == i) {
                 i++;
@@ -230,16 +715,234 @@ public abstract class FECCode {
 
                 // swap(pkts[c],pkts[i])
                 if (b == null) {
-                    b = new byte[pkts[0].len];
+                    b = scratch == null ? new byte[len] : scratch.packet(len);
                 }
-                System.arraycopy(pkts[i].b,pkts[i].off,b,0,b.length);
+                System.arraycopy(pkts[i].b,pkts[i].off,b,0,len);
                 System.arraycopy(pkts[c].b,pkts[c].off,pkts[i].b,pkts[i].off,
-                                 b.length);
-                System.arraycopy(b,0,pkts[c].b,pkts[c].off,b.length);
+                                 len);
+                System.arraycopy(b,0,pkts[c].b,pkts[c].off,len);
+            }
+        }
+    }
+
+    /**
+     * copyShuffle() for a segment whose packets are one after the other in
+     * block from off.
+     */
+    protected static final void copyShuffle(byte[] block, int off,
+                                            int[] index, int k,
+                                            int packetLength,
+                                            DecodeScratch scratch) {
+        byte[] b = null;
+        for (int i = 0;i < k ;) {
+            if (index[i] >= k || index[i] == i) {
+                i++;
+            } else {
+                int c = index[i];
+                
+                if (index[c] == c) {
+                    throw new IllegalArgumentException
+                        ("Shuffle Error: Duplicate indexes at "+i);
+                }
+                int tmp = index[i];
+                index[i] = index[c];
+                index[c] = tmp;
+
+                if (b == null) {
+                    b = scratch.packet(packetLength);
+                }
+                int posI = off+i*packetLength;
+                int posC = off+c*packetLength;
+                System.arraycopy(block,posI,b,0,packetLength);
+                System.arraycopy(block,posC,block,posI,packetLength);
+                System.arraycopy(b,0,block,posC,packetLength);
+            }
+        }
+    }
+
+    /**
+     * Sort the repair packets of a shuffled segment, one after the other
+     * in block from off, into ascending order of index within the holes
+     * of the missing source packets.  That is the canonical order of
+     * DecodeMatrixCache, so the cached decode matrix can be used as it is
+     * rather than having its columns permuted into a new array.
+     */
+    protected static final void sortRepairPackets(byte[] block, int off,
+                                                  int[] index, int k,
+                                                  int packetLength,
+                                                  DecodeScratch scratch) {
+        byte[] b = null;
+        for (int i=0;i<k;i++) {
+            if (index[i] < k) {
+                continue;
+            }
+            int min = i;
+            for (int j=i+1;j<k;j++) {
+                if (index[j] >= k && index[j] < index[min]) {
+                    min = j;
+                }
+            }
+            if (min == i) {
+                continue;
+            }
+            int tmp = index[i];
+            index[i] = index[min];
+            index[min] = tmp;
+
+            if (b == null) {
+                b = scratch.packet(packetLength);
+            }
+            int posI = off+i*packetLength;
+            int posM = off+min*packetLength;
+            System.arraycopy(block,posI,b,0,packetLength);
+            System.arraycopy(block,posM,block,posI,packetLength);
+            System.arraycopy(b,0,block,posM,packetLength);
+        }
+    }
+
+    /**
+     * copyShuffle() for ByteBuffers, the data is copied between the
+     * buffers at their positions.
+     */
+    protected static final void copyShuffle(ByteBuffer[] pkts, int index[],
+                                            int k, int packetLength) {
+        copyShuffle(pkts,index,k,packetLength,null);
+    }
+
+    /**
+     * copyShuffle() for ByteBuffers with the temporary packet from
+     * <code>scratch</code> if it isn't null.
+     */
+    protected static final void copyShuffle(ByteBuffer[] pkts, int index[],
+                                            int k, int packetLength,
+                                            DecodeScratch scratch) {
+        byte[] b = null;
+        for (int i = 0;i < k ;) {
+            if (index[i] >= k || index[i] == i) {
+                i++;
+            } else {
+                int c = index[i];
+                
+                if (index[c] == c) {
+                    throw new IllegalArgumentException
+                        ("Shuffle Error: Duplicate indexes at "+i);
+                }
+                int tmp = index[i];
+                index[i] = index[c];
+                index[c] = tmp;
+
+                if (b == null) {
+                    b = scratch == null ? new byte[packetLength] :
+                        scratch.packet(packetLength);
+                }
+                int posI = pkts[i].position();
+                int posC = pkts[c].position();
+                get(pkts[i],posI,b,0,packetLength);
+                copy(pkts[c],posC,pkts[i],posI,packetLength);
+                put(b,0,pkts[c],posC,packetLength);
             }
         }
     }
 
+    /**
+     * Copy len bytes at absolute position pos of b into dst.  The position
+     * and limit of b are not changed.
+     */
+    protected static final void get(ByteBuffer b, int pos, byte[] dst,
+                                    int dstOff, int len) {
+        ByteBuffer dup = b.duplicate();
+        // Cast so that this links against the Java 8 Buffer.position().
+        ((java.nio.Buffer) dup).position(pos);
+        dup.get(dst,dstOff,len);
+    }
+
+    /**
+     * Copy len bytes of src into b at absolute position pos.  The position
+     * and limit of b are not changed.
+     */
+    protected static final void put(byte[] src, int srcOff, ByteBuffer b,
+                                    int pos, int len) {
+        ByteBuffer dup = b.duplicate();
+        ((java.nio.Buffer) dup).position(pos);
+        dup.put(src,srcOff,len);
+    }
+
+    /**
+     * Copy len bytes between two ByteBuffers at absolute positions.
+     */
+    protected static final void copy(ByteBuffer src, int srcPos,
+                                     ByteBuffer dst, int dstPos, int len) {
+        ByteBuffer s = src.duplicate();
+        ((java.nio.Buffer) s).limit(srcPos+len);
+        ((java.nio.Buffer) s).position(srcPos);
+        ByteBuffer d = dst.duplicate();
+        ((java.nio.Buffer) d).position(dstPos);
+        d.put(s);
+    }
+
+    protected static final void bzero(ByteBuffer b, int pos, int len) {
+        for (int i=pos+len-1;i>=pos;i--) {
+            b.put(i,(byte) 0);
+        }
+    }
+
+    private static void checkBuffers(ByteBuffer[] bufs, int packetLength) {
+        for (int i=0;i<bufs.length;i++) {
+            if (bufs[i].remaining() < packetLength) {
+                throw new IllegalArgumentException
+                    ("Buffer "+i+" has "+bufs[i].remaining()+
+                     " bytes remaining, packet length is "+packetLength);
+            }
+        }
+    }
+
+    /**
+     * @return true if all of the buffers are direct, and writable if
+     * <code>writable</code> is set.
+     */
+    protected static final boolean isDirect(ByteBuffer[] bufs,
+                                            boolean writable) {
+        for (int i=0;i<bufs.length;i++) {
+            if (!bufs[i].isDirect() || (writable && bufs[i].isReadOnly())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasArrays(ByteBuffer[] bufs) {
+        for (int i=0;i<bufs.length;i++) {
+            if (!bufs[i].hasArray()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[][] arrays(ByteBuffer[] bufs) {
+        byte[][] result = new byte[bufs.length][];
+        for (int i=0;i<bufs.length;i++) {
+            result[i] = bufs[i].array();
+        }
+        return result;
+    }
+
+    private static int[] arrayOffsets(ByteBuffer[] bufs) {
+        int[] result = new int[bufs.length];
+        for (int i=0;i<bufs.length;i++) {
+            result[i] = bufs[i].arrayOffset()+bufs[i].position();
+        }
+        return result;
+    }
+
+    private static int[] positions(ByteBuffer[] bufs) {
+        int[] result = new int[bufs.length];
+        for (int i=0;i<bufs.length;i++) {
+            result[i] = bufs[i].position();
+        }
+        return result;
+    }
+
     /**
      * shuffle move src packets in their position
      */
@@ -1,5 +1,6 @@
 package com.onionnetworks.fec;
 
+import java.nio.CharBuffer;
 import com.onionnetworks.util.Util;
 
 /**
@@ -242,6 +243,18 @@ public class FECMath {
      */
     public final void addMul(char[] dst, int dstPos, char[] src, 
                              int srcPos, char c, int len) {
+        addMul(dst,dstPos,src,srcPos,c,len,null);
+    }
+
+    /**
+     * addMul() for 16 bit symbols builds the split table of mulTable16()
+     * in <code>table</code>, a scratch array of at least MUL_TABLE16_SIZE
+     * chars, for runs of at least MUL_TABLE16_MIN_LEN.  Without a table
+     * those are multiplied through the log tables, so nothing is
+     * allocated either way.
+     */
+    public final void addMul(char[] dst, int dstPos, char[] src, 
+                             int srcPos, char c, int len, char[] table) {
         // nop, optimize
         if (c == 0) {
             return;
@@ -286,6 +299,8 @@ public class FECMath {
                 dst[i] ^= gf_mulc[src[j]];
             }
 
+        } else if (table != null && len >= MUL_TABLE16_MIN_LEN) {
+            addMul16(dst,dstPos,src,srcPos,mulTable16(c,table),len);
         } else { // gfBits > 8, no multiplication table
             int mulcPos = gf_log[c];
 
@@ -299,6 +314,72 @@ public class FECMath {
         }
     }
 
+    /**
+     * The size of a table built by mulTable16().
+     */
+    public static final int MUL_TABLE16_SIZE = 576;
+
+    /**
+     * addMul() of 16 bit symbols uses a split table for runs at least this
+     * long, below that building the table costs more than it saves.
+     */
+    public static final int MUL_TABLE16_MIN_LEN = 512;
+
+    /**
+     * Build the split multiplication table for the 16 bit constant c.
+     * Multiplication is linear over xor, so c*y = c*(y & 0xFF00) ^
+     * c*(y & 0xFF).  table[b] holds c*(b << 8) and table[256+b] holds c*b,
+     * so multiplying a symbol takes two lookups, an xor and no branches.
+     * The table is built from the 16 products c*2^i, one xor per entry.
+     * Vector kernels look symbols up a nibble at a time, c*n is
+     * table[256+n] and c*(n << 8) is table[n], and for them the two
+     * strided nibble tables are copied to the end: table[512+n] is
+     * c*(n << 4) and table[544+n] is c*(n << 12).  Those are spaced 32
+     * apart so that a whole 512 bit vector can be loaded from each.
+     *
+     * @param table An array of at least MUL_TABLE16_SIZE chars.
+     * @return table.
+     */
+    public final char[] mulTable16(char c, char[] table) {
+        if (c == 0) {
+            Util.bzero(table,0,MUL_TABLE16_SIZE);
+            return table;
+        }
+        // alpha = x, so c*2^i = alpha^(log(c)+i).  Each bit doubles the
+        // filled part of the table: entries [size,2*size) are entries
+        // [0,size) xor c*2^bit.
+        int logc = gf_log[c];
+        table[0] = 0;
+        table[256] = 0;
+        for (int bit=0, size=1;bit<8;bit++, size<<=1) {
+            char hi = gf_exp[logc+8+bit];
+            char lo = gf_exp[logc+bit];
+            for (int b=0;b<size;b++) {
+                table[size+b] = (char) (table[b] ^ hi);
+                table[256+size+b] = (char) (table[256+b] ^ lo);
+            }
+        }
+        for (int n=0;n<16;n++) {
+            table[512+n] = table[256+(n << 4)];
+            table[544+n] = table[n << 4];
+        }
+        return table;
+    }
+
+    /**
+     * addMul16() computes dst[] = dst[] + c * src[] for 16 bit symbols
+     * with the table built by mulTable16(c,table).
+     */
+    public final void addMul16(char[] dst, int dstPos, char[] src,
+                               int srcPos, char[] table, int len) {
+        int lim = dstPos + len;
+        int y;
+        for (int i=dstPos, j=srcPos;i < lim;i++,j++) {
+            y = src[j];
+            dst[i] ^= table[y >>> 8] ^ table[256 + (y & 0xFF)];
+        }
+    }
+
     /*
      * addMul() computes dst[] = dst[] + c * src[]
      * This is used often, so better optimize it! Currently the loop is
@@ -418,6 +499,10 @@ public class FECMath {
 
         char[] id_row = createGFMatrix(1, k);
         char[] temp_row = createGFMatrix(1, k);
+        // One split table for all of the row operations, if they are long
+        // enough to use it.
+        char[] table = gfBits > 8 && k >= MUL_TABLE16_MIN_LEN ?
+            new char[MUL_TABLE16_SIZE] : null;
         
         for (int col = 0; col < k ; col++) {
             /*
@@ -509,7 +594,7 @@ public class FECMath {
                     if (ix != icol) {
                         c = src[p+icol];
                         src[p+icol] = 0;
-                        addMul(src,p,src,pivotRowPos, c, k);
+                        addMul(src,p,src,pivotRowPos, c, k, table);
                     }
                 }
             }
@@ -596,54 +681,24 @@ public class FECMath {
         }
     }
 
+    /**
+     * createEncodeMatrix() returns the n*k systematic encoding matrix, the
+     * bottom n-k rows of a Vandermonde matrix multiplied by the inverse of
+     * its top k*k.  The rows are computed directly, see EncodeMatrix, which
+     * can also generate them one at a time for codes too large to hold the
+     * whole matrix.  If there is a MatrixStore the matrix is read from it,
+     * and saved in it if it isn't there yet.
+     */
     public final char[] createEncodeMatrix(int k, int n) {
-        if (k > gfSize + 1 || n > gfSize + 1 || 
-	    k > n ) {
-            throw new IllegalArgumentException
-		("Invalid parameters n="+n+",k="+k+",gfSize="+
-		 gfSize);
-        }
-
-
-        char[] encMatrix = createGFMatrix(n,k);
-	
-	/*
-	 * The encoding matrix is computed starting with a Vandermonde matrix,
-	 * and then transforming it into a systematic matrix.
-	 *
-         * fill the matrix with powers of field elements, starting from 0.
-         * The first row is special, cannot be computed with exp. table.
-         */
-        char[] tmpMatrix = createGFMatrix(n, k);
-
-        tmpMatrix[0] = 1;
-	// first row should be 0's, fill in the rest.
-	for (int pos = k, row = 0; row < n-1 ; row++, pos += k) {
-            for (int col = 0 ; col < k ; col ++ ) {
-                tmpMatrix[pos+col] = gf_exp[modnn
-                                           (row*col)];
-	    }
+        MatrixStore store = MatrixStore.getDefault();
+        CharBuffer stored = store == null ? null :
+            store.getEncodeMatrix(this,k,n);
+        if (stored != null) {
+            char[] result = new char[n*k];
+            stored.get(result);
+            return result;
         }
-        
-        /*
-         * quick code to build systematic matrix: invert the top
-         * k*k vandermonde matrix, multiply right the bottom n-k rows
-         * by the inverse, and construct the identity matrix at the top.
-         */
-        // much faster than invertMatrix 
-        invertVandermonde(tmpMatrix, k); 
-        matMul(tmpMatrix,k*k, tmpMatrix,0,encMatrix,k*k, n - k, 
-                           k, k);
-
-        /*
-         * the upper matrix is I so do not bother with a slow multiply
-         */
-        Util.bzero(encMatrix, 0, k*k);
-        for (int i = 0, col = 0; col < k ; col++, i += k+1 ) {
-            encMatrix[i] = 1;
-	}
-        
-        return encMatrix;
+        return new EncodeMatrix(this,k,n).toArray();
     }
 
     /**
@@ -662,4 +717,83 @@ public class FECMath {
         
         return matrix;
     }
+
+    /**
+     * createReducedDecodeMatrix() returns only the rows of the decode
+     * matrix for the e missing source packets, in the order of their
+     * positions, as an e*k matrix.  Those are all the decoders use, and
+     * they can be found without inverting the whole k*k matrix.
+     *
+     * If R are the repair packets in the holes, S the source packets we
+     * have and M the missing ones, then R = E_RS*S + E_RM*M where E_RS and
+     * E_RM are the columns of the repair rows of the encoding matrix for S
+     * and M.  So M = E_RM^-1*R + E_RM^-1*E_RS*S (+ is - here) and only the
+     * e*e matrix E_RM has to be inverted, O(e^3 + e^2*k) rather than
+     * O(k^3).  For a few percent loss on a large k that is orders of
+     * magnitude less work.
+     */
+    protected final char[] createReducedDecodeMatrix
+        (EncodeMatrix encodeMatrix, int[] index) {
+        int k = encodeMatrix.getK();
+        int e = 0;
+        int[] missing = new int[k];
+        for (int i = 0; i < k ; i++) {
+            if (index[i] >= k) {
+                missing[e++] = i;
+            }
+        }
+
+        // The e repair rows of the encoding matrix, row t at t*k.
+        char[] encRows = createGFMatrix(e, k);
+        for (int t = 0; t < e ; t++) {
+            encodeMatrix.getRow(index[missing[t]], encRows, t*k);
+        }
+
+        // E_RM, inverted in place.
+        char[] inv = createGFMatrix(e, e);
+        for (int t = 0; t < e ; t++) {
+            for (int u = 0; u < e ; u++) {
+                inv[t*e + u] = encRows[t*k + missing[u]];
+            }
+        }
+        invertMatrix(inv, e);
+
+        // E_RM^-1*E_RS in the source columns, E_RM^-1 in the holes.  Each
+        // repair row is added to all e rows at once, for 16 bit codes with
+        // its logs taken only once.
+        char[] matrix = createGFMatrix(e, k);
+        int[] logs = gfBits > 8 ? new int[k] : null;
+        for (int u = 0; u < e ; u++) {
+            int rowPos = u*k;
+            if (logs != null) {
+                for (int col = 0; col < k ; col++) {
+                    char y = encRows[rowPos + col];
+                    logs[col] = y == 0 ? -1 : gf_log[y];
+                }
+            }
+            for (int t = 0, pos = 0; t < e ; t++, pos += k) {
+                char c = inv[t*e + u];
+                if (c == 0) {
+                    continue;
+                }
+                if (logs == null) {
+                    addMul(matrix, pos, encRows, rowPos, c, k);
+                } else {
+                    int logc = gf_log[c];
+                    for (int col = 0; col < k ; col++) {
+                        int l = logs[col];
+                        if (l >= 0) {
+                            matrix[pos + col] ^= gf_exp[logc + l];
+                        }
+                    }
+                }
+            }
+        }
+        for (int t = 0, pos = 0; t < e ; t++, pos += k) {
+            for (int u = 0; u < e ; u++) {
+                matrix[pos + missing[u]] = inv[t*e + u];
+            }
+        }
+        return matrix;
+    }
 }
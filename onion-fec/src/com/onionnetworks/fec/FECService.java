@@ -0,0 +1,321 @@
+package com.onionnetworks.fec;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.onionnetworks.util.Buffer;
+
+/**
+ * This class runs encodes and decodes on a fixed number of threads of its
+ * own, so that the threads that ask for them can get on with other work
+ * while large segments are coded.  Each call returns a CompletableFuture
+ * that completes with the repair packets or the decoded packets once the
+ * job has run, or exceptionally with whatever it threw.  The FECCodes are
+ * taken from a FECCodeFactory, by default FECCodeFactory.getDefault().
+ *
+ * Jobs are run in order of priority, lowest first, and in the order they
+ * were submitted within a priority, so that INTERACTIVE decodes that
+ * someone is waiting for go ahead of BACKGROUND re-encodes.  At most
+ * maxQueued jobs wait to be run, when there are that many the submitting
+ * thread is blocked until one starts.  A job that is cancelled before it
+ * starts is not run.
+ *
+ * The queue depth and the time jobs spend queued and running can be read
+ * with getStats().
+ */
+public class FECService {
+
+    public static final int INTERACTIVE = 0;
+    public static final int NORMAL = 5;
+    public static final int BACKGROUND = 10;
+
+    private static final AtomicLong serviceCount = new AtomicLong();
+
+    protected final FECCodeFactory factory;
+    protected final ThreadPoolExecutor executor;
+    protected final Semaphore queueSlots;
+    protected final int maxQueued;
+    protected final AtomicLong jobCount = new AtomicLong();
+
+    protected long completed, failed, cancelled;
+    protected long totalQueueNanos, maxQueueNanos;
+    protected long totalRunNanos, maxRunNanos;
+
+    /**
+     * @param threads The number of threads to code on.
+     * @param maxQueued The number of jobs that may wait for a thread.
+     */
+    public FECService(int threads, int maxQueued) {
+        this(FECCodeFactory.getDefault(),threads,maxQueued);
+    }
+
+    public FECService(FECCodeFactory factory, int threads, int maxQueued) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads < 1: "+threads);
+        }
+        if (maxQueued < 1) {
+            throw new IllegalArgumentException("maxQueued < 1: "+maxQueued);
+        }
+        this.factory = factory;
+        this.maxQueued = maxQueued;
+        this.queueSlots = new Semaphore(maxQueued);
+        final String name = "FECService-"+serviceCount.incrementAndGet();
+        this.executor = new ThreadPoolExecutor
+            (threads,threads,0,TimeUnit.MILLISECONDS,
+             new PriorityBlockingQueue(),new ThreadFactory() {
+                     private int count;
+                     public synchronized Thread newThread(Runnable r) {
+                         Thread t = new Thread(r,name+"-"+(++count));
+                         t.setDaemon(true);
+                         return t;
+                     }
+                 });
+    }
+
+    /**
+     * Encode src into the repair packets index, see FECCode.encode().
+     *
+     * @param priority The lower, the sooner the job runs.
+     * @return A future that completes with repair.
+     * @throws InterruptedException If interrupted while waiting for room
+     * in the queue.
+     * @throws RejectedExecutionException If the service has been shut
+     * down.
+     */
+    public CompletableFuture encode(int k, int n, final Buffer[] src,
+                                    final Buffer[] repair, final int[] index,
+                                    int priority)
+        throws InterruptedException {
+        return submit(new Job(k,n,priority) {
+                protected Object run(FECCode code) {
+                    code.encode(src,repair,index);
+                    return repair;
+                }
+            });
+    }
+
+    /**
+     * Decode pkts in place, see FECCode.decode().
+     *
+     * @param priority The lower, the sooner the job runs.
+     * @return A future that completes with pkts, the k source packets in
+     * order.
+     * @throws InterruptedException If interrupted while waiting for room
+     * in the queue.
+     * @throws RejectedExecutionException If the service has been shut
+     * down.
+     */
+    public CompletableFuture decode(int k, int n, final Buffer[] pkts,
+                                    final int[] index, int priority)
+        throws InterruptedException {
+        return submit(new Job(k,n,priority) {
+                protected Object run(FECCode code) {
+                    code.decode(pkts,index);
+                    return pkts;
+                }
+            });
+    }
+
+    protected CompletableFuture submit(Job job) throws InterruptedException {
+        queueSlots.acquire();
+        try {
+            executor.execute(job);
+        } catch (RejectedExecutionException e) {
+            queueSlots.release();
+            throw e;
+        }
+        return job.future;
+    }
+
+    /**
+     * Run the jobs already submitted but accept no more.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+        throws InterruptedException {
+        return executor.awaitTermination(timeout,unit);
+    }
+
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    /**
+     * @return A snapshot of the queue and of the jobs run so far.
+     */
+    public synchronized Stats getStats() {
+        return new Stats(executor.getQueue().size(),
+                         executor.getActiveCount(),maxQueued,completed,
+                         failed,cancelled,totalQueueNanos,maxQueueNanos,
+                         totalRunNanos,maxRunNanos);
+    }
+
+    protected synchronized void finished(long queueNanos, long runNanos,
+                                         boolean ok) {
+        if (ok) {
+            completed++;
+        } else {
+            failed++;
+        }
+        totalQueueNanos += queueNanos;
+        maxQueueNanos = Math.max(maxQueueNanos,queueNanos);
+        totalRunNanos += runNanos;
+        maxRunNanos = Math.max(maxRunNanos,runNanos);
+    }
+
+    protected synchronized void cancelled() {
+        cancelled++;
+    }
+
+    public String toString() {
+        return "FECService["+getStats()+"]";
+    }
+
+    /**
+     * One encode or decode, ordered by priority and then submission.
+     */
+    protected abstract class Job implements Runnable, Comparable {
+
+        protected final int k, n, priority;
+        protected final long seq = jobCount.getAndIncrement();
+        protected final long submitted = System.nanoTime();
+        protected final CompletableFuture future = new CompletableFuture();
+
+        protected Job(int k, int n, int priority) {
+            this.k = k;
+            this.n = n;
+            this.priority = priority;
+        }
+
+        protected abstract Object run(FECCode code);
+
+        public void run() {
+            queueSlots.release();
+            long start = System.nanoTime();
+            if (future.isDone()) {
+                cancelled();
+                return;
+            }
+            Object result = null;
+            Throwable failure = null;
+            try {
+                result = run(factory.createFECCode(k,n));
+            } catch (Throwable t) {
+                failure = t;
+            }
+            finished(start-submitted,System.nanoTime()-start,
+                     failure == null);
+            if (failure == null) {
+                future.complete(result);
+            } else {
+                future.completeExceptionally(failure);
+            }
+        }
+
+        public int compareTo(Object o) {
+            Job other = (Job) o;
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+        }
+    }
+
+    /**
+     * The state of a FECService at one moment.  Times are in nanoseconds,
+     * the queue times from submission until a thread took the job.
+     */
+    public static class Stats {
+
+        protected final int queued, running, maxQueued;
+        protected final long completed, failed, cancelled;
+        protected final long totalQueueNanos, maxQueueNanos;
+        protected final long totalRunNanos, maxRunNanos;
+
+        protected Stats(int queued, int running, int maxQueued,
+                        long completed, long failed, long cancelled,
+                        long totalQueueNanos, long maxQueueNanos,
+                        long totalRunNanos, long maxRunNanos) {
+            this.queued = queued;
+            this.running = running;
+            this.maxQueued = maxQueued;
+            this.completed = completed;
+            this.failed = failed;
+            this.cancelled = cancelled;
+            this.totalQueueNanos = totalQueueNanos;
+            this.maxQueueNanos = maxQueueNanos;
+            this.totalRunNanos = totalRunNanos;
+            this.maxRunNanos = maxRunNanos;
+        }
+
+        /**
+         * @return The number of jobs waiting for a thread.
+         */
+        public int getQueued() {
+            return queued;
+        }
+
+        /**
+         * @return The number of jobs being run.
+         */
+        public int getRunning() {
+            return running;
+        }
+
+        public int getMaxQueued() {
+            return maxQueued;
+        }
+
+        public long getCompleted() {
+            return completed;
+        }
+
+        /**
+         * @return The number of jobs that threw.
+         */
+        public long getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return The number of jobs cancelled before they were run.
+         */
+        public long getCancelled() {
+            return cancelled;
+        }
+
+        public long getMeanQueueNanos() {
+            long jobs = completed+failed;
+            return jobs == 0 ? 0 : totalQueueNanos/jobs;
+        }
+
+        public long getMaxQueueNanos() {
+            return maxQueueNanos;
+        }
+
+        public long getMeanRunNanos() {
+            long jobs = completed+failed;
+            return jobs == 0 ? 0 : totalRunNanos/jobs;
+        }
+
+        public long getMaxRunNanos() {
+            return maxRunNanos;
+        }
+
+        public String toString() {
+            return "queued="+queued+"/"+maxQueued+",running="+running+
+                ",completed="+completed+",failed="+failed+",cancelled="+
+                cancelled+",meanQueueMicros="+getMeanQueueNanos()/1000+
+                ",maxQueueMicros="+maxQueueNanos/1000+",meanRunMicros="+
+                getMeanRunNanos()/1000+",maxRunMicros="+maxRunNanos/1000;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.onionnetworks.fec;
+
+import java.util.Arrays;
+import com.onionnetworks.util.Util;
+import com.onionnetworks.util.RangeSet;
+
+/**
+ * This class decodes one block of packets as they arrive, rather than all
+ * at once after the k-th packet like FECCode.decode().  Every packet is
+ * eliminated against the packets already received when it is added
+ * (Gauss-Jordan elimination on the rows of the encoding matrix), so when
+ * the last packet needed arrives only its own elimination remains, about
+ * k+e multiply-adds of one packet, e being the number of repair packets
+ * used.  The total work is close to that of decode(), but it is spread
+ * over the transfer.
+ *
+ * The block is kept in k packet sized slots.  Source packet i goes in
+ * slot i.  A useful repair packet is reduced to a row whose only non zero
+ * coefficients are for missing source packets, and stored in the slot of
+ * one of them, its pivot.  Once k independent packets have been added
+ * every slot holds its source packet.
+ *
+ * Get one with FECCode.createIncrementalDecoder().  An IncrementalDecoder
+ * is not thread safe, it is meant to be owned by whoever receives the
+ * block.
+ */
+public class IncrementalDecoder {
+
+    protected PureCode code;
+    protected FECMath fecMath;
+    protected int k;
+    protected int packetLength;
+    // The slot length in symbols.
+    protected int numSymbols;
+
+    // One of these holds the slots, for 8 and 16 bit codes.
+    protected byte[] data;
+    protected char[] chars;
+    protected char[] table;
+
+    // The packet index in each slot, -1 for an empty slot.
+    protected int[] slot;
+    // The normalized coefficients of the repair row in each slot.
+    protected char[][] rows;
+    protected RangeSet received = new RangeSet();
+    protected int sources;
+    protected int pivots;
+
+    protected IncrementalDecoder(PureCode code, FECMath fecMath,
+                                 int packetLength) {
+        if (packetLength < 1 ||
+            (fecMath.gfBits > 8 && packetLength % 2 != 0)) {
+            throw new IllegalArgumentException("Bad packetLength: "+
+                                               packetLength);
+        }
+        if ((long) code.k * packetLength > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Blocks larger than 2GB");
+        }
+        this.code = code;
+        this.fecMath = fecMath;
+        this.k = code.k;
+        this.packetLength = packetLength;
+        if (fecMath.gfBits <= 8) {
+            numSymbols = packetLength;
+            data = new byte[k*packetLength];
+        } else {
+            numSymbols = packetLength/2;
+            chars = new char[k*numSymbols];
+            table = new char[FECMath.MUL_TABLE16_SIZE];
+        }
+        slot = new int[k];
+        Arrays.fill(slot,-1);
+        rows = new char[k][];
+    }
+
+    /**
+     * Add a packet, doing as much of the decoding as it allows.
+     *
+     * @param index The index of the packet, between 0 and n.
+     * @param b packetLength bytes at <code>off</code> are copied.
+     * @return true if the packet was useful, false if the block is already
+     * complete or the packet is a duplicate.
+     */
+    public boolean add(int index, byte[] b, int off) {
+        if (index < 0 || index >= code.n) {
+            throw new IllegalArgumentException("index out of range: "+index);
+        }
+        if (off < 0 || off+packetLength > b.length) {
+            throw new ArrayIndexOutOfBoundsException("b.length="+b.length+
+                                                     ",off="+off);
+        }
+        if (isComplete() || received.contains(index)) {
+            return false;
+        }
+        received.add(index);
+        if (index < k) {
+            addSource(index,b,off);
+            return true;
+        }
+        return addRepair(index,b,off);
+    }
+
+    /**
+     * @return true once k independent packets have been added, at which
+     * point all of the source packets are available.
+     */
+    public boolean isComplete() {
+        return sources + pivots == k;
+    }
+
+    /**
+     * @return The number of independent packets added so far.
+     */
+    public int getRank() {
+        return sources + pivots;
+    }
+
+    /**
+     * @return true if source packet i has been received or decoded.
+     */
+    public boolean isAvailable(int i) {
+        return slot[i] == i || isComplete();
+    }
+
+    /**
+     * Copy source packet i into <code>dst</code> at <code>off</code>.
+     *
+     * @throws IllegalStateException if it isn't available yet.
+     */
+    public void getPacket(int i, byte[] dst, int off) {
+        if (!isAvailable(i)) {
+            throw new IllegalStateException("Packet "+i+" not available");
+        }
+        if (data != null) {
+            System.arraycopy(data,i*packetLength,dst,off,packetLength);
+        } else {
+            Util.arraycopy(chars,i*numSymbols,dst,off,packetLength);
+        }
+    }
+
+    protected void addSource(int i, byte[] b, int off) {
+        char[] row = rows[i];
+        if (row == null) {
+            // A missing source packet, take it out of the repair rows.
+            load(i,b,off);
+            for (int p=0;p<k;p++) {
+                char c;
+                if (rows[p] != null && (c = rows[p][i]) != 0) {
+                    addMul(p,i,c);
+                    rows[p][i] = 0;
+                }
+            }
+        } else {
+            // The repair row in slot i has its pivot here.  Subtracting
+            // this packet leaves it with only the other missing packets,
+            // one of which becomes its new pivot.
+            rows[i] = null;
+            pivots--;
+            row[i] = 0;
+            int q = firstNonZero(row);
+            if (q != -1) {
+                move(i,q);
+                slot[q] = slot[i];
+            }
+            load(i,b,off);
+            if (q != -1) {
+                addMul(q,i,(char) 1);
+                setPivot(q,row);
+            }
+        }
+        slot[i] = i;
+        sources++;
+    }
+
+    protected boolean addRepair(int index, byte[] b, int off) {
+        char[] row = new char[k];
+        code.encodeMatrix.getRow(index,row,0);
+
+        // Eliminate the coefficients of the packets we already have.
+        // Those are unit rows or rows that are zero in all of the other
+        // known columns, so each of these only clears its own column.
+        char[] ops = new char[k];
+        for (int j=0;j<k;j++) {
+            char c = row[j];
+            if (c == 0) {
+                continue;
+            }
+            if (slot[j] == j) {
+                row[j] = 0;
+                ops[j] = c;
+            } else if (rows[j] != null) {
+                fecMath.addMul(row,0,rows[j],0,c,k,table);
+                ops[j] = c;
+            }
+        }
+        int q = firstNonZero(row);
+        if (q == -1) {
+            // Linearly dependent, this can't happen with distinct indexes.
+            return false;
+        }
+        load(q,b,off);
+        for (int j=0;j<k;j++) {
+            if (ops[j] != 0) {
+                addMul(q,j,ops[j]);
+            }
+        }
+        slot[q] = index;
+        setPivot(q,row);
+        return true;
+    }
+
+    /**
+     * Make slot q a repair row with pivot q: scale it so that row[q] is 1
+     * and eliminate column q from the other repair rows.
+     */
+    private void setPivot(int q, char[] row) {
+        char inv = fecMath.inverse[row[q]];
+        if (inv != 1) {
+            for (int j=0;j<k;j++) {
+                row[j] = fecMath.mul(row[j],inv);
+            }
+            scale(q,inv);
+        }
+        rows[q] = row;
+        pivots++;
+        for (int p=0;p<k;p++) {
+            char c;
+            if (p != q && rows[p] != null && (c = rows[p][q]) != 0) {
+                fecMath.addMul(rows[p],0,row,0,c,k,table);
+                addMul(p,q,c);
+            }
+        }
+    }
+
+    private static int firstNonZero(char[] row) {
+        for (int j=0;j<row.length;j++) {
+            if (row[j] != 0) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    private void load(int s, byte[] b, int off) {
+        if (data != null) {
+            System.arraycopy(b,off,data,s*packetLength,packetLength);
+        } else {
+            Util.arraycopy(b,off,chars,s*numSymbols,packetLength);
+        }
+    }
+
+    private void move(int from, int to) {
+        if (data != null) {
+            System.arraycopy(data,from*packetLength,data,to*packetLength,
+                             packetLength);
+        } else {
+            System.arraycopy(chars,from*numSymbols,chars,to*numSymbols,
+                             numSymbols);
+        }
+    }
+
+    /**
+     * slot dst += c * slot src, using the code's multiply-add.
+     */
+    private void addMul(int dst, int src, char c) {
+        if (data != null) {
+            code.addMul(data,dst*packetLength,data,src*packetLength,(byte) c,
+                        packetLength);
+        } else {
+            ((Pure16Code) code).addMul(chars,dst*numSymbols,chars,
+                                       src*numSymbols,c,table,numSymbols);
+        }
+    }
+
+    /**
+     * slot s *= c
+     */
+    private void scale(int s, char c) {
+        if (data != null) {
+            char[] gf_mulc = fecMath.gf_mul_table[c];
+            for (int i=s*packetLength, lim=i+packetLength;i<lim;i++) {
+                data[i] = (byte) gf_mulc[data[i] & 0xff];
+            }
+        } else {
+            fecMath.mulTable16(c,table);
+            for (int i=s*numSymbols, lim=i+numSymbols;i<lim;i++) {
+                int y = chars[i];
+                chars[i] = (char) (table[y >>> 8] ^ table[256 + (y & 0xFF)]);
+            }
+        }
+    }
+}
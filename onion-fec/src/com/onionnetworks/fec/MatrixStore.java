@@ -0,0 +1,226 @@
+package com.onionnetworks.fec;
+
+import java.io.*;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * This class keeps encoding matrices in files, so that a restarted process
+ * finds them instead of computing them again.  FECMath.createEncodeMatrix()
+ * and the FECCodes check the default store, if there is one, before
+ * building a matrix, and save the matrices they build in it.
+ *
+ * There is one file per field and (k,n), holding a header with a magic
+ * number, the format version, gfBits, the primitive polynomial, k, n and a
+ * CRC32 of the matrix, followed by the n*k symbols big endian.  A file
+ * whose header doesn't match or whose checksum is wrong is ignored and
+ * written again.  Files are written to a temporary file and renamed into
+ * place, so any number of processes can share a directory.
+ *
+ * The files are memory mapped read only.  The codes read their rows
+ * straight from the mapping, so several JVMs on a host using the same
+ * codes share one copy of each matrix in the page cache rather than each
+ * holding one on the heap.
+ *
+ * The default store is off unless the property
+ * "com.onionnetworks.fec.matrixstore" names a directory, or the
+ * DefaultFECCodeFactory finds it in its properties file.  Matrices with
+ * less than "com.onionnetworks.fec.matrixstore.minsize" entries
+ * (DEFAULT_MIN_SIZE) are cheaper to compute than to map and aren't
+ * stored.
+ */
+public class MatrixStore {
+
+    public static final int MAGIC = PureCode.FEC_MAGIC;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int DEFAULT_MIN_SIZE = 64*1024;
+
+    protected static MatrixStore def;
+    protected static boolean defLoaded;
+
+    protected final File dir;
+    protected final int minSize;
+    // file name -> SoftReference to the mapped CharBuffer
+    protected HashMap mapped = new HashMap();
+
+    public MatrixStore(File dir) {
+        this(dir,DEFAULT_MIN_SIZE);
+    }
+
+    public MatrixStore(File dir, int minSize) {
+        this.dir = dir;
+        this.minSize = minSize;
+    }
+
+    /**
+     * @return The MatrixStore used by all of the FECCodes, or null if
+     * there is none.
+     */
+    public synchronized static MatrixStore getDefault() {
+        if (!defLoaded) {
+            defLoaded = true;
+            String path = System.getProperty
+                ("com.onionnetworks.fec.matrixstore");
+            if (path != null) {
+                def = new MatrixStore
+                    (new File(path),Integer.getInteger
+                     ("com.onionnetworks.fec.matrixstore.minsize",
+                      DEFAULT_MIN_SIZE).intValue());
+            }
+        }
+        return def;
+    }
+
+    /**
+     * Replace the default store, null turns it off.
+     */
+    public synchronized static void setDefault(MatrixStore store) {
+        def = store;
+        defLoaded = true;
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Map the n*k encoding matrix of the code, computing it and saving it
+     * first if it isn't stored yet.
+     *
+     * @return A read only buffer holding the matrix, or null if it is
+     * too small or too large to be stored or the store can't be written.
+     */
+    public CharBuffer getEncodeMatrix(FECMath fecMath, int k, int n) {
+        long size = (long) n*k;
+        if (size < minSize || HEADER_SIZE + 2*size > Integer.MAX_VALUE) {
+            return null;
+        }
+        String name = "fec"+fecMath.gfBits+"-"+k+"-"+n+".mat";
+        synchronized (this) {
+            SoftReference ref = (SoftReference) mapped.get(name);
+            CharBuffer result = ref == null ? null : (CharBuffer) ref.get();
+            if (result != null) {
+                return result.duplicate();
+            }
+            File f = new File(dir,name);
+            try {
+                result = map(f,fecMath,k,n);
+                if (result == null) {
+                    save(f,fecMath,k,n,
+                         new EncodeMatrix(fecMath,k,n).toArray());
+                    result = map(f,fecMath,k,n);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+            if (result != null) {
+                mapped.put(name,new SoftReference(result));
+                result = result.duplicate();
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @return The matrix in f, or null if there is none or it is not the
+     * matrix of this code.
+     */
+    protected CharBuffer map(File f, FECMath fecMath, int k, int n)
+        throws IOException {
+        if (!f.isFile()) {
+            return null;
+        }
+        long length = HEADER_SIZE + 2L*n*k;
+        MappedByteBuffer buf;
+        RandomAccessFile raf = new RandomAccessFile(f,"r");
+        try {
+            if (raf.length() != length) {
+                return null;
+            }
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,0,
+                                       length);
+        } finally {
+            raf.close();
+        }
+        if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION ||
+            buf.getInt(8) != fecMath.gfBits ||
+            buf.getInt(12) != primPoly(fecMath) || buf.getInt(16) != k ||
+            buf.getInt(20) != n) {
+            return null;
+        }
+        buf.position(HEADER_SIZE);
+        ByteBuffer data = buf.slice();
+        if (buf.getLong(24) != checksum(data.duplicate())) {
+            return null;
+        }
+        return data.asCharBuffer().asReadOnlyBuffer();
+    }
+
+    protected void save(File f, FECMath fecMath, int k, int n,
+                        char[] matrix) throws IOException {
+        dir.mkdirs();
+        ByteBuffer data = ByteBuffer.allocate(2*matrix.length);
+        data.asCharBuffer().put(matrix);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(fecMath.gfBits).
+            putInt(primPoly(fecMath)).putInt(k).putInt(n).
+            putLong(checksum(data.duplicate()));
+        header.flip();
+
+        File tmp = File.createTempFile(f.getName(),".tmp",dir);
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                FileChannel ch = out.getChannel();
+                while (header.hasRemaining()) {
+                    ch.write(header);
+                }
+                while (data.hasRemaining()) {
+                    ch.write(data);
+                }
+                ch.force(true);
+            } finally {
+                out.close();
+            }
+            // Another process may have written it in the meantime, both
+            // have the same contents.
+            if (!tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f))) {
+                throw new IOException("Unable to rename "+tmp+" to "+f);
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private static long checksum(ByteBuffer data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    /**
+     * @return The primitive polynomial of the field, bit i being the
+     * coefficient of x^i.
+     */
+    private static int primPoly(FECMath fecMath) {
+        String poly = FECMath.prim_polys[fecMath.gfBits];
+        int result = 0;
+        for (int i=0;i<poly.length();i++) {
+            if (poly.charAt(i) == '1') {
+                result |= 1 << i;
+            }
+        }
+        return result;
+    }
+
+    public String toString() {
+        return "MatrixStore["+dir+"]";
+    }
+}
@@ -2,6 +2,7 @@ package com.onionnetworks.fec;
 
 //import java.security.AccessController;
 //import sun.security.action.*;
+import java.nio.ByteBuffer;
 import com.onionnetworks.util.*;
 
 /**
@@ -20,12 +21,39 @@ public class Native8Code extends FECCode {
     // attacker the ability to point to anything in memory.
     final private long code;
 
+    // Cleared if the native library predates nativeBuildDecodeMatrix and
+    // nativeDecodeWithMatrix, in which case we use plain nativeDecode.
+    private static volatile boolean decodeMatrixSupported = true;
+
+    // Cleared if the native library predates nativeEncodeDirect and
+    // nativeDecodeDirect, in which case direct buffers are copied.
+    private static volatile boolean directSupported = true;
+
+    // Cleared if the native library predates nativeNewFECWithMatrix, in
+    // which case the C code builds the encoding matrix itself.
+    private static volatile boolean newWithMatrixSupported = true;
+
+    // Cleared if the native library predates nativeEncodeSegments and
+    // nativeDecodeSegments, in which case segments are coded one by one.
+    private static volatile boolean segmentsSupported = true;
+
+    // Cleared if the native library predates nativeSetMaxCritical and
+    // nativeMaxCriticalNanos, in which case it pins whole packets.
+    private static volatile boolean criticalSupported = true;
+
+    public static final int DEFAULT_MAX_CRITICAL = 1024*1024;
+
+    private volatile PureCode pureCode;
+
     static {
         String path = NativeDeployer.getLibraryPath
             (Native8Code.class.getClassLoader(),"fec8");
         if (path != null) {
             System.load(path);
             initFEC();
+            setMaxCritical(Integer.getInteger
+                           ("com.onionnetworks.fec.native.maxcritical",
+                            DEFAULT_MAX_CRITICAL).intValue());
         } else {
             System.out.println("Unable to find native library for fec8 for platform "+NativeDeployer.OS_ARCH);
             System.out.println(path);
@@ -34,7 +62,84 @@ public class Native8Code extends FECCode {
 
     public Native8Code(int k, int n) {
         super(k,n);
-        code = nativeNewFEC(k,n);
+        code = newFEC(k,n);
+    }
+
+    /**
+     * A code with some other systematic encoding matrix than that of
+     * PureCode.  Subclasses that use one must also override
+     * decodeMatrix(), as the DecodeMatrixCache only holds the decode
+     * matrices of PureCode's.
+     *
+     * @throws UnsupportedOperationException If the native library is too
+     * old to take a matrix.
+     */
+    protected Native8Code(int k, int n, char[] encMatrix) {
+        super(k,n);
+        if (newWithMatrixSupported) {
+            try {
+                code = nativeNewFECWithMatrix(k,n,encMatrix);
+                return;
+            } catch (UnsatisfiedLinkError e) {
+                newWithMatrixSupported = false;
+            }
+        }
+        throw new UnsupportedOperationException
+            ("The native library can't take an encoding matrix");
+    }
+
+    /**
+     * The native code pins the arrays it codes with
+     * GetPrimitiveArrayCritical, which holds off the GC until they are
+     * released.  So that large packets don't hold it off for long, the
+     * arrays are coded a stripe at a time and released in between, with
+     * at most this many bytes of the k source packets in a stripe.  0
+     * pins them for the whole call.  Set from the property
+     * "com.onionnetworks.fec.native.maxcritical", or DEFAULT_MAX_CRITICAL.
+     */
+    public static void setMaxCritical(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("maxCritical < 0: "+bytes);
+        }
+        if (criticalSupported) {
+            try {
+                nativeSetMaxCritical(bytes);
+            } catch (UnsatisfiedLinkError e) {
+                criticalSupported = false;
+            }
+        }
+    }
+
+    /**
+     * @param reset Whether to start measuring again from 0.
+     * @return The longest the native code has held off the GC, in
+     * nanoseconds, or -1 if the native library doesn't measure it.
+     */
+    public static long getMaxCriticalNanos(boolean reset) {
+        if (criticalSupported) {
+            try {
+                return nativeMaxCriticalNanos(reset);
+            } catch (UnsatisfiedLinkError e) {
+                criticalSupported = false;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The encoding matrix is taken from FECMath, which computes it much
+     * faster than fec_new() does or finds it in the MatrixStore.
+     */
+    private long newFEC(int k, int n) {
+        if (newWithMatrixSupported && (long) n*k <= Integer.MAX_VALUE) {
+            try {
+                return nativeNewFECWithMatrix
+                    (k,n,PureCode.fecMath.createEncodeMatrix(k,n));
+            } catch (UnsatisfiedLinkError e) {
+                newWithMatrixSupported = false;
+            }
+        }
+        return nativeNewFEC(k,n);
     }
 
     protected void encode(byte[][] src, int[] srcOff, byte[][] repair,
@@ -45,14 +150,163 @@ public class Native8Code extends FECCode {
 
     protected void decode(byte[][] pkts, int[] pktsOff,
                           int[] index, int packetLength, boolean inOrder) {
+        decode(pkts,pktsOff,index,packetLength,inOrder,null);
+    }
+
+    /**
+     * The decode matrix is looked up with <code>scratch</code>, so a
+     * cached one is found without allocating.
+     */
+    protected void decode(byte[][] pkts, int[] pktsOff, int[] index,
+                          int packetLength, boolean inOrder,
+                          DecodeScratch scratch) {
         // We need to shuffle at this point so that the Java byte[][] stays
         // in sync with what happens in native land.
         if (!inOrder) {
             shuffle(pkts,pktsOff,index,k);
         }
+        if (!hasRepairPackets(index)) {
+            return;
+        }
+        if (decodeMatrixSupported) {
+            try {
+                nativeDecodeWithMatrix(pkts,pktsOff,index,
+                                       decodeMatrix(index,scratch),
+                                       k,packetLength);
+                return;
+            } catch (UnsatisfiedLinkError e) {
+                decodeMatrixSupported = false;
+            }
+        }
         nativeDecode(pkts,pktsOff,index,k,packetLength);
     }
 
+    /**
+     * Direct buffers are coded in place by the native code, anything else
+     * is copied.
+     */
+    protected void encode(ByteBuffer[] src, int[] srcOff, ByteBuffer[] repair,
+                          int[] repairOff, int[] index, int packetLength) {
+        if (directSupported && isDirect(src,false) && isDirect(repair,true)) {
+            try {
+                nativeEncodeDirect(src,srcOff,index,repair,repairOff,k,
+                                   packetLength);
+                return;
+            } catch (UnsatisfiedLinkError e) {
+                directSupported = false;
+            }
+        }
+        encodeByCopy(src,srcOff,repair,repairOff,index,packetLength);
+    }
+
+    protected void decode(ByteBuffer[] pkts, int[] pktsOff, int[] index,
+                          int packetLength) {
+        decode(pkts,pktsOff,index,packetLength,null);
+    }
+
+    /**
+     * The decode matrix is looked up with <code>scratch</code>, and heap
+     * copies of buffers that aren't direct are kept in it.
+     */
+    protected void decode(ByteBuffer[] pkts, int[] pktsOff, int[] index,
+                          int packetLength, DecodeScratch scratch) {
+        if (!hasRepairPackets(index)) {
+            return;
+        }
+        if (directSupported && isDirect(pkts,true)) {
+            try {
+                nativeDecodeDirect(pkts,pktsOff,index,
+                                   decodeMatrix(index,scratch),k,
+                                   packetLength);
+                return;
+            } catch (UnsatisfiedLinkError e) {
+                directSupported = false;
+            }
+        }
+        decodeByCopy(pkts,pktsOff,index,packetLength,scratch);
+    }
+
+    /**
+     * The whole batch is encoded in one call into the native library,
+     * which finds each segment's packets from its offset rather than
+     * being handed an array per packet.
+     */
+    public void encodeSegments(byte[][] src, int[] srcOff, byte[][] repair,
+                               int[] repairOff, int[] index,
+                               int packetLength) {
+        if (segmentsSupported) {
+            checkSegments(src,srcOff,k,packetLength);
+            checkSegments(repair,repairOff,index.length,packetLength);
+            if (repair.length != src.length) {
+                throw new IllegalArgumentException
+                    ("src and repair must have the same number of segments");
+            }
+            try {
+                nativeEncodeSegments(src,srcOff,repair,repairOff,index,k,
+                                     packetLength);
+                return;
+            } catch (UnsatisfiedLinkError e) {
+                segmentsSupported = false;
+            }
+        }
+        super.encodeSegments(src,srcOff,repair,repairOff,index,packetLength);
+    }
+
+    /**
+     * The segments are shuffled and their decode matrices found here, then
+     * decoded in one call into the native library.
+     */
+    public void decodeSegments(byte[][] data, int[] dataOff, int[][] index,
+                               int packetLength) {
+        if (!segmentsSupported) {
+            super.decodeSegments(data,dataOff,index,packetLength);
+            return;
+        }
+        checkSegments(data,dataOff,index,k,packetLength);
+        DecodeScratch scratch = DecodeScratch.get();
+        char[][] matrices = scratch.matrices(data.length);
+        try {
+            for (int s=0;s<data.length;s++) {
+                copyShuffle(data[s],dataOff[s],index[s],k,packetLength,
+                            scratch);
+                matrices[s] = null;
+                if (hasRepairPackets(index[s])) {
+                    // In canonical order the cached matrix is used as it
+                    // is, a permuted one would be overwritten by the next
+                    // segment's in the scratch.
+                    sortRepairPackets(data[s],dataOff[s],index[s],k,
+                                      packetLength,scratch);
+                    matrices[s] = decodeMatrix(index[s],scratch);
+                }
+            }
+            nativeDecodeSegments(data,dataOff,index,matrices,k,packetLength);
+        } catch (UnsatisfiedLinkError e) {
+            segmentsSupported = false;
+            // Already shuffled, so this only decodes.
+            super.decodeSegments(data,dataOff,index,packetLength);
+        } finally {
+            for (int s=0;s<data.length;s++) {
+                matrices[s] = null;
+            }
+        }
+    }
+
+    /**
+     * @param scratch Where to look the matrix up, or null to allocate.
+     * @return The decode matrix for the shuffled index, from the
+     * DecodeMatrixCache if possible.  A cached matrix looked up with a
+     * scratch may be in the scratch and longer than k*k.
+     */
+    protected char[] decodeMatrix(int[] index, DecodeScratch scratch) {
+        DecodeMatrixCache cache = DecodeMatrixCache.getDefault();
+        char[] decMatrix = cache.get(8,k,n,index,false,scratch);
+        if (decMatrix == null) {
+            decMatrix = nativeBuildDecodeMatrix(index,k);
+            cache.put(8,k,n,index,decMatrix);
+        }
+        return decMatrix;
+    }
+
     protected native void nativeEncode
         (byte[][] src, int[] srcOff, int[] index, byte[][] repair,
          int[] repairOff, int k, int packetLength);
@@ -60,14 +314,78 @@ public class Native8Code extends FECCode {
     protected native void nativeDecode(byte[][] pkts, int[] pktsOff,
                                        int[] index, int k, int packetLength);
 
+    /**
+     * @param index The shuffled packet indexes.
+     * @return The k*k decode matrix for index.
+     */
+    protected native char[] nativeBuildDecodeMatrix(int[] index, int k);
+
+    protected native void nativeDecodeWithMatrix(byte[][] pkts, int[] pktsOff,
+                                                 int[] index, char[] matrix,
+                                                 int k, int packetLength);
+
+    /**
+     * nativeEncode() on direct ByteBuffers, using their memory in place.
+     * The offsets are absolute positions within the buffers.
+     */
+    protected native void nativeEncodeDirect
+        (ByteBuffer[] src, int[] srcOff, int[] index, ByteBuffer[] repair,
+         int[] repairOff, int k, int packetLength);
+
+    /**
+     * nativeDecodeWithMatrix() on direct ByteBuffers, the packets must
+     * already be shuffled.
+     */
+    protected native void nativeDecodeDirect(ByteBuffer[] pkts, int[] pktsOff,
+                                             int[] index, char[] matrix,
+                                             int k, int packetLength);
+
+    /**
+     * Encode every segment, see encodeSegments().  The arrays must have
+     * been checked with checkSegments().
+     */
+    protected native void nativeEncodeSegments
+        (byte[][] src, int[] srcOff, byte[][] repair, int[] repairOff,
+         int[] index, int k, int packetLength);
+
+    /**
+     * Decode the shuffled segments, matrices[s] being the decode matrix of
+     * segment s or null if it has no repair packets.
+     */
+    protected native void nativeDecodeSegments
+        (byte[][] data, int[] dataOff, int[][] index, char[][] matrices,
+         int k, int packetLength);
+
     protected synchronized native long nativeNewFEC(int k, int n);
 
+    protected synchronized native long nativeNewFECWithMatrix
+        (int k, int n, char[] encMatrix);
+
     protected synchronized native void nativeFreeFEC();
 
     protected static synchronized native void initFEC();
 
+    protected static native void nativeSetMaxCritical(int bytes);
+
+    protected static native long nativeMaxCriticalNanos(boolean reset);
+
     protected void finalize() throws Throwable {
-        nativeFreeFEC();
+        // 0 if the constructor failed.
+        if (code != 0) {
+            nativeFreeFEC();
+        }
+    }
+
+    /**
+     * The native code uses the same encoding matrix as PureCode, so a
+     * PureCode, built on first use, does the incremental decoding.
+     */
+    public IncrementalDecoder createIncrementalDecoder(int packetLength) {
+        PureCode pure = pureCode;
+        if (pure == null) {
+            pureCode = pure = new PureCode(k,n);
+        }
+        return pure.createIncrementalDecoder(packetLength);
     }
 
     public String toString() {
@@ -0,0 +1,85 @@
+package com.onionnetworks.fec;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * This class is PQCode on the native library.  The encoding matrix of
+ * PQCode, a row of 1s and a row of g^j under the identity, is handed to
+ * the native code in place of PureCode's, so it produces exactly the
+ * packets of PQCode, or ParityCode for n = k+1, at the speed of the SIMD
+ * kernels.  The decode matrices are written down by
+ * PQCode.createDecodeMatrix() rather than inverted.
+ */
+public class NativePQCode extends Native8Code {
+
+    // The last decode matrix with its index, as most callers see the same
+    // losses again.
+    protected volatile Object[] lastDecode;
+
+    public NativePQCode(int k, int n) {
+        super(checkKN(k,n),n,PQCode.createEncodeMatrix(k,n));
+    }
+
+    private static int checkKN(int k, int n) {
+        if (k < 1 || n < k || n - k > 2 || n > 256) {
+            throw new IllegalArgumentException
+                ("NativePQCode needs 1 <= k <= n <= min(k+2,256): k="+k+
+                 ",n="+n);
+        }
+        return k;
+    }
+
+    /**
+     * The native library only reports an index beyond n on stderr, so
+     * they are refused here like PQCode does.
+     */
+    protected void encode(byte[][] src, int[] srcOff, byte[][] repair,
+                          int[] repairOff, int[] index, int packetLength) {
+        checkIndexes(index,index.length);
+        super.encode(src,srcOff,repair,repairOff,index,packetLength);
+    }
+
+    protected void encode(ByteBuffer[] src, int[] srcOff, ByteBuffer[] repair,
+                          int[] repairOff, int[] index, int packetLength) {
+        checkIndexes(index,index.length);
+        super.encode(src,srcOff,repair,repairOff,index,packetLength);
+    }
+
+    public void encodeSegments(byte[][] src, int[] srcOff, byte[][] repair,
+                               int[] repairOff, int[] index,
+                               int packetLength) {
+        checkIndexes(index,index.length);
+        super.encodeSegments(src,srcOff,repair,repairOff,index,
+                             packetLength);
+    }
+
+    private void checkIndexes(int[] index, int len) {
+        for (int i=0;i<len;i++) {
+            if (index[i] < 0 || index[i] >= n) {
+                throw new IllegalArgumentException
+                    ("Invalid index "+index[i]+" (max "+(n-1)+")");
+            }
+        }
+    }
+
+    protected char[] decodeMatrix(int[] index, DecodeScratch scratch) {
+        checkIndexes(index,k);
+        Object[] last = lastDecode;
+        if (last != null && Arrays.equals((int[]) last[0],index)) {
+            return (char[]) last[1];
+        }
+        char[] m = PQCode.createDecodeMatrix(k,index);
+        lastDecode = new Object[] {index.clone(),m};
+        return m;
+    }
+
+    public IncrementalDecoder createIncrementalDecoder(int packetLength) {
+        throw new UnsupportedOperationException
+            (this+" can't decode incrementally");
+    }
+
+    public String toString() {
+        return new String("NativePQCode[k="+k+",n="+n+"]");
+    }
+}
@@ -0,0 +1,298 @@
+package com.onionnetworks.fec;
+
+/**
+ * This class is the double parity code of RAID 6, for n-k of at most 2.
+ * Packet k is P, the xor of the source packets as in ParityCode, and
+ * packet k+1 is Q, the sum of g^j * D_j over the source packets D_j in
+ * GF(2^8), where g is the generator of the field used by FECMath.  The
+ * powers of g are distinct for j < 255, so k can be at most 255.
+ *
+ * Q is computed by Horner's rule, from the last source packet down, so the
+ * only multiply is by g, which is a shift and a conditional xor rather
+ * than a table lookup.  Any one lost source packet is rebuilt from P with
+ * xors only, or from Q, and any two from P and Q, with one multiply by a
+ * constant for each byte of each.
+ *
+ * Packet k is the same as that of ParityCode, packet k+1 is not that of
+ * any other code, so a PQCode can only decode packets encoded by a PQCode,
+ * or by a ParityCode if it only got packet k.
+ */
+public class PQCode extends ParityCode {
+
+    protected static final FECMath fecMath = PureCode.fecMath;
+
+    // The primitive polynomial of fecMath without its x^8 term, which is
+    // xored in when multiplying by g = x carries out of the byte.
+    protected static final int POLY = 0x1d;
+
+    public PQCode(int k, int n) {
+        super(k,n,2);
+        if (k > 255) {
+            throw new IllegalArgumentException("k > 255: "+k);
+        }
+    }
+
+    protected void encode(byte[][] src, int[] srcOff, byte[][] repair,
+                          int[] repairOff, int[] index, int packetLength) {
+        int p = -1, q = -1;
+        for (int i=0;i<index.length;i++) {
+            if (index[i] < k) { // < k, systematic so direct copy.
+                System.arraycopy(src[index[i]],srcOff[index[i]],repair[i],
+                                 repairOff[i],packetLength);
+            } else {
+                checkIndex(index[i]);
+                if (index[i] == k) {
+                    p = i;
+                } else {
+                    q = i;
+                }
+            }
+        }
+        if (p < 0 && q < 0) {
+            return;
+        }
+        for (int off=0;off<packetLength;off+=STRIPE) {
+            int len = Math.min(STRIPE,packetLength-off);
+            int l = k-1;
+            if (p >= 0) {
+                System.arraycopy(src[l],srcOff[l]+off,repair[p],
+                                 repairOff[p]+off,len);
+            }
+            if (q >= 0) {
+                System.arraycopy(src[l],srcOff[l]+off,repair[q],
+                                 repairOff[q]+off,len);
+            }
+            for (int j=l-1;j>=0;j--) {
+                if (q < 0) {
+                    xor(repair[p],repairOff[p]+off,src[j],srcOff[j]+off,len);
+                } else if (p < 0) {
+                    mulXor(repair[q],repairOff[q]+off,src[j],srcOff[j]+off,
+                           len);
+                } else {
+                    xorMulXor(repair[p],repairOff[p]+off,repair[q],
+                              repairOff[q]+off,src[j],srcOff[j]+off,len);
+                }
+            }
+        }
+    }
+
+    protected void decode(byte[][] pkts, int[] pktsOff, int[] index,
+                          int packetLength, boolean shuffled) {
+        decode(pkts,pktsOff,index,packetLength,shuffled,null);
+    }
+
+    /**
+     * The repair packets are in the places of the lost ones and the lost
+     * packets are rebuilt in their places, a stripe at a time.  With P and
+     * Q lost packets u and v give Puv = P ^ (the others) = D_u ^ D_v and
+     * Quv = Q ^ (g^j * the others) = g^u*D_u ^ g^v*D_v, so with Q in the
+     * place of u, D_u = (g^v*Puv ^ Quv) / (g^u ^ g^v) and D_v = Puv ^ D_u.
+     */
+    protected void decode(byte[][] pkts, int[] pktsOff, int[] index,
+                          int packetLength, boolean shuffled,
+                          DecodeScratch scratch) {
+        if (!shuffled) {
+            shuffle(pkts,pktsOff,index,k);
+        }
+        // The places of Q and P.
+        int u = -1, v = -1;
+        for (int row=0;row<k;row++) {
+            if (index[row] < k) {
+                continue;
+            }
+            checkIndex(index[row]);
+            if (index[row] == k) {
+                v = row;
+            } else {
+                u = row;
+            }
+        }
+        if (u < 0) {
+            if (v >= 0) {
+                for (int off=0;off<packetLength;off+=STRIPE) {
+                    xorOthers(pkts,pktsOff,v,-1,off,
+                              Math.min(STRIPE,packetLength-off));
+                }
+                index[v] = v;
+            }
+            return;
+        }
+        if (scratch == null) {
+            scratch = DecodeScratch.get();
+        }
+
+        char[] gf_exp = fecMath.gf_exp;
+        char[] inverse = fecMath.inverse;
+        char pMul = 0, qMul;
+        if (v < 0) {
+            qMul = inverse[gf_exp[u]];
+        } else {
+            qMul = inverse[gf_exp[u] ^ gf_exp[v]];
+            pMul = fecMath.mul(gf_exp[v],qMul);
+        }
+
+        byte[] tmp = scratch.block(Math.min(STRIPE,packetLength));
+        byte[] du = pkts[u];
+        for (int off=0;off<packetLength;off+=STRIPE) {
+            int len = Math.min(STRIPE,packetLength-off);
+            int duPos = pktsOff[u]+off;
+
+            // tmp = Quv, g^j * the others from the last one down, then Q.
+            int j = k-1;
+            while (j == u || j == v) {
+                j--;
+            }
+            if (j >= 0) {
+                System.arraycopy(pkts[j],pktsOff[j]+off,tmp,0,len);
+                for (j--;j>=0;j--) {
+                    if (j == u || j == v) {
+                        mul(tmp,0,len);
+                    } else {
+                        mulXor(tmp,0,pkts[j],pktsOff[j]+off,len);
+                    }
+                }
+                xor(tmp,0,du,duPos,len);
+            } else {
+                System.arraycopy(du,duPos,tmp,0,len);
+            }
+            if (v < 0) {
+                mul(du,duPos,tmp,0,qMul,len);
+            } else {
+                xorOthers(pkts,pktsOff,v,u,off,len);
+                byte[] dv = pkts[v];
+                int dvPos = pktsOff[v]+off;
+                mul(du,duPos,dv,dvPos,pMul,len);
+                fecMath.addMul(du,duPos,tmp,0,(byte) qMul,len);
+                xor(dv,dvPos,du,duPos,len);
+            }
+        }
+        index[u] = u;
+        if (v >= 0) {
+            index[v] = v;
+        }
+    }
+
+    protected void checkIndex(int index) {
+        if ((index != k && index != k+1) || index >= n) {
+            throw new IllegalArgumentException
+                ("Invalid index "+index+" (max "+(n-1)+")");
+        }
+    }
+
+    /**
+     * @return The n*k systematic encoding matrix, the identity on top of
+     * a row of 1s for P and a row of g^j for Q, for codes such as
+     * NativePQCode that take a matrix.
+     */
+    public static char[] createEncodeMatrix(int k, int n) {
+        char[] m = new char[n*k];
+        for (int i=0;i<k;i++) {
+            m[i*k+i] = 1;
+        }
+        for (int j=0;j<k && n > k;j++) {
+            m[k*k+j] = 1;
+        }
+        for (int j=0;j<k && n > k+1;j++) {
+            m[(k+1)*k+j] = fecMath.gf_exp[j];
+        }
+        return m;
+    }
+
+    /**
+     * @param index The shuffled packet indexes.
+     * @return The k*k decode matrix for index, written down from the
+     * formulas of decode() rather than by inverting the submatrix of the
+     * encoding matrix.
+     */
+    public static char[] createDecodeMatrix(int k, int[] index) {
+        char[] m = new char[k*k];
+        int u = -1, v = -1;
+        for (int row=0;row<k;row++) {
+            m[row*k+row] = 1;
+            if (index[row] == k) {
+                v = row;
+            } else if (index[row] > k) {
+                u = row;
+            }
+        }
+        char[] gf_exp = fecMath.gf_exp;
+        if (u < 0) {
+            for (int j=0;j<k && v >= 0;j++) {
+                m[v*k+j] = 1;
+            }
+            return m;
+        }
+        if (v < 0) {
+            char c = fecMath.inverse[gf_exp[u]];
+            for (int j=0;j<k;j++) {
+                m[u*k+j] = j == u ? c : fecMath.mul(gf_exp[j],c);
+            }
+            return m;
+        }
+        char c = fecMath.inverse[gf_exp[u] ^ gf_exp[v]];
+        for (int j=0;j<k;j++) {
+            // Q is at u, P at v and D_j anywhere else.
+            char e;
+            if (j == u) {
+                e = c;
+            } else if (j == v) {
+                e = fecMath.mul(gf_exp[v],c);
+            } else {
+                e = fecMath.mul((char) (gf_exp[v] ^ gf_exp[j]),c);
+            }
+            m[u*k+j] = e;
+            m[v*k+j] = j == u ? c : (char) (1 ^ e);
+        }
+        return m;
+    }
+
+    /**
+     * dst = g*dst
+     */
+    protected void mul(byte[] dst, int dstPos, int len) {
+        for (int i=dstPos;i<dstPos+len;i++) {
+            int b = dst[i];
+            dst[i] = (byte) ((b << 1) ^ ((b >> 7) & POLY));
+        }
+    }
+
+    /**
+     * dst = g*dst ^ src
+     */
+    protected void mulXor(byte[] dst, int dstPos, byte[] src, int srcPos,
+                          int len) {
+        for (int i=0;i<len;i++) {
+            int b = dst[dstPos+i];
+            dst[dstPos+i] = (byte) ((b << 1) ^ ((b >> 7) & POLY) ^
+                                    src[srcPos+i]);
+        }
+    }
+
+    /**
+     * p ^= src, q = g*q ^ src, reading src only once.
+     */
+    protected void xorMulXor(byte[] p, int pPos, byte[] q, int qPos,
+                             byte[] src, int srcPos, int len) {
+        for (int i=0;i<len;i++) {
+            int s = src[srcPos+i];
+            int b = q[qPos+i];
+            p[pPos+i] ^= s;
+            q[qPos+i] = (byte) ((b << 1) ^ ((b >> 7) & POLY) ^ s);
+        }
+    }
+
+    /**
+     * dst = c*src
+     */
+    protected static final void mul(byte[] dst, int dstPos, byte[] src,
+                                    int srcPos, char c, int len) {
+        char[] mulc = fecMath.gf_mul_table[c];
+        for (int i=0;i<len;i++) {
+            dst[dstPos+i] = (byte) mulc[src[srcPos+i] & 0xff];
+        }
+    }
+
+    public String toString() {
+        return new String("PQCode[k="+k+",n="+n+"]");
+    }
+}
@@ -0,0 +1,244 @@
+package com.onionnetworks.fec;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This class splits a single encode or decode call into tasks that run on
+ * a ForkJoinPool.  Encoding is split by repair packet and by byte stripe,
+ * decoding by byte stripe only, since one decode call always rebuilds all
+ * of the missing packets.  Both work because every byte position of a
+ * packet is coded independently of the others, so a stripe of the packets
+ * can be coded by simply shifting the offsets and shortening the
+ * packetLength.
+ *
+ * This is used by FECCode, see FECCode.setParallelism().  It is off unless
+ * the property "com.onionnetworks.fec.parallelism" is set to the number
+ * of threads to use.  Calls with less than
+ * "com.onionnetworks.fec.parallelthreshold" multiply-adds
+ * (k*packetLength per output packet) stay on the calling thread, as do
+ * calls made from inside the pool itself.
+ */
+final class ParallelCoder {
+
+    public static final long DEFAULT_THRESHOLD = 4*1024*1024;
+    public static final int DEFAULT_STRIPE_SIZE = 16*1024;
+
+    private static volatile ForkJoinPool pool;
+    private static volatile long threshold =
+        Long.getLong("com.onionnetworks.fec.parallelthreshold",
+                     DEFAULT_THRESHOLD).longValue();
+    private static volatile int stripeSize =
+        Integer.getInteger("com.onionnetworks.fec.parallelstripe",
+                           DEFAULT_STRIPE_SIZE).intValue();
+
+    static {
+        setParallelism(Integer.getInteger
+                       ("com.onionnetworks.fec.parallelism",0).intValue());
+    }
+
+    private ParallelCoder() {}
+
+    static synchronized void setParallelism(int threads) {
+        ForkJoinPool old = pool;
+        pool = threads > 0 ? new ForkJoinPool(threads) : null;
+        if (old != null) {
+            old.shutdown();
+        }
+    }
+
+    static int getParallelism() {
+        ForkJoinPool p = pool;
+        return p == null ? 0 : p.getParallelism();
+    }
+
+    static void setThreshold(long multiplyAdds) {
+        threshold = multiplyAdds;
+    }
+
+    static void setStripeSize(int bytes) {
+        if (bytes < 1) {
+            throw new IllegalArgumentException("stripe size < 1: "+bytes);
+        }
+        stripeSize = bytes;
+    }
+
+    /**
+     * @return The pool to run on, or null if this job should stay on the
+     * calling thread.
+     */
+    private static ForkJoinPool poolFor(FECCode code, int outputs,
+                                        int packetLength) {
+        ForkJoinPool p = pool;
+        if (p == null || code.getStripeAlignment() < 1 ||
+            (long) code.k * packetLength * outputs < threshold ||
+            ForkJoinTask.inForkJoinPool()) {
+            return null;
+        }
+        return p;
+    }
+
+    /**
+     * @return The stripe boundaries, always a multiple of the code's
+     * stripe alignment, and at least <code>minStripes</code> of them if
+     * the packets are big enough.
+     */
+    private static int[] stripes(FECCode code, int packetLength,
+                                 int minStripes) {
+        int align = code.getStripeAlignment();
+        int size = Math.min(stripeSize,
+                            (packetLength + minStripes - 1) / minStripes);
+        size = Math.max(align,size - size % align);
+        int num = (packetLength + size - 1) / size;
+        int[] bounds = new int[num+1];
+        for (int i=0;i<num;i++) {
+            bounds[i] = i*size;
+        }
+        bounds[num] = packetLength;
+        return bounds;
+    }
+
+    /**
+     * @return true if the encode was done in parallel, false if the caller
+     * should do it itself.
+     */
+    static boolean encode(final FECCode code, final byte[][] src,
+                          final int[] srcOff, final byte[][] repair,
+                          final int[] repairOff, final int[] index,
+                          int packetLength) {
+        ForkJoinPool p = poolFor(code,repair.length,packetLength);
+        if (p == null) {
+            return false;
+        }
+        int tasks = 4*p.getParallelism();
+        int rowGroups = Math.min(repair.length,tasks);
+        int[] bounds = stripes(code,packetLength,
+                               (tasks + rowGroups - 1) / rowGroups);
+
+        final List jobs = new ArrayList();
+        for (int g=0;g<rowGroups;g++) {
+            final int r0 = g*repair.length/rowGroups;
+            final int r1 = (g+1)*repair.length/rowGroups;
+            for (int s=0;s<bounds.length-1;s++) {
+                final int off = bounds[s];
+                final int len = bounds[s+1]-off;
+                jobs.add(new RecursiveAction() {
+                        protected void compute() {
+                            int rows = r1-r0;
+                            byte[][] rep = new byte[rows][];
+                            int[] repOff = new int[rows];
+                            int[] idx = new int[rows];
+                            System.arraycopy(repair,r0,rep,0,rows);
+                            System.arraycopy(index,r0,idx,0,rows);
+                            for (int i=0;i<rows;i++) {
+                                repOff[i] = repairOff[r0+i]+off;
+                            }
+                            code.encode(src,shift(srcOff,off),rep,repOff,
+                                        idx,len);
+                        }
+                    });
+            }
+        }
+        run(p,jobs);
+        return true;
+    }
+
+    /**
+     * The packets must already be shuffled.
+     *
+     * @param scratch The caller's scratch, used for the stripe decoded on
+     * the calling thread, or null.  The pool threads use their own.
+     * @return true if the decode was done in parallel, false if the caller
+     * should do it itself.
+     */
+    static boolean decode(final FECCode code, final byte[][] pkts,
+                          final int[] pktsOff, final int[] index,
+                          int packetLength, DecodeScratch scratch) {
+        int missing = 0;
+        for (int i=0;i<code.k;i++) {
+            if (index[i] >= code.k) {
+                missing++;
+            }
+        }
+        ForkJoinPool p = poolFor(code,missing,packetLength);
+        if (p == null || missing == 0) {
+            return false;
+        }
+        int[] bounds = stripes(code,packetLength,4*p.getParallelism());
+        if (bounds.length <= 2) {
+            return false;
+        }
+
+        List jobs = new ArrayList();
+        for (int s=1;s<bounds.length-1;s++) {
+            final int off = bounds[s];
+            final int len = bounds[s+1]-off;
+            jobs.add(new RecursiveAction() {
+                    protected void compute() {
+                        // decode() marks the packets it rebuilt as done
+                        // in index, so every stripe needs its own copy.
+                        code.decode(pkts,shift(pktsOff,off),
+                                    (int[]) index.clone(),len,true);
+                    }
+                });
+        }
+        // Do the first stripe here so that the decode matrix is built once
+        // and found in the DecodeMatrixCache by the other stripes.
+        code.decode(pkts,shift(pktsOff,bounds[0]),(int[]) index.clone(),
+                    bounds[1]-bounds[0],true,scratch);
+        run(p,jobs);
+
+        for (int i=0;i<code.k;i++) {
+            index[i] = i;
+        }
+        return true;
+    }
+
+    /**
+     * Fill rows from to to of an encoding matrix, see
+     * EncodeMatrix.getRows().  The threshold is taken as a number of
+     * matrix entries, each being a few table lookups.
+     *
+     * @return true if the rows were filled in parallel, false if the
+     * caller should do it itself.
+     */
+    static boolean fillRows(final EncodeMatrix m, final char[] dst,
+                            final int from, int to) {
+        ForkJoinPool p = pool;
+        if (p == null || (long) (to-from)*m.getK() < threshold ||
+            ForkJoinTask.inForkJoinPool()) {
+            return false;
+        }
+        int tasks = Math.min(to-from,4*p.getParallelism());
+        List jobs = new ArrayList();
+        for (int t=0;t<tasks;t++) {
+            final int r0 = from + (int) ((long) t*(to-from)/tasks);
+            final int r1 = from + (int) ((long) (t+1)*(to-from)/tasks);
+            jobs.add(new RecursiveAction() {
+                    protected void compute() {
+                        m.fillRows(dst,from,r0,r1);
+                    }
+                });
+        }
+        run(p,jobs);
+        return true;
+    }
+
+    private static int[] shift(int[] offs, int delta) {
+        int[] result = new int[offs.length];
+        for (int i=0;i<offs.length;i++) {
+            result[i] = offs[i]+delta;
+        }
+        return result;
+    }
+
+    private static void run(ForkJoinPool p, final List jobs) {
+        p.invoke(new RecursiveAction() {
+                protected void compute() {
+                    invokeAll(jobs);
+                }
+            });
+    }
+}
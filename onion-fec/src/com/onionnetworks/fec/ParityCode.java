@@ -0,0 +1,115 @@
+package com.onionnetworks.fec;
+
+/**
+ * This class is a single parity code, the code of RAID 5.  Its only repair
+ * packet, packet k, is the xor of the k source packets, and a lost source
+ * packet is rebuilt by xoring the repair packet with the k-1 others.  So n
+ * can only be k or k+1, but there is no field arithmetic at all and k can
+ * be as large as 65535.
+ *
+ * Packet k is NOT the packet k of PureCode and the other Vandermonde codes,
+ * so a ParityCode can only decode packets encoded by a ParityCode or a
+ * PQCode, whose packet k is the same.
+ */
+public class ParityCode extends FECCode {
+
+    // The bytes of each packet coded per pass, so that the stripe being
+    // computed stays in the L1 cache while the source stripes stream past.
+    protected static final int STRIPE = 4096;
+
+    public ParityCode(int k, int n) {
+        this(k,n,1);
+    }
+
+    /**
+     * @param maxRepair The number of repair packets the code has.
+     */
+    protected ParityCode(int k, int n, int maxRepair) {
+        super(k,n);
+        if (k < 1 || n < k || n - k > maxRepair) {
+            throw new IllegalArgumentException
+                (getClass().getName()+" needs 1 <= k <= n <= k+"+maxRepair+
+                 ": k="+k+",n="+n);
+        }
+    }
+
+    protected void encode(byte[][] src, int[] srcOff, byte[][] repair,
+                          int[] repairOff, int[] index, int packetLength) {
+        for (int i=0;i<index.length;i++) {
+            if (index[i] < k) { // < k, systematic so direct copy.
+                System.arraycopy(src[index[i]],srcOff[index[i]],repair[i],
+                                 repairOff[i],packetLength);
+            } else {
+                checkIndex(index[i]);
+                for (int off=0;off<packetLength;off+=STRIPE) {
+                    int len = Math.min(STRIPE,packetLength-off);
+                    System.arraycopy(src[0],srcOff[0]+off,repair[i],
+                                     repairOff[i]+off,len);
+                    for (int j=1;j<k;j++) {
+                        xor(repair[i],repairOff[i]+off,src[j],srcOff[j]+off,
+                            len);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The repair packet is in the place of the lost one, so the others are
+     * xored into it where it lies.
+     */
+    protected void decode(byte[][] pkts, int[] pktsOff, int[] index,
+                          int packetLength, boolean shuffled) {
+        if (!shuffled) {
+            shuffle(pkts,pktsOff,index,k);
+        }
+        for (int row=0;row<k;row++) {
+            if (index[row] < k) {
+                continue;
+            }
+            checkIndex(index[row]);
+            for (int off=0;off<packetLength;off+=STRIPE) {
+                int len = Math.min(STRIPE,packetLength-off);
+                xorOthers(pkts,pktsOff,row,-1,off,len);
+            }
+            index[row] = row;
+            return;
+        }
+    }
+
+    /**
+     * Xor bytes off to off+len of every source packet but skip1 and skip2
+     * into the same bytes of packet skip1.
+     */
+    protected final void xorOthers(byte[][] pkts, int[] pktsOff, int skip1,
+                                   int skip2, int off, int len) {
+        byte[] dst = pkts[skip1];
+        int dstPos = pktsOff[skip1]+off;
+        for (int j=0;j<k;j++) {
+            if (j != skip1 && j != skip2) {
+                xor(dst,dstPos,pkts[j],pktsOff[j]+off,len);
+            }
+        }
+    }
+
+    protected void checkIndex(int index) {
+        if (index != k || index >= n) {
+            throw new IllegalArgumentException
+                ("Invalid index "+index+" (max "+(n-1)+")");
+        }
+    }
+
+    /**
+     * dst ^= src
+     */
+    protected void xor(byte[] dst, int dstPos, byte[] src, int srcPos,
+                       int len) {
+        for (int i=0;i<len;i++) {
+            dst[dstPos+i] ^= src[srcPos+i];
+        }
+    }
+
+    public String toString() {
+        return new String("ParityCode[k="+k+",n="+n+"]");
+    }
+}
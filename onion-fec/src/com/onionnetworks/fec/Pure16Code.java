@@ -1,5 +1,6 @@
 package com.onionnetworks.fec;
 
+import java.nio.ByteBuffer;
 import com.onionnetworks.util.Util;
 import com.onionnetworks.util.Buffer;
 /**
@@ -25,10 +26,13 @@ public class Pure16Code extends PureCode {
         for the systematic code which you then need to invert to perform
         the decoding. Probably there is a fast way to invert E given that M
         is also a vandermonde matrix so it is "easy" to compute M^{-1}
+
+        The rows of E are now computed directly, see EncodeMatrix, and
+        large codes never hold all of them, see PureCode.maxEncodeMatrix.
     */
 
     public Pure16Code(int k, int n) {
-        super(k,n,fecMath.createEncodeMatrix(k,n));
+        super(k,n,new EncodeMatrix(fecMath,k,n));
     }
 
     /**
@@ -38,96 +42,233 @@ public class Pure16Code extends PureCode {
      */
     protected void encode(byte[][] src, int[] srcOff, byte[][] repair, 
                           int[] repairOff, int[] index, int packetLength) {
-        if (packetLength % 2 != 0) {
-            throw new IllegalArgumentException("For 16 bit codes, buffers "+
-                                               "must be 16 bit aligned.");
-        }
-        char[][] srcChars = new char[src.length][];
-        int[] srcCharsOff = new int[src.length];
-        int numChars = packetLength/2;
-        char[] repairChars = new char[numChars];
-        for (int i=0;i<srcChars.length;i++) {
-            srcChars[i] = new char[numChars];
-            Util.arraycopy(src[i], srcOff[i], srcChars[i], 0, packetLength);
-            srcCharsOff[i] = 0;
+        encodeStriped(src,srcOff,repair,repairOff,index,packetLength);
+    }
+
+    protected void decode(byte[][] pkts, int[] pktsOff, int[] index, 
+                          int packetLength, boolean inOrder,
+                          DecodeScratch scratch) {
+        checkAlignment(packetLength);
+        if (!inOrder) {
+            shuffle(pkts, pktsOff, index, k);
         }
+        decodeStriped(pkts,pktsOff,index,packetLength,scratch);
+    }
 
+    /**
+     * Direct buffers are coded in place the same way as byte[]'s.
+     */
+    protected void encode(ByteBuffer[] src, int[] srcOff, ByteBuffer[] repair,
+                          int[] repairOff, int[] index, int packetLength) {
+        encodeStriped(src,srcOff,repair,repairOff,index,packetLength);
+    }
+
+    protected void decode(ByteBuffer[] pkts, int[] pktsOff, int[] index,
+                          int packetLength) {
+        decode(pkts,pktsOff,index,packetLength,null);
+    }
+
+    protected void decode(ByteBuffer[] pkts, int[] pktsOff, int[] index,
+                          int packetLength, DecodeScratch scratch) {
+        decodeStriped(pkts,pktsOff,index,packetLength,scratch);
+    }
+
+    /**
+     * The multiply-adds are done on char[]'s, which is much faster than
+     * assembling the big endian symbols from the bytes in the inner loop.
+     * Rather than converting whole packets, which for large k and
+     * packetLength is many MB of garbage per call, only one stripe of one
+     * source packet and the output stripes of a group of repair packets
+     * are held as chars.  Each source stripe is converted once per group
+     * of blockRows repair packets, so the conversion is a small fraction
+     * of the work.  Like decodeStriped() the arrays come from the thread's
+     * DecodeScratch, so an encode allocates nothing.
+     *
+     * @param src byte[]'s or ByteBuffers.
+     * @param repair byte[]'s or ByteBuffers, the same type as src.
+     */
+    private void encodeStriped(Object[] src, int[] srcOff, Object[] repair,
+                               int[] repairOff, int[] index,
+                               int packetLength) {
+        checkAlignment(packetLength);
+        DecodeScratch scratch = DecodeScratch.get();
+        int[] rows = scratch.rows(repair.length);
+        int numRows = 0;
         for (int i=0;i<repair.length;i++) {
             if (index[i] < k) { // < k, systematic so direct copy.
-                System.arraycopy(src[index[i]],srcOff[index[i]],repair[i],
-                                 repairOff[i], packetLength);
+                copyPacket(src[index[i]],srcOff[index[i]],repair[i],
+                           repairOff[i],packetLength);
             } else {
-                encode(srcChars,srcCharsOff,repairChars,0,index[i],numChars);
-                Util.arraycopy(repairChars,0,repair[i],repairOff[i],
-                               packetLength);
+                rows[numRows++] = i;
+            }
+        }
+        if (numRows == 0) {
+            return;
+        }
+
+        int numChars = packetLength/2;
+        int group = Math.min(blockRows,numRows);
+        int stripe = Math.min(blockStripe/2,numChars);
+        char[] srcChars = scratch.stripe(stripe);
+        char[] repairChars = scratch.stripes(group*stripe);
+        char[] table = scratch.table();
+        int[] rowPos = scratch.columns(group);
+        char[] rowScratch = encMatrix == null ? scratch.matrix(group*k) : null;
+        for (int off=0;off<numChars;off+=stripe) {
+            int len = Math.min(stripe,numChars-off);
+            for (int g=0;g<numRows;g+=group) {
+                int gEnd = Math.min(numRows,g+group);
+                char[] m = encodeRows(index,rows,g,gEnd,rowPos,rowScratch);
+                Util.bzero(repairChars,0,group*stripe);
+                for (int i=0;i<k;i++) {
+                    load(src[i],srcOff[i]+2*off,srcChars,len);
+                    for (int r=g;r<gEnd;r++) {
+                        addMul(repairChars,(r-g)*stripe,srcChars,0,
+                               m[rowPos[r-g]+i],table,len);
+                    }
+                }
+                for (int r=g;r<gEnd;r++) {
+                    store(repairChars,(r-g)*stripe,repair[rows[r]],
+                          repairOff[rows[r]]+2*off,len);
+                }
             }
         }
     }
 
     /**
-     * ASSERT: index >= k && index < n
+     * Decodes the shuffled packets in place, a stripe at a time like
+     * encodeStriped().  The packets being rebuilt are also inputs, so all
+     * of them have to be finished for a stripe before it can be written
+     * back, which is why the stripe shrinks as the number of missing
+     * packets grows.  The stripes come from the scratch, the thread's if
+     * it is null.
      */
-    protected void encode(char[][] src, int[] srcOff, char[] repair, 
-                          int repairOff, int index, int numChars) {
-        int pos = index*k;
-        Util.bzero(repair,repairOff,numChars);
-        for (int i=0; i<k ; i++) {
-            fecMath.addMul(repair,repairOff,src[i],srcOff[i],
-                           encMatrix[pos+i],numChars);
+    private void decodeStriped(Object[] pkts, int[] pktsOff, int[] index,
+                               int packetLength, DecodeScratch scratch) {
+        checkAlignment(packetLength);
+        if (!hasRepairPackets(index)) {
+            return;
         }
-    }
-    
-    protected void decode(byte[][] pkts, int[] pktsOff, int[] index, 
-                          int packetLength, boolean inOrder) {          
-        if (packetLength % 2 != 0) {
-            throw new IllegalArgumentException("For 16 bit codes, buffers "+
-                                               "must be 16 bit aligned.");
+        if (scratch == null) {
+            scratch = DecodeScratch.get();
         }
+        // Row r is the decode matrix row of missing packet rows[r].
+        char[] decMatrix = DecodeMatrixCache.getDefault().
+            getReducedDecodeMatrix(fecMath,encodeMatrix,index,scratch);
 
-        if (!inOrder) {
-            shuffle(pkts, pktsOff, index, k);
+        int[] rows = scratch.rows(k);
+        int numRows = 0;
+        for (int row=0;row<k;row++) {
+            if (index[row] >= k) {
+                rows[numRows++] = row;
+            }
         }
 
-        char[][] pktsChars = new char[pkts.length][];
-        int[] pktsCharsOff = new int[pkts.length];
         int numChars = packetLength/2;
-        for (int i=0;i<pktsChars.length;i++) {
-            pktsChars[i] = new char[numChars];
-            Util.arraycopy(pkts[i], pktsOff[i], pktsChars[i], 0, packetLength);
-            pktsCharsOff[i] = 0;
+        // Never so short that building the multiply tables dominates.
+        int stripe = Math.max(Math.min(FECMath.MUL_TABLE16_MIN_LEN,numChars),
+                              Math.min(Math.min(blockStripe/2,numChars),
+                                       blockRows*blockStripe/2/numRows));
+        char[] pktChars = scratch.stripe(stripe);
+        char[] rowChars = scratch.stripes(numRows*stripe);
+        char[] table = scratch.table();
+        for (int off=0;off<numChars;off+=stripe) {
+            int len = Math.min(stripe,numChars-off);
+            Util.bzero(rowChars,0,numRows*stripe);
+            for (int col=0;col<k;col++) {
+                load(pkts[col],pktsOff[col]+2*off,pktChars,len);
+                for (int r=0;r<numRows;r++) {
+                    addMul(rowChars,r*stripe,pktChars,0,
+                           decMatrix[r*k+col],table,len);
+                }
+            }
+            for (int r=0;r<numRows;r++) {
+                store(rowChars,r*stripe,pkts[rows[r]],
+                      pktsOff[rows[r]]+2*off,len);
+            }
+        }
+
+        for (int r=0;r<numRows;r++) {
+            index[rows[r]] = rows[r];
         }
+    }
 
-        char[][] result = decode(pktsChars, pktsCharsOff, index, numChars);
+    /**
+     * addMul() computes dst[] = dst[] + c * src[] for the char[] stripes
+     * that all of the coding goes through.  Long stripes use the split
+     * table from FECMath.mulTable16(), built in <code>table</code>, a
+     * scratch array of FECMath.MUL_TABLE16_SIZE chars.  Subclasses with a
+     * faster kernel only need to override this.
+     */
+    protected void addMul(char[] dst, int dstPos, char[] src, int srcPos,
+                          char c, char[] table, int len) {
+        // nop, optimize
+        if (c == 0) {
+            return;
+        }
+        if (len < FECMath.MUL_TABLE16_MIN_LEN) {
+            fecMath.addMul(dst,dstPos,src,srcPos,c,len);
+        } else {
+            fecMath.mulTable16(c,table);
+            fecMath.addMul16(dst,dstPos,src,srcPos,table,len);
+        }
+    }
 
-        for (int i=0;i<result.length;i++) {
-            if (result[i] != null) {
-                Util.arraycopy(result[i], 0, pkts[i], pktsOff[i], 
-                               packetLength);
-                index[i] = i;
+    /**
+     * Read numChars big endian symbols at pos of a byte[] or ByteBuffer.
+     */
+    private static void load(Object pkt, int pos, char[] dst, int numChars) {
+        if (pkt instanceof byte[]) {
+            Util.arraycopy((byte[]) pkt,pos,dst,0,2*numChars);
+        } else {
+            ByteBuffer b = (ByteBuffer) pkt;
+            for (int i=0;i<numChars;i++, pos+=2) {
+                dst[i] = (char) (((b.get(pos) & 0xFF) << 8) | 
+                                 (b.get(pos+1) & 0xFF));
             }
         }
     }
 
-    protected char[][] decode(char[][] pkts, int[] pktsOff, int[] index, 
-                          int numChars) {
-
-        char[] decMatrix = fecMath.createDecodeMatrix(encMatrix,index,k,n);
-        
-        // do the actual decoding
-        char[][] tmpPkts = new char[k][];
-        for (int row=0; row<k; row++) {
-            if (index[row] >= k) {
-                tmpPkts[row] = new char[numChars];
-                for (int col=0 ; col<k ; col++) {
-                    fecMath.addMul(tmpPkts[row],0,pkts[col],pktsOff[col], 
-                                   decMatrix[row*k + col], numChars);
-                }
+    /**
+     * Write numChars symbols big endian at pos of a byte[] or ByteBuffer.
+     */
+    private static void store(char[] src, int srcPos, Object pkt, int pos,
+                              int numChars) {
+        if (pkt instanceof byte[]) {
+            Util.arraycopy(src,srcPos,(byte[]) pkt,pos,2*numChars);
+        } else {
+            ByteBuffer b = (ByteBuffer) pkt;
+            for (int i=srcPos, lim=srcPos+numChars;i<lim;i++, pos+=2) {
+                b.put(pos,(byte) (src[i] >> 8));
+                b.put(pos+1,(byte) src[i]);
             }
         }
+    }
 
-        return tmpPkts;
+    private static void copyPacket(Object src, int srcPos, Object dst,
+                                   int dstPos, int len) {
+        if (src instanceof byte[]) {
+            System.arraycopy(src,srcPos,dst,dstPos,len);
+        } else {
+            copy((ByteBuffer) src,srcPos,(ByteBuffer) dst,dstPos,len);
+        }
     }
-    
+
+    private static void checkAlignment(int packetLength) {
+        if (packetLength % 2 != 0) {
+            throw new IllegalArgumentException("For 16 bit codes, buffers "+
+                                               "must be 16 bit aligned.");
+        }
+    }
+
+    protected int getStripeAlignment() {
+        return 2;
+    }
+
+    public IncrementalDecoder createIncrementalDecoder(int packetLength) {
+        return new IncrementalDecoder(this,fecMath,packetLength);
+    }
+
     public String toString() {
         return new String("Pure16Code[k="+k+",n="+n+"]");
     }
@@ -1,5 +1,7 @@
 package com.onionnetworks.fec;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import com.onionnetworks.util.Util;
 import com.onionnetworks.util.Buffer;
 /**
@@ -18,16 +20,73 @@ public class PureCode extends FECCode {
     // Keeping this around because it amuses me.
     public static final int FEC_MAGIC = 0xFECC0DEC;
     protected static final FECMath fecMath = new FECMath(8);
+    // The n*k encoding matrix, null if the code is too large to keep it
+    // or it is mapped from the MatrixStore.
     protected char[] encMatrix;
+    protected EncodeMatrix encodeMatrix;
+
+    /**
+     * encode() computes blockRows repair packets together, a stripe of
+     * blockStripe bytes at a time.  That way each stripe of the source
+     * packets is streamed from memory once per group of blockRows repair
+     * packets rather than once per repair packet, while the output stripes
+     * stay in the cache.  blockRows = 1 computes one packet at a time.
+     * These can be set with the properties
+     * "com.onionnetworks.fec.encodeblockrows" and
+     * "com.onionnetworks.fec.encodeblockstripe".
+     */
+    protected static int blockRows = Math.max
+        (1,Integer.getInteger("com.onionnetworks.fec.encodeblockrows",
+                              16).intValue());
+    protected static int blockStripe = Math.max
+        (2,Integer.getInteger("com.onionnetworks.fec.encodeblockstripe",
+                              4096).intValue() & ~1);
+
+    /**
+     * decode() rebuilds the missing packets a stripe at a time, writing
+     * each stripe into place once all of them are done, see
+     * decodeStripe().  Stripes are never shorter than this many bytes so
+     * that the per call overhead of addMul() stays small.
+     */
+    protected static final int MIN_DECODE_STRIPE = 256;
+
+    /**
+     * Codes whose encoding matrix has more than maxEncodeMatrix entries
+     * don't build it, the rows are generated by an EncodeMatrix as they
+     * are needed.  A 16 bit code with k = n = 65536 would otherwise need
+     * 8GB for it.  This can be set with the property
+     * "com.onionnetworks.fec.maxencodematrix".
+     */
+    protected static int maxEncodeMatrix = Integer.getInteger
+        ("com.onionnetworks.fec.maxencodematrix",4*1024*1024).intValue();
     
     //create a new encoder. This contains n,k and the encoding matrix.
     public PureCode(int k, int n) {
-        this(k,n,fecMath.createEncodeMatrix(k,n));
+        this(k,n,new EncodeMatrix(fecMath,k,n));
     }
 
     public PureCode(int k, int n, char[] encMatrix) {
+        this(k,n,new EncodeMatrix(k,n,encMatrix));
+    }
+
+    /**
+     * A generated encodeMatrix small enough to keep is mapped from the
+     * MatrixStore if there is one, so that it is shared with other
+     * processes, or else built on the heap.
+     */
+    protected PureCode(int k, int n, EncodeMatrix encodeMatrix) {
         super(k,n);
-        this.encMatrix = encMatrix;
+        if (!encodeMatrix.isMaterialized() &&
+            (long) n*k <= maxEncodeMatrix) {
+            MatrixStore store = MatrixStore.getDefault();
+            CharBuffer stored = store == null ? null :
+                store.getEncodeMatrix(encodeMatrix.fecMath,k,n);
+            encodeMatrix = stored != null ?
+                new EncodeMatrix(k,n,stored) :
+                new EncodeMatrix(k,n,encodeMatrix.toArray());
+        }
+        this.encodeMatrix = encodeMatrix;
+        this.encMatrix = encodeMatrix.matrix;
     }
 
     /**
@@ -37,8 +96,37 @@ public class PureCode extends FECCode {
      */
     protected void encode(byte[][] src, int[] srcOff, byte[][] repair, 
                           int[] repairOff, int[] index, int packetLength) {
+        DecodeScratch scratch = DecodeScratch.get();
+        int[] rows = scratch.rows(repair.length);
+        int numRows = 0;
         for (int i=0;i<repair.length;i++) {
-            encode(src,srcOff,repair[i],repairOff[i],index[i],packetLength);
+            if (index[i] < k) { // < k, systematic so direct copy.
+                System.arraycopy(src[index[i]],srcOff[index[i]],repair[i],
+                                 repairOff[i],packetLength);
+            } else {
+                Util.bzero(repair[i],repairOff[i],packetLength);
+                rows[numRows++] = i;
+            }
+        }
+
+        int group = blockRows;
+        int[] rowPos = scratch.columns(group);
+        char[] rowScratch = encMatrix == null ? scratch.matrix(group*k) : null;
+        for (int off=0;off<packetLength;off+=blockStripe) {
+            int len = Math.min(blockStripe,packetLength-off);
+            for (int g=0;g<numRows;g+=group) {
+                int gEnd = Math.min(numRows,g+group);
+                char[] m = encodeRows(index,rows,g,gEnd,rowPos,rowScratch);
+                // Each source stripe is read once for the whole group.
+                for (int i=0;i<k;i++) {
+                    for (int r=g;r<gEnd;r++) {
+                        int row = rows[r];
+                        addMul(repair[row],repairOff[row]+off,src[i],
+                               srcOff[i]+off,
+                               (byte) m[rowPos[r-g]+i],len);
+                    }
+                }
+            }
         }
     }
 
@@ -49,17 +137,30 @@ public class PureCode extends FECCode {
             System.arraycopy(src[index],srcOff[index],repair,repairOff,
                              packetLength);
         } else { // index >= k && index < n
-            int pos = index*k;
+            char[] row = new char[k];
+            encodeMatrix.getRow(index,row,0);
             Util.bzero(repair,repairOff,packetLength);
             for (int i=0; i<k ; i++) {
-                fecMath.addMul(repair,repairOff,src[i],srcOff[i],
-                                   (byte) encMatrix[pos+i],packetLength);
+                addMul(repair,repairOff,src[i],srcOff[i],
+                       (byte) row[i],packetLength);
             }
         } 
     }
     
     protected void decode(byte[][] pkts, int[] pktsOff, int[] index, 
-                          int packetLength, boolean shuffled) {                
+                          int packetLength, boolean shuffled) {
+        decode(pkts,pktsOff,index,packetLength,shuffled,null);
+    }
+
+    /**
+     * The shuffled packets are decoded in place a stripe at a time.  The
+     * stripes of the missing packets are built in the scratch and copied
+     * into place, so nothing is allocated once the scratch is large enough
+     * and the decode matrix is cached.
+     */
+    protected void decode(byte[][] pkts, int[] pktsOff, int[] index, 
+                          int packetLength, boolean shuffled,
+                          DecodeScratch scratch) {
         // This may be the second time shuffle has been called, if so
         // this is ok because it will quickly determine that things are in
         // order.  The previous shuffles may have been necessary to keep
@@ -68,31 +169,214 @@ public class PureCode extends FECCode {
             shuffle(pkts, pktsOff, index, k);
         }
 
-        char[] decMatrix = fecMath.createDecodeMatrix(encMatrix,index,k,n);
+        if (!hasRepairPackets(index)) {
+            return;
+        }
+        if (scratch == null) {
+            scratch = DecodeScratch.get();
+        }
+        // Only the rows for the missing packets, see
+        // FECMath.createReducedDecodeMatrix().
+        char[] decMatrix = DecodeMatrixCache.getDefault().
+            getReducedDecodeMatrix(fecMath,encodeMatrix,index,scratch);
+        // Row r is the decode matrix row of missing packet rows[r].
+        int[] rows = scratch.rows(k);
+        int numRows = 0;
+        for (int row=0;row<k;row++) {
+            if (index[row] >= k) {
+                rows[numRows++] = row;
+            }
+        }
+        int stripe = decodeStripe(numRows,packetLength);
+        byte[] tmp = scratch.block(numRows*stripe);
         
         // do the actual decoding..
-        byte[][] tmpPkts = new byte[k][];
-        for (int row=0; row<k; row++) {
+        for (int off=0;off<packetLength;off+=stripe) {
+            int len = Math.min(stripe,packetLength-off);
+            Util.bzero(tmp,0,numRows*stripe);
+            // Each packet stripe is read once for all of the missing rows.
+            for (int col=0;col<k;col++) {
+                for (int r=0;r<numRows;r++) {
+                    addMul(tmp,r*stripe,pkts[col],pktsOff[col]+off,
+                           (byte) decMatrix[r*k+col],len);
+                }
+            }
+            // The missing packets' buffers hold repair packets that later
+            // stripes still read, but only beyond this one.
+            for (int r=0;r<numRows;r++) {
+                System.arraycopy(tmp,r*stripe,pkts[rows[r]],
+                                 pktsOff[rows[r]]+off,len);
+            }
+        }
+
+        for (int r=0;r<numRows;r++) {
+            index[rows[r]] = rows[r];
+        }
+    }
+    
+    /**
+     * The same blocked encode as for byte[]'s, reading and writing the
+     * buffers in place.
+     */
+    protected void encode(ByteBuffer[] src, int[] srcOff, ByteBuffer[] repair,
+                          int[] repairOff, int[] index, int packetLength) {
+        DecodeScratch scratch = DecodeScratch.get();
+        int[] rows = scratch.rows(repair.length);
+        int numRows = 0;
+        for (int i=0;i<repair.length;i++) {
+            if (index[i] < k) { // < k, systematic so direct copy.
+                copy(src[index[i]],srcOff[index[i]],repair[i],repairOff[i],
+                     packetLength);
+            } else {
+                bzero(repair[i],repairOff[i],packetLength);
+                rows[numRows++] = i;
+            }
+        }
+
+        int group = blockRows;
+        int[] rowPos = scratch.columns(group);
+        char[] rowScratch = encMatrix == null ? scratch.matrix(group*k) : null;
+        for (int off=0;off<packetLength;off+=blockStripe) {
+            int len = Math.min(blockStripe,packetLength-off);
+            for (int g=0;g<numRows;g+=group) {
+                int gEnd = Math.min(numRows,g+group);
+                char[] m = encodeRows(index,rows,g,gEnd,rowPos,rowScratch);
+                for (int i=0;i<k;i++) {
+                    for (int r=g;r<gEnd;r++) {
+                        int row = rows[r];
+                        addMul(repair[row],repairOff[row]+off,src[i],
+                               srcOff[i]+off,
+                               (byte) m[rowPos[r-g]+i],len);
+                    }
+                }
+            }
+        }
+    }
+
+    protected void decode(ByteBuffer[] pkts, int[] pktsOff, int[] index,
+                          int packetLength) {
+        decode(pkts,pktsOff,index,packetLength,null);
+    }
+
+    protected void decode(ByteBuffer[] pkts, int[] pktsOff, int[] index,
+                          int packetLength, DecodeScratch scratch) {
+        if (!hasRepairPackets(index)) {
+            return;
+        }
+        if (scratch == null) {
+            scratch = DecodeScratch.get();
+        }
+        char[] decMatrix = DecodeMatrixCache.getDefault().
+            getReducedDecodeMatrix(fecMath,encodeMatrix,index,scratch);
+
+        int[] rows = scratch.rows(k);
+        int numRows = 0;
+        for (int row=0;row<k;row++) {
             if (index[row] >= k) {
-                tmpPkts[row] = new byte[packetLength];
-                for (int col=0 ; col<k ; col++) {
-                    fecMath.addMul(tmpPkts[row],0,pkts[col],pktsOff[col], 
-                                   (byte) decMatrix[row*k + col],
-                                   packetLength);
+                rows[numRows++] = row;
+            }
+        }
+        // The stripes are read out of the buffers into byte[]'s so that
+        // this uses the same addMul() as byte[] packets and allocates
+        // nothing, unlike wrapping or duplicating buffers.
+        int stripe = decodeStripe(numRows,packetLength);
+        byte[] pktBytes = scratch.packet(stripe);
+        byte[] tmp = scratch.block(numRows*stripe);
+
+        for (int off=0;off<packetLength;off+=stripe) {
+            int len = Math.min(stripe,packetLength-off);
+            Util.bzero(tmp,0,numRows*stripe);
+            for (int col=0;col<k;col++) {
+                ByteBuffer b = pkts[col];
+                for (int i=0, pos=pktsOff[col]+off;i<len;i++, pos++) {
+                    pktBytes[i] = b.get(pos);
+                }
+                for (int r=0;r<numRows;r++) {
+                    addMul(tmp,r*stripe,pktBytes,0,
+                           (byte) decMatrix[r*k+col],len);
+                }
+            }
+            for (int r=0;r<numRows;r++) {
+                ByteBuffer b = pkts[rows[r]];
+                for (int i=r*stripe, pos=pktsOff[rows[r]]+off, lim=i+len;
+                     i<lim;i++, pos++) {
+                    b.put(pos,tmp[i]);
                 }
             }
         }
 
-        // move pkts to their final destination
-        for (int row=0;row < k;row++) {
-            if (index[row] >= k) { // only copy those actually decoded.
-                System.arraycopy(tmpPkts[row],0, pkts[row],pktsOff[row],
-                                 packetLength);
-                index[row] = row;
+        for (int r=0;r<numRows;r++) {
+            index[rows[r]] = rows[r];
+        }
+    }
+
+    /**
+     * @return The stripe length for decoding numRows missing packets.  The
+     * stripes of all of them together take about as much room as the
+     * output stripes of an encode group, so the memory decode() needs on
+     * top of the packets is O(numRows * stripe) rather than
+     * O(numRows * packetLength).
+     */
+    protected static int decodeStripe(int numRows, int packetLength) {
+        return Math.max(Math.min(MIN_DECODE_STRIPE,packetLength),
+                        Math.min(Math.min(blockStripe,packetLength),
+                                 blockRows*blockStripe/numRows));
+    }
+
+    /**
+     * Find the encoding matrix rows of the repair packets index[rows[r]],
+     * g <= r < gEnd.  Row r is at rowPos[r-g] of the returned array, which
+     * is encMatrix itself, or for codes that don't keep it
+     * <code>scratch</code> with the rows generated into it.
+     */
+    protected final char[] encodeRows(int[] index, int[] rows, int g,
+                                      int gEnd, int[] rowPos,
+                                      char[] scratch) {
+        if (encMatrix != null) {
+            for (int r=g;r<gEnd;r++) {
+                rowPos[r-g] = index[rows[r]]*k;
             }
+            return encMatrix;
         }
+        for (int r=g;r<gEnd;r++) {
+            rowPos[r-g] = (r-g)*k;
+            encodeMatrix.getRow(index[rows[r]],scratch,(r-g)*k);
+        }
+        return scratch;
     }
-    
+
+    /**
+     * addMul() computes dst[] = dst[] + c * src[].  All of the encoding and
+     * decoding work of this code goes through this method, so subclasses
+     * that provide a faster kernel (SIMD, word-at-a-time, etc.) only need
+     * to override it.  The default uses the table driven FECMath loop.
+     */
+    protected void addMul(byte[] dst, int dstPos, byte[] src, int srcPos,
+                          byte c, int len) {
+        fecMath.addMul(dst,dstPos,src,srcPos,c,len);
+    }
+
+    /**
+     * addMul() for ByteBuffers at absolute positions, used to code direct
+     * buffers in place.
+     */
+    protected void addMul(ByteBuffer dst, int dstPos, ByteBuffer src,
+                          int srcPos, byte c, int len) {
+        // nop, optimize
+        if (c == 0) {
+            return;
+        }
+        char[] gf_mulc = fecMath.gf_mul_table[c & 0xff];
+        int lim = dstPos + len;
+        for (int i=dstPos, j=srcPos; i<lim; i++, j++) {
+            dst.put(i,(byte) (dst.get(i) ^ gf_mulc[src.get(j) & 0xff]));
+        }
+    }
+
+    public IncrementalDecoder createIncrementalDecoder(int packetLength) {
+        return new IncrementalDecoder(this,fecMath,packetLength);
+    }
+
     public String toString() {
         return new String("PureCode[k="+k+",n="+n+"]");
     }
@@ -0,0 +1,354 @@
+package com.onionnetworks.fec.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.*;
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.util.Buffer;
+import com.onionnetworks.util.RangeSet;
+
+/**
+ * This class is the receiving end of an FECOutputStream.  Packets are
+ * passed to write() in any order, from any thread, and the original
+ * stream is read back in order through the InputStream or the
+ * ReadableByteChannel interface.
+ *
+ * The indexes that have arrived for a segment are tracked in a RangeSet,
+ * duplicates are ignored.  A segment is decoded, on the thread that
+ * passes in the packet, as soon as any k distinct packets of it have
+ * arrived.  Source packets don't wait for that: once all of the bytes
+ * before a source packet have been read it can be read as well, so a
+ * segment without losses is never decoded at all.
+ *
+ * Each segment only holds k packets.  A repair packet is stored in the
+ * place of a missing source packet, moved if that source packet turns up
+ * after all, and not stored at all once the segment can be decoded.
+ * Segments are freed as soon as they have been read.
+ *
+ * Reads block until data is available.  They return EOF once the length
+ * of the stream has been read, which must be given to the constructor or
+ * setLength(), as the last segment is padded.
+ */
+public class FECInputStream extends InputStream
+    implements ReadableByteChannel, PacketSink {
+
+    protected FECCode code;
+    protected int k, n;
+    protected int packetLength;
+    protected int segmentSize;
+    protected long length = -1;
+
+    // Integer -> Segment, for the segments that have not been read yet.
+    protected HashMap segments = new HashMap();
+    protected int readSegment;
+    protected int readPos;
+    protected long position;
+    protected IOException failure;
+    protected boolean closed;
+
+    /**
+     * The length will have to be given with setLength().
+     */
+    public FECInputStream(FECCode code, int packetLength) {
+        this(code,packetLength,-1);
+    }
+
+    /**
+     * @param length The length of the stream, see
+     * FECOutputStream.getLength(), or -1 if it isn't known yet.
+     */
+    public FECInputStream(FECCode code, int packetLength, long length) {
+        if (packetLength < 1) {
+            throw new IllegalArgumentException("packetLength < 1: "+
+                                               packetLength);
+        }
+        if ((long) code.getK() * packetLength > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segments larger than 2GB");
+        }
+        this.code = code;
+        this.k = code.getK();
+        this.n = code.getN();
+        this.packetLength = packetLength;
+        this.segmentSize = k*packetLength;
+        this.length = length;
+    }
+
+    public synchronized void setLength(long length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("length < 0: "+length);
+        }
+        this.length = length;
+        notifyAll();
+    }
+
+    public synchronized long getLength() {
+        return length;
+    }
+
+    /**
+     * Receive a packet, decoding its segment if this makes it complete.
+     * Packets of segments that have already been read or decoded, and of
+     * segments past the end of the stream, are ignored.
+     */
+    public void write(FECPacket p) throws IOException {
+        int index = p.getIndex();
+        Buffer data = p.getData();
+        if (index < 0 || index >= n) {
+            throw new IllegalArgumentException("index < 0 or >= n: "+p);
+        }
+        if (data.len != packetLength) {
+            throw new IllegalArgumentException("packetLength != "+
+                                               packetLength+": "+p);
+        }
+
+        Segment seg;
+        synchronized (this) {
+            checkOpen();
+            int s = p.getSegment();
+            if (s < readSegment ||
+                (length >= 0 && (long) s*segmentSize >= length)) {
+                return;
+            }
+            Integer key = Integer.valueOf(s);
+            seg = (Segment) segments.get(key);
+            if (seg == null) {
+                seg = new Segment();
+                segments.put(key,seg);
+            }
+            if (!seg.add(index,data)) {
+                return;
+            }
+        }
+
+        // Decode outside of the lock, the source packets stay readable.
+        Buffer[] pkts = new Buffer[k];
+        int[] pktIndex = new int[k];
+        for (int i=0;i<k;i++) {
+            pkts[i] = new Buffer(seg.data,i*packetLength,packetLength);
+            pktIndex[i] = seg.slot[i];
+        }
+        IOException e = null;
+        try {
+            code.decode(pkts,pktIndex);
+        } catch (RuntimeException ex) {
+            e = new IOException("Decoding segment failed: "+ex);
+            e.initCause(ex);
+        }
+        synchronized (this) {
+            seg.decoding = false;
+            seg.decoded = e == null;
+            if (e != null && failure == null) {
+                failure = e;
+            }
+            notifyAll();
+        }
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b,0,1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    public synchronized int read(byte[] b, int off, int len)
+        throws IOException {
+        if (off < 0 || len < 0 || off+len > b.length) {
+            throw new IndexOutOfBoundsException("b.length="+b.length+
+                                                ",off="+off+",len="+len);
+        }
+        if (len == 0) {
+            return 0;
+        }
+        int c = await();
+        if (c == -1) {
+            return -1;
+        }
+        c = Math.min(c,len);
+        System.arraycopy(current().data,readPos,b,off,c);
+        advance(c);
+        return c;
+    }
+
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        int c = await();
+        if (c == -1) {
+            return -1;
+        }
+        c = Math.min(c,dst.remaining());
+        dst.put(current().data,readPos,c);
+        advance(c);
+        return c;
+    }
+
+    public synchronized int available() throws IOException {
+        checkOpen();
+        int c = readable();
+        return c == -1 ? 0 : c;
+    }
+
+    public synchronized boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Drop all of the buffered segments, blocked reads throw an
+     * IOException.
+     */
+    public synchronized void close() {
+        closed = true;
+        segments.clear();
+        notifyAll();
+    }
+
+    /**
+     * Block until there is something to read.
+     *
+     * @return The number of bytes that can be read from the current
+     * segment, or -1 at the end of the stream.
+     */
+    private int await() throws IOException {
+        int c;
+        while (true) {
+            checkOpen();
+            if ((c = readable()) != 0) {
+                return c;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private int readable() {
+        if (length >= 0 && position >= length) {
+            return -1;
+        }
+        Segment seg = current();
+        if (seg == null) {
+            return 0;
+        }
+        int end;
+        if (seg.decoded) {
+            end = segmentSize;
+        } else {
+            // The run of source packets starting at the read position.
+            int i = readPos/packetLength;
+            while (i < k && seg.slot[i] == i) {
+                i++;
+            }
+            end = i*packetLength;
+        }
+        long c = end - readPos;
+        if (length >= 0) {
+            c = Math.min(c,length-position);
+        }
+        return (int) c;
+    }
+
+    private Segment current() {
+        return (Segment) segments.get(Integer.valueOf(readSegment));
+    }
+
+    private void advance(int c) {
+        readPos += c;
+        position += c;
+        if (readPos == segmentSize) {
+            segments.remove(Integer.valueOf(readSegment));
+            readSegment++;
+            readPos = 0;
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * The packets of one segment, each stored at the position of a source
+     * packet.
+     */
+    protected class Segment {
+
+        protected byte[] data = new byte[segmentSize];
+        // The index of the packet in each position, -1 if empty.
+        protected int[] slot = new int[k];
+        protected RangeSet received = new RangeSet();
+        protected int held;
+        protected boolean decoding, decoded;
+
+        protected Segment() {
+            Arrays.fill(slot,-1);
+        }
+
+        /**
+         * @return true if the segment must now be decoded.
+         */
+        protected boolean add(int index, Buffer buf) {
+            if (decoding || decoded || received.contains(index)) {
+                return false;
+            }
+            received.add(index);
+            if (index < k) {
+                if (slot[index] != -1) {
+                    // A repair packet is in the way, and since held < k
+                    // there is another free position for it.
+                    int free = freeSlot();
+                    System.arraycopy(data,index*packetLength,
+                                     data,free*packetLength,packetLength);
+                    slot[free] = slot[index];
+                }
+                put(index,index,buf);
+                // Let the reader know, this may extend its run.
+                FECInputStream.this.notifyAll();
+            } else {
+                put(freeSlot(),index,buf);
+            }
+
+            if (held < k) {
+                return false;
+            }
+            for (int i=0;i<k;i++) {
+                if (slot[i] != i) {
+                    decoding = true;
+                    return true;
+                }
+            }
+            decoded = true;
+            return false;
+        }
+
+        private void put(int pos, int index, Buffer buf) {
+            System.arraycopy(buf.b,buf.off,data,pos*packetLength,
+                             packetLength);
+            slot[pos] = index;
+            held++;
+        }
+
+        /**
+         * Source packets usually arrive in order and before the repair
+         * packets, so the last free position is the least likely to be
+         * needed by one of them later.
+         */
+        private int freeSlot() {
+            for (int i=k-1;i>=0;i--) {
+                if (slot[i] == -1) {
+                    return i;
+                }
+            }
+            throw new IllegalStateException("No free slot");
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package com.onionnetworks.fec.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.util.Buffer;
+import com.onionnetworks.util.Util;
+
+/**
+ * This class FEC encodes a stream of unbounded length.  The bytes written
+ * to it are cut into segments of k source packets of packetLength bytes,
+ * and every full segment is encoded and passed to a PacketSink as its k
+ * source packets followed by its repair packets, each tagged with its
+ * segment number and index.  The last segment is padded with zeros, so
+ * the receiver must be told the length of the stream, see getLength().
+ *
+ * At most two segments are held in memory.  If an Executor is given, the
+ * packets of a segment are passed to the sink on it, while the next
+ * segment is filled and encoded on the writing thread.  Without one
+ * everything happens on the writing thread and a single segment is used.
+ *
+ * Like other OutputStreams this class is meant to be used by one thread
+ * at a time.
+ */
+public class FECOutputStream extends OutputStream {
+
+    private static ExecutorService defaultExecutor;
+
+    protected FECCode code;
+    protected int k;
+    protected int packetLength;
+    protected int[] repairIndex;
+    protected PacketSink sink;
+    protected Executor executor;
+
+    // The segment being filled, a free one and the one being emitted.
+    protected Segment filling, spare, emitting;
+    protected int segmentNum;
+    protected long length;
+    protected volatile IOException failure;
+    protected boolean closed;
+
+    /**
+     * Encode into all n-k repair packets of every segment and emit them
+     * on a shared pool of daemon threads.
+     */
+    public FECOutputStream(FECCode code, int packetLength, PacketSink sink) {
+        this(code,packetLength,allRepairIndexes(code),sink,
+             getDefaultExecutor());
+    }
+
+    /**
+     * @param repairIndex The indexes, between k and n, of the repair
+     * packets to produce for every segment.
+     * @param executor The Executor to pass the packets to the sink on, or
+     * null to do it on the writing thread.
+     */
+    public FECOutputStream(FECCode code, int packetLength, int[] repairIndex,
+                           PacketSink sink, Executor executor) {
+        if (packetLength < 1) {
+            throw new IllegalArgumentException("packetLength < 1: "+
+                                               packetLength);
+        }
+        this.k = code.getK();
+        for (int i=0;i<repairIndex.length;i++) {
+            if (repairIndex[i] < k || repairIndex[i] >= code.getN()) {
+                throw new IllegalArgumentException
+                    ("Repair index out of range: "+repairIndex[i]);
+            }
+        }
+        if ((long) k * packetLength > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segments larger than 2GB");
+        }
+        this.code = code;
+        this.packetLength = packetLength;
+        this.repairIndex = (int[]) repairIndex.clone();
+        this.sink = sink;
+        this.executor = executor;
+        this.filling = new Segment();
+    }
+
+    public void write(int b) throws IOException {
+        checkOpen();
+        filling.data[filling.fill++] = (byte) b;
+        length++;
+        if (filling.fill == filling.data.length) {
+            finishSegment();
+        }
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off+len > b.length) {
+            throw new IndexOutOfBoundsException("b.length="+b.length+
+                                                ",off="+off+",len="+len);
+        }
+        checkOpen();
+        while (len > 0) {
+            int c = Math.min(len,filling.data.length-filling.fill);
+            System.arraycopy(b,off,filling.data,filling.fill,c);
+            filling.fill += c;
+            length += c;
+            off += c;
+            len -= c;
+            if (filling.fill == filling.data.length) {
+                finishSegment();
+            }
+        }
+    }
+
+    /**
+     * Read <code>in</code> until EOF straight into the segment buffers.
+     *
+     * @return The number of bytes read.
+     */
+    public long transferFrom(InputStream in) throws IOException {
+        checkOpen();
+        long total = 0;
+        int c;
+        while ((c = in.read(filling.data,filling.fill,
+                            filling.data.length-filling.fill)) != -1) {
+            filling.fill += c;
+            length += c;
+            total += c;
+            if (filling.fill == filling.data.length) {
+                finishSegment();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Read <code>ch</code> until EOF straight into the segment buffers.
+     *
+     * @return The number of bytes read.
+     */
+    public long transferFrom(ReadableByteChannel ch) throws IOException {
+        checkOpen();
+        long total = 0;
+        int c;
+        while ((c = ch.read(ByteBuffer.wrap
+                            (filling.data,filling.fill,
+                             filling.data.length-filling.fill))) != -1) {
+            filling.fill += c;
+            length += c;
+            total += c;
+            if (filling.fill == filling.data.length) {
+                finishSegment();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Wait until the packets of all of the full segments have been passed
+     * to the sink.  A partial segment can't be flushed, as all packets of
+     * a segment but the last must be full.
+     */
+    public void flush() throws IOException {
+        checkOpen();
+        waitForEmit();
+    }
+
+    /**
+     * Pad, encode and emit the last partial segment, if any, and wait
+     * until all of the packets have been passed to the sink.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (filling.fill > 0 && failure == null) {
+                Util.bzero(filling.data,filling.fill,
+                           filling.data.length-filling.fill);
+                filling.fill = filling.data.length;
+                finishSegment();
+            }
+            waitForEmit();
+        } finally {
+            closed = true;
+            filling = null;
+            spare = null;
+        }
+    }
+
+    /**
+     * @return The number of bytes written so far, without the padding of
+     * the last segment.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return The number of segments started so far.
+     */
+    public int getSegmentCount() {
+        if (filling != null && filling.fill > 0) {
+            return segmentNum+1;
+        }
+        return segmentNum;
+    }
+
+    /**
+     * Encode the full segment on this thread, then hand it over to be
+     * emitted once the previous one is done.
+     */
+    protected void finishSegment() throws IOException {
+        final Segment seg = filling;
+        seg.num = segmentNum++;
+        if (repairIndex.length > 0) {
+            code.encode(seg.src,seg.repair,repairIndex);
+        }
+        // Wait for the previous segment, its buffers become the spare.
+        waitForEmit();
+        if (executor == null) {
+            emit(seg);
+            seg.fill = 0;
+            return;
+        }
+
+        synchronized (this) {
+            emitting = seg;
+        }
+        filling = spare != null ? spare : new Segment();
+        spare = null;
+        try {
+            executor.execute(new Runnable() {
+                    public void run() {
+                        IOException e = null;
+                        try {
+                            emit(seg);
+                        } catch (IOException ex) {
+                            e = ex;
+                        } catch (RuntimeException ex) {
+                            e = wrap(ex);
+                        } catch (Error ex) {
+                            e = wrap(ex);
+                        }
+                        done(seg,e);
+                    }
+                });
+        } catch (RuntimeException e) {
+            // e.g. RejectedExecutionException
+            done(seg,null);
+            emit(seg);
+        }
+    }
+
+    protected void emit(Segment seg) throws IOException {
+        for (int i=0;i<k;i++) {
+            sink.write(new FECPacket(seg.num,i,seg.src[i]));
+        }
+        for (int i=0;i<repairIndex.length;i++) {
+            sink.write(new FECPacket(seg.num,repairIndex[i],seg.repair[i]));
+        }
+    }
+
+    private synchronized void done(Segment seg, IOException e) {
+        if (e != null && failure == null) {
+            failure = e;
+        }
+        seg.fill = 0;
+        spare = seg;
+        emitting = null;
+        notifyAll();
+    }
+
+    private synchronized void waitForEmit() throws IOException {
+        boolean interrupted = false;
+        while (emitting != null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            IOException e = failure;
+            throw e;
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static IOException wrap(Throwable t) {
+        IOException e = new IOException("PacketSink failed: "+t);
+        e.initCause(t);
+        return e;
+    }
+
+    private static int[] allRepairIndexes(FECCode code) {
+        int[] result = new int[code.getN()-code.getK()];
+        for (int i=0;i<result.length;i++) {
+            result[i] = code.getK()+i;
+        }
+        return result;
+    }
+
+    private static synchronized Executor getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newCachedThreadPool
+                (new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r,"FECOutputStream");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * The source and repair packets of one segment, each a single byte[].
+     */
+    protected class Segment {
+
+        protected int num;
+        protected int fill;
+        protected byte[] data = new byte[k*packetLength];
+        protected Buffer[] src = new Buffer[k];
+        protected Buffer[] repair = new Buffer[repairIndex.length];
+
+        protected Segment() {
+            for (int i=0;i<k;i++) {
+                src[i] = new Buffer(data,i*packetLength,packetLength);
+            }
+            byte[] r = new byte[repair.length*packetLength];
+            for (int i=0;i<repair.length;i++) {
+                repair[i] = new Buffer(r,i*packetLength,packetLength);
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.onionnetworks.fec.io;
+
+import com.onionnetworks.util.Buffer;
+
+/**
+ * A single source or repair packet of a stream that has been cut into
+ * segments of k source packets, see FECOutputStream.  A packet is
+ * identified by the number of its segment, counting from 0, and its index
+ * within that segment, which is < k for source packets and between k and
+ * n for repair packets.
+ */
+public class FECPacket {
+
+    protected int segment;
+    protected int index;
+    protected Buffer data;
+
+    public FECPacket(int segment, int index, Buffer data) {
+        if (segment < 0 || index < 0) {
+            throw new IllegalArgumentException("segment="+segment+
+                                               ",index="+index);
+        }
+        this.segment = segment;
+        this.index = index;
+        this.data = data;
+    }
+
+    public int getSegment() {
+        return segment;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return The packetLength bytes of the packet.
+     */
+    public Buffer getData() {
+        return data;
+    }
+
+    public String toString() {
+        return "FECPacket[segment="+segment+",index="+index+",len="+
+            data.len+"]";
+    }
+}
@@ -0,0 +1,18 @@
+package com.onionnetworks.fec.io;
+
+import java.io.IOException;
+
+/**
+ * Receives the packets produced by an FECOutputStream, e.g. to send them
+ * over the network.
+ */
+public interface PacketSink {
+
+    /**
+     * Packets are passed in order, segment by segment, and never from
+     * more than one thread at a time.  The packet data is only valid
+     * during the call, the buffers are reused for later segments, so it
+     * must be copied if it is needed afterwards.
+     */
+    public void write(FECPacket p) throws IOException;
+}
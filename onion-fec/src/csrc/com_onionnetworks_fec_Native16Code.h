@@ -23,6 +23,54 @@ JNIEXPORT void JNICALL Java_com_onionnetworks_fec_Native16Code_nativeEncode
 JNIEXPORT void JNICALL Java_com_onionnetworks_fec_Native16Code_nativeDecode
   (JNIEnv *, jobject, jobjectArray, jintArray, jintArray, jint, jint);
 
+/*
+ * Class:     com_onionnetworks_fec_Native16Code
+ * Method:    nativeBuildDecodeMatrix
+ * Signature: ([II)[C
+ */
+JNIEXPORT jcharArray JNICALL Java_com_onionnetworks_fec_Native16Code_nativeBuildDecodeMatrix
+  (JNIEnv *, jobject, jintArray, jint);
+
+/*
+ * Class:     com_onionnetworks_fec_Native16Code
+ * Method:    nativeDecodeWithMatrix
+ * Signature: ([[B[I[I[CII)V
+ */
+JNIEXPORT void JNICALL Java_com_onionnetworks_fec_Native16Code_nativeDecodeWithMatrix
+  (JNIEnv *, jobject, jobjectArray, jintArray, jintArray, jcharArray, jint, jint);
+
+/*
+ * Class:     com_onionnetworks_fec_Native16Code
+ * Method:    nativeEncodeDirect
+ * Signature: ([Ljava/nio/ByteBuffer;[I[I[Ljava/nio/ByteBuffer;[III)V
+ */
+JNIEXPORT void JNICALL Java_com_onionnetworks_fec_Native16Code_nativeEncodeDirect
+  (JNIEnv *, jobject, jobjectArray, jintArray, jintArray, jobjectArray, jintArray, jint, jint);
+
+/*
+ * Class:     com_onionnetworks_fec_Native16Code
+ * Method:    nativeDecodeDirect
+ * Signature: ([Ljava/nio/ByteBuffer;[I[I[CII)V
+ */
+JNIEXPORT void JNICALL Java_com_onionnetworks_fec_Native16Code_nativeDecodeDirect
+  (JNIEnv *, jobject, jobjectArray, jintArray, jintArray, jcharArray, jint, jint);
+
+/*
+ * Class:     com_onionnetworks_fec_Native16Code
+ * Method:    nativeEncodeSegments
+ * Signature: ([[B[I[[B[I[III)V
+ */
+JNIEXPORT void JNICALL Java_com_onionnetworks_fec_Native16Code_nativeEncodeSegments
+  (JNIEnv *, jobject, jobjectArray, jintArray, jobjectArray, jintArray, jintArray, jint, jint);
+
+/*
+ * Class:     com_onionnetworks_fec_Native16Code
+ * Method:    nativeDecodeSegments
+ * Signature: ([[B[I[[I[[CII)V
+ */
+JNIEXPORT void JNICALL Java_com_onionnetworks_fec_Native16Code_nativeDecodeSegments
+  (JNIEnv *, jobject, jobjectArray, jintArray, jobjectArray, jobjectArray, jint, jint);
+
 /*
  * Class:     com_onionnetworks_fec_Native16Code
  * Method:    nativeNewFEC
@@ -31,6 +79,14 @@ JNIEXPORT void JNICALL Java_com_onionnetworks_fec_Native16Code_nativeDecode
 JNIEXPORT jlong JNICALL Java_com_onionnetworks_fec_Native16Code_nativeNewFEC
   (JNIEnv *, jobject, jint, jint);
 
+/*
+ * Class:     com_onionnetworks_fec_Native16Code
+ * Method:    nativeNewFECWithMatrix
+ * Signature: (II[C)J
+ */
+JNIEXPORT jlong JNICALL Java_com_onionnetworks_fec_Native16Code_nativeNewFECWithMatrix
+  (JNIEnv *, jobject, jint, jint, jcharArray);
+
 /*
  * Class:     com_onionnetworks_fec_Native16Code
  * Method:    nativeFreeFEC
@@ -39,6 +95,22 @@ JNIEXPORT jlong JNICALL Java_com_onionnetworks_fec_Native16Code_nativeNewFEC
 JNIEXPORT void JNICALL Java_com_onionnetworks_fec_Native16Code_nativeFreeFEC
   (JNIEnv *, jobject);
 
+/*
+ * Class:     com_onionnetworks_fec_Native16Code
+ * Method:    nativeSetMaxCritical
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_com_onionnetworks_fec_Native16Code_nativeSetMaxCritical
+  (JNIEnv *, jclass, jint);
+
+/*
+ * Class:     com_onionnetworks_fec_Native16Code
+ * Method:    nativeMaxCriticalNanos
+ * Signature: (Z)J
+ */
+JNIEXPORT jlong JNICALL Java_com_onionnetworks_fec_Native16Code_nativeMaxCriticalNanos
+  (JNIEnv *, jclass, jboolean);
+
 /*
  * Class:     com_onionnetworks_fec_Native16Code
  * Method:    initFEC
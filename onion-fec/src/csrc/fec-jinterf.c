@@ -9,6 +9,11 @@
 #ifndef __FreeBSD__
 #include <malloc.h>
 #endif
+#ifdef _WIN32
+#include <windows.h>
+#else
+#include <time.h>
+#endif
 
 #ifndef GF_BITS
 #error GF_BITS NOT DEFINED!
@@ -63,6 +68,112 @@ JNIEXPORT void JNICALL FEC_METHOD(initFEC)
     codeField = (*env)->GetFieldID(env, clz, "code", "J");
 }
 
+/*
+ * The arrays are pinned with GetPrimitiveArrayCritical, which blocks the
+ * GC until they are released. So that large packets don't block it for
+ * long, they are coded a stripe at a time with the arrays released in
+ * between, each stripe being at most max_critical bytes of the k source
+ * packets (0 codes whole packets). Stripes are a multiple of
+ * STRIPE_ALIGN bytes, which keeps them 16 bit aligned and lets the
+ * addmul kernels run at full width.
+ */
+#define DEFAULT_MAX_CRITICAL (1024*1024)
+#define STRIPE_ALIGN 64
+
+static jint max_critical = DEFAULT_MAX_CRITICAL;
+
+/* The longest any critical region has lasted, in nanoseconds. */
+static jlong max_critical_nanos = 0;
+
+static jlong
+now_nanos(void) {
+#ifdef _WIN32
+    LARGE_INTEGER count, freq;
+    QueryPerformanceCounter(&count);
+    QueryPerformanceFrequency(&freq);
+    return (jlong)(count.QuadPart * (1000000000.0 / freq.QuadPart));
+#else
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    return (jlong)t.tv_sec * 1000000000 + t.tv_nsec;
+#endif
+}
+
+/*
+ * Record the length of a critical region that began at start. Threads
+ * may race here, which at worst loses one of two simultaneous maxima.
+ */
+static void
+critical_done(jlong start) {
+    jlong nanos = now_nanos() - start;
+    if (nanos > max_critical_nanos) {
+        max_critical_nanos = nanos;
+    }
+}
+
+/*
+ * @return The number of bytes of each packet to code per critical region.
+ */
+static int
+stripe_length(int k, int packetLength) {
+    int stripe;
+    if (max_critical <= 0) {
+        return packetLength;
+    }
+    stripe = max_critical / k;
+    stripe -= stripe % STRIPE_ALIGN;
+    if (stripe < STRIPE_ALIGN) {
+        stripe = STRIPE_ALIGN;
+    }
+    return stripe < packetLength ? stripe : packetLength;
+}
+
+/*
+ * Release num arrays pinned by pin_arrays().
+ */
+static void
+release_arrays(JNIEnv *env, jbyteArray *arrs, jint *offs, int off,
+    jbyte **ptrs, int num, jint mode) {
+    int i;
+    for (i=0; i<num; i++) {
+        (*env)->ReleasePrimitiveArrayCritical(env, arrs[i], ptrs[i] - offs[i] - off, mode);
+    }
+}
+
+/*
+ * Pin num arrays, pointing ptrs[i] at byte offs[i]+off of arrs[i].
+ *
+ * @return 0, with none of them pinned, if one couldn't be.
+ */
+static int
+pin_arrays(JNIEnv *env, jbyteArray *arrs, jint *offs, int off,
+    jbyte **ptrs, int num) {
+    int i;
+    for (i=0; i<num; i++) {
+        ptrs[i] = (*env)->GetPrimitiveArrayCritical(env, arrs[i], 0);
+        if (ptrs[i] == NULL) {
+            release_arrays(env, arrs, offs, off, ptrs, i, JNI_ABORT);
+            return 0; /* exception OutOfMemoryError */
+        }
+        ptrs[i] += offs[i] + off;
+    }
+    return 1;
+}
+
+JNIEXPORT void JNICALL FEC_METHOD(nativeSetMaxCritical)
+  (JNIEnv * env, jclass clz, jint bytes) {
+    max_critical = bytes;
+}
+
+JNIEXPORT jlong JNICALL FEC_METHOD(nativeMaxCriticalNanos)
+  (JNIEnv * env, jclass clz, jboolean reset) {
+    jlong result = max_critical_nanos;
+    if (reset) {
+        max_critical_nanos = 0;
+    }
+    return result;
+}
+
 /*
  * encode
  *
@@ -79,22 +190,23 @@ JNIEXPORT void JNICALL FEC_METHOD(nativeEncode)
     jbyte **inarr, **retarr;
     jobject result = NULL;
 
-    int i, numRet;
+    int i, numRet, off, len, stripe;
+    jlong start;
     jlong code = (*env)->GetLongField(env, obj, codeField);
 
+    numRet = (*env)->GetArrayLength(env, ret);
+
     /* allocate memory for the arrays */
     malloc_or_oom(nativeEncode_cleanup_inArr, inArr, jbyteArray, k, env);
-    malloc_or_oom(nativeEncode_cleanup_retArr, retArr, jbyteArray, k, env);
+    malloc_or_oom(nativeEncode_cleanup_retArr, retArr, jbyteArray, numRet, env);
     malloc_or_oom(nativeEncode_cleanup_inarr, inarr, jbyte *, k, env);
-    malloc_or_oom(nativeEncode_cleanup_retarr, retarr, jbyte *, k, env);
-
-    numRet = (*env)->GetArrayLength(env, ret);
+    malloc_or_oom(nativeEncode_cleanup_retarr, retarr, jbyte *, numRet, env);
 
     /* PushLocalFrame reserves enough space for local variable references
      *
      * - 3 calls to GetIntArrayElements
-     * - k calls to GetPrimitiveArrayCritical
-     * - numRet calls to GetPrimitiveArrayCritical
+     * - k calls to GetObjectArrayElement
+     * - numRet calls to GetObjectArrayElement
      *
      * TODO: these calls might be pointless; see the corresponding comment in
      * decode() for details. Leaving in for now because I'm not a JNI expert.
@@ -115,38 +227,37 @@ JNIEXPORT void JNICALL FEC_METHOD(nativeEncode)
     for (i=0; i<k; i++) {
         inArr[i] = ((*env)->GetObjectArrayElement(env, src, i));
         nonnull_or_oom(nativeEncode_cleanup, inArr[i]);
-
-        inarr[i] = (*env)->GetPrimitiveArrayCritical(env, inArr[i], 0);
-        nonnull_or_oom(nativeEncode_cleanup, inarr[i]);
-
-        inarr[i] += localSrcOff[i];
     }
 
     for (i=0; i<numRet; i++) {
         retArr[i] = ((*env)->GetObjectArrayElement(env, ret, i));
         nonnull_or_oom(nativeEncode_cleanup, retArr[i]);
-
-        retarr[i] = (*env)->GetPrimitiveArrayCritical(env, retArr[i], 0);
-        nonnull_or_oom(nativeEncode_cleanup, retarr[i]);
-
-        retarr[i] += localRetOff[i];
     }
 
-    for (i=0; i<numRet; i++) {
-        fec_encode((void *)(uintptr_t)code, (gf **)(uintptr_t)inarr, (void *)(uintptr_t)retarr[i],
-                   (int)localIndex[i], (int)packetLength);
-    }
-
-    for (i=0; i<k; i++) {
-        inarr[i] -= localSrcOff[i];
-        (*env)->ReleasePrimitiveArrayCritical(env, inArr[i], inarr[i], 0);
-    }
-
-    for (i=0; i<numRet; i++) {
-        retarr[i] -= localRetOff[i];
-        (*env)->ReleasePrimitiveArrayCritical(env, retArr[i], retarr[i], 0);
+    stripe = stripe_length(k, packetLength);
+    for (off=0; off<packetLength; off+=stripe) {
+        len = packetLength - off < stripe ? packetLength - off : stripe;
+
+        start = now_nanos();
+        if (!pin_arrays(env, inArr, localSrcOff, off, inarr, k)) {
+            goto nativeEncode_release;
+        }
+        if (!pin_arrays(env, retArr, localRetOff, off, retarr, numRet)) {
+            release_arrays(env, inArr, localSrcOff, off, inarr, k, JNI_ABORT);
+            goto nativeEncode_release;
+        }
+
+        for (i=0; i<numRet; i++) {
+            fec_encode((void *)(uintptr_t)code, (gf **)(uintptr_t)inarr, (void *)(uintptr_t)retarr[i],
+                       (int)localIndex[i], len);
+        }
+
+        release_arrays(env, retArr, localRetOff, off, retarr, numRet, 0);
+        release_arrays(env, inArr, localSrcOff, off, inarr, k, JNI_ABORT);
+        critical_done(start);
     }
 
+    nativeEncode_release:
     (*env)->ReleaseIntArrayElements(env, srcOff, localSrcOff, 0);
     (*env)->ReleaseIntArrayElements(env, index, localIndex, 0);
     (*env)->ReleaseIntArrayElements(env, retOff, localRetOff, 0);
@@ -168,27 +279,33 @@ JNIEXPORT void JNICALL FEC_METHOD(nativeEncode)
  * WORK!  It is very difficult to make Java aware that the pointers have
  * been shuffled in the encode() call, so we must pre-shuffle the data
  * so that encode doesn't move any pointers around.
+ *
+ * @param m_dec The decode matrix to use, or NULL to have fec_decode()
+ * build it.
  */
-JNIEXPORT void JNICALL FEC_METHOD(nativeDecode)
-    (JNIEnv *env, jobject obj, jobjectArray data, jintArray dataOff,
-     jintArray whichdata, jint k, jint packetLength) {
+static void
+decode(JNIEnv *env, jobject obj, jobjectArray data, jintArray dataOff,
+     jintArray whichdata, gf *m_dec, jint k, jint packetLength) {
 
-    jint *localWhich, *localDataOff;
+    jint *localWhich, *localDataOff, *stripeWhich;
     jbyteArray *inArr;
     jbyte **inarr;
     jobject result = NULL;
+    gf *built = NULL;
 
-    int i;
+    int i, off, len, stripe;
+    jlong start;
     jlong code = (*env)->GetLongField(env, obj, codeField);
 
     /* allocate memory for the arrays */
     malloc_or_oom(nativeDecode_cleanup_inArr, inArr, jbyteArray, k, env);
     malloc_or_oom(nativeDecode_cleanup_inarr, inarr, jbyte *, k, env);
+    malloc_or_oom(nativeDecode_cleanup_which, stripeWhich, jint, k, env);
 
     /* PushLocalFrame reserves enough space for local variable references
      *
      * - 2 calls to GetIntArrayElements
-     * - k calls to GetPrimitiveArrayCritical
+     * - k calls to GetObjectArrayElement
      *
      * TODO: the JNI documentation at
      *
@@ -222,21 +339,39 @@ JNIEXPORT void JNICALL FEC_METHOD(nativeDecode)
     for (i=0; i<k; i++) {
         inArr[i] = ((*env)->GetObjectArrayElement(env, data, i));
         nonnull_or_oom(nativeDecode_cleanup, inArr[i]);
+    }
 
-        inarr[i] = (*env)->GetPrimitiveArrayCritical(env, inArr[i], 0);
-        nonnull_or_oom(nativeDecode_cleanup, inarr[i]);
-
-        inarr[i] += localDataOff[i];
+    /* The matrix only depends on the indexes, so it is built unpinned. */
+    if (m_dec == NULL) {
+        m_dec = built = fec_build_decode_matrix((struct fec_parms *)(intptr_t)code, (int *)(intptr_t)localWhich);
+        if (m_dec == NULL) {
+            (*env)->ThrowNew(env, (*env)->FindClass(env, "java/lang/IllegalArgumentException"), "unable to build decode matrix");
+            goto nativeDecode_release;
+        }
     }
 
-    fec_decode((struct fec_parms *)(intptr_t)code, (gf **)(intptr_t)inarr, (int *)(intptr_t)localWhich, (int)packetLength);
+    stripe = stripe_length(k, packetLength);
+    for (off=0; off<packetLength; off+=stripe) {
+        len = packetLength - off < stripe ? packetLength - off : stripe;
 
+        start = now_nanos();
+        if (!pin_arrays(env, inArr, localDataOff, off, inarr, k)) {
+            goto nativeDecode_release;
+        }
+
+        /* fec_decode_matrix() marks the rebuilt packets, so every stripe
+         * gets a fresh copy of the indexes. */
+        memcpy(stripeWhich, localWhich, k * sizeof(jint));
+        fec_decode_matrix((struct fec_parms *)(intptr_t)code, (gf **)(intptr_t)inarr, (int *)(intptr_t)stripeWhich, m_dec, len);
+
+        release_arrays(env, inArr, localDataOff, off, inarr, k, 0);
+        critical_done(start);
+    }
     for (i=0; i<k; i++) {
-        inarr[i] -= localDataOff[i];
-        (*env)->SetObjectArrayElement(env, data, i, inArr[i]);
-        (*env)->ReleasePrimitiveArrayCritical(env, inArr[i], inarr[i], 0);
+        localWhich[i] = i;
     }
 
+    nativeDecode_release:
     (*env)->ReleaseIntArrayElements(env, whichdata, localWhich, 0);
     (*env)->ReleaseIntArrayElements(env, dataOff, localDataOff, 0);
 
@@ -245,17 +380,415 @@ JNIEXPORT void JNICALL FEC_METHOD(nativeDecode)
 
     /* free() may not be necessary. complements malloc() */
     nativeDecode_cleanup:
+    free(built);
+    free(stripeWhich); nativeDecode_cleanup_which:
     free(inarr); nativeDecode_cleanup_inarr:
     free(inArr); nativeDecode_cleanup_inArr:
     return;
 }
 
+JNIEXPORT void JNICALL FEC_METHOD(nativeDecode)
+    (JNIEnv *env, jobject obj, jobjectArray data, jintArray dataOff,
+     jintArray whichdata, jint k, jint packetLength) {
+    decode(env, obj, data, dataOff, whichdata, NULL, k, packetLength);
+}
+
+/*
+ * Like nativeDecode, but with a decode matrix previously returned by
+ * nativeBuildDecodeMatrix (or the equivalent pure Java one).
+ */
+JNIEXPORT void JNICALL FEC_METHOD(nativeDecodeWithMatrix)
+    (JNIEnv *env, jobject obj, jobjectArray data, jintArray dataOff,
+     jintArray whichdata, jcharArray matrix, jint k, jint packetLength) {
+
+    jchar *localMatrix;
+    gf *m_dec;
+    int i;
+
+    malloc_or_oom(nativeDecodeWithMatrix_cleanup_mdec, m_dec, gf, k*k, env);
+
+    localMatrix = (*env)->GetCharArrayElements(env, matrix, NULL);
+    nonnull_or_oom(nativeDecodeWithMatrix_cleanup, localMatrix);
+    for (i=0; i<k*k; i++) {
+        m_dec[i] = (gf)localMatrix[i];
+    }
+    (*env)->ReleaseCharArrayElements(env, matrix, localMatrix, JNI_ABORT);
+
+    decode(env, obj, data, dataOff, whichdata, m_dec, k, packetLength);
+
+    nativeDecodeWithMatrix_cleanup:
+    free(m_dec); nativeDecodeWithMatrix_cleanup_mdec:
+    return;
+}
+
+/*
+ * Build the decode matrix for the (already shuffled) indexes and return
+ * it as a char[] so that it can be cached on the Java side.
+ */
+JNIEXPORT jcharArray JNICALL FEC_METHOD(nativeBuildDecodeMatrix)
+    (JNIEnv *env, jobject obj, jintArray whichdata, jint k) {
+
+    jint *localWhich;
+    jchar *chars;
+    gf *m_dec;
+    jcharArray result = NULL;
+    int i;
+    jlong code = (*env)->GetLongField(env, obj, codeField);
+
+    localWhich = (*env)->GetIntArrayElements(env, whichdata, NULL);
+    nonnull_or_oom(nativeBuildDecodeMatrix_cleanup_which, localWhich);
+
+    m_dec = fec_build_decode_matrix((struct fec_parms *)(intptr_t)code, (int *)(intptr_t)localWhich);
+    (*env)->ReleaseIntArrayElements(env, whichdata, localWhich, JNI_ABORT);
+    if (m_dec == NULL) {
+        (*env)->ThrowNew(env, (*env)->FindClass(env, "java/lang/IllegalArgumentException"), "unable to build decode matrix");
+        goto nativeBuildDecodeMatrix_cleanup_which;
+    }
+
+    malloc_or_oom(nativeBuildDecodeMatrix_cleanup_mdec, chars, jchar, k*k, env);
+    for (i=0; i<k*k; i++) {
+        chars[i] = (jchar)m_dec[i];
+    }
+    result = (*env)->NewCharArray(env, k*k);
+    if (result != NULL) {
+        (*env)->SetCharArrayRegion(env, result, 0, k*k, chars);
+    }
+
+    free(chars);
+    nativeBuildDecodeMatrix_cleanup_mdec:
+    free(m_dec); nativeBuildDecodeMatrix_cleanup_which:
+    return result;
+}
+
+/*
+ * Fill addrs with the addresses of num direct ByteBuffers, each advanced
+ * by its offset. The Java side has already checked that the buffers are
+ * direct and big enough.
+ *
+ * @return 0 with an exception pending if a buffer has no address.
+ */
+static int
+direct_addresses(JNIEnv *env, jobjectArray bufs, jintArray offs, gf **addrs,
+    int num) {
+
+    jint *localOffs;
+    jobject buf;
+    jbyte *addr;
+    int i, ok = 1;
+
+    localOffs = (*env)->GetIntArrayElements(env, offs, NULL);
+    if (localOffs == NULL) {
+        return 0; /* exception OutOfMemoryError */
+    }
+    for (i=0; ok && i<num; i++) {
+        buf = (*env)->GetObjectArrayElement(env, bufs, i);
+        addr = buf == NULL ? NULL :
+            (jbyte *)(*env)->GetDirectBufferAddress(env, buf);
+        if (addr == NULL) {
+            (*env)->ThrowNew(env, (*env)->FindClass(env, "java/lang/IllegalArgumentException"), "not a direct buffer");
+            ok = 0;
+        } else {
+            addrs[i] = (gf *)(addr + localOffs[i]);
+        }
+        (*env)->DeleteLocalRef(env, buf);
+    }
+    (*env)->ReleaseIntArrayElements(env, offs, localOffs, JNI_ABORT);
+    return ok;
+}
+
+/*
+ * nativeEncode for direct ByteBuffers. The data is used in place, so
+ * nothing is copied or pinned and the GC is never blocked.
+ */
+JNIEXPORT void JNICALL FEC_METHOD(nativeEncodeDirect)
+  (JNIEnv *env, jobject obj, jobjectArray src, jintArray srcOff,
+    jintArray index, jobjectArray ret, jintArray retOff, jint k,
+    jint packetLength) {
+
+    gf **inarr, **retarr;
+    jint *localIndex;
+    int i, numRet;
+    jlong code = (*env)->GetLongField(env, obj, codeField);
+
+    numRet = (*env)->GetArrayLength(env, ret);
+
+    malloc_or_oom(nativeEncodeDirect_cleanup_inarr, inarr, gf *, k, env);
+    malloc_or_oom(nativeEncodeDirect_cleanup_retarr, retarr, gf *, numRet, env);
+
+    if (!direct_addresses(env, src, srcOff, inarr, k) ||
+        !direct_addresses(env, ret, retOff, retarr, numRet)) {
+        goto nativeEncodeDirect_cleanup;
+    }
+
+    localIndex = (*env)->GetIntArrayElements(env, index, NULL);
+    nonnull_or_oom(nativeEncodeDirect_cleanup, localIndex);
+
+    for (i=0; i<numRet; i++) {
+        fec_encode((void *)(uintptr_t)code, inarr, retarr[i],
+                   (int)localIndex[i], (int)packetLength);
+    }
+
+    (*env)->ReleaseIntArrayElements(env, index, localIndex, JNI_ABORT);
+
+    nativeEncodeDirect_cleanup:
+    free(retarr); nativeEncodeDirect_cleanup_retarr:
+    free(inarr); nativeEncodeDirect_cleanup_inarr:
+    return;
+}
+
+/*
+ * nativeDecodeWithMatrix for direct ByteBuffers, which must already be
+ * shuffled.
+ */
+JNIEXPORT void JNICALL FEC_METHOD(nativeDecodeDirect)
+    (JNIEnv *env, jobject obj, jobjectArray data, jintArray dataOff,
+     jintArray whichdata, jcharArray matrix, jint k, jint packetLength) {
+
+    jint *localWhich;
+    jchar *localMatrix;
+    gf **inarr;
+    gf *m_dec;
+    int i;
+    jlong code = (*env)->GetLongField(env, obj, codeField);
+
+    malloc_or_oom(nativeDecodeDirect_cleanup_mdec, m_dec, gf, k*k, env);
+    malloc_or_oom(nativeDecodeDirect_cleanup_inarr, inarr, gf *, k, env);
+
+    localMatrix = (*env)->GetCharArrayElements(env, matrix, NULL);
+    nonnull_or_oom(nativeDecodeDirect_cleanup, localMatrix);
+    for (i=0; i<k*k; i++) {
+        m_dec[i] = (gf)localMatrix[i];
+    }
+    (*env)->ReleaseCharArrayElements(env, matrix, localMatrix, JNI_ABORT);
+
+    if (!direct_addresses(env, data, dataOff, inarr, k)) {
+        goto nativeDecodeDirect_cleanup;
+    }
+
+    localWhich = (*env)->GetIntArrayElements(env, whichdata, NULL);
+    nonnull_or_oom(nativeDecodeDirect_cleanup, localWhich);
+
+    fec_decode_matrix((struct fec_parms *)(intptr_t)code, inarr, (int *)(intptr_t)localWhich, m_dec, (int)packetLength);
+
+    (*env)->ReleaseIntArrayElements(env, whichdata, localWhich, 0);
+
+    nativeDecodeDirect_cleanup:
+    free(inarr); nativeDecodeDirect_cleanup_inarr:
+    free(m_dec); nativeDecodeDirect_cleanup_mdec:
+    return;
+}
+
+/*
+ * Encode a batch of segments, each being k source packets one after the
+ * other in src[s] from srcOff[s], into the index.length repair packets
+ * one after the other in repair[s] from repairOff[s]. Everything that is
+ * the same for all of the segments is fetched and allocated once, and
+ * only the two arrays of the segment being encoded are pinned, a stripe
+ * at a time. The Java side has checked that the segments fit in their
+ * arrays.
+ */
+JNIEXPORT void JNICALL FEC_METHOD(nativeEncodeSegments)
+  (JNIEnv *env, jobject obj, jobjectArray src, jintArray srcOff,
+    jobjectArray repair, jintArray repairOff, jintArray index, jint k,
+    jint packetLength) {
+
+    jint *localSrcOff, *localRepairOff, *localIndex;
+    jbyteArray srcArr, repairArr;
+    jbyte *srcBase, *repairBase;
+    gf **inarr;
+    int i, s, numSeg, numRet, off, len, stripe;
+    jlong start;
+    jlong code = (*env)->GetLongField(env, obj, codeField);
+
+    numSeg = (*env)->GetArrayLength(env, src);
+    numRet = (*env)->GetArrayLength(env, index);
+
+    malloc_or_oom(nativeEncodeSegments_cleanup_inarr, inarr, gf *, k, env);
+    malloc_or_oom(nativeEncodeSegments_cleanup_index, localIndex, jint, numRet, env);
+    malloc_or_oom(nativeEncodeSegments_cleanup_srcOff, localSrcOff, jint, numSeg, env);
+    malloc_or_oom(nativeEncodeSegments_cleanup_repairOff, localRepairOff, jint, numSeg, env);
+
+    (*env)->GetIntArrayRegion(env, index, 0, numRet, localIndex);
+    (*env)->GetIntArrayRegion(env, srcOff, 0, numSeg, localSrcOff);
+    (*env)->GetIntArrayRegion(env, repairOff, 0, numSeg, localRepairOff);
+    if ((*env)->ExceptionCheck(env)) {
+        goto nativeEncodeSegments_cleanup;
+    }
+
+    stripe = stripe_length(k, packetLength);
+    for (s=0; s<numSeg; s++) {
+        srcArr = (*env)->GetObjectArrayElement(env, src, s);
+        nonnull_or_oom(nativeEncodeSegments_cleanup, srcArr);
+        repairArr = (*env)->GetObjectArrayElement(env, repair, s);
+        nonnull_or_oom(nativeEncodeSegments_cleanup, repairArr);
+
+        for (off=0; off<packetLength; off+=stripe) {
+            len = packetLength - off < stripe ? packetLength - off : stripe;
+
+            start = now_nanos();
+            srcBase = (*env)->GetPrimitiveArrayCritical(env, srcArr, 0);
+            nonnull_or_oom(nativeEncodeSegments_cleanup, srcBase);
+            repairBase = (*env)->GetPrimitiveArrayCritical(env, repairArr, 0);
+            if (repairBase == NULL) {
+                (*env)->ReleasePrimitiveArrayCritical(env, srcArr, srcBase, JNI_ABORT);
+                goto nativeEncodeSegments_cleanup;
+            }
+
+            for (i=0; i<k; i++) {
+                inarr[i] = (gf *)(srcBase + localSrcOff[s] + i*packetLength + off);
+            }
+            for (i=0; i<numRet; i++) {
+                fec_encode((void *)(uintptr_t)code, inarr,
+                           (gf *)(repairBase + localRepairOff[s] + i*packetLength + off),
+                           (int)localIndex[i], len);
+            }
+
+            (*env)->ReleasePrimitiveArrayCritical(env, repairArr, repairBase, 0);
+            (*env)->ReleasePrimitiveArrayCritical(env, srcArr, srcBase, JNI_ABORT);
+            critical_done(start);
+        }
+
+        (*env)->DeleteLocalRef(env, repairArr);
+        (*env)->DeleteLocalRef(env, srcArr);
+    }
+
+    nativeEncodeSegments_cleanup:
+    free(localRepairOff); nativeEncodeSegments_cleanup_repairOff:
+    free(localSrcOff); nativeEncodeSegments_cleanup_srcOff:
+    free(localIndex); nativeEncodeSegments_cleanup_index:
+    free(inarr); nativeEncodeSegments_cleanup_inarr:
+    return;
+}
+
+/*
+ * Decode a batch of shuffled segments, each being k packets one after
+ * the other in data[s] from dataOff[s] with indexes index[s], using the
+ * decode matrix matrices[s]. Segments without a matrix have nothing to
+ * decode. The buffers for the indexes and the matrix are allocated once
+ * for the batch.
+ */
+JNIEXPORT void JNICALL FEC_METHOD(nativeDecodeSegments)
+    (JNIEnv *env, jobject obj, jobjectArray data, jintArray dataOff,
+     jobjectArray index, jobjectArray matrices, jint k, jint packetLength) {
+
+    jint *localDataOff, *localIndex, *stripeIndex;
+    jchar *localMatrix;
+    jintArray indexArr;
+    jcharArray matrixArr;
+    jbyteArray dataArr;
+    jbyte *dataBase;
+    gf **inarr;
+    gf *m_dec;
+    int i, s, numSeg, off, len, stripe;
+    jlong start;
+    jlong code = (*env)->GetLongField(env, obj, codeField);
+
+    numSeg = (*env)->GetArrayLength(env, data);
+
+    malloc_or_oom(nativeDecodeSegments_cleanup_inarr, inarr, gf *, k, env);
+    malloc_or_oom(nativeDecodeSegments_cleanup_mdec, m_dec, gf, k*k, env);
+    malloc_or_oom(nativeDecodeSegments_cleanup_matrix, localMatrix, jchar, k*k, env);
+    malloc_or_oom(nativeDecodeSegments_cleanup_index, localIndex, jint, k, env);
+    malloc_or_oom(nativeDecodeSegments_cleanup_stripeIndex, stripeIndex, jint, k, env);
+    malloc_or_oom(nativeDecodeSegments_cleanup_dataOff, localDataOff, jint, numSeg, env);
+
+    (*env)->GetIntArrayRegion(env, dataOff, 0, numSeg, localDataOff);
+    if ((*env)->ExceptionCheck(env)) {
+        goto nativeDecodeSegments_cleanup;
+    }
+
+    stripe = stripe_length(k, packetLength);
+    for (s=0; s<numSeg; s++) {
+        matrixArr = (*env)->GetObjectArrayElement(env, matrices, s);
+        if (matrixArr == NULL) {
+            continue; /* no repair packets */
+        }
+        (*env)->GetCharArrayRegion(env, matrixArr, 0, k*k, localMatrix);
+        (*env)->DeleteLocalRef(env, matrixArr);
+        indexArr = (*env)->GetObjectArrayElement(env, index, s);
+        nonnull_or_oom(nativeDecodeSegments_cleanup, indexArr);
+        (*env)->GetIntArrayRegion(env, indexArr, 0, k, localIndex);
+        dataArr = (*env)->GetObjectArrayElement(env, data, s);
+        nonnull_or_oom(nativeDecodeSegments_cleanup, dataArr);
+        if ((*env)->ExceptionCheck(env)) {
+            goto nativeDecodeSegments_cleanup;
+        }
+        for (i=0; i<k*k; i++) {
+            m_dec[i] = (gf)localMatrix[i];
+        }
+
+        for (off=0; off<packetLength; off+=stripe) {
+            len = packetLength - off < stripe ? packetLength - off : stripe;
+
+            start = now_nanos();
+            dataBase = (*env)->GetPrimitiveArrayCritical(env, dataArr, 0);
+            nonnull_or_oom(nativeDecodeSegments_cleanup, dataBase);
+            for (i=0; i<k; i++) {
+                inarr[i] = (gf *)(dataBase + localDataOff[s] + i*packetLength + off);
+            }
+            /* fec_decode_matrix() marks the rebuilt packets, so every
+             * stripe gets a fresh copy of the indexes. */
+            memcpy(stripeIndex, localIndex, k * sizeof(jint));
+            fec_decode_matrix((struct fec_parms *)(intptr_t)code, inarr, (int *)stripeIndex, m_dec, len);
+            (*env)->ReleasePrimitiveArrayCritical(env, dataArr, dataBase, 0);
+            critical_done(start);
+        }
+
+        /* the segment is now in order */
+        for (i=0; i<k; i++) {
+            localIndex[i] = i;
+        }
+        (*env)->SetIntArrayRegion(env, indexArr, 0, k, localIndex);
+        (*env)->DeleteLocalRef(env, dataArr);
+        (*env)->DeleteLocalRef(env, indexArr);
+    }
+
+    nativeDecodeSegments_cleanup:
+    free(localDataOff); nativeDecodeSegments_cleanup_dataOff:
+    free(stripeIndex); nativeDecodeSegments_cleanup_stripeIndex:
+    free(localIndex); nativeDecodeSegments_cleanup_index:
+    free(localMatrix); nativeDecodeSegments_cleanup_matrix:
+    free(m_dec); nativeDecodeSegments_cleanup_mdec:
+    free(inarr); nativeDecodeSegments_cleanup_inarr:
+    return;
+}
+
 JNIEXPORT jlong JNICALL FEC_METHOD(nativeNewFEC)
     (JNIEnv * env, jobject obj, jint k, jint n) {
     // uintptr_t is needed for systems where sizeof(void*) < sizeof(long)
     return (jlong)(uintptr_t)fec_new(k,n);
 }
 
+/*
+ * nativeNewFEC with the encoding matrix computed on the Java side, which
+ * is much faster than fec_new() for large codes and may come from the
+ * MatrixStore.
+ */
+JNIEXPORT jlong JNICALL FEC_METHOD(nativeNewFECWithMatrix)
+    (JNIEnv * env, jobject obj, jint k, jint n, jcharArray matrix) {
+
+    jchar *localMatrix;
+    gf *enc;
+    struct fec_parms *code = NULL;
+    int i;
+
+    malloc_or_oom(nativeNewFECWithMatrix_cleanup_enc, enc, gf, n*k, env);
+
+    localMatrix = (*env)->GetCharArrayElements(env, matrix, NULL);
+    nonnull_or_oom(nativeNewFECWithMatrix_cleanup, localMatrix);
+    for (i=0; i<n*k; i++) {
+        enc[i] = (gf)localMatrix[i];
+    }
+    (*env)->ReleaseCharArrayElements(env, matrix, localMatrix, JNI_ABORT);
+
+    code = fec_new_matrix(k,n,enc);
+
+    nativeNewFECWithMatrix_cleanup:
+    free(enc); nativeNewFECWithMatrix_cleanup_enc:
+    // uintptr_t is needed for systems where sizeof(void*) < sizeof(long)
+    return (jlong)(uintptr_t)code;
+}
+
 JNIEXPORT void JNICALL FEC_METHOD(nativeFreeFEC)
     (JNIEnv * env, jobject obj) {
     jlong code = (*env)->GetLongField(env, obj, codeField);
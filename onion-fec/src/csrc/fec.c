@@ -328,7 +328,7 @@ generate_gf(void)
     if (c != 0) addmul1(dst, src, c, sz)
 
 static void
-addmul1(gf *dst1, gf *src1, gf c, int sz)
+addmul1_scalar(gf *dst1, gf *src1, gf c, int sz)
 {
     USE_GF_MULC ;
     register gf *dst = dst1, *src = src1 ;
@@ -340,6 +340,422 @@ addmul1(gf *dst1, gf *src1, gf c, int sz)
     GF_ADDMULC( *dst , *src );
 }
 
+/*
+ * SIMD versions of addmul1() for x86, one of which init_addmul() picks
+ * from what cpuid reports when the library is initialized.  They all
+ * give exactly the same result as addmul1_scalar(), which also does the
+ * tail of the buffers.
+ *
+ * The pshufb kernels split each symbol into nibbles and look up the
+ * products of c with all 16 values of each nibble in 16 entry tables,
+ * 16, 32 or 64 bytes at a time.  The GFNI kernels use the fact that
+ * multiplying by c is linear over GF(2): gf2p8affineqb applies the 8x8
+ * bit matrix of that map to every byte, whatever the field polynomial.
+ * 16 bit symbols, in the host's byte order like everywhere else, are
+ * four nibbles for pshufb and a 2x2 block matrix of bytes for GFNI.
+ *
+ * The environment variable FEC_ADDMUL can name the kernel to use
+ * ("scalar", "ssse3", "avx2", "avx512bw", "gfni-avx2" or "gfni-avx512"),
+ * if the CPU supports it.  This is meant for testing.
+ */
+#if defined(__GNUC__) && (defined(__x86_64__) || defined(__i386__)) && \
+    (GF_BITS == 8 || GF_BITS == 16) && !defined(FEC_NO_SIMD)
+#define FEC_SIMD
+#endif
+
+#ifdef FEC_SIMD
+#include <immintrin.h>
+#include <cpuid.h>
+
+#define CPU_SSSE3       1
+#define CPU_AVX2        2
+#define CPU_AVX512BW    4
+#define CPU_GFNI        8
+
+#define NIBBLES (GF_BITS / 4)
+
+/*
+ * lo[n][x] and hi[n][x] are the low and high bytes of c times x in
+ * nibble n of a symbol.
+ */
+static void
+mul_nibbles(gf c, uint8_t lo[][16], uint8_t hi[][16])
+{
+    int n, x;
+
+    for (n = 0; n < NIBBLES; n++)
+    for (x = 0; x < 16; x++) {
+        gf p = gf_mul(c, x << (4*n));
+        lo[n][x] = (uint8_t) p;
+        hi[n][x] = (uint8_t) (p >> 8);
+    }
+}
+
+/*
+ * The matrix, as gf2p8affineqb takes it, of the map from byte "in" of a
+ * symbol to byte "out" of its product with c.  Row i, which gives bit i
+ * of the result, is byte 7-i.
+ */
+static uint64_t
+mul_matrix(gf c, int in, int out)
+{
+    uint64_t m = 0;
+    int i, j;
+
+    for (j = 0; j < 8; j++) {
+        gf p = gf_mul(c, 1 << (8*in + j));
+        for (i = 0; i < 8; i++)
+        if ((p >> (8*out + i)) & 1)
+            m |= (uint64_t) 1 << (8*(7 - i) + j);
+    }
+    return m;
+}
+
+#if (GF_BITS == 8)
+
+__attribute__((target("ssse3"))) static void
+addmul1_ssse3(gf *dst, gf *src, gf c, int sz)
+{
+    uint8_t lo[NIBBLES][16], hi[NIBBLES][16];
+    __m128i tl, th, mask = _mm_set1_epi8(0x0f);
+    int i;
+
+    mul_nibbles(c, lo, hi);
+    tl = _mm_loadu_si128((__m128i *) lo[0]);
+    th = _mm_loadu_si128((__m128i *) lo[1]);
+    for (i = 0; i + 16 <= sz; i += 16) {
+    __m128i s = _mm_loadu_si128((__m128i *) &src[i]);
+    __m128i d = _mm_loadu_si128((__m128i *) &dst[i]);
+    d = _mm_xor_si128(d, _mm_shuffle_epi8(tl, _mm_and_si128(s, mask)));
+    d = _mm_xor_si128(d, _mm_shuffle_epi8(th,
+        _mm_and_si128(_mm_srli_epi64(s, 4), mask)));
+    _mm_storeu_si128((__m128i *) &dst[i], d);
+    }
+    addmul1_scalar(dst + i, src + i, c, sz - i);
+}
+
+__attribute__((target("avx2"))) static void
+addmul1_avx2(gf *dst, gf *src, gf c, int sz)
+{
+    uint8_t lo[NIBBLES][16], hi[NIBBLES][16];
+    __m256i tl, th, mask = _mm256_set1_epi8(0x0f);
+    int i;
+
+    mul_nibbles(c, lo, hi);
+    tl = _mm256_broadcastsi128_si256(_mm_loadu_si128((__m128i *) lo[0]));
+    th = _mm256_broadcastsi128_si256(_mm_loadu_si128((__m128i *) lo[1]));
+    for (i = 0; i + 32 <= sz; i += 32) {
+    __m256i s = _mm256_loadu_si256((__m256i *) &src[i]);
+    __m256i d = _mm256_loadu_si256((__m256i *) &dst[i]);
+    d = _mm256_xor_si256(d, _mm256_shuffle_epi8(tl,
+        _mm256_and_si256(s, mask)));
+    d = _mm256_xor_si256(d, _mm256_shuffle_epi8(th,
+        _mm256_and_si256(_mm256_srli_epi64(s, 4), mask)));
+    _mm256_storeu_si256((__m256i *) &dst[i], d);
+    }
+    addmul1_scalar(dst + i, src + i, c, sz - i);
+}
+
+__attribute__((target("avx512f,avx512bw"))) static void
+addmul1_avx512bw(gf *dst, gf *src, gf c, int sz)
+{
+    uint8_t lo[NIBBLES][16], hi[NIBBLES][16];
+    __m512i tl, th, mask = _mm512_set1_epi8(0x0f);
+    int i;
+
+    mul_nibbles(c, lo, hi);
+    tl = _mm512_broadcast_i32x4(_mm_loadu_si128((__m128i *) lo[0]));
+    th = _mm512_broadcast_i32x4(_mm_loadu_si128((__m128i *) lo[1]));
+    for (i = 0; i + 64 <= sz; i += 64) {
+    __m512i s = _mm512_loadu_si512((void *) &src[i]);
+    __m512i d = _mm512_loadu_si512((void *) &dst[i]);
+    d = _mm512_xor_si512(d, _mm512_shuffle_epi8(tl,
+        _mm512_and_si512(s, mask)));
+    d = _mm512_xor_si512(d, _mm512_shuffle_epi8(th,
+        _mm512_and_si512(_mm512_srli_epi64(s, 4), mask)));
+    _mm512_storeu_si512((void *) &dst[i], d);
+    }
+    addmul1_scalar(dst + i, src + i, c, sz - i);
+}
+
+__attribute__((target("gfni,avx2"))) static void
+addmul1_gfni_avx2(gf *dst, gf *src, gf c, int sz)
+{
+    __m256i m = _mm256_set1_epi64x((long long) mul_matrix(c, 0, 0));
+    int i;
+
+    for (i = 0; i + 32 <= sz; i += 32) {
+    __m256i s = _mm256_loadu_si256((__m256i *) &src[i]);
+    __m256i d = _mm256_loadu_si256((__m256i *) &dst[i]);
+    d = _mm256_xor_si256(d, _mm256_gf2p8affine_epi64_epi8(s, m, 0));
+    _mm256_storeu_si256((__m256i *) &dst[i], d);
+    }
+    addmul1_scalar(dst + i, src + i, c, sz - i);
+}
+
+__attribute__((target("gfni,avx512f,avx512bw"))) static void
+addmul1_gfni_avx512(gf *dst, gf *src, gf c, int sz)
+{
+    __m512i m = _mm512_set1_epi64((long long) mul_matrix(c, 0, 0));
+    int i;
+
+    for (i = 0; i + 64 <= sz; i += 64) {
+    __m512i s = _mm512_loadu_si512((void *) &src[i]);
+    __m512i d = _mm512_loadu_si512((void *) &dst[i]);
+    d = _mm512_xor_si512(d, _mm512_gf2p8affine_epi64_epi8(s, m, 0));
+    _mm512_storeu_si512((void *) &dst[i], d);
+    }
+    addmul1_scalar(dst + i, src + i, c, sz - i);
+}
+
+#else    /* GF_BITS == 16 */
+
+/*
+ * Each nibble, moved to the low 4 bits of both bytes of its symbol,
+ * indexes the low byte table in the low byte and the high byte table in
+ * the high byte.  The other byte of each lookup is garbage, which is
+ * masked off once all four nibbles are summed.
+ */
+__attribute__((target("ssse3"))) static void
+addmul1_ssse3(gf *dst, gf *src, gf c, int sz)
+{
+    uint8_t lo[NIBBLES][16], hi[NIBBLES][16];
+    __m128i tl[NIBBLES], th[NIBBLES];
+    __m128i mask = _mm_set1_epi16(0x0f), low = _mm_set1_epi16(0xff);
+    int i, n;
+
+    mul_nibbles(c, lo, hi);
+    for (n = 0; n < NIBBLES; n++) {
+    tl[n] = _mm_loadu_si128((__m128i *) lo[n]);
+    th[n] = _mm_loadu_si128((__m128i *) hi[n]);
+    }
+    for (i = 0; i + 8 <= sz; i += 8) {
+    __m128i s = _mm_loadu_si128((__m128i *) &src[i]);
+    __m128i d = _mm_loadu_si128((__m128i *) &dst[i]);
+    __m128i al = _mm_setzero_si128(), ah = _mm_setzero_si128();
+    for (n = 0; n < NIBBLES; n++) {
+        __m128i x = _mm_and_si128(_mm_srl_epi16(s,
+            _mm_cvtsi32_si128(4*n)), mask);
+        x = _mm_or_si128(x, _mm_slli_epi16(x, 8));
+        al = _mm_xor_si128(al, _mm_shuffle_epi8(tl[n], x));
+        ah = _mm_xor_si128(ah, _mm_shuffle_epi8(th[n], x));
+    }
+    d = _mm_xor_si128(d, _mm_or_si128(_mm_and_si128(al, low),
+        _mm_andnot_si128(low, ah)));
+    _mm_storeu_si128((__m128i *) &dst[i], d);
+    }
+    addmul1_scalar(dst + i, src + i, c, sz - i);
+}
+
+__attribute__((target("avx2"))) static void
+addmul1_avx2(gf *dst, gf *src, gf c, int sz)
+{
+    uint8_t lo[NIBBLES][16], hi[NIBBLES][16];
+    __m256i tl[NIBBLES], th[NIBBLES];
+    __m256i mask = _mm256_set1_epi16(0x0f), low = _mm256_set1_epi16(0xff);
+    int i, n;
+
+    mul_nibbles(c, lo, hi);
+    for (n = 0; n < NIBBLES; n++) {
+    tl[n] = _mm256_broadcastsi128_si256(_mm_loadu_si128((__m128i *) lo[n]));
+    th[n] = _mm256_broadcastsi128_si256(_mm_loadu_si128((__m128i *) hi[n]));
+    }
+    for (i = 0; i + 16 <= sz; i += 16) {
+    __m256i s = _mm256_loadu_si256((__m256i *) &src[i]);
+    __m256i d = _mm256_loadu_si256((__m256i *) &dst[i]);
+    __m256i al = _mm256_setzero_si256(), ah = _mm256_setzero_si256();
+    for (n = 0; n < NIBBLES; n++) {
+        __m256i x = _mm256_and_si256(_mm256_srl_epi16(s,
+            _mm_cvtsi32_si128(4*n)), mask);
+        x = _mm256_or_si256(x, _mm256_slli_epi16(x, 8));
+        al = _mm256_xor_si256(al, _mm256_shuffle_epi8(tl[n], x));
+        ah = _mm256_xor_si256(ah, _mm256_shuffle_epi8(th[n], x));
+    }
+    d = _mm256_xor_si256(d, _mm256_or_si256(_mm256_and_si256(al, low),
+        _mm256_andnot_si256(low, ah)));
+    _mm256_storeu_si256((__m256i *) &dst[i], d);
+    }
+    addmul1_scalar(dst + i, src + i, c, sz - i);
+}
+
+__attribute__((target("avx512f,avx512bw"))) static void
+addmul1_avx512bw(gf *dst, gf *src, gf c, int sz)
+{
+    uint8_t lo[NIBBLES][16], hi[NIBBLES][16];
+    __m512i tl[NIBBLES], th[NIBBLES];
+    __m512i mask = _mm512_set1_epi16(0x0f), low = _mm512_set1_epi16(0xff);
+    int i, n;
+
+    mul_nibbles(c, lo, hi);
+    for (n = 0; n < NIBBLES; n++) {
+    tl[n] = _mm512_broadcast_i32x4(_mm_loadu_si128((__m128i *) lo[n]));
+    th[n] = _mm512_broadcast_i32x4(_mm_loadu_si128((__m128i *) hi[n]));
+    }
+    for (i = 0; i + 32 <= sz; i += 32) {
+    __m512i s = _mm512_loadu_si512((void *) &src[i]);
+    __m512i d = _mm512_loadu_si512((void *) &dst[i]);
+    __m512i al = _mm512_setzero_si512(), ah = _mm512_setzero_si512();
+    for (n = 0; n < NIBBLES; n++) {
+        __m512i x = _mm512_and_si512(_mm512_srl_epi16(s,
+            _mm_cvtsi32_si128(4*n)), mask);
+        x = _mm512_or_si512(x, _mm512_slli_epi16(x, 8));
+        al = _mm512_xor_si512(al, _mm512_shuffle_epi8(tl[n], x));
+        ah = _mm512_xor_si512(ah, _mm512_shuffle_epi8(th[n], x));
+    }
+    d = _mm512_xor_si512(d, _mm512_or_si512(_mm512_and_si512(al, low),
+        _mm512_andnot_si512(low, ah)));
+    _mm512_storeu_si512((void *) &dst[i], d);
+    }
+    addmul1_scalar(dst + i, src + i, c, sz - i);
+}
+
+/*
+ * With s the symbols and w the symbols with their bytes swapped, the low
+ * bytes of the products are M00 s + M10 w and the high bytes
+ * M11 s + M01 w, where Mio maps byte i of a symbol to byte o of the
+ * product.
+ */
+__attribute__((target("gfni,avx2"))) static void
+addmul1_gfni_avx2(gf *dst, gf *src, gf c, int sz)
+{
+    __m256i m00 = _mm256_set1_epi64x((long long) mul_matrix(c, 0, 0));
+    __m256i m01 = _mm256_set1_epi64x((long long) mul_matrix(c, 0, 1));
+    __m256i m10 = _mm256_set1_epi64x((long long) mul_matrix(c, 1, 0));
+    __m256i m11 = _mm256_set1_epi64x((long long) mul_matrix(c, 1, 1));
+    __m256i low = _mm256_set1_epi16(0xff);
+    int i;
+
+    for (i = 0; i + 16 <= sz; i += 16) {
+    __m256i s = _mm256_loadu_si256((__m256i *) &src[i]);
+    __m256i d = _mm256_loadu_si256((__m256i *) &dst[i]);
+    __m256i w = _mm256_or_si256(_mm256_slli_epi16(s, 8),
+        _mm256_srli_epi16(s, 8));
+    __m256i pl = _mm256_xor_si256(_mm256_gf2p8affine_epi64_epi8(s, m00, 0),
+        _mm256_gf2p8affine_epi64_epi8(w, m10, 0));
+    __m256i ph = _mm256_xor_si256(_mm256_gf2p8affine_epi64_epi8(s, m11, 0),
+        _mm256_gf2p8affine_epi64_epi8(w, m01, 0));
+    d = _mm256_xor_si256(d, _mm256_or_si256(_mm256_and_si256(pl, low),
+        _mm256_andnot_si256(low, ph)));
+    _mm256_storeu_si256((__m256i *) &dst[i], d);
+    }
+    addmul1_scalar(dst + i, src + i, c, sz - i);
+}
+
+__attribute__((target("gfni,avx512f,avx512bw"))) static void
+addmul1_gfni_avx512(gf *dst, gf *src, gf c, int sz)
+{
+    __m512i m00 = _mm512_set1_epi64((long long) mul_matrix(c, 0, 0));
+    __m512i m01 = _mm512_set1_epi64((long long) mul_matrix(c, 0, 1));
+    __m512i m10 = _mm512_set1_epi64((long long) mul_matrix(c, 1, 0));
+    __m512i m11 = _mm512_set1_epi64((long long) mul_matrix(c, 1, 1));
+    __m512i low = _mm512_set1_epi16(0xff);
+    int i;
+
+    for (i = 0; i + 32 <= sz; i += 32) {
+    __m512i s = _mm512_loadu_si512((void *) &src[i]);
+    __m512i d = _mm512_loadu_si512((void *) &dst[i]);
+    __m512i w = _mm512_or_si512(_mm512_slli_epi16(s, 8),
+        _mm512_srli_epi16(s, 8));
+    __m512i pl = _mm512_xor_si512(_mm512_gf2p8affine_epi64_epi8(s, m00, 0),
+        _mm512_gf2p8affine_epi64_epi8(w, m10, 0));
+    __m512i ph = _mm512_xor_si512(_mm512_gf2p8affine_epi64_epi8(s, m11, 0),
+        _mm512_gf2p8affine_epi64_epi8(w, m01, 0));
+    d = _mm512_xor_si512(d, _mm512_or_si512(_mm512_and_si512(pl, low),
+        _mm512_andnot_si512(low, ph)));
+    _mm512_storeu_si512((void *) &dst[i], d);
+    }
+    addmul1_scalar(dst + i, src + i, c, sz - i);
+}
+#endif    /* GF_BITS */
+
+/*
+ * The kernels, fastest first.
+ */
+static const struct {
+    const char *name;
+    int needs;
+    void (*fn)(gf *, gf *, gf, int);
+} addmul_kernels[] = {
+    { "gfni-avx512", CPU_GFNI | CPU_AVX512BW, addmul1_gfni_avx512 },
+    { "avx512bw", CPU_AVX512BW, addmul1_avx512bw },
+    { "gfni-avx2", CPU_GFNI | CPU_AVX2, addmul1_gfni_avx2 },
+    { "avx2", CPU_AVX2, addmul1_avx2 },
+    { "ssse3", CPU_SSSE3, addmul1_ssse3 },
+    { "scalar", 0, addmul1_scalar },
+};
+
+static void (*addmul1)(gf *, gf *, gf, int) = addmul1_scalar;
+static const char *addmul_name = "scalar";
+
+/*
+ * The CPU_* features that the CPU has and the OS saves the registers
+ * of.
+ */
+static int
+cpu_features(void)
+{
+    unsigned int a, b, c, d, xcr0, xcr0_hi;
+    int f = 0;
+
+    if (!__get_cpuid(1, &a, &b, &c, &d))
+    return 0;
+    if (c & (1 << 9))
+    f |= CPU_SSSE3;
+    /* the rest needs AVX, with OSXSAVE to check that it is enabled */
+    if (!(c & (1 << 27)) || !(c & (1 << 28)))
+    return f;
+    __asm__ __volatile__ ("xgetbv" : "=a" (xcr0), "=d" (xcr0_hi) : "c" (0));
+    if ((xcr0 & 6) != 6 || __get_cpuid_max(0, NULL) < 7)
+    return f;
+    __cpuid_count(7, 0, a, b, c, d);
+    if (b & (1 << 5))
+    f |= CPU_AVX2;
+    if (c & (1 << 8))
+    f |= CPU_GFNI;
+    /* AVX512F and AVX512BW, and the opmask and ZMM state enabled */
+    if ((b & (1 << 16)) && (b & (1 << 30)) && (xcr0 & 0xe6) == 0xe6)
+    f |= CPU_AVX512BW;
+    return f;
+}
+
+static void
+init_addmul(void)
+{
+    const char *want = getenv("FEC_ADDMUL");
+    int i, f = cpu_features();
+
+    if (want != NULL && *want == '\0')
+    want = NULL;
+    for (i = 0; ; i++) {
+    if ((addmul_kernels[i].needs & f) != addmul_kernels[i].needs)
+        continue;
+    if (want == NULL || strcmp(want, addmul_kernels[i].name) == 0 ||
+        addmul_kernels[i].needs == 0)
+        break;
+    }
+    addmul1 = addmul_kernels[i].fn;
+    addmul_name = addmul_kernels[i].name;
+    DDB(fprintf(stderr, "addmul1 kernel %s\n", addmul_name);)
+}
+
+const char *
+fec_addmul_name(void)
+{
+    return addmul_name;
+}
+
+#else    /* !FEC_SIMD */
+
+#define addmul1 addmul1_scalar
+#define init_addmul()
+
+const char *
+fec_addmul_name(void)
+{
+    return "scalar";
+}
+#endif    /* FEC_SIMD */
+
 /*
  * computes C = AB where A is n*k, B is k*m, C is n*m
  */
@@ -593,6 +1009,7 @@ void init_fec()
     init_mul_table();
     TOCK(ticks[0]);
     DDB(fprintf(stderr, "init_mul_table took %ldus\n", ticks[0]);)
+    init_addmul();
     fec_initialized = 1 ;
 }
 
@@ -620,12 +1037,9 @@ fec_free(struct fec_parms *p)
  * create a new encoder, returning a descriptor. This contains k,n and
  * the encoding matrix.
  */
-struct fec_parms *
-fec_new(int k, int n)
+static struct fec_parms *
+fec_alloc(int k, int n)
 {
-    int row, col ;
-    gf *p, *tmp_m ;
-
     struct fec_parms *retval ;
 
     if (fec_initialized == 0)
@@ -641,6 +1055,34 @@ fec_new(int k, int n)
     retval->n = n ;
     retval->enc_matrix = NEW_GF_MATRIX(n, k);
     retval->magic = ( ( FEC_MAGIC ^ k) ^ n) ^ (long)(retval->enc_matrix) ;
+    return retval ;
+}
+
+/*
+ * fec_new_matrix is fec_new() with the n*k encoding matrix supplied by
+ * the caller, e.g. one computed earlier and saved, instead of built from
+ * scratch.  The matrix is copied.
+ */
+struct fec_parms *
+fec_new_matrix(int k, int n, gf *enc_matrix)
+{
+    struct fec_parms *retval = fec_alloc(k, n);
+
+    if (retval != NULL)
+    bcopy(enc_matrix, retval->enc_matrix, n*k*sizeof(gf));
+    return retval ;
+}
+
+struct fec_parms *
+fec_new(int k, int n)
+{
+    int row, col ;
+    gf *p, *tmp_m ;
+
+    struct fec_parms *retval = fec_alloc(k, n);
+
+    if (retval == NULL)
+    return NULL ;
     tmp_m = NEW_GF_MATRIX(n, k);
     /*
      * fill the matrix with powers of field elements, starting from 0.
@@ -793,11 +1235,7 @@ int
 fec_decode(struct fec_parms *code, gf *pkt[], int index[], int sz)
 {
     gf *m_dec ;
-    gf **new_pkt ;
-    int row, col , k = code->k ;
-
-    if (GF_BITS > 8)
-    sz /= 2 ;
+    int error, k = code->k ;
 
     if (shuffle(pkt, index, k))    /* error if true */
     return 1 ;
@@ -805,6 +1243,40 @@ fec_decode(struct fec_parms *code, gf *pkt[], int index[], int sz)
 
     if (m_dec == NULL)
     return 1 ; /* error */
+
+    error = fec_decode_matrix(code, pkt, index, m_dec, sz);
+    free(m_dec);
+    return error ;
+}
+
+/*
+ * fec_build_decode_matrix returns the k*k decode matrix for the given
+ * indexes, or NULL on error. The packets must already be shuffled so
+ * that index[i] == i for every source packet (index < k). The caller
+ * must free() the matrix.
+ */
+gf *
+fec_build_decode_matrix(struct fec_parms *code, int index[])
+{
+    return build_decode_matrix(code, NULL, index);
+}
+
+/*
+ * fec_decode_matrix is fec_decode() with a decode matrix computed
+ * earlier by fec_build_decode_matrix(), so that callers can cache the
+ * matrix for repeated erasure patterns. The packets must already be
+ * shuffled, and m_dec must match index.
+ */
+int
+fec_decode_matrix(struct fec_parms *code, gf *pkt[], int index[], gf *m_dec,
+    int sz)
+{
+    gf **new_pkt ;
+    int row, col , k = code->k ;
+
+    if (GF_BITS > 8)
+    sz /= 2 ;
+
     /*
      * do the actual decoding
      */
@@ -828,7 +1300,6 @@ fec_decode(struct fec_parms *code, gf *pkt[], int index[], int sz)
     }
     }
     free(new_pkt);
-    free(m_dec);
 
     return 0;
 }
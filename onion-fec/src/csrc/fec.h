@@ -74,8 +74,12 @@ struct fec_parms {
 #define	GF_SIZE ((1 << GF_BITS) - 1)	/* powers of \alpha */
 void fec_free(struct fec_parms *p);
 struct fec_parms * fec_new(int k, int n);
+struct fec_parms * fec_new_matrix(int k, int n, gf *enc_matrix);
 void init_fec();
+const char *fec_addmul_name(void);
 void fec_encode(struct fec_parms *code, gf *src[], gf *fec, int index, int sz);
 int fec_decode(struct fec_parms *code, gf *pkt[], int index[], int sz);
+gf *fec_build_decode_matrix(struct fec_parms *code, int index[]);
+int fec_decode_matrix(struct fec_parms *code, gf *pkt[], int index[], gf *m_dec, int sz);
 
 /* end of file */
@@ -0,0 +1,69 @@
+package com.onionnetworks.fec;
+
+/**
+ * This class is Pure16Code with its 16 bit multiply-adds done by the
+ * incubating Vector API, see VectorMath.addMul16().  The encoding matrix
+ * and the encode/decode logic are inherited from Pure16Code, so the
+ * output is byte for byte identical to it.
+ *
+ * Like VectorCode it needs <code>--add-modules jdk.incubator.vector</code>,
+ * and also vectors of at least 256 bits.  Without them the constructor
+ * throws UnsupportedOperationException, so that DefaultFECCodeFactory
+ * moves on to the next code.
+ */
+public class Vector16Code extends Pure16Code {
+
+    protected static final boolean vectorAvailable;
+
+    static {
+        boolean available = false;
+        try {
+            available = VectorMath.LANES16 >= 16;
+        } catch (Throwable t) {
+            // Most likely the jdk.incubator.vector module isn't resolved.
+        }
+        vectorAvailable = available;
+    }
+
+    /**
+     * @throws UnsupportedOperationException If the Vector API isn't
+     * available or its vectors are too short.
+     */
+    public Vector16Code(int k, int n) {
+        super(checkAvailable(k),n);
+    }
+
+    /**
+     * Checked before Pure16Code builds the encoding matrix.
+     */
+    private static int checkAvailable(int k) {
+        if (!vectorAvailable) {
+            throw new UnsupportedOperationException
+                ("The Vector API is unavailable or its vectors are shorter "+
+                 "than 256 bits");
+        }
+        return k;
+    }
+
+    protected void addMul(char[] dst, int dstPos, char[] src, int srcPos,
+                          char c, char[] table, int len) {
+        // nop, optimize
+        if (c == 0) {
+            return;
+        }
+        if (len < FECMath.MUL_TABLE16_MIN_LEN) {
+            super.addMul(dst,dstPos,src,srcPos,c,table,len);
+            return;
+        }
+        fecMath.mulTable16(c,table);
+        int done = VectorMath.addMul16(dst,dstPos,src,srcPos,table,len);
+        if (done < len) {
+            fecMath.addMul16(dst,dstPos+done,src,srcPos+done,table,
+                             len-done);
+        }
+    }
+
+    public String toString() {
+        return new String("Vector16Code[k="+k+",n="+n+"]");
+    }
+}
@@ -0,0 +1,92 @@
+package com.onionnetworks.fec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class is a pure Java 8 bit FEC code that does its multiply-adds with
+ * the incubating Vector API (jdk.incubator.vector), processing a full SIMD
+ * register of 16 to 64 bytes per instruction.  The encoding matrix and all
+ * of the encode/decode logic are inherited from PureCode, so the output is
+ * byte for byte identical to PureCode and Native8Code.
+ *
+ * The Vector API must be enabled with
+ * <code>java --add-modules jdk.incubator.vector</code>.  If it isn't, the
+ * constructors throw UnsupportedOperationException, as they do when the
+ * preferred vectors are shorter than the 16 bytes that the nibble lookups
+ * need, so that DefaultFECCodeFactory moves on to the next code, SWARCode
+ * by default.
+ */
+public class VectorCode extends PureCode {
+
+    protected static final boolean vectorAvailable;
+
+    static {
+        boolean available = false;
+        try {
+            available = VectorMath.LANES >= 16;
+        } catch (Throwable t) {
+            // Most likely the jdk.incubator.vector module isn't resolved.
+        }
+        vectorAvailable = available;
+    }
+
+    /**
+     * @throws UnsupportedOperationException If the Vector API isn't
+     * available or its vectors are too short.
+     */
+    public VectorCode(int k, int n) {
+        super(checkAvailable(k),n);
+    }
+
+    public VectorCode(int k, int n, char[] encMatrix) {
+        super(checkAvailable(k),n,encMatrix);
+    }
+
+    /**
+     * Checked before PureCode builds the encoding matrix.
+     */
+    private static int checkAvailable(int k) {
+        if (!vectorAvailable) {
+            throw new UnsupportedOperationException
+                ("The Vector API is unavailable or its vectors are shorter "+
+                 "than 128 bits");
+        }
+        return k;
+    }
+
+    protected void addMul(byte[] dst, int dstPos, byte[] src, int srcPos,
+                          byte c, int len) {
+        // nop, optimize
+        if (c == 0) {
+            return;
+        }
+        int done = VectorMath.addMul(dst,dstPos,src,srcPos,c,len);
+        if (done < len) {
+            fecMath.addMul(dst,dstPos+done,src,srcPos+done,c,len-done);
+        }
+    }
+
+    /**
+     * The vector kernel only works on byte[]'s, and copying direct buffers
+     * onto the heap and back is much cheaper than PureCode's scalar
+     * in-place ByteBuffer path.
+     */
+    protected void encode(ByteBuffer[] src, int[] srcOff, ByteBuffer[] repair,
+                          int[] repairOff, int[] index, int packetLength) {
+        encodeByCopy(src,srcOff,repair,repairOff,index,packetLength);
+    }
+
+    protected void decode(ByteBuffer[] pkts, int[] pktsOff, int[] index,
+                          int packetLength) {
+        decode(pkts,pktsOff,index,packetLength,null);
+    }
+
+    protected void decode(ByteBuffer[] pkts, int[] pktsOff, int[] index,
+                          int packetLength, DecodeScratch scratch) {
+        decodeByCopy(pkts,pktsOff,index,packetLength,scratch);
+    }
+
+    public String toString() {
+        return new String("VectorCode[k="+k+",n="+n+"]");
+    }
+}
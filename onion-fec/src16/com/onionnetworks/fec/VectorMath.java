@@ -0,0 +1,130 @@
+package com.onionnetworks.fec;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * This class holds the SIMD kernels used by VectorCode and Vector16Code.
+ * It is kept apart from them so that the jdk.incubator.vector classes are
+ * only touched when the module has actually been added to the VM, e.g.
+ * with <code>java --add-modules jdk.incubator.vector</code>.
+ *
+ * The multiply uses the split nibble table trick: for a constant c we have
+ * c*x = c*(x &amp; 0x0f) ^ c*(x &amp; 0xf0), so two 16 entry tables indexed
+ * by the low and the high nibble of each source byte are enough.  Those
+ * lookups map onto a byte shuffle (PSHUFB/VPERMB on x86, TBL on ARM), so a
+ * whole vector of 16 to 64 bytes is multiplied in a handful of
+ * instructions.
+ *
+ * addMul16() does the same for GF(2^16) with four 16 entry tables, one per
+ * nibble of the symbol, taken from FECMath.mulTable16().  They are looked
+ * up with a 16 bit lane shuffle (VPERMW), which needs vectors of at least
+ * 16 shorts.
+ */
+final class VectorMath {
+
+    static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+    static final int LANES = SPECIES.length();
+
+    // For every c: LANES bytes of c*low nibble followed by LANES bytes of
+    // c*high nibble.  The 16 entry tables are repeated across the vector so
+    // that every lane sees a full table.
+    private static final byte[] nibbleTables = new byte[256*2*LANES];
+
+    static {
+        FECMath fecMath = PureCode.fecMath;
+        for (int c=0; c<256; c++) {
+            char[] gf_mulc = fecMath.gf_mul_table[c];
+            int pos = c*2*LANES;
+            for (int i=0; i<LANES; i++) {
+                nibbleTables[pos+i] = (byte) gf_mulc[i & 0x0f];
+                nibbleTables[pos+LANES+i] = (byte) gf_mulc[(i & 0x0f) << 4];
+            }
+        }
+    }
+
+    static final VectorSpecies<Short> SPECIES16 = ShortVector.SPECIES_PREFERRED;
+    static final int LANES16 = SPECIES16.length();
+
+    private VectorMath() {}
+
+    /**
+     * Computes dst[] = dst[] + c * src[] for the largest multiple of LANES
+     * that fits in len.
+     *
+     * @return The number of bytes processed, the caller must finish the
+     * remaining len % LANES bytes itself.
+     */
+    static int addMul(byte[] dst, int dstPos, byte[] src, int srcPos,
+                      byte c, int len) {
+        int lim = SPECIES.loopBound(len);
+        int i = 0;
+        if (c == 1) {
+            // multiplying by 1 is a plain xor.
+            for (; i < lim; i += LANES) {
+                ByteVector s = ByteVector.fromArray(SPECIES,src,srcPos+i);
+                ByteVector d = ByteVector.fromArray(SPECIES,dst,dstPos+i);
+                d.lanewise(VectorOperators.XOR,s).intoArray(dst,dstPos+i);
+            }
+            return lim;
+        }
+
+        int pos = (c & 0xff)*2*LANES;
+        ByteVector lowTable = ByteVector.fromArray(SPECIES,nibbleTables,pos);
+        ByteVector highTable = ByteVector.fromArray(SPECIES,nibbleTables,
+                                                    pos+LANES);
+        for (; i < lim; i += LANES) {
+            ByteVector s = ByteVector.fromArray(SPECIES,src,srcPos+i);
+            ByteVector low = s.lanewise(VectorOperators.AND,0x0f);
+            ByteVector high = s.lanewise(VectorOperators.LSHR,4).
+                lanewise(VectorOperators.AND,0x0f);
+            ByteVector prod = low.selectFrom(lowTable).
+                lanewise(VectorOperators.XOR,high.selectFrom(highTable));
+            ByteVector d = ByteVector.fromArray(SPECIES,dst,dstPos+i);
+            d.lanewise(VectorOperators.XOR,prod).intoArray(dst,dstPos+i);
+        }
+        return lim;
+    }
+
+    /**
+     * Computes dst[] = dst[] + c * src[] for 16 bit symbols, where table
+     * is FECMath.mulTable16(c), for the largest multiple of LANES16 that
+     * fits in len.
+     *
+     * @return The number of chars processed, the caller must finish the
+     * rest itself.  This is 0 if the vectors are too short for the tables.
+     */
+    static int addMul16(char[] dst, int dstPos, char[] src, int srcPos,
+                        char[] table, int len) {
+        if (LANES16 < 16) {
+            return 0;
+        }
+        // c*n, c*(n << 4), c*(n << 8) and c*(n << 12) for every nibble n.
+        // Only the first 16 lanes are ever selected.
+        ShortVector t0 = ShortVector.fromCharArray(SPECIES16,table,256);
+        ShortVector t1 = ShortVector.fromCharArray(SPECIES16,table,512);
+        ShortVector t2 = ShortVector.fromCharArray(SPECIES16,table,0);
+        ShortVector t3 = ShortVector.fromCharArray(SPECIES16,table,544);
+
+        int lim = SPECIES16.loopBound(len);
+        for (int i = 0; i < lim; i += LANES16) {
+            ShortVector s = ShortVector.fromCharArray(SPECIES16,src,srcPos+i);
+            ShortVector prod = s.lanewise(VectorOperators.AND,0x0f).
+                selectFrom(t0);
+            prod = prod.lanewise
+                (VectorOperators.XOR,s.lanewise(VectorOperators.LSHR,4).
+                 lanewise(VectorOperators.AND,0x0f).selectFrom(t1));
+            prod = prod.lanewise
+                (VectorOperators.XOR,s.lanewise(VectorOperators.LSHR,8).
+                 lanewise(VectorOperators.AND,0x0f).selectFrom(t2));
+            prod = prod.lanewise
+                (VectorOperators.XOR,s.lanewise(VectorOperators.LSHR,12).
+                 selectFrom(t3));
+            ShortVector d = ShortVector.fromCharArray(SPECIES16,dst,dstPos+i);
+            d.lanewise(VectorOperators.XOR,prod).intoCharArray(dst,dstPos+i);
+        }
+        return lim;
+    }
+}
@@ -0,0 +1,17 @@
+package com.onionnetworks.fec;
+
+/**
+ * The 16 bit fec library called through java.lang.foreign, see ForeignCode.
+ */
+public class Foreign16Code extends ForeignCode {
+
+    protected static final Library lib16 = new Library(16);
+
+    public Foreign16Code(int k, int n) {
+        super(k,n,lib16);
+    }
+
+    public String toString() {
+        return new String("Foreign16Code[k="+k+",n="+n+"]");
+    }
+}
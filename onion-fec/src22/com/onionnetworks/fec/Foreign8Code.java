@@ -0,0 +1,17 @@
+package com.onionnetworks.fec;
+
+/**
+ * The 8 bit fec library called through java.lang.foreign, see ForeignCode.
+ */
+public class Foreign8Code extends ForeignCode {
+
+    protected static final Library lib8 = new Library(8);
+
+    public Foreign8Code(int k, int n) {
+        super(k,n,lib8);
+    }
+
+    public String toString() {
+        return new String("Foreign8Code[k="+k+",n="+n+"]");
+    }
+}
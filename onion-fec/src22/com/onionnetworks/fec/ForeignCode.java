@@ -0,0 +1,471 @@
+package com.onionnetworks.fec;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.ref.Cleaner;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Optional;
+import com.onionnetworks.util.NativeDeployer;
+
+/**
+ * This class calls the C implementation of the FEC codes in the fec8 and
+ * fec16 libraries through the Foreign Function and Memory API
+ * (java.lang.foreign) instead of through the JNI wrapper in fec-jinterf.c.
+ * It binds fec_new(), fec_encode(), fec_decode() and fec_free() directly,
+ * so it works with any build of the libraries, including ones without the
+ * JNI glue.
+ *
+ * A downcall costs much less than a JNI call that has to walk a byte[][]
+ * with GetObjectArrayElement and pin every packet with
+ * GetPrimitiveArrayCritical.  The packets must be in native memory though,
+ * so byte[]'s are copied into an arena for the duration of the call.
+ * Direct ByteBuffers are used in place, which is where this code is the
+ * fastest.
+ *
+ * Decode matrices come from the DecodeMatrixCache when the library has
+ * fec_build_decode_matrix() and fec_decode_matrix(), otherwise
+ * fec_decode() builds one on every call.  Since the 16 bit C code works
+ * on native order symbols, the output is identical to Native8Code and
+ * Native16Code.
+ *
+ * This needs JDK 22 or later.  Run with --enable-native-access=ALL-UNNAMED
+ * to avoid the restricted method warnings.  DefaultFECCodeFactory only
+ * creates it when asked for by key ("foreign8" or "foreign16"), it is not
+ * among the codes picked by default.
+ */
+public abstract class ForeignCode extends FECCode {
+
+    private static final Cleaner cleaner = Cleaner.create();
+
+    protected final Library lib;
+    protected final int gfBits;
+    // The fec_parms struct, it must never be exposed.
+    private final MemorySegment code;
+
+    protected ForeignCode(int k, int n, Library lib) {
+        super(k,n);
+        this.lib = lib;
+        this.gfBits = lib.gfBits;
+        code = lib.newFEC(k,n);
+        cleaner.register(this,new Free(lib,code));
+    }
+
+    protected void encode(byte[][] src, int[] srcOff, byte[][] repair,
+                          int[] repairOff, int[] index, int packetLength) {
+        checkLength(packetLength);
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment data = arena.allocate((long) k*packetLength,8);
+            MemorySegment ptrs = pointers(arena,k);
+            for (int i=0;i<k;i++) {
+                MemorySegment pkt = data.asSlice((long) i*packetLength,
+                                                 packetLength);
+                MemorySegment.copy(src[i],srcOff[i],pkt,ValueLayout.JAVA_BYTE,
+                                   0,packetLength);
+                ptrs.setAtIndex(ValueLayout.ADDRESS,i,pkt);
+            }
+            MemorySegment fec = arena.allocate(packetLength,8);
+            for (int i=0;i<repair.length;i++) {
+                if (index[i] < k) { // < k, systematic so direct copy.
+                    System.arraycopy(src[index[i]],srcOff[index[i]],repair[i],
+                                     repairOff[i],packetLength);
+                } else {
+                    lib.encode(code,ptrs,fec,index[i],packetLength);
+                    MemorySegment.copy(fec,ValueLayout.JAVA_BYTE,0,repair[i],
+                                       repairOff[i],packetLength);
+                }
+            }
+        }
+    }
+
+    protected void decode(byte[][] pkts, int[] pktsOff, int[] index,
+                          int packetLength, boolean shuffled) {
+        decode(pkts,pktsOff,index,packetLength,shuffled,null);
+    }
+
+    /**
+     * The decode matrix is looked up with <code>scratch</code>.
+     */
+    protected void decode(byte[][] pkts, int[] pktsOff, int[] index,
+                          int packetLength, boolean shuffled,
+                          DecodeScratch scratch) {
+        checkLength(packetLength);
+        if (!shuffled) {
+            shuffle(pkts,pktsOff,index,k);
+        }
+        if (!hasRepairPackets(index)) {
+            return;
+        }
+        boolean[] missing = new boolean[k];
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment data = arena.allocate((long) k*packetLength,8);
+            MemorySegment ptrs = pointers(arena,k);
+            for (int i=0;i<k;i++) {
+                missing[i] = index[i] >= k;
+                MemorySegment pkt = data.asSlice((long) i*packetLength,
+                                                 packetLength);
+                MemorySegment.copy(pkts[i],pktsOff[i],pkt,ValueLayout.JAVA_BYTE,
+                                   0,packetLength);
+                ptrs.setAtIndex(ValueLayout.ADDRESS,i,pkt);
+            }
+            decode(arena,ptrs,index,packetLength,scratch);
+            for (int i=0;i<k;i++) {
+                if (missing[i]) {
+                    MemorySegment.copy(data,ValueLayout.JAVA_BYTE,
+                                       (long) i*packetLength,pkts[i],
+                                       pktsOff[i],packetLength);
+                }
+            }
+        }
+    }
+
+    /**
+     * Direct buffers are passed to the C code in place, anything else is
+     * copied.
+     */
+    protected void encode(ByteBuffer[] src, int[] srcOff, ByteBuffer[] repair,
+                          int[] repairOff, int[] index, int packetLength) {
+        checkLength(packetLength);
+        if (!isDirect(src,false) || !isDirect(repair,true)) {
+            encodeByCopy(src,srcOff,repair,repairOff,index,packetLength);
+            return;
+        }
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment ptrs = pointers(arena,k);
+            for (int i=0;i<k;i++) {
+                ptrs.setAtIndex(ValueLayout.ADDRESS,i,
+                                segment(src[i],srcOff[i],packetLength));
+            }
+            for (int i=0;i<repair.length;i++) {
+                MemorySegment fec = segment(repair[i],repairOff[i],
+                                            packetLength);
+                if (index[i] < k) {
+                    MemorySegment.copy(segment(src[index[i]],
+                                               srcOff[index[i]],packetLength),
+                                       0,fec,0,packetLength);
+                } else {
+                    lib.encode(code,ptrs,fec,index[i],packetLength);
+                }
+            }
+        } finally {
+            // The C code only sees raw addresses.
+            Reference.reachabilityFence(src);
+            Reference.reachabilityFence(repair);
+        }
+    }
+
+    protected void decode(ByteBuffer[] pkts, int[] pktsOff, int[] index,
+                          int packetLength) {
+        decode(pkts,pktsOff,index,packetLength,null);
+    }
+
+    protected void decode(ByteBuffer[] pkts, int[] pktsOff, int[] index,
+                          int packetLength, DecodeScratch scratch) {
+        checkLength(packetLength);
+        if (!hasRepairPackets(index)) {
+            return;
+        }
+        if (!isDirect(pkts,true)) {
+            decodeByCopy(pkts,pktsOff,index,packetLength,scratch);
+            return;
+        }
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment ptrs = pointers(arena,k);
+            for (int i=0;i<k;i++) {
+                ptrs.setAtIndex(ValueLayout.ADDRESS,i,
+                                segment(pkts[i],pktsOff[i],packetLength));
+            }
+            decode(arena,ptrs,index,packetLength,scratch);
+        } finally {
+            Reference.reachabilityFence(pkts);
+        }
+    }
+
+    /**
+     * Decode the shuffled packets pointed to by ptrs in place and mark
+     * them as done in index.
+     *
+     * @param scratch Where to look the decode matrix up, or null.
+     */
+    private void decode(Arena arena, MemorySegment ptrs, int[] index,
+                        int packetLength, DecodeScratch scratch) {
+        MemorySegment idx = arena.allocate(4L*k,4);
+        MemorySegment.copy(index,0,idx,ValueLayout.JAVA_INT,0,k);
+        if (lib.hasDecodeMatrix()) {
+            DecodeMatrixCache cache = DecodeMatrixCache.getDefault();
+            char[] decMatrix = cache.get(gfBits,k,n,index,false,scratch);
+            if (decMatrix == null) {
+                decMatrix = lib.buildDecodeMatrix(code,idx,k);
+                cache.put(gfBits,k,n,index,decMatrix);
+            }
+            if (lib.decodeMatrix(code,ptrs,idx,lib.toGF(arena,decMatrix),
+                                 packetLength) != 0) {
+                throw new IllegalArgumentException("Unable to decode "+this);
+            }
+        } else if (lib.decode(code,ptrs,idx,packetLength) != 0) {
+            throw new IllegalArgumentException("Unable to decode "+this);
+        }
+        MemorySegment.copy(idx,ValueLayout.JAVA_INT,0,index,0,k);
+    }
+
+    private static MemorySegment pointers(Arena arena, int num) {
+        return arena.allocate(ValueLayout.ADDRESS.byteSize()*num,
+                              ValueLayout.ADDRESS.byteAlignment());
+    }
+
+    /**
+     * @return The len bytes at absolute position pos of a direct buffer.
+     */
+    private static MemorySegment segment(ByteBuffer b, int pos, int len) {
+        return MemorySegment.ofBuffer(b.duplicate().clear()).asSlice(pos,len);
+    }
+
+    private void checkLength(int packetLength) {
+        if (packetLength % (gfBits/8) != 0) {
+            throw new IllegalArgumentException("For 16 bit codes, buffers "+
+                                               "must be 16 bit aligned.");
+        }
+    }
+
+    protected int getStripeAlignment() {
+        return gfBits/8;
+    }
+
+    /**
+     * Frees the fec_parms once the code is unreachable.  This mustn't
+     * reference the code itself.
+     */
+    private static class Free implements Runnable {
+        private final Library lib;
+        private final MemorySegment code;
+
+        Free(Library lib, MemorySegment code) {
+            this.lib = lib;
+            this.code = code;
+        }
+
+        public void run() {
+            lib.free(code);
+        }
+    }
+
+    /**
+     * The downcall handles for one of the fec libraries.
+     */
+    protected static class Library {
+
+        protected final int gfBits;
+        private final MethodHandle fecNew, fecFree, fecEncode, fecDecode;
+        // null if the library predates them.
+        private final MethodHandle fecBuildDecodeMatrix, fecDecodeMatrix;
+        private final MethodHandle fecNewMatrix;
+        private final MethodHandle free;
+
+        /**
+         * Load the fec8 or fec16 library the same way as Native8Code does.
+         *
+         * @throws UnsatisfiedLinkError if there is no library for this
+         * platform.
+         */
+        protected Library(int gfBits) {
+            this.gfBits = gfBits;
+            String name = "fec"+gfBits;
+            String path = NativeDeployer.getLibraryPath
+                (ForeignCode.class.getClassLoader(),name);
+            if (path == null) {
+                throw new UnsatisfiedLinkError
+                    ("Unable to find native library for "+name+
+                     " for platform "+NativeDeployer.OS_ARCH);
+            }
+            Linker linker = Linker.nativeLinker();
+            SymbolLookup lookup = SymbolLookup.libraryLookup
+                (Path.of(path),Arena.global());
+            ValueLayout.OfInt i = ValueLayout.JAVA_INT;
+            fecNew = bind(linker,lookup,"fec_new",FunctionDescriptor.of
+                          (ValueLayout.ADDRESS,i,i));
+            fecNewMatrix = bindOptional
+                (linker,lookup,"fec_new_matrix",FunctionDescriptor.of
+                 (ValueLayout.ADDRESS,i,i,ValueLayout.ADDRESS));
+            fecFree = bind(linker,lookup,"fec_free",FunctionDescriptor.ofVoid
+                           (ValueLayout.ADDRESS));
+            fecEncode = bind(linker,lookup,"fec_encode",
+                             FunctionDescriptor.ofVoid
+                             (ValueLayout.ADDRESS,ValueLayout.ADDRESS,
+                              ValueLayout.ADDRESS,i,i));
+            fecDecode = bind(linker,lookup,"fec_decode",FunctionDescriptor.of
+                             (i,ValueLayout.ADDRESS,ValueLayout.ADDRESS,
+                              ValueLayout.ADDRESS,i));
+            fecBuildDecodeMatrix = bindOptional
+                (linker,lookup,"fec_build_decode_matrix",FunctionDescriptor.of
+                 (ValueLayout.ADDRESS,ValueLayout.ADDRESS,
+                  ValueLayout.ADDRESS));
+            fecDecodeMatrix = bindOptional
+                (linker,lookup,"fec_decode_matrix",FunctionDescriptor.of
+                 (i,ValueLayout.ADDRESS,ValueLayout.ADDRESS,
+                  ValueLayout.ADDRESS,ValueLayout.ADDRESS,i));
+            free = linker.downcallHandle
+                (linker.defaultLookup().find("free").orElseThrow(),
+                 FunctionDescriptor.ofVoid(ValueLayout.ADDRESS));
+        }
+
+        private static MethodHandle bind(Linker linker, SymbolLookup lookup,
+                                         String name, FunctionDescriptor fd) {
+            MethodHandle result = bindOptional(linker,lookup,name,fd);
+            if (result == null) {
+                throw new UnsatisfiedLinkError("No symbol "+name);
+            }
+            return result;
+        }
+
+        private static MethodHandle bindOptional(Linker linker,
+                                                 SymbolLookup lookup,
+                                                 String name,
+                                                 FunctionDescriptor fd) {
+            Optional<MemorySegment> sym = lookup.find(name);
+            return sym.isPresent() ? linker.downcallHandle(sym.get(),fd) : 
+                null;
+        }
+
+        protected boolean hasDecodeMatrix() {
+            return fecBuildDecodeMatrix != null && fecDecodeMatrix != null;
+        }
+
+        /**
+         * fec_new() initializes the shared GF tables on first use.  If the
+         * library has fec_new_matrix() the encoding matrix is taken from
+         * FECMath instead, which computes it much faster or finds it in
+         * the MatrixStore.
+         */
+        protected synchronized MemorySegment newFEC(int k, int n) {
+            try (Arena arena = Arena.ofConfined()) {
+                MemorySegment code;
+                if (fecNewMatrix != null && (long) n*k <= Integer.MAX_VALUE) {
+                    FECMath fecMath = gfBits == 8 ? PureCode.fecMath :
+                        Pure16Code.fecMath;
+                    code = (MemorySegment) fecNewMatrix.invokeExact
+                        (k,n,toGF(arena,fecMath.createEncodeMatrix(k,n)));
+                } else {
+                    code = (MemorySegment) fecNew.invokeExact(k,n);
+                }
+                if (code.equals(MemorySegment.NULL)) {
+                    throw new OutOfMemoryError("fec_new failed");
+                }
+                return code;
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        protected void free(MemorySegment code) {
+            try {
+                fecFree.invokeExact(code);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        protected void encode(MemorySegment code, MemorySegment src,
+                              MemorySegment fec, int index, int sz) {
+            try {
+                fecEncode.invokeExact(code,src,fec,index,sz);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        protected int decode(MemorySegment code, MemorySegment pkt,
+                             MemorySegment index, int sz) {
+            try {
+                return (int) fecDecode.invokeExact(code,pkt,index,sz);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        protected int decodeMatrix(MemorySegment code, MemorySegment pkt,
+                                   MemorySegment index, MemorySegment mDec,
+                                   int sz) {
+            try {
+                return (int) fecDecodeMatrix.invokeExact
+                    (code,pkt,index,mDec,sz);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        /**
+         * @return The k*k decode matrix for the shuffled index.
+         */
+        protected char[] buildDecodeMatrix(MemorySegment code,
+                                           MemorySegment index, int k) {
+            MemorySegment m;
+            try {
+                m = (MemorySegment) fecBuildDecodeMatrix.invokeExact
+                    (code,index);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+            if (m.equals(MemorySegment.NULL)) {
+                throw new IllegalArgumentException
+                    ("Unable to build decode matrix");
+            }
+            try {
+                int size = k*k;
+                m = m.reinterpret((long) size*(gfBits/8));
+                char[] result = new char[size];
+                if (gfBits == 8) {
+                    for (int i=0;i<size;i++) {
+                        result[i] = (char) (m.get(ValueLayout.JAVA_BYTE,i) & 
+                                            0xff);
+                    }
+                } else {
+                    MemorySegment.copy(m,ValueLayout.JAVA_CHAR_UNALIGNED,0,
+                                       result,0,size);
+                }
+                return result;
+            } finally {
+                try {
+                    free.invokeExact(m);
+                } catch (Throwable t) {
+                    throw rethrow(t);
+                }
+            }
+        }
+
+        /**
+         * @return The decode matrix as gf symbols in native memory.
+         */
+        protected MemorySegment toGF(Arena arena, char[] matrix) {
+            MemorySegment result = arena.allocate
+                ((long) matrix.length*(gfBits/8),2);
+            if (gfBits == 8) {
+                for (int i=0;i<matrix.length;i++) {
+                    result.set(ValueLayout.JAVA_BYTE,i,(byte) matrix[i]);
+                }
+            } else {
+                MemorySegment.copy(matrix,0,result,ValueLayout.JAVA_CHAR,0,
+                                   matrix.length);
+            }
+            return result;
+        }
+
+        /**
+         * invokeExact() throws Throwable, but the downcalls can only fail
+         * with unchecked exceptions.
+         */
+        private static RuntimeException rethrow(Throwable t) {
+            if (t instanceof Error) {
+                throw (Error) t;
+            } else if (t instanceof RuntimeException) {
+                return (RuntimeException) t;
+            }
+            return new IllegalStateException(t);
+        }
+    }
+}
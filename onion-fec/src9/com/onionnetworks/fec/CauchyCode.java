@@ -0,0 +1,469 @@
+package com.onionnetworks.fec;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import com.onionnetworks.util.Util;
+
+/**
+ * This class is an 8 bit Cauchy Reed-Solomon code that encodes and decodes
+ * with nothing but 64 bit xors, no multiplies or table lookups at all.
+ *
+ * The repair rows of the encoding matrix are a Cauchy matrix, 1/(x_i+y_j)
+ * with y_j = j for the source packets and x_i = k+i for the repair ones,
+ * so n can be at most 256.  Every square submatrix of a Cauchy matrix is
+ * invertible, and stays so when its rows and columns are scaled, so the
+ * columns are divided by the first row, making it all 1s, and every other
+ * row is multiplied by whichever element gives it the fewest 1 bits below.
+ *
+ * Multiplying by a GF(2^8) element is linear over the 8 bits of a symbol,
+ * so each element becomes an 8x8 matrix of bits and a row of the encoding
+ * matrix 8 rows of xors over 8 sub-packets of each packet.  Packets are
+ * cut into groups of 64 bytes, word c of a group being sub-packet c.  The
+ * 64 symbols of a group are thus bit t of each of its 8 words, and every
+ * xor of the bit matrix is one 64 bit xor per group.  This is NOT the
+ * byte layout of the other codes, so a CauchyCode can only decode packets
+ * encoded by a CauchyCode.  The bytes after the last whole group, if
+ * packetLength isn't a multiple of 64, can't be cut into sub-packets, so
+ * they are coded a symbol per byte with the GF(2^8) matrix itself, as
+ * PureCode would.  That code is MDS as well, and too short to matter.
+ *
+ * The xors are done from a Schedule that computes each output row either
+ * from the input words or, when that takes fewer xors, from an output
+ * row computed before it.  Packets are coded a chunk of groups at a time
+ * so that the chunks of all of them stay in the cache while the schedule
+ * runs over them.  The arrays that go with that come from the calling
+ * thread's DecodeScratch, or the caller's for decode().
+ */
+public class CauchyCode extends FECCode {
+
+    public static final int GROUP = 64;
+
+    // The bytes of all of the packets coded per pass.
+    protected static final int CACHE_BYTES = 256*1024;
+
+    protected static final VarHandle LONGS =
+        MethodHandles.byteArrayViewVarHandle(long[].class,
+                                             ByteOrder.nativeOrder());
+
+    protected static final FECMath fecMath = PureCode.fecMath;
+
+    // The number of 1 bits in the bit matrix of each element.
+    protected static final int[] ONES = new int[256];
+
+    static {
+        for (int e=0;e<256;e++) {
+            for (int c=0;c<8;c++) {
+                ONES[e] += Integer.bitCount(fecMath.mul((char) e,
+                                                        (char) (1 << c)));
+            }
+        }
+    }
+
+    protected final EncodeMatrix encodeMatrix;
+
+    // The last encode and decode schedules with their indexes, as most
+    // callers ask for the same repairs and see the same losses again.
+    protected volatile Object[] lastEncode, lastDecode;
+
+    public CauchyCode(int k, int n) {
+        super(k,n);
+        if (n > 256) {
+            throw new IllegalArgumentException("n > 256: "+n);
+        }
+        encodeMatrix = new EncodeMatrix(k,n,createEncodeMatrix(k,n));
+    }
+
+    /**
+     * @return The n*k systematic encoding matrix, the identity on top of
+     * the scaled Cauchy matrix.
+     */
+    protected static char[] createEncodeMatrix(int k, int n) {
+        char[] m = new char[n*k];
+        for (int i=0;i<k;i++) {
+            m[i*k+i] = 1;
+        }
+        for (int i=k;i<n;i++) {
+            for (int j=0;j<k;j++) {
+                m[i*k+j] = fecMath.inverse[i ^ j];
+            }
+        }
+        if (n == k) {
+            return m;
+        }
+        for (int j=0;j<k;j++) {
+            char f = fecMath.inverse[m[k*k+j]];
+            for (int i=k;i<n;i++) {
+                m[i*k+j] = fecMath.mul(m[i*k+j],f);
+            }
+        }
+        for (int i=k+1;i<n;i++) {
+            int best = 1, bestOnes = Integer.MAX_VALUE;
+            for (int f=1;f<256;f++) {
+                int ones = 0;
+                for (int j=0;j<k && ones < bestOnes;j++) {
+                    ones += ONES[fecMath.mul(m[i*k+j],(char) f)];
+                }
+                if (ones < bestOnes) {
+                    best = f;
+                    bestOnes = ones;
+                }
+            }
+            for (int j=0;j<k;j++) {
+                m[i*k+j] = fecMath.mul(m[i*k+j],(char) best);
+            }
+        }
+        return m;
+    }
+
+    protected void encode(byte[][] src, int[] srcOff, byte[][] repair,
+                          int[] repairOff, int[] index, int packetLength) {
+        int numRows = 0;
+        for (int i=0;i<index.length;i++) {
+            if (index[i] < k) { // < k, systematic so direct copy.
+                System.arraycopy(src[index[i]],srcOff[index[i]],repair[i],
+                                 repairOff[i],packetLength);
+            } else {
+                numRows++;
+            }
+        }
+        if (numRows == 0) {
+            return;
+        }
+
+        Object[] last = lastEncode;
+        Schedule schedule;
+        if (last != null && Arrays.equals((int[]) last[0],index)) {
+            schedule = (Schedule) last[1];
+        } else {
+            char[] rows = new char[numRows*k];
+            for (int i=0,r=0;i<index.length;i++) {
+                if (index[i] >= k) {
+                    encodeMatrix.getRow(index[i],rows,(r++)*k);
+                }
+            }
+            schedule = new Schedule(rows,numRows,k);
+            lastEncode = new Object[] {index.clone(),schedule};
+        }
+
+        DecodeScratch scratch = DecodeScratch.get();
+        byte[][] out = scratch.outs(numRows);
+        int[] outOff = scratch.rows(numRows);
+        for (int i=0,r=0;i<index.length;i++) {
+            if (index[i] >= k) {
+                out[r] = repair[i];
+                outOff[r++] = repairOff[i];
+            }
+        }
+        int chunk = chunkLength(k+numRows,packetLength);
+        int[] inPos = scratch.inPos(k);
+        int[] outPos = scratch.outPos(numRows);
+        try {
+            for (int off=0;off<packetLength;off+=chunk) {
+                int len = Math.min(chunk,packetLength-off);
+                for (int i=0;i<k;i++) {
+                    inPos[i] = srcOff[i]+off;
+                }
+                for (int r=0;r<numRows;r++) {
+                    outPos[r] = outOff[r]+off;
+                }
+                schedule.run(src,inPos,out,outPos,len);
+            }
+        } finally {
+            for (int r=0;r<numRows;r++) {
+                out[r] = null;
+            }
+        }
+    }
+
+    /**
+     * The missing packets are rebuilt a chunk at a time in the scratch and
+     * copied into place, as the repair packets in their places are still
+     * read by the chunks after.
+     */
+    protected void decode(byte[][] pkts, int[] pktsOff, int[] index,
+                          int packetLength, boolean shuffled) {
+        decode(pkts,pktsOff,index,packetLength,shuffled,null);
+    }
+
+    protected void decode(byte[][] pkts, int[] pktsOff, int[] index,
+                          int packetLength, boolean shuffled,
+                          DecodeScratch scratch) {
+        if (!shuffled) {
+            shuffle(pkts,pktsOff,index,k);
+        }
+        if (!hasRepairPackets(index)) {
+            return;
+        }
+        if (scratch == null) {
+            scratch = DecodeScratch.get();
+        }
+
+        int[] rows = scratch.rows(k);
+        int numRows = 0;
+        for (int row=0;row<k;row++) {
+            if (index[row] >= k) {
+                rows[numRows++] = row;
+            }
+        }
+
+        Object[] last = lastDecode;
+        Schedule schedule;
+        if (last != null && Arrays.equals((int[]) last[0],index)) {
+            schedule = (Schedule) last[1];
+        } else {
+            // Only the rows for the missing packets, see
+            // FECMath.createReducedDecodeMatrix().
+            schedule = new Schedule
+                (fecMath.createReducedDecodeMatrix(encodeMatrix,index),
+                 numRows,k);
+            lastDecode = new Object[] {index.clone(),schedule};
+        }
+
+        int chunk = chunkLength(k+numRows,packetLength);
+        byte[] tmp = scratch.block(numRows*chunk);
+        byte[][] out = scratch.outs(numRows);
+        int[] outPos = scratch.outPos(numRows);
+        for (int r=0;r<numRows;r++) {
+            out[r] = tmp;
+            outPos[r] = r*chunk;
+        }
+        int[] inPos = scratch.inPos(k);
+        try {
+            for (int off=0;off<packetLength;off+=chunk) {
+                int len = Math.min(chunk,packetLength-off);
+                for (int i=0;i<k;i++) {
+                    inPos[i] = pktsOff[i]+off;
+                }
+                schedule.run(pkts,inPos,out,outPos,len);
+                for (int r=0;r<numRows;r++) {
+                    System.arraycopy(tmp,r*chunk,pkts[rows[r]],
+                                     pktsOff[rows[r]]+off,len);
+                }
+            }
+        } finally {
+            for (int r=0;r<numRows;r++) {
+                out[r] = null;
+            }
+        }
+
+        for (int r=0;r<numRows;r++) {
+            index[rows[r]] = rows[r];
+        }
+    }
+
+    /**
+     * Stripes must keep the groups whole, the last one taking the tail.
+     */
+    protected int getStripeAlignment() {
+        return GROUP;
+    }
+
+    /**
+     * @return The bytes of each packet to code per pass, a multiple of
+     * GROUP unless it is all of packetLength.
+     */
+    protected static int chunkLength(int packets, int packetLength) {
+        int chunk = CACHE_BYTES / packets;
+        chunk = Math.max(GROUP,chunk - chunk % GROUP);
+        return Math.min(chunk,packetLength);
+    }
+
+    public String toString() {
+        return new String("CauchyCode[k="+k+",n="+n+"]");
+    }
+
+    /**
+     * The xors that compute the bit rows of a rows*cols matrix of GF(2^8)
+     * elements times cols packets.  Input word j*8+c is sub-packet c of
+     * packet j, output word r*8+b sub-packet b of output packet r.
+     *
+     * The rows are scheduled greedily: the next row computed is the one
+     * that is cheapest to compute, either from scratch, copying its first
+     * input word and xoring in the rest, or by copying an output row
+     * already computed and xoring in the input words where the two
+     * differ.
+     */
+    protected static class Schedule {
+
+        protected static final int COPY = 1 << 30;
+        protected static final int OUTPUT = 1 << 29;
+        protected static final int ZERO = 1 << 28;
+        protected static final int WORD_MASK = ZERO - 1;
+
+        // Pairs of destination and source words, the source flagged COPY
+        // to copy rather than xor it, OUTPUT if it is an output word, or
+        // just ZERO to clear the destination.
+        protected final int[] ops;
+        protected final int numOps;
+
+        // The GF(2^8) matrix itself, for the tail after the last group.
+        protected final char[] matrix;
+        protected final int rows, cols;
+
+        protected Schedule(char[] matrix, int rows, int cols) {
+            this.matrix = matrix;
+            this.rows = rows;
+            this.cols = cols;
+            int bitRows = rows*8;
+            int words = (cols*8+63)/64;
+            long[][] bits = new long[bitRows][words];
+            for (int r=0;r<rows;r++) {
+                for (int j=0;j<cols;j++) {
+                    char e = matrix[r*cols+j];
+                    for (int c=0;c<8;c++) {
+                        int p = fecMath.mul(e,(char) (1 << c));
+                        int col = j*8+c;
+                        for (int b=0;b<8;b++) {
+                            if ((p & (1 << b)) != 0) {
+                                bits[r*8+b][col >>> 6] |= 1L << col;
+                            }
+                        }
+                    }
+                }
+            }
+
+            // cost[i] is the cheapest way to compute row i so far, from
+            // the output row from[i] or from scratch if that is -1.
+            int[] cost = new int[bitRows];
+            int[] from = new int[bitRows];
+            boolean[] done = new boolean[bitRows];
+            int total = 0;
+            for (int i=0;i<bitRows;i++) {
+                cost[i] = popCount(bits[i],null);
+                from[i] = -1;
+                total += cost[i];
+            }
+            int[] list = new int[2*(total+bitRows)];
+            int pos = 0;
+            for (int step=0;step<bitRows;step++) {
+                int next = -1;
+                for (int i=0;i<bitRows;i++) {
+                    if (!done[i] && (next == -1 || cost[i] < cost[next])) {
+                        next = i;
+                    }
+                }
+                done[next] = true;
+                long[] row = bits[next];
+                boolean first = true;
+                if (from[next] != -1) {
+                    list[pos++] = next;
+                    list[pos++] = from[next] | OUTPUT | COPY;
+                    first = false;
+                }
+                long[] base = from[next] == -1 ? null : bits[from[next]];
+                for (int w=0;w<words;w++) {
+                    long diff = base == null ? row[w] : row[w] ^ base[w];
+                    while (diff != 0) {
+                        int col = w*64 + Long.numberOfTrailingZeros(diff);
+                        diff &= diff - 1;
+                        list[pos++] = next;
+                        list[pos++] = first ? col | COPY : col;
+                        first = false;
+                    }
+                }
+                if (first) {
+                    list[pos++] = next;
+                    list[pos++] = ZERO;
+                }
+                for (int i=0;i<bitRows;i++) {
+                    if (!done[i]) {
+                        int c = 1 + popCount(bits[i],row);
+                        if (c < cost[i]) {
+                            cost[i] = c;
+                            from[i] = next;
+                        }
+                    }
+                }
+            }
+            this.ops = list;
+            this.numOps = pos;
+        }
+
+        /**
+         * @return The number of 1 bits in a, or in a xor b if b isn't
+         * null.
+         */
+        private static int popCount(long[] a, long[] b) {
+            int count = 0;
+            for (int w=0;w<a.length;w++) {
+                count += Long.bitCount(b == null ? a[w] : a[w] ^ b[w]);
+            }
+            return count;
+        }
+
+        /**
+         * Code len bytes of the packets, from the positions in inPos and
+         * outPos.  Whole groups run the schedule, the tail the matrix.
+         */
+        protected void run(byte[][] in, int[] inPos, byte[][] out,
+                           int[] outPos, int len) {
+            int groups = len/GROUP;
+            if (groups > 0) {
+                runGroups(in,inPos,out,outPos,groups);
+            }
+            int tail = len - groups*GROUP;
+            if (tail > 0) {
+                runTail(in,inPos,out,outPos,groups*GROUP,tail);
+            }
+        }
+
+        /**
+         * Compute the tail bytes at off past the positions a symbol per
+         * byte, out[r] = sum of matrix[r*cols+j] * in[j].
+         */
+        protected void runTail(byte[][] in, int[] inPos, byte[][] out,
+                               int[] outPos, int off, int tail) {
+            for (int r=0;r<rows;r++) {
+                Util.bzero(out[r],outPos[r]+off,tail);
+                for (int j=0;j<cols;j++) {
+                    fecMath.addMul(out[r],outPos[r]+off,in[j],inPos[j]+off,
+                                   (byte) matrix[r*cols+j],tail);
+                }
+            }
+        }
+
+        /**
+         * Run the schedule over groups groups of the packets.
+         */
+        protected void runGroups(byte[][] in, int[] inPos, byte[][] out,
+                                 int[] outPos, int groups) {
+            int[] ops = this.ops;
+            for (int o=0;o<numOps;o+=2) {
+                int dstWord = ops[o];
+                int src = ops[o+1];
+                byte[] d = out[dstWord >>> 3];
+                int di = outPos[dstWord >>> 3] + (dstWord & 7)*8;
+                int dLim = di + groups*GROUP;
+                if (src == ZERO) {
+                    for (;di<dLim;di+=GROUP) {
+                        LONGS.set(d,di,0L);
+                    }
+                    continue;
+                }
+                int word = src & WORD_MASK;
+                byte[] s;
+                int si;
+                if ((src & OUTPUT) != 0) {
+                    s = out[word >>> 3];
+                    si = outPos[word >>> 3] + (word & 7)*8;
+                } else {
+                    s = in[word >>> 3];
+                    si = inPos[word >>> 3] + (word & 7)*8;
+                }
+                if ((src & COPY) != 0) {
+                    for (;di<dLim;di+=GROUP,si+=GROUP) {
+                        LONGS.set(d,di,(long) LONGS.get(s,si));
+                    }
+                } else {
+                    for (;di<dLim;di+=GROUP,si+=GROUP) {
+                        LONGS.set(d,di,(long) LONGS.get(d,di) ^
+                                  (long) LONGS.get(s,si));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.onionnetworks.fec;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * This class is a pure Java 8 bit FEC code that works on the packets a
+ * 64 bit word at a time (SWAR, SIMD within a register).  It needs nothing
+ * more than a JDK 9 VarHandle, so it is the fast path for JVMs that can't
+ * enable the incubating Vector API used by VectorCode.
+ *
+ * Each word is loaded and stored once through a byteArrayView VarHandle,
+ * which costs a single bounds check per 8 bytes instead of one per byte.
+ * Multiplying by 1 is a plain 64 bit xor, and multiplying by 0 is skipped.
+ * Any other coefficient still needs one table lookup per byte, but
+ * they're done in registers on the loaded word.  The encoding matrix and
+ * the encode/decode logic come from PureCode, so the output is byte for
+ * byte identical.
+ */
+public class SWARCode extends PureCode {
+
+    protected static final VarHandle LONGS = 
+        MethodHandles.byteArrayViewVarHandle(long[].class,
+                                             ByteOrder.nativeOrder());
+
+    public SWARCode(int k, int n) {
+        super(k,n);
+    }
+
+    public SWARCode(int k, int n, char[] encMatrix) {
+        super(k,n,encMatrix);
+    }
+
+    protected void addMul(byte[] dst, int dstPos, byte[] src, int srcPos,
+                          byte c, int len) {
+        // nop, optimize
+        if (c == 0) {
+            return;
+        }
+
+        int i = dstPos;
+        int j = srcPos;
+        int lim = dstPos + len;
+        int wordLim = lim - 7;
+
+        if (c == 1) {
+            // dst ^= src, no multiply needed.
+            for (; i < wordLim; i += 8, j += 8) {
+                long d = (long) LONGS.get(dst,i);
+                long s = (long) LONGS.get(src,j);
+                LONGS.set(dst,i,d ^ s);
+            }
+            for (; i < lim; i++, j++) {
+                dst[i] ^= src[j];
+            }
+            return;
+        }
+
+        char[] gf_mulc = fecMath.gf_mul_table[c & 0xff];
+        for (; i < wordLim; i += 8, j += 8) {
+            long s = (long) LONGS.get(src,j);
+            // The bytes are multiplied independently so the word's byte
+            // order doesn't matter, as long as we put them back in place.
+            long p = (long) gf_mulc[(int) s & 0xff] 
+                | (long) gf_mulc[(int) (s >>> 8) & 0xff] << 8
+                | (long) gf_mulc[(int) (s >>> 16) & 0xff] << 16
+                | (long) gf_mulc[(int) (s >>> 24) & 0xff] << 24
+                | (long) gf_mulc[(int) (s >>> 32) & 0xff] << 32
+                | (long) gf_mulc[(int) (s >>> 40) & 0xff] << 40
+                | (long) gf_mulc[(int) (s >>> 48) & 0xff] << 48
+                | (long) gf_mulc[(int) (s >>> 56)] << 56;
+            long d = (long) LONGS.get(dst,i);
+            LONGS.set(dst,i,d ^ p);
+        }
+
+        // final components
+        for (; i < lim; i++, j++) {
+            dst[i] ^= gf_mulc[src[j] & 0xff];
+        }
+    }
+
+    /**
+     * The same word-at-a-time loop for ByteBuffers, using their absolute
+     * getLong()/putLong().  Like the byte[] version the buffer's byte
+     * order doesn't matter.
+     */
+    protected void addMul(ByteBuffer dst, int dstPos, ByteBuffer src,
+                          int srcPos, byte c, int len) {
+        if (c == 0) {
+            return;
+        }
+
+        int i = dstPos;
+        int j = srcPos;
+        int lim = dstPos + len;
+        int wordLim = lim - 7;
+
+        if (c == 1) {
+            for (; i < wordLim; i += 8, j += 8) {
+                dst.putLong(i,dst.getLong(i) ^ src.getLong(j));
+            }
+            for (; i < lim; i++, j++) {
+                dst.put(i,(byte) (dst.get(i) ^ src.get(j)));
+            }
+            return;
+        }
+
+        char[] gf_mulc = fecMath.gf_mul_table[c & 0xff];
+        for (; i < wordLim; i += 8, j += 8) {
+            long s = src.getLong(j);
+            long p = (long) gf_mulc[(int) s & 0xff] 
+                | (long) gf_mulc[(int) (s >>> 8) & 0xff] << 8
+                | (long) gf_mulc[(int) (s >>> 16) & 0xff] << 16
+                | (long) gf_mulc[(int) (s >>> 24) & 0xff] << 24
+                | (long) gf_mulc[(int) (s >>> 32) & 0xff] << 32
+                | (long) gf_mulc[(int) (s >>> 40) & 0xff] << 40
+                | (long) gf_mulc[(int) (s >>> 48) & 0xff] << 48
+                | (long) gf_mulc[(int) (s >>> 56)] << 56;
+            dst.putLong(i,dst.getLong(i) ^ p);
+        }
+
+        for (; i < lim; i++, j++) {
+            dst.put(i,(byte) (dst.get(i) ^ gf_mulc[src.get(j) & 0xff]));
+        }
+    }
+
+    public String toString() {
+        return new String("SWARCode[k="+k+",n="+n+"]");
+    }
+}
@@ -0,0 +1,71 @@
+package com.onionnetworks.fec;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * This class is PQCode with the packets coded a 64 bit word at a time
+ * through a byteArrayView VarHandle, as in SWARCode.  Multiplying by g is
+ * done on all 8 bytes of a word at once: the high bits are masked off,
+ * the word shifted left by one, and 0x1d xored into each byte whose high
+ * bit was set.  The packets are the same as PQCode's.
+ */
+public class SWARPQCode extends PQCode {
+
+    protected static final VarHandle LONGS =
+        MethodHandles.byteArrayViewVarHandle(long[].class,
+                                             ByteOrder.nativeOrder());
+
+    protected static final long HIGH = 0x8080808080808080L;
+    protected static final long LOW = 0x7f7f7f7f7f7f7f7fL;
+
+    public SWARPQCode(int k, int n) {
+        super(k,n);
+    }
+
+    protected void xor(byte[] dst, int dstPos, byte[] src, int srcPos,
+                       int len) {
+        SWARParityCode.xorWords(dst,dstPos,src,srcPos,len);
+    }
+
+    protected void mul(byte[] dst, int dstPos, int len) {
+        int i = 0;
+        for (;i<len-7;i+=8) {
+            LONGS.set(dst,dstPos+i,mul((long) LONGS.get(dst,dstPos+i)));
+        }
+        super.mul(dst,dstPos+i,len-i);
+    }
+
+    protected void mulXor(byte[] dst, int dstPos, byte[] src, int srcPos,
+                          int len) {
+        int i = 0;
+        for (;i<len-7;i+=8) {
+            LONGS.set(dst,dstPos+i,mul((long) LONGS.get(dst,dstPos+i)) ^
+                      (long) LONGS.get(src,srcPos+i));
+        }
+        super.mulXor(dst,dstPos+i,src,srcPos+i,len-i);
+    }
+
+    protected void xorMulXor(byte[] p, int pPos, byte[] q, int qPos,
+                             byte[] src, int srcPos, int len) {
+        int i = 0;
+        for (;i<len-7;i+=8) {
+            long s = (long) LONGS.get(src,srcPos+i);
+            LONGS.set(p,pPos+i,(long) LONGS.get(p,pPos+i) ^ s);
+            LONGS.set(q,qPos+i,mul((long) LONGS.get(q,qPos+i)) ^ s);
+        }
+        super.xorMulXor(p,pPos+i,q,qPos+i,src,srcPos+i,len-i);
+    }
+
+    /**
+     * @return g times each of the 8 bytes of w.
+     */
+    protected static final long mul(long w) {
+        return ((w & LOW) << 1) ^ (((w & HIGH) >>> 7) * POLY);
+    }
+
+    public String toString() {
+        return new String("SWARPQCode[k="+k+",n="+n+"]");
+    }
+}
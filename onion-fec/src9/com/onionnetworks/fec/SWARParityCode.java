@@ -0,0 +1,47 @@
+package com.onionnetworks.fec;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * This class is ParityCode with the packets xored a 64 bit word at a time
+ * through a byteArrayView VarHandle, as in SWARCode.  The JIT can't prove
+ * that two packets at different offsets don't overlap in the same array,
+ * so it doesn't vectorize ParityCode's byte loop, and this is several
+ * times faster on JDK 9 and up.  The packets are the same as ParityCode's.
+ */
+public class SWARParityCode extends ParityCode {
+
+    protected static final VarHandle LONGS =
+        MethodHandles.byteArrayViewVarHandle(long[].class,
+                                             ByteOrder.nativeOrder());
+
+    public SWARParityCode(int k, int n) {
+        super(k,n);
+    }
+
+    protected void xor(byte[] dst, int dstPos, byte[] src, int srcPos,
+                       int len) {
+        xorWords(dst,dstPos,src,srcPos,len);
+    }
+
+    /**
+     * dst ^= src
+     */
+    protected static final void xorWords(byte[] dst, int dstPos, byte[] src,
+                                         int srcPos, int len) {
+        int i = 0;
+        for (;i<len-7;i+=8) {
+            LONGS.set(dst,dstPos+i,(long) LONGS.get(dst,dstPos+i) ^
+                      (long) LONGS.get(src,srcPos+i));
+        }
+        for (;i<len;i++) {
+            dst[dstPos+i] ^= src[srcPos+i];
+        }
+    }
+
+    public String toString() {
+        return new String("SWARParityCode[k="+k+",n="+n+"]");
+    }
+}
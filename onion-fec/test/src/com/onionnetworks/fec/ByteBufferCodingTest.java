@@ -0,0 +1,129 @@
+package com.onionnetworks.fec;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import com.onionnetworks.util.Buffer;
+import junit.framework.*;
+
+/**
+ * The ByteBuffer encode() and decode() must give the same packets as the
+ * Buffer ones, for heap buffers that don't start at the start of their
+ * array and for direct buffers, with and without parallel coding.
+ */
+public class ByteBufferCodingTest extends TestCase {
+
+    private static final int[] LENGTHS = {1,18,1000,4099};
+
+    public ByteBufferCodingTest(String name) {
+        super(name);
+    }
+
+    protected void tearDown() {
+        ParallelCoderTest.resetParallelism();
+    }
+
+    public void testSerial() {
+        checkAll();
+    }
+
+    public void testParallel() {
+        FECCode.setParallelism(4);
+        FECCode.setParallelThreshold(1);
+        FECCode.setParallelStripeSize(7);
+        checkAll();
+    }
+
+    private void checkAll() {
+        int[][] kn = {{1,2},{10,20},{20,300}};
+        for (int i=0;i<kn.length;i++) {
+            List codes = ParallelCoderTest.createCodes(kn[i][0],kn[i][1]);
+            for (Iterator it=codes.iterator();it.hasNext();) {
+                FECCode code = (FECCode) it.next();
+                for (int j=0;j<LENGTHS.length;j++) {
+                    if (LENGTHS[j] % 2 != 0 &&
+                        ParallelCoderTest.is16Bit(code)) {
+                        continue;
+                    }
+                    check(code,LENGTHS[j],false);
+                    check(code,LENGTHS[j],true);
+                }
+            }
+        }
+    }
+
+    private void check(FECCode code, int len, boolean direct) {
+        int k = code.getK(), n = code.getN();
+        String msg = code+" packetLength="+len+" direct="+direct;
+        Buffer[] src = ParallelCoderTest.randomPackets(k,len);
+        Buffer[] repair = ParallelCoderTest.encode(code,src,len);
+
+        ByteBuffer[] bbRepair = createBuffers(n-k,len,direct);
+        code.encode(toByteBuffers(src,direct),bbRepair,
+                    ParallelCoderTest.repairIndexes(code));
+        assertEquals(msg,repair,bbRepair);
+
+        for (int round=0;round<3;round++) {
+            int[] index = CauchyCodeTest.randomIndexes(code);
+            Buffer[] pkts = ParallelCoderTest.received(code,src,repair,index,
+                                                       len);
+            ByteBuffer[] bbPkts = toByteBuffers(pkts,direct);
+            if (round == 0) {
+                code.decode(bbPkts,(int[]) index.clone());
+            } else {
+                code.decode(bbPkts,(int[]) index.clone(),
+                            new DecodeScratch());
+            }
+            assertEquals(msg,src,bbPkts);
+        }
+    }
+
+    /**
+     * @return Buffers of len bytes between a position of 3 and a limit
+     * short of the capacity, heap ones also with an array offset.
+     */
+    static ByteBuffer[] createBuffers(int count, int len, boolean direct) {
+        ByteBuffer[] bufs = new ByteBuffer[count];
+        for (int i=0;i<count;i++) {
+            ByteBuffer b;
+            if (direct) {
+                b = ByteBuffer.allocateDirect(len+8);
+            } else {
+                b = ByteBuffer.allocate(len+13);
+                b.position(5);
+                b = b.slice();
+            }
+            b.position(3);
+            b.limit(3+len);
+            bufs[i] = b;
+        }
+        return bufs;
+    }
+
+    static ByteBuffer[] toByteBuffers(Buffer[] pkts, boolean direct) {
+        ByteBuffer[] bufs = createBuffers(pkts.length,pkts[0].len,direct);
+        for (int i=0;i<pkts.length;i++) {
+            bufs[i].duplicate().put(pkts[i].b,pkts[i].off,pkts[i].len);
+        }
+        return bufs;
+    }
+
+    /**
+     * Also checks that the positions and limits haven't moved.
+     */
+    static void assertEquals(String msg, Buffer[] expected,
+                             ByteBuffer[] actual) {
+        assertEquals(msg,expected.length,actual.length);
+        for (int i=0;i<expected.length;i++) {
+            Buffer a = expected[i];
+            ByteBuffer b = actual[i];
+            assertEquals(msg,3,b.position());
+            assertEquals(msg,3+a.len,b.limit());
+            for (int j=0;j<a.len;j++) {
+                if (a.b[a.off+j] != b.get(3+j)) {
+                    fail(msg+" packet "+i+" byte "+j);
+                }
+            }
+        }
+    }
+}
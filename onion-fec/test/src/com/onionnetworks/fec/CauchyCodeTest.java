@@ -0,0 +1,150 @@
+package com.onionnetworks.fec;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.onionnetworks.util.Buffer;
+import junit.framework.*;
+
+public class CauchyCodeTest extends TestCase {
+
+    private static Random rand = new Random();
+
+    public CauchyCodeTest(String name) {
+        super(name);
+    }
+
+    public void testRoundTrip() {
+        int[][] kn = {{1,2},{4,6},{16,20},{32,64},{100,256}};
+        int[] lengths = {64,128,1024};
+        for (int i=0;i<kn.length;i++) {
+            CauchyCode code = new CauchyCode(kn[i][0],kn[i][1]);
+            for (int j=0;j<lengths.length;j++) {
+                for (int round=0;round<5;round++) {
+                    roundTrip(code,lengths[j],randomIndexes(code));
+                }
+            }
+        }
+    }
+
+    public void testOnlyRepair() {
+        // Decode from repair packets alone, the whole bit matrix inverted.
+        CauchyCode code = new CauchyCode(8,16);
+        int[] index = new int[8];
+        for (int i=0;i<index.length;i++) {
+            index[i] = 8+i;
+        }
+        roundTrip(code,64*5,index);
+    }
+
+    public void testLargeBlock() {
+        // More than CACHE_BYTES, so coded a chunk of groups at a time.
+        roundTrip(new CauchyCode(20,30),64*300,
+                  randomIndexes(new CauchyCode(20,30)));
+    }
+
+    public void testTail() {
+        // Bytes after the last whole group, coded a symbol per byte.
+        int[] lengths = {1,32,63,65,100,64*300+17};
+        for (int i=0;i<lengths.length;i++) {
+            CauchyCode code = new CauchyCode(16,20);
+            for (int round=0;round<3;round++) {
+                roundTrip(code,lengths[i],randomIndexes(code));
+            }
+            // And from repair packets alone.
+            int[] index = new int[4];
+            for (int j=0;j<index.length;j++) {
+                index[j] = 4+j;
+            }
+            roundTrip(new CauchyCode(4,8),lengths[i],index);
+        }
+    }
+
+    public void testParallelTail() {
+        // The stripes must keep the groups whole, the last one the tail.
+        CauchyCode code = new CauchyCode(10,20);
+        int len = 64*50+33;
+        Buffer[] src = ParallelCoderTest.randomPackets(10,len);
+        int[] index = randomIndexes(code);
+        Buffer[] repair = ParallelCoderTest.encode(code,src,len);
+        try {
+            FECCode.setParallelism(4);
+            FECCode.setParallelThreshold(1);
+            FECCode.setParallelStripeSize(100);
+            ParallelCoderTest.assertEquals
+                (code.toString(),repair,
+                 ParallelCoderTest.encode(code,src,len));
+            ParallelCoderTest.assertEquals
+                (code.toString(),src,
+                 ParallelCoderTest.decode(code,src,repair,index,len));
+        } finally {
+            ParallelCoderTest.resetParallelism();
+        }
+    }
+
+    public void testBadN() {
+        try {
+            new CauchyCode(10,257);
+            fail("Should have thrown exception");
+        } catch (IllegalArgumentException e) {}
+    }
+
+    /**
+     * Encode random source packets, decode the packets of index given to
+     * decode() in that order and check that the source packets come back.
+     */
+    public static void roundTrip(FECCode code, int packetLength,
+                                 int[] index) {
+        int k = code.getK(), n = code.getN();
+        Buffer[] src = createPackets(k,packetLength);
+        for (int i=0;i<k;i++) {
+            rand.nextBytes(src[i].b);
+        }
+        Buffer[] repair = createPackets(n-k,packetLength);
+        int[] repairIndex = new int[n-k];
+        for (int i=0;i<repairIndex.length;i++) {
+            repairIndex[i] = k+i;
+        }
+        code.encode(src,repair,repairIndex);
+
+        Buffer[] pkts = createPackets(k,packetLength);
+        for (int i=0;i<k;i++) {
+            Buffer from = index[i] < k ? src[index[i]] : repair[index[i]-k];
+            System.arraycopy(from.b,0,pkts[i].b,0,packetLength);
+        }
+        int[] decodeIndex = (int[]) index.clone();
+        code.decode(pkts,decodeIndex);
+        for (int i=0;i<k;i++) {
+            assertTrue(code+" packetLength="+packetLength+" packet "+i,
+                       Arrays.equals(src[i].b,pkts[i].b));
+        }
+    }
+
+    /**
+     * @return k distinct packet indexes in random order.
+     */
+    public static int[] randomIndexes(FECCode code) {
+        int n = code.getN();
+        int[] all = new int[n];
+        for (int i=0;i<n;i++) {
+            all[i] = i;
+        }
+        for (int i=n-1;i>0;i--) {
+            int j = rand.nextInt(i+1);
+            int tmp = all[i];
+            all[i] = all[j];
+            all[j] = tmp;
+        }
+        int[] index = new int[code.getK()];
+        System.arraycopy(all,0,index,0,index.length);
+        return index;
+    }
+
+    public static Buffer[] createPackets(int count, int packetLength) {
+        Buffer[] pkts = new Buffer[count];
+        for (int i=0;i<count;i++) {
+            pkts[i] = new Buffer(new byte[packetLength]);
+        }
+        return pkts;
+    }
+}
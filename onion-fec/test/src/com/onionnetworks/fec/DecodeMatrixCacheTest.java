@@ -0,0 +1,154 @@
+package com.onionnetworks.fec;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.*;
+
+public class DecodeMatrixCacheTest extends TestCase {
+
+    private static Random rand = new Random();
+
+    public DecodeMatrixCacheTest(String name) {
+        super(name);
+    }
+
+    /**
+     * A matrix cached for one order of the repair packets, permuted for
+     * another, must be the matrix built directly for that order.
+     */
+    public void testPermutation() {
+        checkPermutation(8,8,16);
+        checkPermutation(8,30,40);
+        checkPermutation(16,20,30);
+        checkPermutation(16,5,300);
+    }
+
+    private void checkPermutation(int gfBits, int k, int n) {
+        FECMath fecMath = new FECMath(gfBits);
+        EncodeMatrix encodeMatrix = new EncodeMatrix(fecMath,k,n);
+        char[] encMatrix = encodeMatrix.toArray();
+        DecodeScratch scratch = new DecodeScratch();
+        for (int e=1;e<=Math.min(k,n-k);e++) {
+            DecodeMatrixCache cache = new DecodeMatrixCache(1 << 24);
+            int[] index = createIndex(k,n,e);
+            cache.getDecodeMatrix(fecMath,encMatrix,index,k,n);
+            cache.getReducedDecodeMatrix(fecMath,encodeMatrix,index);
+            for (int round=0;round<10;round++) {
+                shuffleRepair(index,k);
+                String msg = "gfBits="+gfBits+" "+Arrays.toString(index);
+                char[] full = fecMath.createDecodeMatrix(encMatrix,index,k,n);
+                assertTrue(msg,Arrays.equals
+                           (full,cache.get(gfBits,k,n,index)));
+                char[] m = cache.get(gfBits,k,n,index,false,scratch);
+                assertTrue(msg,equals(full,m,k*k));
+
+                char[] reduced = fecMath.createReducedDecodeMatrix
+                    (encodeMatrix,index);
+                assertTrue(msg,Arrays.equals
+                           (reduced,cache.getReducedDecodeMatrix
+                            (fecMath,encodeMatrix,index)));
+                m = cache.getReducedDecodeMatrix(fecMath,encodeMatrix,index,
+                                                 scratch);
+                assertTrue(msg,equals(reduced,m,e*k));
+            }
+            assertEquals(2,cache.getMisses());
+        }
+    }
+
+    /**
+     * A matrix that keeps being hit outlives those put after it, and the
+     * cache stays within its size.
+     */
+    public void testEviction() {
+        int k = 16, n = 32;
+        FECMath fecMath = new FECMath(8);
+        char[] encMatrix = fecMath.createEncodeMatrix(k,n);
+        DecodeMatrixCache cache = new DecodeMatrixCache(10*2*k*k);
+        int[] hot = createIndex(k,n,3);
+        cache.getDecodeMatrix(fecMath,encMatrix,hot,k,n);
+        for (int i=0;i<100;i++) {
+            cache.getDecodeMatrix(fecMath,encMatrix,createIndex(k,n,4),k,n);
+            assertTrue(cache.getSize() <= 10*2*k*k);
+            assertNotNull(cache.get(8,k,n,hot));
+        }
+        cache.clear();
+        assertEquals(0,cache.getSize());
+        assertNull(cache.get(8,k,n,hot));
+    }
+
+    public void testDisabled() {
+        FECMath fecMath = new FECMath(8);
+        char[] encMatrix = fecMath.createEncodeMatrix(4,8);
+        DecodeMatrixCache cache = new DecodeMatrixCache(0);
+        int[] index = createIndex(4,8,2);
+        cache.getDecodeMatrix(fecMath,encMatrix,index,4,8);
+        assertNull(cache.get(8,4,8,index));
+        assertEquals(0,cache.getSize());
+    }
+
+    /**
+     * @return A shuffled index with e random source packets replaced by
+     * random repair packets.
+     */
+    private static int[] createIndex(int k, int n, int e) {
+        int[] index = new int[k];
+        for (int i=0;i<k;i++) {
+            index[i] = i;
+        }
+        int[] repair = pick(n-k,e);
+        int[] holes = pick(k,e);
+        for (int i=0;i<e;i++) {
+            index[holes[i]] = k + repair[i];
+        }
+        return index;
+    }
+
+    /**
+     * Move the repair packets around between the holes.
+     */
+    private static void shuffleRepair(int[] index, int k) {
+        for (int i=k-1;i>0;i--) {
+            if (index[i] < k) {
+                continue;
+            }
+            int j = rand.nextInt(i+1);
+            if (index[j] >= k) {
+                int tmp = index[i];
+                index[i] = index[j];
+                index[j] = tmp;
+            }
+        }
+    }
+
+    /**
+     * @return count distinct ints below bound.
+     */
+    private static int[] pick(int bound, int count) {
+        int[] all = new int[bound];
+        for (int i=0;i<bound;i++) {
+            all[i] = i;
+        }
+        for (int i=0;i<count;i++) {
+            int j = i + rand.nextInt(bound-i);
+            int tmp = all[i];
+            all[i] = all[j];
+            all[j] = tmp;
+        }
+        int[] result = new int[count];
+        System.arraycopy(all,0,result,0,count);
+        return result;
+    }
+
+    private static boolean equals(char[] a, char[] b, int len) {
+        if (b.length < len) {
+            return false;
+        }
+        for (int i=0;i<len;i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
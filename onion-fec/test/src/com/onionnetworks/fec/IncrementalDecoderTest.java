@@ -0,0 +1,202 @@
+package com.onionnetworks.fec;
+
+import java.util.*;
+
+import com.onionnetworks.util.Buffer;
+import junit.framework.*;
+
+public class IncrementalDecoderTest extends TestCase {
+
+    private static Random rand = new Random();
+
+    private static final int[][] KN = {{1,2},{2,3},{8,12},{32,48},{50,100}};
+
+    public IncrementalDecoderTest(String name) {
+        super(name);
+    }
+
+    public void testRandomOrder() {
+        for (int i=0;i<KN.length;i++) {
+            FECCode[] codes = createCodes(KN[i][0],KN[i][1]);
+            for (int c=0;c<codes.length;c++) {
+                for (int round=0;round<10;round++) {
+                    Block b = new Block(codes[c],64);
+                    b.addAll(shuffle(range(0,codes[c].getN())));
+                }
+            }
+        }
+    }
+
+    public void testRepairsFirst() {
+        // Repair packets take the slots of missing source packets, then
+        // the source packets arrive and have to move them on.
+        for (int i=0;i<KN.length;i++) {
+            FECCode[] codes = createCodes(KN[i][0],KN[i][1]);
+            for (int c=0;c<codes.length;c++) {
+                int k = codes[c].getK(), n = codes[c].getN();
+                List order = range(k,Math.min(n,2*k));
+                order.addAll(range(0,k));
+                new Block(codes[c],32).addAll(order);
+                order = range(k,Math.min(n,2*k));
+                order.addAll(shuffle(range(0,k)));
+                new Block(codes[c],32).addAll(order);
+            }
+        }
+    }
+
+    public void testSourceAfterRepair() {
+        // Every source packet in turn arrives right after a repair packet
+        // that was pivoted into its slot, the first missing one.
+        FECCode[] codes = createCodes(8,16);
+        for (int c=0;c<codes.length;c++) {
+            for (int j=0;j<7;j++) {
+                Block b = new Block(codes[c],16);
+                for (int i=0;i<j;i++) {
+                    assertTrue(b.add(i));
+                }
+                assertTrue(b.add(8+j));
+                assertEquals(8+j,b.decoder.slot[j]);
+                assertTrue(b.add(j));
+                assertEquals(j+2,b.decoder.getRank());
+                assertTrue(b.decoder.isAvailable(j));
+                b.check(j);
+                b.addAll(range(j+1,8));
+            }
+        }
+    }
+
+    public void testInterleaved() {
+        for (int i=0;i<KN.length;i++) {
+            FECCode[] codes = createCodes(KN[i][0],KN[i][1]);
+            for (int c=0;c<codes.length;c++) {
+                int k = codes[c].getK(), n = codes[c].getN();
+                List repairs = shuffle(range(k,n));
+                List sources = shuffle(range(0,k));
+                List order = new ArrayList();
+                while (!repairs.isEmpty() || !sources.isEmpty()) {
+                    if (!repairs.isEmpty()) {
+                        order.add(repairs.remove(0));
+                    }
+                    if (!sources.isEmpty()) {
+                        order.add(sources.remove(0));
+                    }
+                }
+                new Block(codes[c],48).addAll(order);
+            }
+        }
+    }
+
+    public void testLarge16() {
+        // k >= FECMath.MUL_TABLE16_MIN_LEN, so the rows are reduced with
+        // the split table.
+        Pure16Code code = new Pure16Code(600,640);
+        List order = shuffle(range(600,640));
+        order.addAll(shuffle(range(0,600)));
+        new Block(code,4).addAll(order);
+    }
+
+    public void testDuplicates() {
+        Block b = new Block(new PureCode(4,8),8);
+        assertTrue(b.add(5));
+        assertFalse(b.add(5));
+        assertTrue(b.add(0));
+        assertFalse(b.add(0));
+        try {
+            b.decoder.add(8,new byte[8],0);
+            fail("Should have thrown exception");
+        } catch (IllegalArgumentException e) {}
+        try {
+            b.decoder.add(-1,new byte[8],0);
+            fail("Should have thrown exception");
+        } catch (IllegalArgumentException e) {}
+        try {
+            b.check(1);
+            fail("Should have thrown exception");
+        } catch (IllegalStateException e) {}
+    }
+
+    private static FECCode[] createCodes(int k, int n) {
+        return new FECCode[] {new PureCode(k,n), new Pure16Code(k,n)};
+    }
+
+    private static List range(int from, int to) {
+        List l = new ArrayList();
+        for (int i=from;i<to;i++) {
+            l.add(Integer.valueOf(i));
+        }
+        return l;
+    }
+
+    private static List shuffle(List l) {
+        Collections.shuffle(l,rand);
+        return l;
+    }
+
+    /**
+     * The encoded packets of one block and an IncrementalDecoder for them.
+     */
+    private static class Block {
+
+        FECCode code;
+        int k, n, packetLength;
+        byte[][] pkts;
+        IncrementalDecoder decoder;
+
+        Block(FECCode code, int packetLength) {
+            this.code = code;
+            this.packetLength = packetLength;
+            k = code.getK();
+            n = code.getN();
+            Buffer[] src = new Buffer[k];
+            Buffer[] repair = new Buffer[n-k];
+            int[] index = new int[n-k];
+            pkts = new byte[n][packetLength];
+            for (int i=0;i<n;i++) {
+                if (i < k) {
+                    rand.nextBytes(pkts[i]);
+                    src[i] = new Buffer(pkts[i]);
+                } else {
+                    repair[i-k] = new Buffer(pkts[i]);
+                    index[i-k] = i;
+                }
+            }
+            code.encode(src,repair,index);
+            decoder = code.createIncrementalDecoder(packetLength);
+        }
+
+        boolean add(int index) {
+            // At an offset, so that it has to be honored.
+            byte[] b = new byte[packetLength+3];
+            System.arraycopy(pkts[index],0,b,3,packetLength);
+            return decoder.add(index,b,3);
+        }
+
+        /**
+         * Add the packets in order until the block is complete, then check
+         * all of it.
+         */
+        void addAll(List order) {
+            String what = code+" order="+order;
+            for (Iterator it=order.iterator();it.hasNext();) {
+                int index = ((Integer) it.next()).intValue();
+                boolean complete = decoder.isComplete();
+                boolean useful = add(index);
+                assertEquals(what+" index "+index,!complete,useful);
+                if (index < k) {
+                    check(index);
+                }
+            }
+            assertTrue(what,decoder.isComplete());
+            assertEquals(what,k,decoder.getRank());
+            for (int i=0;i<k;i++) {
+                check(i);
+            }
+        }
+
+        void check(int i) {
+            byte[] b = new byte[packetLength];
+            decoder.getPacket(i,b,0);
+            assertTrue(code+" packet "+i,Arrays.equals(pkts[i],b));
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.onionnetworks.fec;
+
+import java.util.*;
+
+import com.onionnetworks.util.Buffer;
+import junit.framework.*;
+
+public class PQCodeTest extends TestCase {
+
+    private static Random rand = new Random();
+
+    private static final int[] KS = {1,2,3,8,31,254};
+    private static final int[] LENGTHS = {1,7,64,1000};
+    // The largest k has 32k patterns, so it is only run with short packets.
+    private static final int[] SHORT = {9};
+
+    public PQCodeTest(String name) {
+        super(name);
+    }
+
+    /**
+     * Every two-erasure pattern of n = k+2, every one-erasure pattern of
+     * n = k+1, with the k packets left given to decode() in random order.
+     */
+    public void testAllErasures() {
+        for (int i=0;i<KS.length;i++) {
+            int k = KS[i];
+            for (int n=k+1;n<=k+2;n++) {
+                List codes = createCodes(k,n);
+                int[] lengths = k > 31 ? SHORT : LENGTHS;
+                for (int j=0;j<lengths.length;j++) {
+                    int len = lengths[j];
+                    Buffer[] src = randomPackets(k,len);
+                    Buffer[] repair = encode((FECCode) codes.get(0),src,len);
+                    for (Iterator it=codes.iterator();it.hasNext();) {
+                        FECCode code = (FECCode) it.next();
+                        assertSame(code,repair,encode(code,src,len));
+                        for (int a=0;a<n;a++) {
+                            if (n == k+1) {
+                                decode(code,src,repair,new int[] {a},len);
+                                continue;
+                            }
+                            for (int b=a+1;b<n;b++) {
+                                decode(code,src,repair,new int[] {a,b},len);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public void testParityCode() {
+        int[] ks = {1,2,9,300};
+        for (int i=0;i<ks.length;i++) {
+            int k = ks[i];
+            FECCode[] codes = {new ParityCode(k,k+1),
+                               new SWARParityCode(k,k+1)};
+            Buffer[] src = randomPackets(k,100);
+            Buffer[] repair = encode(codes[0],src,100);
+            for (int c=0;c<codes.length;c++) {
+                assertSame(codes[c],repair,encode(codes[c],src,100));
+                for (int a=0;a<=k;a++) {
+                    decode(codes[c],src,repair,new int[] {a},100);
+                }
+            }
+        }
+    }
+
+    public void testBadIndex() {
+        Buffer[] src = randomPackets(4,16);
+        // Q of a code without Q, P of a code without repair packets.
+        int[][] kni = {{4,5,5},{4,4,4},{4,6,6}};
+        for (int i=0;i<kni.length;i++) {
+            List codes = createCodes(kni[i][0],kni[i][1]);
+            for (Iterator it=codes.iterator();it.hasNext();) {
+                FECCode code = (FECCode) it.next();
+                try {
+                    code.encode(src,randomPackets(1,16),
+                                new int[] {kni[i][2]});
+                    fail("Should have thrown exception: "+code+" index "+
+                         kni[i][2]);
+                } catch (IllegalArgumentException e) {}
+                try {
+                    code.decode(randomPackets(4,16),
+                                new int[] {kni[i][2],1,2,3});
+                    fail("Should have thrown exception: "+code+" index "+
+                         kni[i][2]);
+                } catch (IllegalArgumentException e) {}
+            }
+        }
+    }
+
+    public void testBadK() {
+        try {
+            new PQCode(256,258);
+            fail("Should have thrown exception");
+        } catch (IllegalArgumentException e) {}
+    }
+
+    /**
+     * PQCode, SWARPQCode and NativePQCode if the native library is there.
+     */
+    private static List createCodes(int k, int n) {
+        List codes = new ArrayList();
+        codes.add(new PQCode(k,n));
+        codes.add(new SWARPQCode(k,n));
+        try {
+            codes.add(new NativePQCode(k,n));
+        } catch (IllegalArgumentException e) {
+            throw e;
+        } catch (Throwable t) {
+            // No native library on this platform.
+        }
+        return codes;
+    }
+
+    private static Buffer[] randomPackets(int count, int len) {
+        Buffer[] pkts = new Buffer[count];
+        for (int i=0;i<count;i++) {
+            pkts[i] = new Buffer(new byte[len]);
+            rand.nextBytes(pkts[i].b);
+        }
+        return pkts;
+    }
+
+    private static Buffer[] encode(FECCode code, Buffer[] src, int len) {
+        int k = code.getK(), n = code.getN();
+        Buffer[] repair = new Buffer[n-k];
+        int[] index = new int[n-k];
+        for (int i=0;i<index.length;i++) {
+            repair[i] = new Buffer(new byte[len]);
+            index[i] = k+i;
+        }
+        code.encode(src,repair,index);
+        return repair;
+    }
+
+    private static void assertSame(FECCode code, Buffer[] expected,
+                                   Buffer[] actual) {
+        for (int i=0;i<expected.length;i++) {
+            assertTrue(code+" repair packet "+i,
+                       Arrays.equals(expected[i].b,actual[i].b));
+        }
+    }
+
+    /**
+     * Decode all of the packets but those in lost, in random order, and
+     * check that the source packets come back.
+     */
+    private static void decode(FECCode code, Buffer[] src, Buffer[] repair,
+                               int[] lost, int len) {
+        int k = code.getK(), n = code.getN();
+        List left = new ArrayList();
+        for (int i=0;i<n;i++) {
+            left.add(Integer.valueOf(i));
+        }
+        for (int i=lost.length-1;i>=0;i--) {
+            left.remove(lost[i]);
+        }
+        Collections.shuffle(left,rand);
+        Buffer[] pkts = new Buffer[k];
+        int[] index = new int[k];
+        for (int i=0;i<k;i++) {
+            index[i] = ((Integer) left.get(i)).intValue();
+            Buffer from = index[i] < k ? src[index[i]] : repair[index[i]-k];
+            pkts[i] = new Buffer((byte[]) from.b.clone());
+        }
+        String what = code+" len="+len+" lost="+Arrays.toString(lost);
+        code.decode(pkts,index);
+        for (int i=0;i<k;i++) {
+            assertTrue(what+" packet "+i,Arrays.equals(src[i].b,pkts[i].b));
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.onionnetworks.fec;
+
+import java.util.*;
+
+import com.onionnetworks.util.Buffer;
+import junit.framework.*;
+
+/**
+ * Parallel coding must give the same packets as serial coding, whatever
+ * the stripes.  The threshold is 1, so every call is split.
+ */
+public class ParallelCoderTest extends TestCase {
+
+    private static Random rand = new Random();
+
+    // The odd ones only for the 8 bit codes.
+    private static final int[] LENGTHS = {1,17,18,1000,4098,4099};
+    // Neither divides the lengths above.
+    private static final int[] STRIPES = {7,100};
+
+    public ParallelCoderTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() {
+        FECCode.setParallelism(4);
+        FECCode.setParallelThreshold(1);
+    }
+
+    protected void tearDown() {
+        resetParallelism();
+    }
+
+    public void testSameAsSerial() {
+        int[][] kn = {{1,2},{10,20},{64,96},{20,300}};
+        for (int i=0;i<kn.length;i++) {
+            List codes = createCodes(kn[i][0],kn[i][1]);
+            for (Iterator it=codes.iterator();it.hasNext();) {
+                FECCode code = (FECCode) it.next();
+                for (int j=0;j<LENGTHS.length;j++) {
+                    if (LENGTHS[j] % 2 != 0 && is16Bit(code)) {
+                        continue;
+                    }
+                    for (int s=0;s<STRIPES.length;s++) {
+                        check(code,LENGTHS[j],STRIPES[s]);
+                    }
+                }
+            }
+        }
+    }
+
+    private void check(FECCode code, int len, int stripe) {
+        int k = code.getK(), n = code.getN();
+        String msg = code+" packetLength="+len+" stripe="+stripe;
+        Buffer[] src = randomPackets(k,len);
+        int[] index = CauchyCodeTest.randomIndexes(code);
+
+        FECCode.setParallelism(0);
+        Buffer[] repair = encode(code,src,len);
+        Buffer[] serial = decode(code,src,repair,index,len);
+
+        FECCode.setParallelism(4);
+        FECCode.setParallelStripeSize(stripe);
+        assertEquals(msg,repair,encode(code,src,len));
+        Buffer[] parallel = decode(code,src,repair,index,len);
+        assertEquals(msg,src,serial);
+        assertEquals(msg,serial,parallel);
+    }
+
+    /**
+     * Turn parallel coding off again and restore the defaults.
+     */
+    public static void resetParallelism() {
+        FECCode.setParallelism(0);
+        FECCode.setParallelThreshold(ParallelCoder.DEFAULT_THRESHOLD);
+        FECCode.setParallelStripeSize(ParallelCoder.DEFAULT_STRIPE_SIZE);
+    }
+
+    /**
+     * The Reed-Solomon codes that take this k and n, the native ones only
+     * if their library is there.
+     */
+    public static List createCodes(int k, int n) {
+        List codes = new ArrayList();
+        if (n <= 256) {
+            codes.add(new PureCode(k,n));
+            codes.add(new SWARCode(k,n));
+            try {
+                codes.add(new Native8Code(k,n));
+            } catch (Throwable t) {
+                // No native library on this platform.
+            }
+        }
+        codes.add(new Pure16Code(k,n));
+        try {
+            codes.add(new Native16Code(k,n));
+        } catch (Throwable t) {
+            // No native library on this platform.
+        }
+        return codes;
+    }
+
+    public static boolean is16Bit(FECCode code) {
+        return code instanceof Pure16Code || code instanceof Native16Code;
+    }
+
+    public static Buffer[] randomPackets(int count, int len) {
+        Buffer[] pkts = CauchyCodeTest.createPackets(count,len);
+        for (int i=0;i<count;i++) {
+            rand.nextBytes(pkts[i].b);
+        }
+        return pkts;
+    }
+
+    /**
+     * @return All of the repair packets of src.
+     */
+    public static Buffer[] encode(FECCode code, Buffer[] src, int len) {
+        int k = code.getK(), n = code.getN();
+        Buffer[] repair = CauchyCodeTest.createPackets(n-k,len);
+        code.encode(src,repair,repairIndexes(code));
+        return repair;
+    }
+
+    /**
+     * @return The packets of index decoded.
+     */
+    public static Buffer[] decode(FECCode code, Buffer[] src,
+                                  Buffer[] repair, int[] index, int len) {
+        Buffer[] pkts = received(code,src,repair,index,len);
+        code.decode(pkts,(int[]) index.clone());
+        return pkts;
+    }
+
+    /**
+     * @return Copies of the packets of index, in that order.
+     */
+    public static Buffer[] received(FECCode code, Buffer[] src,
+                                    Buffer[] repair, int[] index, int len) {
+        int k = code.getK();
+        Buffer[] pkts = CauchyCodeTest.createPackets(k,len);
+        for (int i=0;i<k;i++) {
+            Buffer from = index[i] < k ? src[index[i]] : repair[index[i]-k];
+            System.arraycopy(from.b,from.off,pkts[i].b,0,len);
+        }
+        return pkts;
+    }
+
+    public static int[] repairIndexes(FECCode code) {
+        int k = code.getK();
+        int[] index = new int[code.getN()-k];
+        for (int i=0;i<index.length;i++) {
+            index[i] = k+i;
+        }
+        return index;
+    }
+
+    public static void assertEquals(String msg, Buffer[] expected,
+                                    Buffer[] actual) {
+        assertEquals(msg,expected.length,actual.length);
+        for (int i=0;i<expected.length;i++) {
+            Buffer a = expected[i], b = actual[i];
+            assertEquals(msg,a.len,b.len);
+            for (int j=0;j<a.len;j++) {
+                if (a.b[a.off+j] != b.b[b.off+j]) {
+                    fail(msg+" packet "+i+" byte "+j);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.onionnetworks.fec;
+
+import java.util.*;
+
+import com.onionnetworks.util.Buffer;
+import junit.framework.*;
+
+/**
+ * PureCode and Pure16Code decode with the e*k reduced decode matrix of
+ * FECMath.createReducedDecodeMatrix(), which must hold the rows of the
+ * full inverse for the missing packets and decode every loss pattern.
+ */
+public class ReducedDecodeTest extends TestCase {
+
+    private static Random rand = new Random();
+
+    public ReducedDecodeTest(String name) {
+        super(name);
+    }
+
+    public void testRowsOfInverse() {
+        int[][] kn = {{1,2},{2,4},{8,16},{30,40},{64,128}};
+        for (int bits=8;bits<=16;bits+=8) {
+            FECMath fecMath = new FECMath(bits);
+            for (int i=0;i<kn.length;i++) {
+                int k = kn[i][0], n = kn[i][1];
+                EncodeMatrix encodeMatrix = new EncodeMatrix(fecMath,k,n);
+                char[] encMatrix = encodeMatrix.toArray();
+                for (int e=1;e<=Math.min(k,n-k);e++) {
+                    int[] index = createIndex(k,n,e);
+                    String msg = "gfBits="+bits+" "+Arrays.toString(index);
+                    char[] full = fecMath.createDecodeMatrix(encMatrix,index,
+                                                             k,n);
+                    char[] reduced = fecMath.createReducedDecodeMatrix
+                        (encodeMatrix,index);
+                    assertEquals(msg,e*k,reduced.length);
+                    for (int row=0, r=0;row<k;row++) {
+                        if (index[row] < k) {
+                            continue;
+                        }
+                        for (int col=0;col<k;col++) {
+                            assertEquals(msg,full[row*k+col],
+                                         reduced[r*k+col]);
+                        }
+                        r++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Every single and double erasure of small codes.
+     */
+    public void testAllSmallLosses() {
+        int[][] kn = {{1,2},{1,3},{2,4},{5,8},{12,16}};
+        for (int i=0;i<kn.length;i++) {
+            FECCode[] codes = createCodes(kn[i][0],kn[i][1]);
+            for (int c=0;c<codes.length;c++) {
+                FECCode code = codes[c];
+                int k = code.getK(), n = code.getN();
+                Buffer[] src = ParallelCoderTest.randomPackets(k,18);
+                Buffer[] repair = ParallelCoderTest.encode(code,src,18);
+                for (int a=0;a<k;a++) {
+                    for (int ra=k;ra<n;ra++) {
+                        int[] index = range(k);
+                        index[a] = ra;
+                        check(code,src,repair,index,18);
+                        for (int b=a+1;b<k;b++) {
+                            for (int rb=k;rb<n;rb++) {
+                                if (rb == ra) {
+                                    continue;
+                                }
+                                index[b] = rb;
+                                check(code,src,repair,index,18);
+                                index[b] = b;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public void testRandomLosses() {
+        int[][] kn = {{16,32},{50,100},{100,256},{20,300}};
+        int[] lengths = {2,100,1026};
+        for (int i=0;i<kn.length;i++) {
+            FECCode[] codes = createCodes(kn[i][0],kn[i][1]);
+            for (int c=0;c<codes.length;c++) {
+                FECCode code = codes[c];
+                int k = code.getK(), n = code.getN();
+                for (int j=0;j<lengths.length;j++) {
+                    Buffer[] src = ParallelCoderTest.randomPackets
+                        (k,lengths[j]);
+                    Buffer[] repair = ParallelCoderTest.encode
+                        (code,src,lengths[j]);
+                    for (int round=0;round<10;round++) {
+                        int e = 1+rand.nextInt(Math.min(k,n-k));
+                        int[] index = shuffle(createIndex(k,n,e));
+                        check(code,src,repair,index,lengths[j]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * e = k, nothing but repair packets, in and out of order.
+     */
+    public void testOnlyRepair() {
+        int[][] kn = {{1,2},{4,8},{32,64},{100,200}};
+        for (int i=0;i<kn.length;i++) {
+            FECCode[] codes = createCodes(kn[i][0],kn[i][1]);
+            for (int c=0;c<codes.length;c++) {
+                FECCode code = codes[c];
+                int k = code.getK(), n = code.getN();
+                Buffer[] src = ParallelCoderTest.randomPackets(k,64);
+                Buffer[] repair = ParallelCoderTest.encode(code,src,64);
+                int[] index = new int[k];
+                for (int j=0;j<k;j++) {
+                    index[j] = n-1-j;
+                }
+                check(code,src,repair,index,64);
+                check(code,src,repair,shuffle(index),64);
+            }
+        }
+    }
+
+    /**
+     * A 16 bit code too large to keep its encoding matrix, whose rows are
+     * generated for every decode.
+     */
+    public void testUnmaterialized() {
+        int old = PureCode.maxEncodeMatrix;
+        PureCode.maxEncodeMatrix = 0;
+        try {
+            FECCode code = new Pure16Code(40,1000);
+            assertNull(((PureCode) code).encMatrix);
+            Buffer[] src = ParallelCoderTest.randomPackets(40,100);
+            Buffer[] repair = ParallelCoderTest.encode(code,src,100);
+            for (int round=0;round<5;round++) {
+                int[] index = shuffle(createIndex(40,1000,1+rand.nextInt(40)));
+                check(code,src,repair,index,100);
+            }
+        } finally {
+            PureCode.maxEncodeMatrix = old;
+        }
+    }
+
+    private static void check(FECCode code, Buffer[] src, Buffer[] repair,
+                              int[] index, int len) {
+        ParallelCoderTest.assertEquals
+            (code+" "+Arrays.toString(index),src,
+             ParallelCoderTest.decode(code,src,repair,index,len));
+    }
+
+    private static FECCode[] createCodes(int k, int n) {
+        if (n > 256) {
+            return new FECCode[] {new Pure16Code(k,n)};
+        }
+        return new FECCode[] {new PureCode(k,n),new Pure16Code(k,n)};
+    }
+
+    /**
+     * @return The shuffled index of a block with e random source packets
+     * replaced by random repair packets.
+     */
+    private static int[] createIndex(int k, int n, int e) {
+        int[] index = range(k);
+        int[] holes = shuffle(range(k));
+        int[] repair = shuffle(range(n-k));
+        for (int i=0;i<e;i++) {
+            index[holes[i]] = k+repair[i];
+        }
+        return index;
+    }
+
+    private static int[] range(int len) {
+        int[] result = new int[len];
+        for (int i=0;i<len;i++) {
+            result[i] = i;
+        }
+        return result;
+    }
+
+    private static int[] shuffle(int[] a) {
+        for (int i=a.length-1;i>0;i--) {
+            int j = rand.nextInt(i+1);
+            int tmp = a[i];
+            a[i] = a[j];
+            a[j] = tmp;
+        }
+        return a;
+    }
+}
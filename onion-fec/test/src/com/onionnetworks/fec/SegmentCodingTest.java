@@ -0,0 +1,129 @@
+package com.onionnetworks.fec;
+
+import java.util.*;
+
+import com.onionnetworks.util.Buffer;
+import junit.framework.*;
+
+/**
+ * encodeSegments() and decodeSegments() must give the same packets as
+ * encode() and decode() called for each segment, with and without
+ * parallel coding.
+ */
+public class SegmentCodingTest extends TestCase {
+
+    private static Random rand = new Random();
+
+    private static final int[] LENGTHS = {1,18,1000,4099};
+
+    public SegmentCodingTest(String name) {
+        super(name);
+    }
+
+    protected void tearDown() {
+        ParallelCoderTest.resetParallelism();
+    }
+
+    public void testSerial() {
+        checkAll();
+    }
+
+    public void testParallel() {
+        FECCode.setParallelism(4);
+        FECCode.setParallelThreshold(1);
+        FECCode.setParallelStripeSize(7);
+        checkAll();
+    }
+
+    public void testBadSegments() {
+        FECCode code = new PureCode(4,8);
+        try {
+            code.encodeSegments(new byte[][] {new byte[39]},new int[] {0},
+                                new byte[][] {new byte[40]},new int[] {0},
+                                new int[] {4,5,6,7},10);
+            fail("Should have thrown exception");
+        } catch (IllegalArgumentException e) {}
+        try {
+            code.decodeSegments(new byte[][] {new byte[40]},new int[] {0},
+                                new int[][] {{0,1,2}},10);
+            fail("Should have thrown exception");
+        } catch (IllegalArgumentException e) {}
+    }
+
+    private void checkAll() {
+        int[][] kn = {{1,2},{10,20},{20,300}};
+        int[] segments = {1,5};
+        for (int i=0;i<kn.length;i++) {
+            List codes = ParallelCoderTest.createCodes(kn[i][0],kn[i][1]);
+            for (Iterator it=codes.iterator();it.hasNext();) {
+                FECCode code = (FECCode) it.next();
+                for (int j=0;j<LENGTHS.length;j++) {
+                    if (LENGTHS[j] % 2 != 0 &&
+                        ParallelCoderTest.is16Bit(code)) {
+                        continue;
+                    }
+                    for (int s=0;s<segments.length;s++) {
+                        check(code,LENGTHS[j],segments[s]);
+                    }
+                }
+            }
+        }
+    }
+
+    private void check(FECCode code, int len, int segments) {
+        int k = code.getK(), n = code.getN();
+        String msg = code+" packetLength="+len+" segments="+segments;
+        // Every segment at its own offset, after some bytes of another.
+        byte[][] src = new byte[segments][];
+        int[] srcOff = new int[segments];
+        byte[][] repair = new byte[segments][];
+        int[] repairOff = new int[segments];
+        for (int s=0;s<segments;s++) {
+            srcOff[s] = 2*s;
+            src[s] = new byte[srcOff[s]+k*len];
+            rand.nextBytes(src[s]);
+            repairOff[s] = 1+s;
+            repair[s] = new byte[repairOff[s]+(n-k)*len];
+        }
+        int[] repairIndex = ParallelCoderTest.repairIndexes(code);
+        code.encodeSegments(src,srcOff,repair,repairOff,repairIndex,len);
+
+        byte[][] data = new byte[segments][];
+        int[] dataOff = new int[segments];
+        int[][] index = new int[segments][];
+        for (int s=0;s<segments;s++) {
+            Buffer[] srcPkts = packets(src[s],srcOff[s],k,len);
+            Buffer[] repairPkts = ParallelCoderTest.encode(code,srcPkts,len);
+            ParallelCoderTest.assertEquals
+                (msg+" segment "+s,repairPkts,
+                 packets(repair[s],repairOff[s],n-k,len));
+
+            // A different loss pattern for every segment.
+            index[s] = CauchyCodeTest.randomIndexes(code);
+            dataOff[s] = 3*s;
+            data[s] = new byte[dataOff[s]+k*len];
+            Buffer[] pkts = ParallelCoderTest.received
+                (code,srcPkts,repairPkts,index[s],len);
+            for (int i=0;i<k;i++) {
+                System.arraycopy(pkts[i].b,0,data[s],dataOff[s]+i*len,len);
+            }
+        }
+        code.decodeSegments(data,dataOff,index,len);
+        for (int s=0;s<segments;s++) {
+            ParallelCoderTest.assertEquals
+                (msg+" segment "+s,packets(src[s],srcOff[s],k,len),
+                 packets(data[s],dataOff[s],k,len));
+        }
+    }
+
+    /**
+     * @return The count packets one after the other in b from off.
+     */
+    private static Buffer[] packets(byte[] b, int off, int count, int len) {
+        Buffer[] pkts = new Buffer[count];
+        for (int i=0;i<count;i++) {
+            pkts[i] = new Buffer(b,off+i*len,len);
+        }
+        return pkts;
+    }
+}
@@ -0,0 +1,108 @@
+package com.onionnetworks.fec;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import com.onionnetworks.util.Buffer;
+import junit.framework.*;
+
+/**
+ * PureCode and Pure16Code encode and decode a stripe at a time, see
+ * PureCode.decodeStripe().  With small blockRows and blockStripe the
+ * stripes don't divide the packet lengths and there are more missing
+ * packets than blockRows, so the last short stripe and the groups of
+ * rows are all exercised, for byte[]'s, heap and direct buffers.
+ */
+public class StripedDecodeTest extends TestCase {
+
+    private static Random rand = new Random();
+
+    // None of them a multiple of the stripes, the odd ones only for the 8
+    // bit codes.
+    private static final int[] LENGTHS = {2,300,1000,1537,2050,5000};
+    // blockRows is 2 below, and its stripes 256 bytes.
+    private static final int[] MISSING = {1,2,3,7,12};
+
+    private int oldBlockRows, oldBlockStripe;
+
+    public StripedDecodeTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() {
+        oldBlockRows = PureCode.blockRows;
+        oldBlockStripe = PureCode.blockStripe;
+    }
+
+    protected void tearDown() {
+        PureCode.blockRows = oldBlockRows;
+        PureCode.blockStripe = oldBlockStripe;
+    }
+
+    public void testStriped() {
+        FECCode[] codes = {new PureCode(12,30),new SWARCode(12,30),
+                           new Pure16Code(12,30)};
+        for (int c=0;c<codes.length;c++) {
+            for (int j=0;j<LENGTHS.length;j++) {
+                if (LENGTHS[j] % 2 != 0 &&
+                    ParallelCoderTest.is16Bit(codes[c])) {
+                    continue;
+                }
+                for (int m=0;m<MISSING.length;m++) {
+                    check(codes[c],LENGTHS[j],MISSING[m]);
+                }
+            }
+        }
+    }
+
+    private void check(FECCode code, int len, int missing) {
+        int k = code.getK();
+        String msg = code+" packetLength="+len+" missing="+missing;
+        Buffer[] src = ParallelCoderTest.randomPackets(k,len);
+        // The repair packets with the default blocking.
+        PureCode.blockRows = oldBlockRows;
+        PureCode.blockStripe = oldBlockStripe;
+        Buffer[] repair = ParallelCoderTest.encode(code,src,len);
+
+        PureCode.blockRows = 2;
+        PureCode.blockStripe = 256;
+        ParallelCoderTest.assertEquals
+            (msg,repair,ParallelCoderTest.encode(code,src,len));
+        int[] index = createIndex(code,missing);
+        msg += " "+Arrays.toString(index);
+        ParallelCoderTest.assertEquals
+            (msg,src,ParallelCoderTest.decode(code,src,repair,index,len));
+        for (int d=0;d<2;d++) {
+            boolean direct = d == 1;
+            Buffer[] pkts = ParallelCoderTest.received(code,src,repair,
+                                                       index,len);
+            ByteBuffer[] bufs = ByteBufferCodingTest.toByteBuffers
+                (pkts,direct);
+            code.decode(bufs,(int[]) index.clone(),new DecodeScratch());
+            ByteBufferCodingTest.assertEquals(msg+" direct="+direct,src,
+                                              bufs);
+        }
+    }
+
+    /**
+     * @return The shuffled index of a block with its first missing
+     * source packets replaced by the last repair packets.
+     */
+    private static int[] createIndex(FECCode code, int missing) {
+        int k = code.getK(), n = code.getN();
+        int[] index = new int[k];
+        for (int i=0;i<k;i++) {
+            index[i] = i;
+        }
+        for (int i=0;i<missing;i++) {
+            index[i] = n-1-i;
+        }
+        for (int i=k-1;i>0;i--) {
+            int j = rand.nextInt(i+1);
+            int tmp = index[i];
+            index[i] = index[j];
+            index[j] = tmp;
+        }
+        return index;
+    }
+}
@@ -0,0 +1,94 @@
+package com.onionnetworks.fec;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.onionnetworks.util.Buffer;
+import junit.framework.*;
+
+/**
+ * VectorCode against PureCode.  Only meaningful when the Vector API is
+ * resolved, the test target adds jdk.incubator.vector; also worth running
+ * with e.g. -XX:MaxVectorSize=8, where VectorCode has to refuse to be
+ * built rather than code with vectors too short for its nibble lookups.
+ */
+public class VectorCodeTest extends TestCase {
+
+    private static Random rand = new Random();
+
+    private static final int[] LENGTHS = {1,15,16,17,63,64,65,1000,4099};
+
+    public VectorCodeTest(String name) {
+        super(name);
+    }
+
+    public void testSameAsPureCode() {
+        int[][] kn = {{1,2},{4,6},{16,20},{32,64},{100,256}};
+        for (int i=0;i<kn.length;i++) {
+            FECCode code = createCode(kn[i][0],kn[i][1]);
+            if (code == null) {
+                return;
+            }
+            FECCode pure = new PureCode(kn[i][0],kn[i][1]);
+            for (int j=0;j<LENGTHS.length;j++) {
+                int len = LENGTHS[j];
+                Buffer[] src = CauchyCodeTest.createPackets(code.getK(),len);
+                for (int l=0;l<src.length;l++) {
+                    rand.nextBytes(src[l].b);
+                }
+                assertTrue(code+" packetLength="+len,
+                           Arrays.equals(encode(pure,src,len),
+                                         encode(code,src,len)));
+            }
+        }
+    }
+
+    public void testRoundTrip() {
+        int[][] kn = {{1,2},{4,6},{16,20},{32,64},{100,256}};
+        for (int i=0;i<kn.length;i++) {
+            FECCode code = createCode(kn[i][0],kn[i][1]);
+            if (code == null) {
+                return;
+            }
+            for (int j=0;j<LENGTHS.length;j++) {
+                for (int round=0;round<3;round++) {
+                    CauchyCodeTest.roundTrip
+                        (code,LENGTHS[j],CauchyCodeTest.randomIndexes(code));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return null if the Vector API is unavailable, in which case the
+     * vectors must not have been usable.
+     */
+    private static FECCode createCode(int k, int n) {
+        try {
+            FECCode code = new VectorCode(k,n);
+            assertTrue("VectorCode built with "+VectorMath.LANES+" lanes",
+                       VectorMath.LANES >= 16);
+            return code;
+        } catch (UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return all the repair packets of code concatenated.
+     */
+    private static byte[] encode(FECCode code, Buffer[] src, int len) {
+        int k = code.getK(), n = code.getN();
+        Buffer[] repair = CauchyCodeTest.createPackets(n-k,len);
+        int[] index = new int[n-k];
+        for (int i=0;i<index.length;i++) {
+            index[i] = k+i;
+        }
+        code.encode(src,repair,index);
+        byte[] b = new byte[(n-k)*len];
+        for (int i=0;i<repair.length;i++) {
+            System.arraycopy(repair[i].b,0,b,i*len,len);
+        }
+        return b;
+    }
+}
@@ -0,0 +1,210 @@
+package com.onionnetworks.fec.io;
+
+import java.io.*;
+import java.util.*;
+
+import com.onionnetworks.fec.*;
+import com.onionnetworks.util.Buffer;
+import junit.framework.*;
+
+/**
+ * Streams written to an FECOutputStream must come back out of an
+ * FECInputStream whatever happens to the packets on the way: shuffled,
+ * n-k of each segment lost and some duplicated, passed in from several
+ * threads that decode as they go.
+ */
+public class FECStreamTest extends TestCase {
+
+    private static Random rand = new Random();
+
+    public FECStreamTest(String name) {
+        super(name);
+    }
+
+    public void testSingleThreaded() throws IOException {
+        FECCode code = new PureCode(8,12);
+        int seg = 8*100;
+        // The last one ends in the middle of the first, the third and the
+        // last packet of its segment.
+        long[] lengths = {0,1,99,100,seg-1,seg,seg+1,2*seg+250,3*seg+799};
+        for (int i=0;i<lengths.length;i++) {
+            byte[] data = randomData(lengths[i]);
+            List pkts = encode(code,100,data,false);
+            assertEquals(segments(lengths[i],seg)*12,pkts.size());
+            byte[] result = decode(code,100,data.length,mangle(code,pkts),1);
+            assertTrue("length="+lengths[i],Arrays.equals(data,result));
+        }
+    }
+
+    public void testThreaded() throws IOException {
+        FECCode[] codes = {new PureCode(16,24),new Pure16Code(10,40),
+                           FECCodeFactory.getDefault().createFECCode(32,40)};
+        int len = 256;
+        for (int c=0;c<codes.length;c++) {
+            FECCode code = codes[c];
+            int seg = code.getK()*len;
+            // The final segment holds fewer than k packets.
+            long length = 5L*seg + 3*len + 17;
+            byte[] data = randomData(length);
+            List pkts = encode(code,len,data,true);
+            byte[] result = decode(code,len,data.length,mangle(code,pkts),4);
+            assertTrue(code.toString(),Arrays.equals(data,result));
+        }
+    }
+
+    /**
+     * Only the source packets arrive, so the segments are read without
+     * ever being decoded.
+     */
+    public void testNoLosses() throws IOException {
+        FECCode code = new PureCode(4,6);
+        byte[] data = randomData(4*50*3+20);
+        List pkts = encode(code,50,data,false);
+        List src = new ArrayList();
+        for (Iterator it=pkts.iterator();it.hasNext();) {
+            FECPacket p = (FECPacket) it.next();
+            if (p.getIndex() < 4) {
+                src.add(p);
+            }
+        }
+        assertTrue(Arrays.equals(data,decode(code,50,data.length,src,1)));
+    }
+
+    public void testBadPacket() throws IOException {
+        FECInputStream in = new FECInputStream(new PureCode(4,6),10,100);
+        try {
+            in.write(new FECPacket(0,6,new Buffer(new byte[10])));
+            fail("Should have thrown exception");
+        } catch (IllegalArgumentException e) {}
+        try {
+            in.write(new FECPacket(0,-1,new Buffer(new byte[10])));
+            fail("Should have thrown exception");
+        } catch (IllegalArgumentException e) {}
+        try {
+            in.write(new FECPacket(0,1,new Buffer(new byte[9])));
+            fail("Should have thrown exception");
+        } catch (IllegalArgumentException e) {}
+    }
+
+    /**
+     * @param threaded Whether to emit on the default pool rather than on
+     * the writing thread.
+     * @return Copies of all of the packets emitted, in order.
+     */
+    private static List encode(FECCode code, int packetLength, byte[] data,
+                               boolean threaded) throws IOException {
+        final List pkts = Collections.synchronizedList(new ArrayList());
+        PacketSink sink = new PacketSink() {
+                public void write(FECPacket p) {
+                    Buffer b = p.getData();
+                    byte[] copy = new byte[b.len];
+                    System.arraycopy(b.b,b.off,copy,0,b.len);
+                    pkts.add(new FECPacket(p.getSegment(),p.getIndex(),
+                                           new Buffer(copy)));
+                }
+            };
+        FECOutputStream out = threaded ?
+            new FECOutputStream(code,packetLength,sink) :
+            new FECOutputStream(code,packetLength,repairIndexes(code),sink,
+                                null);
+        // Odd sized writes, so they straddle packets and segments.
+        for (int off=0;off<data.length;) {
+            int c = Math.min(data.length-off,1+rand.nextInt(3*packetLength));
+            if (c == 1) {
+                out.write(data[off]);
+            } else {
+                out.write(data,off,c);
+            }
+            off += c;
+        }
+        out.close();
+        assertEquals(data.length,out.getLength());
+        assertEquals(segments(data.length,code.getK()*packetLength),
+                     out.getSegmentCount());
+        return pkts;
+    }
+
+    /**
+     * Pass the packets to an FECInputStream from <code>threads</code>
+     * threads and read the stream back.
+     */
+    private static byte[] decode(FECCode code, int packetLength, int length,
+                                 List pkts, int threads) throws IOException {
+        final FECInputStream in = new FECInputStream(code,packetLength,
+                                                     length);
+        final List failures = Collections.synchronizedList(new ArrayList());
+        Thread[] writers = new Thread[threads];
+        for (int t=0;t<threads;t++) {
+            final List mine = new ArrayList();
+            for (int i=t;i<pkts.size();i+=threads) {
+                mine.add(pkts.get(i));
+            }
+            writers[t] = new Thread() {
+                    public void run() {
+                        try {
+                            for (Iterator it=mine.iterator();it.hasNext();) {
+                                in.write((FECPacket) it.next());
+                            }
+                        } catch (Throwable e) {
+                            failures.add(e);
+                        }
+                    }
+                };
+            writers[t].start();
+        }
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buf = new byte[1+rand.nextInt(3*packetLength)];
+        int c;
+        while ((c = in.read(buf)) != -1) {
+            result.write(buf,0,c);
+        }
+        for (int t=0;t<threads;t++) {
+            try {
+                writers[t].join();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        assertTrue(failures.toString(),failures.isEmpty());
+        assertEquals(-1,in.read());
+        return result.toByteArray();
+    }
+
+    /**
+     * Drop n-k random packets of every segment, duplicate some of the
+     * others and shuffle them all.
+     */
+    private static List mangle(FECCode code, List pkts) {
+        int k = code.getK(), n = code.getN();
+        List result = new ArrayList();
+        for (int s=0;s*n<pkts.size();s++) {
+            List seg = new ArrayList(pkts.subList(s*n,(s+1)*n));
+            Collections.shuffle(seg,rand);
+            seg = seg.subList(0,k);
+            result.addAll(seg);
+            for (int i=0;i<k/4+1;i++) {
+                result.add(seg.get(rand.nextInt(k)));
+            }
+        }
+        Collections.shuffle(result,rand);
+        return result;
+    }
+
+    private static int segments(long length, int segmentSize) {
+        return (int) ((length + segmentSize - 1)/segmentSize);
+    }
+
+    private static int[] repairIndexes(FECCode code) {
+        int[] index = new int[code.getN()-code.getK()];
+        for (int i=0;i<index.length;i++) {
+            index[i] = code.getK()+i;
+        }
+        return index;
+    }
+
+    private static byte[] randomData(long length) {
+        byte[] data = new byte[(int) length];
+        rand.nextBytes(data);
+        return data;
+    }
+}
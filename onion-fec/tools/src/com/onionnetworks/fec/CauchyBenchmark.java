@@ -0,0 +1,120 @@
+package com.onionnetworks.fec;
+
+import java.lang.reflect.Constructor;
+import java.util.Random;
+import com.onionnetworks.util.Buffer;
+
+/**
+ * Compares CauchyCode with PureCode and Native8Code at the same (k,n),
+ * encoding all n-k repair packets and decoding with the first n-k (or k)
+ * source packets lost.
+ *
+ * Usage: CauchyBenchmark [k n packetLength [class ...]]
+ *
+ * CauchyCode codes the bytes after the last 64 byte group much more
+ * slowly, so packetLength should be a multiple of 64 to measure it.  For
+ * each code it prints the MB/s of source packets encoded and decoded.
+ * A code that
+ * can't be built, e.g. CauchyCode before JDK 9 or Native8Code without the
+ * native library, is skipped.
+ */
+public class CauchyBenchmark {
+
+    public static final int RUN_MILLIS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int k = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int n = args.length > 1 ? Integer.parseInt(args[1]) : 48;
+        int packetLength = args.length > 2 ? Integer.parseInt(args[2]) :
+            4096;
+        String[] classes = new String[] {"com.onionnetworks.fec.CauchyCode",
+                                         "com.onionnetworks.fec.PureCode",
+                                         "com.onionnetworks.fec.Native8Code"};
+        if (args.length > 3) {
+            classes = new String[args.length-3];
+            System.arraycopy(args,3,classes,0,classes.length);
+        }
+
+        Random rand = new Random(0);
+        Buffer[] src = new Buffer[k];
+        for (int i=0;i<k;i++) {
+            src[i] = new Buffer(packetLength);
+            rand.nextBytes(src[i].b);
+        }
+        Buffer[] repair = new Buffer[n-k];
+        int[] index = new int[n-k];
+        for (int i=0;i<repair.length;i++) {
+            repair[i] = new Buffer(packetLength);
+            index[i] = k+i;
+        }
+        int losses = Math.min(k,n-k);
+        Buffer[] pkts = new Buffer[k];
+        int[] pktIndex = new int[k];
+        for (int i=0;i<k;i++) {
+            pkts[i] = new Buffer(packetLength);
+        }
+
+        System.out.println("k="+k+" n="+n+" packetLength="+packetLength+
+                           " losses="+losses+", MB/s of source");
+        for (int c=0;c<classes.length;c++) {
+            FECCode code;
+            try {
+                Constructor con = Class.forName(classes[c]).getConstructor
+                    (new Class[] {int.class, int.class});
+                code = (FECCode) con.newInstance
+                    (new Object[] {new Integer(k), new Integer(n)});
+            } catch (Throwable t) {
+                System.out.println(classes[c]+": skipped, "+t);
+                continue;
+            }
+            // warm up
+            run(code,src,repair,index,pkts,pktIndex,losses,false,
+                RUN_MILLIS/4);
+            run(code,src,repair,index,pkts,pktIndex,losses,true,
+                RUN_MILLIS/4);
+            for (int i=0;i<k;i++) {
+                for (int j=0;j<packetLength;j++) {
+                    if (pkts[i].b[j] != src[i].b[j]) {
+                        throw new IllegalStateException(code+" decoded "+
+                                                        "packet "+i+
+                                                        " wrong");
+                    }
+                }
+            }
+            double encode = run(code,src,repair,index,pkts,pktIndex,losses,
+                                false,RUN_MILLIS);
+            double decode = run(code,src,repair,index,pkts,pktIndex,losses,
+                                true,RUN_MILLIS);
+            System.out.println(code+": encode "+
+                               (long) (encode*k*packetLength/1000000)+
+                               ", decode "+
+                               (long) (decode*k*packetLength/1000000));
+        }
+    }
+
+    /**
+     * @return encodes or decodes per second.
+     */
+    private static double run(FECCode code, Buffer[] src, Buffer[] repair,
+                              int[] index, Buffer[] pkts, int[] pktIndex,
+                              int losses, boolean decode, long millis) {
+        int count = 0;
+        long start = System.currentTimeMillis();
+        long now;
+        do {
+            if (decode) {
+                for (int i=0;i<pkts.length;i++) {
+                    Buffer b = i < losses ? repair[i] : src[i];
+                    System.arraycopy(b.b,0,pkts[i].b,0,b.len);
+                    pktIndex[i] = i < losses ? index[i] : i;
+                }
+                code.decode(pkts,pktIndex);
+            } else {
+                code.encode(src,repair,index);
+            }
+            count++;
+            now = System.currentTimeMillis();
+        } while (now - start < millis);
+        return count*1000.0/(now-start);
+    }
+}
@@ -0,0 +1,99 @@
+package com.onionnetworks.fec;
+
+import java.lang.reflect.Method;
+import java.util.Random;
+import com.onionnetworks.util.Buffer;
+
+/**
+ * Measures how long the native codes hold off the GC, and what it costs
+ * them in speed, for maxCritical settings from 0 (whole packets pinned
+ * for the whole call) down to 64KB.  Each setting encodes and decodes
+ * large packets for a second and prints the MB/s of source coded and the
+ * longest critical region seen, from getMaxCriticalNanos().
+ *
+ * Usage: CriticalBenchmark [k n packetLength [class]]
+ *
+ * The class defaults to Native8Code.
+ */
+public class CriticalBenchmark {
+
+    public static final int RUN_MILLIS = 1000;
+    public static final int[] MAX_CRITICAL = new int[] {
+        0, 16*1024*1024, 4*1024*1024, 1024*1024, 256*1024, 64*1024
+    };
+
+    public static void main(String[] args) throws Exception {
+        int k = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int n = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+        int packetLength = args.length > 2 ? Integer.parseInt(args[2]) :
+            1024*1024;
+        Class clazz = Class.forName(args.length > 3 ? args[3] :
+                                    "com.onionnetworks.fec.Native8Code");
+        FECCode code = (FECCode) clazz.getConstructor
+            (new Class[] {int.class, int.class}).newInstance
+            (new Object[] {new Integer(k), new Integer(n)});
+        Method setMaxCritical = clazz.getMethod
+            ("setMaxCritical",new Class[] {int.class});
+        Method getMaxCriticalNanos = clazz.getMethod
+            ("getMaxCriticalNanos",new Class[] {boolean.class});
+
+        Random rand = new Random(0);
+        Buffer[] src = new Buffer[k];
+        for (int i=0;i<k;i++) {
+            src[i] = new Buffer(packetLength);
+            rand.nextBytes(src[i].b);
+        }
+        int[] index = new int[n-k];
+        Buffer[] repair = new Buffer[n-k];
+        for (int i=0;i<repair.length;i++) {
+            repair[i] = new Buffer(packetLength);
+            index[i] = k+i;
+        }
+        code.encode(src,repair,index);
+
+        // The first n-k source packets are replaced by the repairs.
+        int losses = Math.min(k,n-k);
+        Buffer[] pkts = new Buffer[k];
+        int[] pktIndex = new int[k];
+        for (int i=0;i<k;i++) {
+            pkts[i] = new Buffer(packetLength);
+        }
+
+        System.out.println(code+" packetLength="+packetLength+
+                           ", MB/s of source coded");
+        for (int m=0;m<MAX_CRITICAL.length;m++) {
+            setMaxCritical.invoke(null,new Object[] {
+                new Integer(MAX_CRITICAL[m])});
+            for (int pass=0;pass<2;pass++) {
+                boolean decode = pass == 1;
+                getMaxCriticalNanos.invoke(null,new Object[] {Boolean.TRUE});
+                int count = 0;
+                long start = System.currentTimeMillis();
+                long now;
+                do {
+                    if (decode) {
+                        for (int i=0;i<k;i++) {
+                            Buffer b = i < losses ? repair[i] : src[i];
+                            System.arraycopy(b.b,0,pkts[i].b,0,packetLength);
+                            pktIndex[i] = i < losses ? index[i] : i;
+                        }
+                        code.decode(pkts,pktIndex);
+                    } else {
+                        code.encode(src,repair,index);
+                    }
+                    count++;
+                    now = System.currentTimeMillis();
+                } while (now - start < RUN_MILLIS);
+                long nanos = ((Long) getMaxCriticalNanos.invoke
+                              (null,new Object[] {Boolean.FALSE})).
+                    longValue();
+                System.out.println
+                    ("maxCritical="+MAX_CRITICAL[m]+
+                     (decode ? " decode " : " encode ")+
+                     ((long) count*k*packetLength/1000/(now-start))+
+                     " MB/s, longest critical region "+
+                     (nanos/1000)+" us");
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.onionnetworks.fec;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import com.onionnetworks.util.Buffer;
+
+/**
+ * Measures the bytes allocated per decode(Buffer[],int[]) call, with a
+ * new DecodeScratch for every call, which allocates what decode() did
+ * before there were scratches, and with one scratch reused for all of
+ * them.  The block has the first losses source packets replaced by repair
+ * packets, in arrival order so that copyShuffle() has to move packets.
+ *
+ * Usage: DecodeAllocationBenchmark [k n packetLength losses [class]]
+ *
+ * Allocation is counted with com.sun.management.ThreadMXBean, so this
+ * needs a JVM that provides it.  The decode matrix is cached after the
+ * first call, the reused scratch should then allocate 0 bytes.
+ */
+public class DecodeAllocationBenchmark {
+
+    public static final int WARMUP = 1000;
+    public static final int ROUNDS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int k = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int n = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int packetLength = args.length > 2 ? Integer.parseInt(args[2]) :
+            1024;
+        int losses = args.length > 3 ? Integer.parseInt(args[3]) : k/8;
+        FECCode code;
+        if (args.length > 4) {
+            code = (FECCode) Class.forName(args[4]).getConstructor
+                (new Class[] {int.class, int.class}).newInstance
+                (new Object[] {new Integer(k), new Integer(n)});
+        } else {
+            code = FECCodeFactory.getDefault().createFECCode(k,n);
+        }
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean)
+            ManagementFactory.getThreadMXBean();
+
+        Random rand = new Random(0);
+        Buffer[] src = new Buffer[k];
+        for (int i=0;i<k;i++) {
+            src[i] = new Buffer(packetLength);
+            rand.nextBytes(src[i].b);
+        }
+        Buffer[] repair = new Buffer[losses];
+        int[] repairIndex = new int[losses];
+        for (int i=0;i<losses;i++) {
+            repair[i] = new Buffer(packetLength);
+            repairIndex[i] = k+i;
+        }
+        code.encode(src,repair,repairIndex);
+
+        // The received block: the surviving source packets, then the
+        // repairs, all in one byte[] that is restored before every call.
+        byte[] received = new byte[k*packetLength];
+        int[] receivedIndex = new int[k];
+        for (int i=0;i<k;i++) {
+            Buffer b = i < k-losses ? src[losses+i] : repair[i-(k-losses)];
+            System.arraycopy(b.b,b.off,received,i*packetLength,packetLength);
+            receivedIndex[i] = i < k-losses ? losses+i :
+                repairIndex[i-(k-losses)];
+        }
+        byte[] block = new byte[k*packetLength];
+        Buffer[] pkts = new Buffer[k];
+        for (int i=0;i<k;i++) {
+            pkts[i] = new Buffer(block,i*packetLength,packetLength);
+        }
+        int[] index = new int[k];
+
+        System.out.println(code+" packetLength="+packetLength+
+                           " losses="+losses);
+        DecodeScratch scratch = new DecodeScratch();
+        for (int pass=0;pass<2;pass++) {
+            boolean reuse = pass == 1;
+            for (int i=0;i<WARMUP;i++) {
+                decode(code,received,block,pkts,receivedIndex,index,
+                       reuse ? scratch : new DecodeScratch());
+            }
+            check(src,pkts);
+
+            long bytes = mx.getThreadAllocatedBytes
+                (Thread.currentThread().getId());
+            long start = System.nanoTime();
+            for (int i=0;i<ROUNDS;i++) {
+                decode(code,received,block,pkts,receivedIndex,index,
+                       reuse ? scratch : new DecodeScratch());
+            }
+            long time = System.nanoTime() - start;
+            bytes = mx.getThreadAllocatedBytes
+                (Thread.currentThread().getId()) - bytes;
+            System.out.println((reuse ? "reused scratch: " :
+                                "new scratch:    ")+
+                               (bytes/ROUNDS)+" bytes/decode, "+
+                               (time/ROUNDS/1000)+" us/decode");
+        }
+    }
+
+    private static void decode(FECCode code, byte[] received, byte[] block,
+                               Buffer[] pkts, int[] receivedIndex,
+                               int[] index, DecodeScratch scratch) {
+        System.arraycopy(received,0,block,0,block.length);
+        System.arraycopy(receivedIndex,0,index,0,index.length);
+        code.decode(pkts,index,scratch);
+    }
+
+    private static void check(Buffer[] src, Buffer[] pkts) {
+        for (int i=0;i<src.length;i++) {
+            for (int j=0;j<src[i].len;j++) {
+                if (src[i].b[src[i].off+j] != pkts[i].b[pkts[i].off+j]) {
+                    throw new IllegalStateException("Packet "+i+
+                                                    " decoded wrong");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.onionnetworks.fec;
+
+import java.util.Random;
+import com.onionnetworks.util.Buffer;
+
+/**
+ * Compares the blocked multi-output encode of PureCode and Pure16Code with
+ * the old one repair packet at a time encode (blockRows = 1).
+ *
+ * Usage: EncodeBenchmark [k n packetLength [blockRows ...]]
+ *
+ * For each setting it prints the encode throughput and how many bytes of
+ * source packets have to be streamed from memory per encode.
+ */
+public class EncodeBenchmark {
+
+    public static final int RUN_MILLIS = 3000;
+
+    public static void main(String[] args) throws Exception {
+        int k = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+        int n = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        int packetLength = args.length > 2 ? Integer.parseInt(args[2]) : 
+            32*1024;
+        int[] rows = new int[] {1,4,16,64};
+        if (args.length > 3) {
+            rows = new int[args.length-3];
+            for (int i=0;i<rows.length;i++) {
+                rows[i] = Integer.parseInt(args[i+3]);
+            }
+        }
+
+        FECCode code = n <= 256 ? (FECCode) new PureCode(k,n) : 
+            (FECCode) new Pure16Code(k,n);
+        Random rand = new Random(0);
+        Buffer[] src = new Buffer[k];
+        for (int i=0;i<k;i++) {
+            src[i] = new Buffer(packetLength);
+            rand.nextBytes(src[i].b);
+        }
+        Buffer[] repair = new Buffer[n-k];
+        int[] index = new int[n-k];
+        for (int i=0;i<repair.length;i++) {
+            repair[i] = new Buffer(packetLength);
+            index[i] = k+i;
+        }
+
+        System.out.println(code+" packetLength="+packetLength+
+                           " blockStripe="+PureCode.blockStripe);
+        for (int i=0;i<rows.length;i++) {
+            PureCode.blockRows = rows[i];
+            // warm up
+            run(code,src,repair,index,RUN_MILLIS/3);
+            double rate = run(code,src,repair,index,RUN_MILLIS);
+            long groups = (repair.length + rows[i] - 1) / rows[i];
+            long streamed = groups * k * (long) packetLength;
+            System.out.println("blockRows="+rows[i]+": "+
+                               (long) (rate*k*packetLength/1000000)+
+                               " MB/s of source, "+streamed/1024+
+                               " KB of source streamed per encode");
+        }
+    }
+
+    /**
+     * @return encodes per second.
+     */
+    public static double run(FECCode code, Buffer[] src, Buffer[] repair,
+                             int[] index, long millis) {
+        int count = 0;
+        long start = System.currentTimeMillis();
+        long now;
+        do {
+            code.encode(src,repair,index);
+            count++;
+            now = System.currentTimeMillis();
+        } while (now - start < millis);
+        return count*1000.0/(now-start);
+    }
+}
@@ -0,0 +1,89 @@
+package com.onionnetworks.fec;
+
+import java.util.Random;
+import com.onionnetworks.util.Buffer;
+
+/**
+ * Compares decode() after the last packet with an IncrementalDecoder fed
+ * the same packets one at a time, the first losses source packets
+ * having been replaced by repair packets that arrive last.
+ *
+ * Usage: IncrementalDecodeBenchmark [k n packetLength losses [class]]
+ *
+ * For each it prints the total decoding time and the time spent after
+ * the last packet arrived, which is what the receiver waits for.
+ */
+public class IncrementalDecodeBenchmark {
+
+    public static final int ROUNDS = 10;
+
+    public static void main(String[] args) throws Exception {
+        int k = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+        int n = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        int packetLength = args.length > 2 ? Integer.parseInt(args[2]) :
+            16*1024;
+        int losses = args.length > 3 ? Integer.parseInt(args[3]) : k/8;
+        FECCode code;
+        if (args.length > 4) {
+            code = (FECCode) Class.forName(args[4]).getConstructor
+                (new Class[] {int.class, int.class}).newInstance
+                (new Object[] {new Integer(k), new Integer(n)});
+        } else {
+            code = FECCodeFactory.getDefault().createFECCode(k,n);
+        }
+
+        Random rand = new Random(0);
+        Buffer[] src = new Buffer[k];
+        for (int i=0;i<k;i++) {
+            src[i] = new Buffer(packetLength);
+            rand.nextBytes(src[i].b);
+        }
+        Buffer[] repair = new Buffer[losses];
+        int[] repairIndex = new int[losses];
+        for (int i=0;i<losses;i++) {
+            repair[i] = new Buffer(packetLength);
+            repairIndex[i] = k+i;
+        }
+        code.encode(src,repair,repairIndex);
+
+        // Arrival order: the surviving source packets, then the repairs.
+        byte[][] pkts = new byte[k][];
+        int[] index = new int[k];
+        for (int i=0;i<k-losses;i++) {
+            pkts[i] = src[losses+i].b;
+            index[i] = losses+i;
+        }
+        for (int i=0;i<losses;i++) {
+            pkts[k-losses+i] = repair[i].b;
+            index[k-losses+i] = repairIndex[i];
+        }
+
+        System.out.println(code+" packetLength="+packetLength+
+                           " losses="+losses);
+        for (int round=0;round<ROUNDS;round++) {
+            Buffer[] bufs = new Buffer[k];
+            for (int i=0;i<k;i++) {
+                bufs[i] = new Buffer((byte[]) pkts[i].clone());
+            }
+            long start = System.nanoTime();
+            code.decode(bufs,(int[]) index.clone());
+            long batch = System.nanoTime() - start;
+
+            IncrementalDecoder dec =
+                code.createIncrementalDecoder(packetLength);
+            long total = 0, last = 0;
+            for (int i=0;i<k;i++) {
+                start = System.nanoTime();
+                dec.add(index[i],pkts[i],0);
+                last = System.nanoTime() - start;
+                total += last;
+            }
+            if (round >= ROUNDS/2) {
+                System.out.println("decode(): "+batch/1000+
+                                   " us after the last packet, "+
+                                   "incremental: "+total/1000+" us total, "+
+                                   last/1000+" us after the last packet");
+            }
+        }
+    }
+}
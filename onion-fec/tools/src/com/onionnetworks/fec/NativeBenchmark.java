@@ -0,0 +1,102 @@
+package com.onionnetworks.fec;
+
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import com.onionnetworks.util.Buffer;
+
+/**
+ * Compares the JNI binding of the native codes with the java.lang.foreign
+ * one (ForeignCode) for packet sizes from 512 bytes to 64KB, encoding both
+ * from byte[]'s and from direct ByteBuffers.
+ *
+ * Usage: NativeBenchmark [k n [class ...]]
+ *
+ * The classes default to Native8Code and Foreign8Code.  ForeignCode needs
+ * JDK 22+, run with --enable-native-access=ALL-UNNAMED.
+ */
+public class NativeBenchmark {
+
+    public static final int RUN_MILLIS = 1000;
+    public static final int MIN_PACKET = 512;
+    public static final int MAX_PACKET = 64*1024;
+
+    public static void main(String[] args) throws Exception {
+        int k = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int n = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        String[] classes = new String[] {"com.onionnetworks.fec.Native8Code",
+                                         "com.onionnetworks.fec.Foreign8Code"};
+        if (args.length > 2) {
+            classes = new String[args.length-2];
+            System.arraycopy(args,2,classes,0,classes.length);
+        }
+
+        FECCode[] codes = new FECCode[classes.length];
+        for (int i=0;i<codes.length;i++) {
+            Constructor con = Class.forName(classes[i]).getConstructor
+                (new Class[] {int.class, int.class});
+            codes[i] = (FECCode) con.newInstance
+                (new Object[] {new Integer(k), new Integer(n)});
+        }
+
+        int[] index = new int[n-k];
+        for (int i=0;i<index.length;i++) {
+            index[i] = k+i;
+        }
+        System.out.println("k="+k+" n="+n+", MB/s of source encoded");
+        for (int len=MIN_PACKET;len<=MAX_PACKET;len*=2) {
+            Random rand = new Random(len);
+            Buffer[] src = new Buffer[k];
+            ByteBuffer[] directSrc = new ByteBuffer[k];
+            for (int i=0;i<k;i++) {
+                src[i] = new Buffer(len);
+                rand.nextBytes(src[i].b);
+                directSrc[i] = ByteBuffer.allocateDirect(len);
+                directSrc[i].put(src[i].b).flip();
+            }
+            Buffer[] repair = new Buffer[n-k];
+            ByteBuffer[] directRepair = new ByteBuffer[n-k];
+            for (int i=0;i<repair.length;i++) {
+                repair[i] = new Buffer(len);
+                directRepair[i] = ByteBuffer.allocateDirect(len);
+            }
+
+            for (int c=0;c<codes.length;c++) {
+                // warm up
+                run(codes[c],src,repair,null,null,index,RUN_MILLIS/4);
+                run(codes[c],null,null,directSrc,directRepair,index,
+                    RUN_MILLIS/4);
+                double arrays = run(codes[c],src,repair,null,null,index,
+                                    RUN_MILLIS);
+                double direct = run(codes[c],null,null,directSrc,
+                                    directRepair,index,RUN_MILLIS);
+                System.out.println(codes[c]+" packetLength="+len+": byte[] "+
+                                   (long) (arrays*k*len/1000000)+
+                                   ", direct "+
+                                   (long) (direct*k*len/1000000));
+            }
+        }
+    }
+
+    /**
+     * @return encodes per second.
+     */
+    public static double run(FECCode code, Buffer[] src, Buffer[] repair,
+                             ByteBuffer[] directSrc,
+                             ByteBuffer[] directRepair, int[] index,
+                             long millis) {
+        int count = 0;
+        long start = System.currentTimeMillis();
+        long now;
+        do {
+            if (src != null) {
+                code.encode(src,repair,index);
+            } else {
+                code.encode(directSrc,directRepair,index);
+            }
+            count++;
+            now = System.currentTimeMillis();
+        } while (now - start < millis);
+        return count*1000.0/(now-start);
+    }
+}
@@ -0,0 +1,180 @@
+package com.onionnetworks.fec;
+
+import java.lang.reflect.Constructor;
+import java.util.Random;
+import com.onionnetworks.util.Buffer;
+
+/**
+ * Measures the time per segment of encoding and decoding batches of 1 to
+ * 256 segments, one encode(Buffer[]) or decode(Buffer[],int[]) call per
+ * segment against one encodeSegments() or decodeSegments() call for the
+ * whole batch.  With small packets most of a native call is spent crossing
+ * into the native library and pinning the arrays, which the batch calls do
+ * once per batch and once per segment rather than once per packet.
+ *
+ * Usage: SegmentBenchmark [k n packetLength [class ...]]
+ *
+ * The classes default to Native8Code and Native16Code.  Each decoded
+ * segment has lost its first source packet, the received packets are
+ * copied back into place before every decode, for both kinds of call.
+ */
+public class SegmentBenchmark {
+
+    public static final int RUN_MILLIS = 1000;
+    public static final int[] BATCHES = new int[] {1, 4, 16, 64, 256};
+
+    public static void main(String[] args) throws Exception {
+        int k = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int n = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int packetLength = args.length > 2 ? Integer.parseInt(args[2]) :
+            1024;
+        String[] classes = new String[] {"com.onionnetworks.fec.Native8Code",
+                                         "com.onionnetworks.fec.Native16Code"};
+        if (args.length > 3) {
+            classes = new String[args.length-3];
+            System.arraycopy(args,3,classes,0,classes.length);
+        }
+
+        int[] index = new int[n-k];
+        for (int i=0;i<index.length;i++) {
+            index[i] = k+i;
+        }
+        System.out.println("k="+k+" n="+n+" packetLength="+packetLength+
+                           ", us per segment");
+        for (int c=0;c<classes.length;c++) {
+            Constructor con = Class.forName(classes[c]).getConstructor
+                (new Class[] {int.class, int.class});
+            FECCode code = (FECCode) con.newInstance
+                (new Object[] {new Integer(k), new Integer(n)});
+            for (int b=0;b<BATCHES.length;b++) {
+                Batch batch = new Batch(code,BATCHES[b],k,packetLength,index);
+                // warm up
+                batch.run(false,false,RUN_MILLIS/4);
+                batch.run(false,true,RUN_MILLIS/4);
+                batch.run(true,false,RUN_MILLIS/4);
+                batch.run(true,true,RUN_MILLIS/4);
+                batch.check();
+                System.out.println
+                    (code+" segments="+BATCHES[b]+
+                     ": encode "+format(batch.run(false,false,RUN_MILLIS))+
+                     ", encodeSegments "+
+                     format(batch.run(false,true,RUN_MILLIS))+
+                     ", decode "+format(batch.run(true,false,RUN_MILLIS))+
+                     ", decodeSegments "+
+                     format(batch.run(true,true,RUN_MILLIS)));
+            }
+        }
+    }
+
+    private static String format(double micros) {
+        return String.valueOf(Math.round(micros*100)/100.0);
+    }
+
+    private static class Batch {
+
+        FECCode code;
+        int k, packetLength, segments;
+        int[] index;
+
+        byte[][] src, repair, received, data;
+        int[] srcOff, repairOff, dataOff;
+        int[] receivedIndex;
+        int[][] dataIndex;
+        Buffer[][] srcBufs, repairBufs, dataBufs;
+
+        Batch(FECCode code, int segments, int k, int packetLength,
+              int[] index) {
+            this.code = code;
+            this.segments = segments;
+            this.k = k;
+            this.packetLength = packetLength;
+            this.index = index;
+
+            Random rand = new Random(segments);
+            src = new byte[segments][k*packetLength];
+            repair = new byte[segments][index.length*packetLength];
+            srcOff = new int[segments];
+            repairOff = new int[segments];
+            srcBufs = new Buffer[segments][];
+            repairBufs = new Buffer[segments][];
+            for (int s=0;s<segments;s++) {
+                rand.nextBytes(src[s]);
+                srcBufs[s] = buffers(src[s],k);
+                repairBufs[s] = buffers(repair[s],index.length);
+            }
+            code.encodeSegments(src,srcOff,repair,repairOff,index,
+                                packetLength);
+
+            // The first repair packet stands in for the first source one.
+            receivedIndex = new int[k];
+            received = new byte[segments][k*packetLength];
+            data = new byte[segments][k*packetLength];
+            dataOff = new int[segments];
+            dataIndex = new int[segments][k];
+            dataBufs = new Buffer[segments][];
+            for (int i=0;i<k;i++) {
+                receivedIndex[i] = i == 0 ? index[0] : i;
+            }
+            for (int s=0;s<segments;s++) {
+                System.arraycopy(src[s],0,received[s],0,k*packetLength);
+                System.arraycopy(repair[s],0,received[s],0,packetLength);
+                dataBufs[s] = buffers(data[s],k);
+            }
+        }
+
+        Buffer[] buffers(byte[] b, int count) {
+            Buffer[] result = new Buffer[count];
+            for (int i=0;i<count;i++) {
+                result[i] = new Buffer(b,i*packetLength,packetLength);
+            }
+            return result;
+        }
+
+        /**
+         * @return microseconds per segment.
+         */
+        double run(boolean decode, boolean batched, long millis) {
+            long count = 0;
+            long start = System.nanoTime();
+            long now;
+            do {
+                if (decode) {
+                    for (int s=0;s<segments;s++) {
+                        System.arraycopy(received[s],0,data[s],0,
+                                         data[s].length);
+                        System.arraycopy(receivedIndex,0,dataIndex[s],0,k);
+                    }
+                    if (batched) {
+                        code.decodeSegments(data,dataOff,dataIndex,
+                                            packetLength);
+                    } else {
+                        for (int s=0;s<segments;s++) {
+                            code.decode(dataBufs[s],dataIndex[s]);
+                        }
+                    }
+                } else if (batched) {
+                    code.encodeSegments(src,srcOff,repair,repairOff,index,
+                                        packetLength);
+                } else {
+                    for (int s=0;s<segments;s++) {
+                        code.encode(srcBufs[s],repairBufs[s],index);
+                    }
+                }
+                count += segments;
+                now = System.nanoTime();
+            } while (now - start < millis*1000000);
+            return (now-start)/1000.0/count;
+        }
+
+        void check() {
+            for (int s=0;s<segments;s++) {
+                for (int i=0;i<src[s].length;i++) {
+                    if (src[s][i] != data[s][i]) {
+                        throw new IllegalStateException
+                            ("Segment "+s+" decoded wrong");
+                    }
+                }
+            }
+        }
+    }
+}